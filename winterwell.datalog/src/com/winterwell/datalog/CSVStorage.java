@@ -40,6 +40,8 @@ public class CSVStorage implements IDataLogStorage {
 	@Override @Deprecated
 	public void setHistory(Map<Pair2<String, Time>, Double> tagTime2set) {
 		// unsupported
+		if (tagTime2set.isEmpty()) return;
+		Log.e(DataLog.LOGTAG, "Cannot set history in CSVStorage! Losing values for: "+tagTime2set.keySet());
 	}
 	
 	public IFuture<MeanRate> getMean(Time start, Time end, String tag) {
@@ -131,6 +133,8 @@ public class CSVStorage implements IDataLogStorage {
 	// Unsupported for CSV.
 	@Override @Deprecated
 	public void saveHistory(Map<Pair2<String, Time>, Double> tag2time2count) {
+		if (tag2time2count.isEmpty()) return;
+		Log.e(DataLog.LOGTAG, "Cannot save history in CSVStorage! Losing counts for: "+tag2time2count.keySet());
 	}
 		
 	/**
@@ -0,0 +1,180 @@
+package com.winterwell.datalog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.winterwell.datalog.GorillaCodec.Series;
+import com.winterwell.utils.io.FileUtils;
+
+/**
+ * A sealed, immutable, memory-mapped file of DataLog buckets for one period.
+ * <p>
+ * Layout: a header (magic, version, tag count), then an index of tags, then one
+ * {@link GorillaCodec} chunk per tag. The index holds each tag's time-range, so
+ * a query only decodes the chunks it needs.
+ *
+ * <pre>
+ * int "DLSG", int version, int ntags
+ * ntags x { utf tag, byte ncols, int npoints, long minTime, long maxTime, int offset, int length }
+ * chunks...
+ * </pre>
+ *
+ * @testedby {@link ColumnarStorageTest}
+ */
+final class ColumnarSegment {
+
+	static final int MAGIC = 0x444c5347; // "DLSG"
+	static final int VERSION = 1;
+
+	static final class Entry {
+		final String tag;
+		final int ncols;
+		final int n;
+		final long minTime;
+		final long maxTime;
+		final int offset;
+		final int length;
+
+		Entry(String tag, int ncols, int n, long minTime, long maxTime, int offset, int length) {
+			this.tag = tag;
+			this.ncols = ncols;
+			this.n = n;
+			this.minTime = minTime;
+			this.maxTime = maxTime;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry[" + tag + " n:" + n + " cols:" + ncols + "]";
+		}
+	}
+
+	final File file;
+	/**
+	 * For spotting a re-written file
+	 */
+	final long lastModified;
+	private final ByteBuffer buf;
+	/**
+	 * A tag can have 2 entries: counts (1 column) and means (4 columns).
+	 */
+	private final Map<String, List<Entry>> index;
+
+	ColumnarSegment(File file) throws IOException {
+		this.file = file;
+		this.lastModified = file.lastModified();
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer mbb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			buf = mbb;
+		}
+		ByteBuffer bb = buf.duplicate();
+		if (bb.getInt() != MAGIC) throw new IOException("Not a DataLog segment: " + file);
+		int v = bb.getInt();
+		if (v != VERSION) throw new IOException("Unknown segment version " + v + ": " + file);
+		int ntags = bb.getInt();
+		index = new HashMap<>(ntags * 2);
+		for (int i = 0; i < ntags; i++) {
+			byte[] tb = new byte[bb.getShort() & 0xFFFF];
+			bb.get(tb);
+			String tag = new String(tb, StandardCharsets.UTF_8);
+			Entry e = new Entry(tag, bb.get(), bb.getInt(), bb.getLong(), bb.getLong(), bb.getInt(), bb.getInt());
+			index.computeIfAbsent(tag, k -> new ArrayList<>(1)).add(e);
+		}
+	}
+
+	/**
+	 * @return the entries for this tag (can be empty, never null)
+	 */
+	List<Entry> getEntries(String tag) {
+		List<Entry> es = index.get(tag);
+		return es == null ? Collections.emptyList() : es;
+	}
+
+	Iterable<String> getTags() {
+		return index.keySet();
+	}
+
+	/**
+	 * Decode one chunk
+	 */
+	Series read(Entry e) {
+		ByteBuffer bb = buf.duplicate();
+		bb.position(e.offset);
+		return GorillaCodec.decode(bb, e.n, e.ncols);
+	}
+
+	/**
+	 * Write a segment (to a temp file, then moved into place, so readers never
+	 * see a half-written segment).
+	 *
+	 * @param data tag -> series, where each tag has up to 1 counts series and 1 means
+	 *             series. Each series will be sorted.
+	 */
+	static void write(File file, Map<String, List<Series>> data) throws IOException {
+		// encode
+		List<String> tags = new ArrayList<>();
+		List<Series> series = new ArrayList<>();
+		List<byte[]> chunks = new ArrayList<>();
+		int headerSize = 12;
+		for (Map.Entry<String, List<Series>> me : data.entrySet()) {
+			for (Series s : me.getValue()) {
+				if (s.n == 0) continue;
+				s.sort();
+				tags.add(me.getKey());
+				series.add(s);
+				chunks.add(GorillaCodec.encode(s));
+				byte[] tb = me.getKey().getBytes(StandardCharsets.UTF_8);
+				if (tb.length > 0xFFFF) throw new IOException("Tag too long: " + me.getKey().substring(0, 100));
+				headerSize += 2 + tb.length + 1 + 4 + 8 + 8 + 4 + 4;
+			}
+		}
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(tags.size());
+			int offset = headerSize;
+			for (int i = 0; i < tags.size(); i++) {
+				byte[] tb = tags.get(i).getBytes(StandardCharsets.UTF_8);
+				Series s = series.get(i);
+				out.writeShort(tb.length);
+				out.write(tb);
+				out.writeByte(s.ncols());
+				out.writeInt(s.n);
+				out.writeLong(s.minTime());
+				out.writeLong(s.maxTime());
+				out.writeInt(offset);
+				out.writeInt(chunks.get(i).length);
+				offset += chunks.get(i).length;
+			}
+			assert out.size() == headerSize : out.size() + " vs " + headerSize;
+			for (byte[] chunk : chunks) {
+				out.write(chunk);
+			}
+		} finally {
+			FileUtils.close(out);
+		}
+		FileUtils.move(temp, file);
+	}
+
+	@Override
+	public String toString() {
+		return "ColumnarSegment[" + file + "]";
+	}
+}
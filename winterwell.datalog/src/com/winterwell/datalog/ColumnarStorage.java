@@ -0,0 +1,558 @@
+package com.winterwell.datalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import com.winterwell.datalog.DataLog.KInterpolate;
+import com.winterwell.datalog.GorillaCodec.Series;
+import com.winterwell.maths.stats.distributions.d1.Gaussian1D;
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.maths.timeseries.IDataStream;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Containers;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.io.CSVReader;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.FixedFuture;
+import com.winterwell.utils.threads.IFuture;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.Time;
+
+/**
+ * A binary, columnar alternative to {@link CSVStorage}.
+ * <p>
+ * Each period (see {@link DataLogConfig#filePeriod}) has:
+ * <ul>
+ * <li>a "head" file: an append-only log of binary records, written by
+ * {@link #save(Period, Map, Map)} under a file-lock (as CSVStorage does).
+ * <li>once the period is over, a sealed {@link ColumnarSegment}: per-tag
+ * columns, compressed with {@link GorillaCodec}, plus an index of tags and
+ * time-ranges. Reads memory-map this and only decode the chunks they need.
+ * </ul>
+ * Counts are stored as 1 column, means as 4 (mean, var, min, max).
+ * Retro counts and sets ({@link #saveHistory(Map)}, {@link #setHistory(Map)}) and events
+ * (as counts, see {@link #saveEvents(Collection, Period)}) go into the head or segment for their own time.
+ * <p>
+ * Unlike CSVStorage, tag matching is exact (it's an index lookup, not a
+ * startsWith scan).
+ * <p>
+ * Old CSV files can be brought over with {@link #importCSV(File)}, or from the
+ * command line via {@link #main(String[])}.
+ *
+ * @testedby {@link ColumnarStorageTest}
+ */
+public class ColumnarStorage implements IDataLogStorage {
+
+	static final String HEAD = ".head";
+	static final String SEG = ".seg";
+
+	DataLogConfig config;
+
+	File dir;
+
+	/**
+	 * Open (mapped) segments. Re-opened if the file changes.
+	 */
+	private final Map<File, ColumnarSegment> segments = new ConcurrentHashMap<>();
+
+	public ColumnarStorage() {
+		this(new DataLogConfig());
+	}
+
+	public ColumnarStorage(DataLogConfig config) {
+		init(config);
+	}
+
+	@Override
+	public IDataLogStorage init(DataLogConfig config) {
+		this.config = config;
+		dir = config.segmentDir;
+		if ( ! Utils.isBlank(config.namespace)) {
+			dir = new File(dir, FileUtils.safeFilename(config.namespace, false));
+		}
+		dir.mkdirs();
+		return this;
+	}
+
+	@Override
+	public void save(Period period, Map<String, Double> tag2count, Map<String, IDistribution1D> tag2mean) {
+		// Save as the middle of the period, like CSVStorage
+		Time mid = DataLogImpl.doSave3_time(period);
+		long t = mid.getTime();
+		Log.d(DataLog.LOGTAG, "saving " + tag2count.size() + " counts, " + tag2mean.size() + " means to " + dir);
+		List<Object[]> rows = new ArrayList<>(tag2count.size() + tag2mean.size());
+		for (Map.Entry<String, Double> e : tag2count.entrySet()) {
+			rows.add(new Object[] { e.getKey(), new double[] { e.getValue() } });
+		}
+		for (Map.Entry<String, IDistribution1D> e : tag2mean.entrySet()) {
+			IDistribution1D mv = e.getValue();
+			rows.add(new Object[] { e.getKey(),
+					new double[] { mv.getMean(), mv.getVariance(), mv.getSupport().low, mv.getSupport().high } });
+		}
+		appendToHead(periodStart(t), t, rows);
+		sealOldHeads();
+	}
+
+	/**
+	 * @param rows [tag, double[] values]
+	 */
+	synchronized void appendToHead(long periodStart, long t, List<Object[]> rows) {
+		File head = new File(dir, periodStart + HEAD);
+		FileOutputStream fout = null;
+		FileLock lock = null;
+		try {
+			while (true) {
+				fout = new FileOutputStream(head, true);
+				// Suppose 2 JVMs are running... Protect our file edits!
+				lock = fout.getChannel().lock();
+				if (head.exists()) break;
+				// another JVM sealed & deleted it whilst we waited -- start a fresh head
+				release(lock);
+				FileUtils.close(fout);
+			}
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 65536));
+			for (Object[] row : rows) {
+				double[] vs = (double[]) row[1];
+				out.writeUTF((String) row[0]);
+				out.writeLong(t);
+				out.writeByte(vs.length);
+				for (double v : vs) {
+					out.writeDouble(v);
+				}
+			}
+			out.flush();
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		} finally {
+			release(lock);
+			FileUtils.close(fout);
+		}
+	}
+
+	/**
+	 * Seal any head files whose period is over.
+	 */
+	synchronized void sealOldHeads() {
+		long current = periodStart(System.currentTimeMillis());
+		File[] heads = dir.listFiles((d, name) -> name.endsWith(HEAD));
+		if (heads == null) return;
+		for (File head : heads) {
+			Long ps = periodOf(head);
+			if (ps == null || ps >= current) continue;
+			try {
+				seal(head, ps);
+			} catch (IOException ex) {
+				Log.e(DataLog.LOGTAG, "seal " + head + " failed: " + ex);
+			}
+		}
+	}
+
+	/**
+	 * Convert a head file into a segment (merging with any existing segment).
+	 */
+	synchronized void seal(File head, long periodStart) throws IOException {
+		FileOutputStream fout = null;
+		FileLock lock = null;
+		try {
+			// lock the head (blocks writers in other JVMs)
+			fout = new FileOutputStream(head, true);
+			lock = fout.getChannel().lock();
+			if ( ! head.exists()) return; // sealed by someone else
+			File segFile = new File(dir, periodStart + SEG);
+			Map<String, List<Series>> data = new HashMap<>();
+			// existing data
+			ColumnarSegment old = getSegment(segFile);
+			if (old != null) {
+				for (String tag : old.getTags()) {
+					for (ColumnarSegment.Entry e : old.getEntries(tag)) {
+						series(data, tag, e.ncols).addAll(old.read(e));
+					}
+				}
+			}
+			// new data
+			readHead(head, (tag, t, vs) -> {
+				series(data, tag, vs.length).add(t, vs);
+				return true;
+			});
+			ColumnarSegment.write(segFile, data);
+			segments.remove(segFile);
+			FileUtils.delete(head);
+			Log.d(DataLog.LOGTAG, "sealed " + head + " -> " + segFile);
+		} finally {
+			release(lock);
+			FileUtils.close(fout);
+		}
+	}
+
+	private static Series series(Map<String, List<Series>> data, String tag, int ncols) {
+		List<Series> list = data.computeIfAbsent(tag, k -> new ArrayList<>(1));
+		for (Series s : list) {
+			if (s.ncols() == ncols) return s;
+		}
+		Series s = new Series(ncols);
+		list.add(s);
+		return s;
+	}
+
+	/**
+	 * @return null if the file does not exist
+	 */
+	ColumnarSegment getSegment(File segFile) throws IOException {
+		ColumnarSegment seg = segments.get(segFile);
+		if (seg != null && seg.lastModified == segFile.lastModified()) {
+			return seg;
+		}
+		if ( ! segFile.exists()) {
+			segments.remove(segFile);
+			return null;
+		}
+		seg = new ColumnarSegment(segFile);
+		segments.put(segFile, seg);
+		return seg;
+	}
+
+	interface RowVisitor {
+		/**
+		 * @return false to stop
+		 */
+		boolean visit(String tag, long time, double[] values);
+	}
+
+	/**
+	 * Read a head file. A partial last record (e.g. from a crash mid-write) is
+	 * ignored.
+	 */
+	static void readHead(File head, RowVisitor visitor) throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(head), 65536));
+		} catch (FileNotFoundException ex) {
+			return; // sealed under our feet
+		}
+		try {
+			while (true) {
+				String tag;
+				try {
+					tag = in.readUTF();
+				} catch (EOFException ex) {
+					return;
+				}
+				long t = in.readLong();
+				double[] vs = new double[in.readByte()];
+				for (int i = 0; i < vs.length; i++) {
+					vs[i] = in.readDouble();
+				}
+				if ( ! visitor.visit(tag, t, vs)) return;
+			}
+		} catch (EOFException ex) {
+			Log.w(DataLog.LOGTAG, "Truncated record in " + head);
+		} finally {
+			FileUtils.close(in);
+		}
+	}
+
+	/**
+	 * Visit the stored rows.
+	 *
+	 * @param start     inclusive. Can be null
+	 * @param end       exclusive. Can be null
+	 * @param tag       If set, only this tag is read. Can be null
+	 * @param tagFilter Can be null
+	 * @param ncols     1 for counts, 4 for means, or -1 for both
+	 */
+	void scan(Time start, Time end, String tag, Predicate<String> tagFilter, int ncols, RowVisitor visitor) {
+		long s = start == null ? Long.MIN_VALUE : start.getTime();
+		long e = end == null ? Long.MAX_VALUE : end.getTime();
+		long fp = config.filePeriod.getMillisecs();
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SEG) || name.endsWith(HEAD));
+		if (files == null) return;
+		Arrays.sort(files);
+		for (File f : files) {
+			Long ps = periodOf(f);
+			if (ps == null) continue;
+			if (ps >= e || ps + fp <= s) continue;
+			RowVisitor filtered = (tg, t, vs) -> {
+				if (t < s || t >= e) return true;
+				if (ncols != -1 && vs.length != ncols) return true;
+				if (tag != null && ! tag.equals(tg)) return true;
+				if (tagFilter != null && ! tagFilter.test(tg)) return true;
+				return visitor.visit(tg, t, vs);
+			};
+			try {
+				if (f.getName().endsWith(HEAD)) {
+					readHead(f, filtered);
+				} else {
+					scanSegment(f, s, e, tag, filtered);
+				}
+			} catch (IOException ex) {
+				throw Utils.runtime(ex);
+			}
+		}
+	}
+
+	private void scanSegment(File f, long s, long e, String tag, RowVisitor visitor) throws IOException {
+		ColumnarSegment seg = getSegment(f);
+		if (seg == null) return;
+		Iterable<String> tags = tag == null ? seg.getTags() : Arrays.asList(tag);
+		for (String tg : tags) {
+			for (ColumnarSegment.Entry entry : seg.getEntries(tg)) {
+				// skip by time-range without decoding
+				if (entry.maxTime < s || entry.minTime >= e) continue;
+				Series series = seg.read(entry);
+				double[] row = new double[series.ncols()];
+				for (int i = 0; i < series.n; i++) {
+					for (int c = 0; c < row.length; c++) row[c] = series.cols[c][i];
+					if ( ! visitor.visit(tg, series.ts[i], row)) return;
+				}
+			}
+		}
+	}
+
+	long periodStart(long t) {
+		long fp = config.filePeriod.getMillisecs();
+		return Math.floorDiv(t, fp) * fp;
+	}
+
+	/**
+	 * @return period-start from the file name, or null
+	 */
+	static Long periodOf(File f) {
+		String name = f.getName();
+		int dot = name.indexOf('.');
+		if (dot < 1) return null;
+		try {
+			return Long.valueOf(name.substring(0, dot));
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	private static void release(FileLock lock) {
+		try {
+			if (lock != null && lock.isValid()) lock.release();
+		} catch (IOException e) {
+			Log.e(DataLog.LOGTAG, e);
+		}
+	}
+
+	@Override
+	public IFuture<IDataStream> getData(Pattern id, Time start, Time end) {
+		return new StatReqColumnar<IDataStream>(this, KStatReq.DATA, id, start, end);
+	}
+
+	/**
+	 * @param bucketSize If set, the stored buckets are summed into buckets of this size.
+	 */
+	@Override
+	public StatReq<IDataStream> getData(String tag, Time start, Time end, KInterpolate fn, Dt bucketSize) {
+		return new StatReqColumnar<IDataStream>(this, KStatReq.DATA, tag, start, end, fn, bucketSize);
+	}
+
+	@Override
+	public StatReq<Double> getTotal(String tag, Time start, Time end) {
+		return new StatReqColumnar<Double>(this, KStatReq.TOTAL, tag, start, end, null, null);
+	}
+
+	@Override
+	public StatReq<IDataStream> getMeanData(String tag, Time start, Time end, KInterpolate fn, Dt bucketSize) {
+		return new StatReqColumnar<IDataStream>(this, KStatReq.DATA, tag, start, end, fn, bucketSize).setMeans(true);
+	}
+
+	/**
+	 * Server is ignored (local files only).
+	 *
+	 * @return an Iterator of {@link Datum}s, labelled with the tag. For means, x is the mean.
+	 */
+	@Override
+	public Iterator<Datum> getReader(String server, Time s, Time e, Pattern tagMatcher, String tag) {
+		List<Datum> data = new ArrayList<>();
+		scan(s, e, tag, tagMatcher == null ? null : tg -> tagMatcher.matcher(tg).matches(), -1, (String tg, long t, double[] vs) -> {
+			data.add(new Datum(new Time(t), vs[0], tg));
+			return true;
+		});
+		return data.iterator();
+	}
+
+	/**
+	 * Copy the rows from a {@link CSVStorage} file (timestamp, tag, value [,var,min,max]) into
+	 * this storage. Closed periods are then sealed.
+	 *
+	 * @return number of rows imported
+	 */
+	public int importCSV(File csv) {
+		CSVReader r = new CSVReader(csv, ',');
+		r.setNumFields(-1);
+		// period-start -> time -> rows
+		Map<Long, Map<Long, List<Object[]>>> batches = new HashMap<>();
+		int cnt = 0;
+		try {
+			for (String[] row : r) {
+				if (row.length < 3) continue;
+				try {
+					long t = new Time(row[0]).getTime();
+					double[] vs = new double[row.length == 3 ? 1 : 4];
+					for (int i = 0; i < vs.length && i + 2 < row.length; i++) {
+						vs[i] = Double.parseDouble(row[i + 2]);
+					}
+					batches.computeIfAbsent(periodStart(t), k -> new HashMap<>())
+						.computeIfAbsent(t, k -> new ArrayList<>())
+						.add(new Object[] { row[1], vs });
+					cnt++;
+				} catch (Exception ex) {
+					Log.w(DataLog.LOGTAG, "importCSV " + csv + " skipping bogus row: " + Arrays.toString(row));
+				}
+			}
+		} finally {
+			r.close();
+		}
+		saveRows(batches);
+		return cnt;
+	}
+
+	/**
+	 * Append to the heads, then seal any which are for closed periods.
+	 * @param batches period-start -> time -> rows
+	 */
+	private void saveRows(Map<Long, Map<Long, List<Object[]>>> batches) {
+		for (Map.Entry<Long, Map<Long, List<Object[]>>> pe : batches.entrySet()) {
+			for (Map.Entry<Long, List<Object[]>> te : pe.getValue().entrySet()) {
+				appendToHead(pe.getKey(), te.getKey(), te.getValue());
+			}
+		}
+		sealOldHeads();
+	}
+
+	/**
+	 * Convert CSVStorage files into segments.
+	 *
+	 * @param args csv files, or directories to search for .csv files
+	 */
+	public static void main(String[] args) {
+		ColumnarStorage cs = new ColumnarStorage();
+		for (String arg : args) {
+			File f = new File(arg);
+			List<File> csvs = f.isDirectory() ? FileUtils.find(f, ".*\\.csv") : Arrays.asList(f);
+			for (File csv : csvs) {
+				int n = cs.importCSV(csv);
+				System.out.println(csv + ": " + n + " rows");
+			}
+		}
+	}
+
+	/**
+	 * Pools the stored per-bucket means, weighting each bucket equally (the bucket counts are not stored).
+	 * @return mean and variance, per {@link DataLogConfig#interval}
+	 */
+	@Override
+	public IFuture<MeanRate> getMean(Time start, Time end, String tag) {
+		double[] sums = new double[3]; // n, sum of means, sum of (var + mean^2)
+		scan(start, end, tag, null, 4, (String tg, long t, double[] vs) -> {
+			sums[0]++;
+			sums[1] += vs[0];
+			sums[2] += vs[1] + vs[0]*vs[0];
+			return true;
+		});
+		if (sums[0] == 0) {
+			return new FixedFuture<>(new MeanRate(new Gaussian1D(0, 0), config.interval));
+		}
+		double mean = sums[1] / sums[0];
+		double var = Math.max(0, sums[2] / sums[0] - mean*mean);
+		return new FixedFuture<>(new MeanRate(new Gaussian1D(mean, var), config.interval));
+	}
+
+	/**
+	 * Retro counts are added at their own time -- a sealed period's head is re-sealed into its segment.
+	 */
+	@Override
+	public void saveHistory(Map<Pair2<String, Time>, Double> tag2time2count) {
+		if (tag2time2count.isEmpty()) return;
+		// period-start -> time -> rows
+		Map<Long, Map<Long, List<Object[]>>> batches = new HashMap<>();
+		for (Map.Entry<Pair2<String, Time>, Double> e : tag2time2count.entrySet()) {
+			long t = e.getKey().second.getTime();
+			batches.computeIfAbsent(periodStart(t), k -> new HashMap<>())
+				.computeIfAbsent(t, k -> new ArrayList<>())
+				.add(new Object[] { e.getKey().first, new double[] { e.getValue() } });
+		}
+		saveRows(batches);
+	}
+
+	/**
+	 * A retro set is stored as a count of the difference from what is stored at that exact time.
+	 * NB: This read-then-write is not atomic across JVMs -- two JVMs setting the same tag and time at once can both apply.
+	 */
+	@Override
+	public synchronized void setHistory(Map<Pair2<String, Time>, Double> tagTime2set) {
+		if (tagTime2set.isEmpty()) return;
+		Map<Pair2<String, Time>, Double> tag2time2count = new HashMap<>(tagTime2set.size());
+		for (Map.Entry<Pair2<String, Time>, Double> e : tagTime2set.entrySet()) {
+			Time at = e.getKey().second;
+			double[] old = new double[1];
+			scan(at, new Time(at.getTime() + 1), e.getKey().first, null, 1, (String tg, long t, double[] vs) -> {
+				old[0] += vs[0];
+				return true;
+			});
+			double dx = e.getValue() - old[0];
+			if (dx != 0) tag2time2count.put(e.getKey(), dx);
+		}
+		saveHistory(tag2time2count);
+	}
+
+	/**
+	 * Events are stored as counts, under their {@link DataLogImpl#event2tag(String, Map)} tag
+	 * (as DataLogImpl does for simple events).
+	 * @return null
+	 */
+	@Override
+	public Object saveEvent(Dataspace dataspace, DataLogEvent event, Period period) {
+		saveEvents(Arrays.asList(event), period);
+		return null;
+	}
+
+	/**
+	 * Events are stored as counts, under their {@link DataLogImpl#event2tag(String, Map)} tag,
+	 * at the event time.
+	 */
+	@Override
+	public void saveEvents(Collection<DataLogEvent> values, Period period) {
+		if (values.isEmpty()) return;
+		Map<Pair2<String, Time>, Double> tag2time2count = new HashMap<>(values.size());
+		for (DataLogEvent event : values) {
+			String stag = DataLogImpl.event2tag(event.dataspace, event.toJson2());
+			Time t = event.time==null? DataLogImpl.doSave3_time(period) : event.time;
+			Containers.plus(tag2time2count, new Pair2<>(stag, t), event.count);
+		}
+		saveHistory(tag2time2count);
+	}
+
+	@Override
+	public void registerEventType(Dataspace dataspace, String eventType) {
+	}
+
+	@Override
+	public String toString() {
+		return "ColumnarStorage[" + dir + "]";
+	}
+}
@@ -1,11 +1,14 @@
 package com.winterwell.datalog;
 
 import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -13,17 +16,16 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.function.Supplier;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 
 import com.winterwell.datalog.DataLog.KInterpolate;
-import com.winterwell.maths.ITrainable;
 import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
-import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
 import com.winterwell.maths.timeseries.Datum;
 import com.winterwell.maths.timeseries.ExtraDimensionsDataStream;
 import com.winterwell.maths.timeseries.ExtraDimensionsDataStream.KMatchPolicy;
 import com.winterwell.maths.timeseries.IDataStream;
+import com.winterwell.maths.timeseries.ListDataStream;
 import com.winterwell.utils.Dep;
 import com.winterwell.utils.Printer;
 import com.winterwell.utils.ReflectionUtils;
@@ -47,7 +49,8 @@ import com.winterwell.utils.time.TimeUtils;
  * Depot is used to give slice-of-time getData features.
  *
  * TODO an SQL backed version
- * TODO a datacube is what really makes sense, but I couldn't find a nice Java-friendly one.
+ * If {@link DataLogConfig#rollupBreakdowns} is set, a {@link RollupCube} answers queries where it can.
+ * If {@link DataLogConfig#walDir} is set, a {@link DataLogWAL} makes the current bucket crash-safe.
  *
  * TODO possibly have an index-based version as well as tag-based
  * for extra speed.
@@ -113,6 +116,14 @@ public class DataLogImpl implements Closeable, IDataLog {
 	@Override
 	public StatReq<IDataStream> getData(Time start, Time end, KInterpolate fn, Dt bucketSize, String... tagBits) {
 		String tag = DataLog.tag(tagBits);
+		if (rollups != null) {
+			ListDataStream data = rollups.getData(DataLog.getDataspace(), tag, start, end, bucketSize);
+			if (data != null) {
+				Datum live = getRollupLive(tag, start, end);
+				if (live != null) data = getData2_addLive(data, live, bucketSize==null? TUnit.MINUTE.dt : bucketSize);
+				return new StatReqFixed<IDataStream>(data);
+			}
+		}
 		return storage.getData(tag, start, end, fn, bucketSize);
 	}
 	
@@ -125,9 +136,57 @@ public class DataLogImpl implements Closeable, IDataLog {
 	@Override
 	public IDataLogReq<Double> getTotal(Time start, Time end, String... tagBits) {
 		String tag = DataLog.tag(tagBits);		
+		if (rollups != null) {
+			Double total = rollups.getTotal(DataLog.getDataspace(), tag, start, end);
+			if (total != null) {
+				Datum live = getRollupLive(tag, start, end);
+				if (live != null) total += live.x();
+				return new StatReqFixed<Double>(total);
+			}
+		}
 		return storage.getTotal(tag, start, end);
 	}
 
+	/**
+	 * Simple counts only reach the rollup cube at {@link #doSave()} -- so a cube answer needs the live count added.
+	 * @return the live count for the current bucket (stamped at its start, as doSave does), 
+	 * if that is in [start, end). null if none.
+	 */
+	private Datum getRollupLive(String tag, Time start, Time end) {
+		Period bucket = getCurrentBucket();
+		if (start != null && bucket.first.isBefore(start)) return null;
+		if (end != null && ! end.isAfter(bucket.first)) return null;
+		Double x = counters.getCount(tag);
+		if (x == null) return null;
+		return new Datum(bucket.first, x, tag);
+	}
+
+	/**
+	 * @param data from the cube: (bucket-start, sum), in time order
+	 * @param grain the cube's bucket size
+	 * @return data with live added to its bucket
+	 */
+	static ListDataStream getData2_addLive(ListDataStream data, Datum live, Dt grain) {
+		long g = grain.getMillisecs();
+		long t = Math.floorDiv(live.getTime().getTime(), g) * g;
+		ListDataStream data2 = new ListDataStream(1);
+		boolean added = false;
+		for (Datum d : data) {
+			long dt = d.getTime().getTime();
+			if ( ! added && dt >= t) {
+				added = true;
+				if (dt == t) {
+					data2.add(new Datum(d.getTime(), d.x() + live.x(), d.getLabel()));
+					continue;
+				}
+				data2.add(new Datum(new Time(t), live.x(), live.getLabel()));
+			}
+			data2.add(d);
+		}
+		if ( ! added) data2.add(new Datum(new Time(t), live.x(), live.getLabel()));
+		return data2;
+	}
+
 	/**
 	 *
 	 * @param tag
@@ -178,19 +237,22 @@ public class DataLogImpl implements Closeable, IDataLog {
 
 	@Override
 	public  Set<String> getLive() {
-		Set<String> keys = tag2count.keySet();
-		Set<String> keys2 = tag2dist.keySet();
+		Set<String> keys = counters.countTags();
+		Set<String> keys2 = counters.meanTags();
 		HashSet<String> set = new HashSet<String>(keys);
 		set.addAll(keys2);
 		return set;
 	}
 
 	/**
-	 * What's happening now?
+	 * What's happening now? Counts and means for the current bucket.
 	 */
-	ConcurrentMap<String,Double> tag2count = newMap();
+	final StatCounters counters;
 
-	ConcurrentMap<String, IDistribution1D> tag2dist = newMap();
+	/**
+	 * Pre-aggregated event counts. null unless {@link DataLogConfig#rollupBreakdowns} is set.
+	 */
+	final RollupCube rollups;
 
 	ConcurrentMap<String, DataLogEvent> id2event = newMap();
 
@@ -205,6 +267,26 @@ public class DataLogImpl implements Closeable, IDataLog {
 
 	private boolean init;
 
+	/**
+	 * null unless {@link DataLogConfig#walDir} is set. Set in {@link #init()}.
+	 */
+	private DataLogWAL wal;
+	/**
+	 * WAL segment to truncate before, and the bulk-queue mark which must be sent first.
+	 * Only touched by doSave.
+	 */
+	private final ArrayDeque<Pair2<Integer, Long>> walTruncates = new ArrayDeque<>();
+	/**
+	 * WAL event number, and the bulk-queue mark which covers it. See {@link #walMarkSent()}.
+	 * Guarded by itself.
+	 */
+	private final ArrayDeque<Pair2<Long, Long>> walSent = new ArrayDeque<>();
+	/**
+	 * Read-locked around "log the event + queue it", write-locked to take a {@link #walSent} mark --
+	 * so every event numbered before the mark has been queued before it.
+	 */
+	private final ReentrantReadWriteLock walEventLock = new ReentrantReadWriteLock();
+
 	static Timer saveThread;
 
 	final DataLogConfig config;
@@ -228,6 +310,8 @@ public class DataLogImpl implements Closeable, IDataLog {
 	 */
 	public DataLogImpl(DataLogConfig config) {
 		this.config = config;
+		counters = new StatCounters(config::getTagHandler);
+		rollups = Utils.isEmpty(config.rollupBreakdowns)? null : new RollupCube(config.rollupBreakdowns, config.rollupFields);
 		// Create the storage
 		if (config.storageClass == null) {
 			config.storageClass = SQLStorage.class;
@@ -246,6 +330,13 @@ public class DataLogImpl implements Closeable, IDataLog {
 		return storage;
 	}
 
+	/**
+	 * @return can be null
+	 */
+	public RollupCube getRollups() {
+		return rollups;
+	}
+
 	public void init() {
 		if (init) return;
 		init = true;
@@ -266,6 +357,10 @@ public class DataLogImpl implements Closeable, IDataLog {
 		// start-up the new
 		saveThread = new Timer("DataLog.save", true);
 		saveThread.scheduleAtFixedRate(new SaveAndSystemStatsTask(), first.getDate(), config.interval.getMillisecs());
+		if (shutdownHook == null) {
+			shutdownHook = new Thread(this::close, "DataLog.shutdown");
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
 		Log.i(DataLog.LOGTAG, "1st save at "+first+" ("+TimeUtils.toString(new Time().dt(first))+")");
 		// prepare for callbacks
 		if ( ! Dep.has(CallbackManager.class)) {
@@ -273,6 +368,113 @@ public class DataLogImpl implements Closeable, IDataLog {
 			cbman.init();
 			Dep.set(CallbackManager.class, cbman);
 		}
+		// crash recovery
+		if (config.walDir != null) {
+			init2_wal();
+		}
+	}
+
+	/**
+	 * Replay any unsaved buckets and unsent events from the WAL, then start logging.
+	 * Replayed ops go the same way as live ones: counts and sets are saved against their
+	 * own bucket (and rolled up), events are queued for ES (and rolled up).
+	 * The WAL skips ops which were saved or sent before the crash, so replay does not double count.
+	 */
+	private void init2_wal() {
+		DataLogWAL _wal = new DataLogWAL(new File(config.walDir, config.namespace),
+				config.walSegmentSize, config.walSyncInterval.getMillisecs(), StatCounters.STRIPES);
+		// bucket-start -> the bucket, and its replayed counts and sets
+		Map<Long, Pair2<Period, StatCounters>> bucket2counters = new LinkedHashMap<>();
+		_wal.replay(new DataLogWAL.Visitor() {
+			private StatCounters counters(Period bucket) {
+				return bucket2counters.computeIfAbsent(bucket.first.getTime(),
+						b -> new Pair2<>(bucket, new StatCounters(config::getTagHandler))).second;
+			}
+			@Override
+			public void count(Period bucket, double dx, String[] tags) {
+				StatCounters sc = counters(bucket);
+				StatCounters.TagNode node = sc.root();
+				for(String tg : tags) {
+					node = node.child(tg);
+					sc.count(node.tag, dx);
+				}
+			}
+			@Override
+			public void set(Period bucket, double x, String[] tags) {
+				StatCounters sc = counters(bucket);
+				sc.set(DataLog.tag((Object[]) tags), x);
+			}
+			@Override
+			public void countAt(Time at, double dx, String[] tags) {
+				count2(at, dx, tags);
+			}
+			@Override
+			public void setAt(Time at, double x, String[] tags) {
+				set2(at, x, tags);
+			}
+			@Override
+			public void event(Period bucket, DataLogEvent event) {
+				if ( ! (storage instanceof ESStorage)) {
+					Log.e(DataLog.LOGTAG, "WAL replay: cannot save event (storage is not ES): "+event);
+					return;
+				}
+				((ESStorage) storage).saveEventBatched(new Dataspace(event.dataspace), event, bucket);
+				if (rollups != null) rollups.add(event);
+			}
+		});
+		for(Pair2<Period, StatCounters> bucket4counters : bucket2counters.values()) {
+			Period bucket = bucket4counters.first;
+			Set<String> setTags = new HashSet<>();
+			Map<String, Double> tag2count = bucket4counters.second.drainCounts(setTags);
+			Log.i(DataLog.LOGTAG, "WAL replay: saving "+tag2count.size()+" counts for "+bucket);
+			doSave2_rollup(bucket, tag2count, setTags);
+			storage.save(bucket, tag2count, Collections.emptyMap());
+		}
+		_wal.rollover(getCurrentBucket());
+		wal = _wal;
+		// record the bulk queue's progress, so a crash doesn't re-send what ES has
+		if (storage instanceof ESStorage) {
+			long every = config.walSyncInterval.getMillisecs();
+			saveThread.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					if (closed) {
+						cancel();
+						return;
+					}
+					try {
+						walMarkSent();
+					} catch(Throwable ex) {
+						Log.e(DataLog.LOGTAG, ex);
+					}
+				}
+			}, every, every);
+		}
+	}
+
+	/**
+	 * Take a fresh (event-number, bulk-queue) mark, and log to the WAL how far the queue has sent.
+	 * Does not wait for the queue.
+	 */
+	void walMarkSent() {
+		final DataLogWAL _wal = wal;
+		if (_wal == null || ! (storage instanceof ESStorage)) return;
+		ESStorage es = (ESStorage) storage;
+		Pair2<Long, Long> mark;
+		walEventLock.writeLock().lock();
+		try {
+			mark = new Pair2<>(_wal.lastEventSeq(), es.markEvents());
+		} finally {
+			walEventLock.writeLock().unlock();
+		}
+		synchronized (walSent) {
+			walSent.add(mark);
+			long sentSeq = 0;
+			while( ! walSent.isEmpty() && es.isSent(walSent.peek().second)) {
+				sentSeq = walSent.remove().first;
+			}
+			if (sentSeq != 0) _wal.logSent(sentSeq);
+		}
 	}
 
 	/**
@@ -287,35 +489,54 @@ public class DataLogImpl implements Closeable, IDataLog {
 		return null;
 	}
 
-	protected synchronized void doSave() {		
-		Map<String, Double> old = tag2count;		
-		Map<String, IDistribution1D> oldMean = tag2dist;
-		Map<String, DataLogEvent> oldid2event = id2event;
-		Map<Pair2<String, Time>, Double> oldTagTimeCount = tagTime2count;
-		Map<Pair2<String, Time>, Double> oldTagTimeSet = tagTime2set;
+	protected synchronized void doSave() {
+		final DataLogWAL _wal = wal;
+		// the WAL locks keep logged ops and counter updates in step
+		if (_wal != null) _wal.lockAll();
+		Map<String, Double> old;
+		Map<String, IDistribution1D> oldMean;
+		Map<String, DataLogEvent> oldid2event;
+		Map<Pair2<String, Time>, Double> oldTagTimeCount;
+		Map<Pair2<String, Time>, Double> oldTagTimeSet;
+		Period period;
+		// tags which were set, not counted -- the rollup cube only sums counts
+		Set<String> oldSetTags = rollups==null? null : new HashSet<>();
+		int walSeg = 0;
+		try {
+			// swap out the counters (each update lands in exactly one bucket)
+			old = counters.drainCounts(oldSetTags);
+			oldMean = counters.drainMeans();
+			oldid2event = id2event;
+			oldTagTimeCount = tagTime2count;
+			oldTagTimeSet = tagTime2set;
+			period = getCurrentBucket();
+			// new buckets
+			id2event =  newMap();
+			tagTime2count = newMap();
+			tagTime2set = newMap();
+			// Advance the bucket time?
+			Time now = new Time();
+			if (period.second.isAfter(now)) {
+				// Nope -- this is a premature flush
+				Log.d(DataLog.LOGTAG, "save but no advance.");
+			} else {
+				start = period.second;
+			}
+			if (_wal != null) walSeg = _wal.rollover(getCurrentBucket());
+		} finally {
+			if (_wal != null) _wal.unlockAll();
+		}
+
+		// roll up the counts (before the stat_bucket bookkeeping goes in)
+		// NB: into the cube before the (maybe slow) save, so cube answers don't dip whilst the counts are in neither
+		doSave2_rollup(period, old, oldSetTags);
 
 		// save internal stats? (skip 0s)
 		if ( ! old.isEmpty()) old.put("stat_bucket_count", 1.0*old.size());
 		if ( ! oldMean.isEmpty()) old.put("stat_bucket_dist", 1.0*oldMean.size());
 		if ( ! oldTagTimeCount.isEmpty()) old.put("stat_bucket_retro_count", 1.0*oldTagTimeCount.size());
 		if ( ! oldTagTimeSet.isEmpty()) old.put("stat_bucket_retro_set", 1.0*oldTagTimeSet.size());
-		
-		Period period = getCurrentBucket();
-
-		// new buckets
-		tag2count = newMap();
-		tag2dist = newMap();
-		id2event =  newMap();
-		tagTime2count = newMap();
-		tagTime2set = newMap();
-		// Advance the bucket time?
-		Time now = new Time();
-		if (period.second.isAfter(now)) {
-			// Nope -- this is a premature flush
-			Log.d(DataLog.LOGTAG, "save but no advance.");
-		} else {
-			start = period.second;
-		}
+
 		// save the counters!
 		if ( ! old.isEmpty()) {
 			Log.d(DataLog.LOGTAG, "Saving "+old.size()+" simple + "+oldMean.size()+" dist + "+oldTagTimeCount.size()+" historical "+oldTagTimeSet.size()+"...");
@@ -324,6 +545,39 @@ public class DataLogImpl implements Closeable, IDataLog {
 		storage.saveHistory(oldTagTimeCount);
 		storage.setHistory(oldTagTimeSet);
 		storage.saveEvents(oldid2event.values(), period);
+		// Saved OK? Then the WAL for it can go -- once the bulk queue has sent the events logged so far.
+		// NB: don't wait for the queue here (ES may be slow or down) -- check again on the next save.
+		if (_wal != null) {
+			// replay skips the saved counts, even if the segments outlive this save
+			_wal.logSaved(walSeg);
+			walMarkSent();
+			long mark = storage instanceof ESStorage? ((ESStorage) storage).markEvents() : 0;
+			walTruncates.add(new Pair2<>(walSeg, mark));
+			int keepFrom = 0;
+			while( ! walTruncates.isEmpty()) {
+				Pair2<Integer, Long> seg4mark = walTruncates.peek();
+				if (storage instanceof ESStorage && ! ((ESStorage) storage).isSent(seg4mark.second)) {
+					break;
+				}
+				keepFrom = seg4mark.first;
+				walTruncates.remove();
+			}
+			if (keepFrom != 0) _wal.truncate(keepFrom);
+		}
+	}
+
+	/**
+	 * Add a bucket's counts to the {@link #rollups} cube (stamped at the bucket start).
+	 * @param setTags Skipped -- the cube only sums counts
+	 */
+	private void doSave2_rollup(Period period, Map<String, Double> tag2count, Set<String> setTags) {
+		if (rollups == null) return;
+		for(Map.Entry<String, Double> e : tag2count.entrySet()) {
+			if (setTags.contains(e.getKey())) continue;
+			DataLogEvent event = new DataLogEvent(e.getKey(), e.getValue());
+			event.setTime(period.first);
+			rollups.add(event);
+		}
 	}
 
 	Period getCurrentBucket() {
@@ -353,7 +607,17 @@ public class DataLogImpl implements Closeable, IDataLog {
 		return p;
 	}
 
-	private boolean closed;
+	private volatile boolean closed;
+
+	/**
+	 * Guards against a 2nd close (e.g. by the shutdown hook)
+	 */
+	private boolean closing;
+
+	/**
+	 * Calls {@link #close()} at JVM exit, so queued events and the current bucket are saved.
+	 */
+	private Thread shutdownHook;
 
 	private <X, Y> ConcurrentMap<X, Y> newMap() {
 		ConcurrentHashMap<X, Y> cc = new ConcurrentHashMap<X, Y>();
@@ -372,12 +636,29 @@ public class DataLogImpl implements Closeable, IDataLog {
 	public  void set(double x, Object... tagBits) {
 		if (closed) throw new ClosedException();
 //		init();
+		final DataLogWAL _wal = wal;
+		if (_wal == null) {
+			set2(x, tagBits);
+			return;
+		}
+		// only this thread's stripe of the WAL is locked
+		DataLogWAL.Stripe stripe = _wal.stripe();
+		stripe.lock.lock();
+		try {
+			stripe.logSet(x, tagBits);
+			set2(x, tagBits);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	private void set2(double x, Object... tagBits) {
 		String tag = DataLog.tag(tagBits);
-		tag2count.put(tag, x);
+		counters.set(tag, x);
 
 		// track our own size
 		if ( ! tag.startsWith("Stat")) {
-			mean(tag2count.size(), "Stat", "counts");
+			mean(counters.countSize(), "Stat", "counts");
 		}
 	}
 
@@ -386,20 +667,38 @@ public class DataLogImpl implements Closeable, IDataLog {
 		assert ! closed;
 		assert tagBits.length != 0 : dx;
 		if (dx==0) return;
-		// loop over tag.heiriarchy
-		StringBuilder tag = new StringBuilder();
+		final DataLogWAL _wal = wal;
+		if (_wal == null) {
+			count2(dx, tagBits);
+			return;
+		}
+		// only this thread's stripe of the WAL is locked
+		DataLogWAL.Stripe stripe = _wal.stripe();
+		stripe.lock.lock();
+		try {
+			stripe.logCount(dx, tagBits);
+			count2(dx, tagBits);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	private void count2(double dx, Object... tagBits) {
+		// loop over tag.heiriarchy (using interned tags, so no string building)
+		StatCounters.TagNode node = counters.root();
 		for(Object tg : tagBits) {
 			if (tg == null) throw new IllegalArgumentException(Printer.toString(tagBits));
 
-			String stag = parseTag(tg, tag);
-			assert tag2count != null : stag;
+			node = node.child(tg);
+			String stag = node.tag;
 
-			double x = Containers.plus(tag2count, stag, dx);
+			counters.count(stag, dx);
 			// alerts?
 			IListenDataLog listener = listeners.get(stag);
 			if (listener!=null) {
 				try {
-					listener.handleCount(x, dx, stag);
+					Double x = counters.get(stag);
+					listener.handleCount(x==null? dx : x, dx, stag);
 				} catch(Throwable ex) {
 					// don't throw an exception here
 					Log.e(DataLog.LOGTAG, ex);
@@ -408,7 +707,7 @@ public class DataLogImpl implements Closeable, IDataLog {
 		}
 		// track our own size
 		if ( ! "Stat".equals(tagBits[0])) {
-			mean(tag2count.size(), "Stat", "counts");
+			mean(counters.countSize(), "Stat", "counts");
 		}
 //		return new Rate(x, getPeriod(stag), stag);
 	}
@@ -418,37 +717,26 @@ public class DataLogImpl implements Closeable, IDataLog {
 //		init();
 		assert ! closed;
 		// loop over tag.hieriarchy
-		StringBuilder tag = new StringBuilder();
+		StatCounters.TagNode node = counters.root();
 		String topTag = null;
 		for(Object tg : tagBits) {
-			String stag = parseTag(tg, tag);			
+			node = node.child(tg);
+			String stag = node.tag;
 			if (topTag==null) topTag = stag;
-			IDistribution1D dist = tag2dist.get(stag);
-			if (dist==null) {
-				dist = newDistribution(topTag, stag); // use mean-var
-				tag2dist.put(stag, dist);
-			}
-			((ITrainable.Unsupervised)dist).train1(x);
+			// thread-safe: mean-var is striped, custom distributions are locked
+			counters.mean(topTag, stag, x);
 		}
 
 		// track our own size
 		if ( ! "Stat".equals(tagBits[0])) {
-			mean(tag2dist.size(), "Stat", "means");
-		}
-	}
-
-	IDistribution1D newDistribution(String topTag, String stag) {
-		Supplier<IDistribution1D> th = getConfig().getTagHandler(topTag);
-		if (th != null) {
-			return th.get();
+			mean(counters.meanSize(), "Stat", "means");
 		}
-		return new MeanVar1D();
 	}
 
 	@Override
 	public MeanRate getMean(String... tagBits) {
 		String tag = DataLog.tag(tagBits);
-		IDistribution1D dist = tag2dist.get(tag);
+		IDistribution1D dist = counters.getDist(tag);
 		return new MeanRate((IDistribution1D) dist, getPeriod());
 	}
 
@@ -456,12 +744,12 @@ public class DataLogImpl implements Closeable, IDataLog {
 	public Rate get(String... tags) {
 		// make the tag
 		String stag = DataLog.tag(tags);
-		Double v = tag2count.get(stag);
+		Double v = counters.get(stag);
 		if (v != null) {
 			return new Rate(v, getPeriod(), stag);
 		}
 		// Perhaps we track the mean/var? -- use the mean
-		IDistribution1D mv = (IDistribution1D) tag2dist.get(stag);
+		IDistribution1D mv = counters.getDist(stag);
 		return mv==null? Rate.ZERO(stag) : new Rate(mv.getMean(), getPeriod(), stag);
 	}
 
@@ -476,22 +764,50 @@ public class DataLogImpl implements Closeable, IDataLog {
 		doSave();
 	}
 
+	/**
+	 * How long {@link #close()} waits for the ES bulk queue to send.
+	 */
+	static final Dt CLOSE_TIMEOUT = new Dt(30, TUnit.SECOND);
+
 	@Deprecated
 	@Override
 	public final void close() {
+		synchronized (this) {
+			if (closing) return;
+			closing = true;
+		}
+		if (shutdownHook != null) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException ex) {
+				// the JVM is shutting down (maybe we are the hook) -- fine
+			}
+		}
 		Log.i(DataLog.LOGTAG, "CLOSE!");
-		flush();
+		doSave();
 		closed = true;
-		tag2count = null;
-		saveThread.cancel();
+		// send what's queued, so a normal stop doesn't lose the last events
+		if (storage instanceof ESStorage) {
+			long lastEvent = 0;
+			if (wal != null) {
+				walEventLock.writeLock().lock();
+				lastEvent = wal.lastEventSeq();
+				walEventLock.writeLock().unlock();
+			}
+			boolean sent = ((ESStorage) storage).close(CLOSE_TIMEOUT);
+			if ( ! sent) Log.e(DataLog.LOGTAG, "close: not all events were sent to ES"+(wal==null? "" : " - the WAL keeps them for replay"));
+			else if (lastEvent != 0) wal.logSent(lastEvent);
+		}
+		if (wal != null) wal.close();
+		if (saveThread != null) saveThread.cancel();
 		saveThread = null;
 	}
 
 	@Override
 	public Collection<String> getActiveLabels() {
 		ArrayList<String> labels = new ArrayList<String>();
-		labels.addAll(tag2count.keySet());
-		labels.addAll(tag2dist.keySet());
+		labels.addAll(counters.countTags());
+		labels.addAll(counters.meanTags());
 		return labels;
 	}
 
@@ -529,7 +845,24 @@ public class DataLogImpl implements Closeable, IDataLog {
 //			return;
 //		}
 
-		String stag = DataLog.tag(tags);					
+		final DataLogWAL _wal = wal;
+		if (_wal == null) {
+			set2(at, x, tags);
+			return;
+		}
+		// only this thread's stripe of the WAL is locked
+		DataLogWAL.Stripe stripe = _wal.stripe();
+		stripe.lock.lock();
+		try {
+			stripe.logSetAt(at, x, tags);
+			set2(at, x, tags);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	private void set2(Time at, double x, Object... tags) {
+		String stag = DataLog.tag(tags);
 		Pair2<String, Time> tag2time = new Pair2<String, Time>(stag, at);
 		tagTime2count.remove(tag2time);
 		tagTime2set.put(tag2time, x);
@@ -541,13 +874,30 @@ public class DataLogImpl implements Closeable, IDataLog {
 		assert tags.length != 0 : dx;
 
 		if (dx == 0) return;
+		final DataLogWAL _wal = wal;
+		if (_wal == null) {
+			count2(at, dx, tags);
+			return;
+		}
+		// only this thread's stripe of the WAL is locked
+		DataLogWAL.Stripe stripe = _wal.stripe();
+		stripe.lock.lock();
+		try {
+			stripe.logCountAt(at, dx, tags);
+			count2(at, dx, tags);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
 
+	private void count2(Time at, double dx, Object... tags) {
 		// loop over tag.hierarchy
-		StringBuilder tag = new StringBuilder();
+		StatCounters.TagNode node = counters.root();
 		for(Object tg : tags) {
 			if (tg == null) throw new IllegalArgumentException(Printer.toString(tags));
 
-			String stag = parseTag(tg, tag);
+			node = node.child(tg);
+			String stag = node.tag;
 
 			assert tagTime2count != null : stag;
 
@@ -556,32 +906,6 @@ public class DataLogImpl implements Closeable, IDataLog {
 		}
 	}
 
-	/**
-	 * Helper method to construct tag based on tag hierarchy convention
-	 * @param tg
-	 * @param tag
-	 * @return tag.toString(), after appending tg
-	 */
-	private String parseTag(Object tg, StringBuilder tag) {
-		if (tag.length() != 0) {
-			tag.append(DataLog.HIERARCHY_CHAR);
-		}
-		
-		// TODO Defence against likely bug after v14c branches off
-//		if (tg instanceof String[]) {
-//			TODO throw new IllegalArgumentException(Printer.toString(tg)+" onto "+tag);
-//		}
-		
-		tg = DataLog.tag2_escape(tg.toString());
-		tag.append(tg);
-
-		String stag = tag.toString();
-		assert ! stag.isEmpty();
-
-		return stag;
-	}
-	
-
 	class SaveAndSystemStatsTask extends TimerTask {
 		@Override
 		public void run() {
@@ -616,7 +940,20 @@ public class DataLogImpl implements Closeable, IDataLog {
 		// HACK just save it to ES? Yes, unless it looks like a very simple stat.
 		// Tracker events are unlikely to duplicate, so there's no advantage to batching them -- and there is a memory issue.
 		if (storage instanceof ESStorage && event.props!=null && event.props.size() > 1) {
-			storage.saveEvent(new Dataspace(event.dataspace), event, getCurrentBucket());
+			// NB: not under the WAL lock, as the bulk queue can block. doSave checks the queue has sent before truncating.
+			final DataLogWAL _wal = wal;
+			if (_wal != null) {
+				walEventLock.readLock().lock();
+				try {
+					_wal.logEvent(event);
+					((ESStorage) storage).saveEventBatched(new Dataspace(event.dataspace), event, getCurrentBucket());
+				} finally {
+					walEventLock.readLock().unlock();
+				}
+			} else {
+				((ESStorage) storage).saveEventBatched(new Dataspace(event.dataspace), event, getCurrentBucket());
+			}
+			if (rollups != null) rollups.add(event);
 			// callback
 			CallbackManager cbman = Dep.get(CallbackManager.class);
 			cbman.send(event);		
@@ -0,0 +1,719 @@
+package com.winterwell.datalog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.Time;
+
+/**
+ * Write-ahead log for {@link DataLogImpl}: count, set and event operations are
+ * appended here before they touch the in-memory buckets, so a crash (even kill -9)
+ * doesn't lose the unsaved buckets.
+ * <p>
+ * Segments are memory-mapped files of {@link DataLogConfig#walSegmentSize} bytes.
+ * Appends are a copy into the mapped buffer; a background thread forces (fsyncs)
+ * dirty segments every {@link DataLogConfig#walSyncInterval}. So a power cut can
+ * lose up to that much -- a killed process loses no counts or sets (the OS has the pages).
+ * <p>
+ * The log is split into {@link Stripe}s, each with its own lock and segments, so
+ * threads logging in parallel rarely contend. A thread always uses the same stripe,
+ * so its own ops replay in order.
+ * <p>
+ * Events are buffered per stripe and Java-serialised as one record per batch
+ * (which shares the class descriptors). A batch is written when it is full, and
+ * on each sync -- so a killed process can lose up to a sync interval of events.
+ * <p>
+ * Each segment starts with the start of the bucket its records belong to. On save,
+ * DataLogImpl calls {@link #rollover(Period)} (under {@link #lockAll()}, together with
+ * draining the counters), and once the save has succeeded, {@link #truncate(int)}
+ * deletes the older segments.
+ * <p>
+ * Format: header = MAGIC, VERSION, long bucket-start, long bucket-length (millis).
+ * Then records: int length, int crc32, then the payload (op byte + fields).
+ * A zero length marks the end of the data. Replay stops at the first bad crc
+ * (a torn write).
+ * <p>
+ * Means are not logged -- a lost sample leaves the mean unbiased, unlike a lost count.
+ * <p>
+ * Replay is idempotent: each event has a sequence number, and DataLogImpl logs
+ * {@link #logSaved(int)} once a bucket is saved and {@link #logSent(long)} as the ES bulk
+ * queue sends events. Replay skips the ops before those marks, so a crash between
+ * "saved/sent" and {@link #truncate(int)} does not double count.
+ *
+ * @testedby {@link DataLogWALTest}
+ */
+final class DataLogWAL {
+
+	private static final String LOGTAG = "DataLog.wal";
+
+	static final int MAGIC = 0x444c5741; // "DLWA"
+	static final byte VERSION = 1;
+	static final int HEADER = 4 + 1 + 8 + 8;
+
+	static final byte COUNT = 1;
+	static final byte SET = 2;
+	static final byte COUNT_AT = 3;
+	static final byte SET_AT = 4;
+	/**
+	 * A single event (older segments)
+	 */
+	static final byte EVENT = 5;
+	/**
+	 * int n, then n events -- all in one ObjectOutputStream (older segments)
+	 */
+	static final byte EVENTS = 6;
+	/**
+	 * int n, then n x (long seq, event) -- all in one ObjectOutputStream
+	 */
+	static final byte EVENTS_SEQ = 7;
+	/**
+	 * long: every event up to this sequence number has been sent
+	 */
+	static final byte SENT = 8;
+	/**
+	 * long: the counts and sets in segments before this one have been saved
+	 */
+	static final byte SAVED = 9;
+
+	/**
+	 * Max events per EVENTS record
+	 */
+	static final int EVENT_BATCH = 64;
+
+	/**
+	 * Replay target
+	 */
+	static interface Visitor {
+		/**
+		 * A {@link DataLogImpl#count(double, Object...)} made during bucket
+		 */
+		void count(Period bucket, double dx, String[] tags);
+		/**
+		 * A {@link DataLogImpl#set(double, Object...)} made during bucket
+		 */
+		void set(Period bucket, double x, String[] tags);
+		void countAt(Time at, double dx, String[] tags);
+		void setAt(Time at, double x, String[] tags);
+		void event(Period bucket, DataLogEvent event);
+	}
+
+	private final File dir;
+	private final int segmentSize;
+	private final long syncMillis;
+
+	private final Stripe[] stripes;
+
+	/**
+	 * The last segment number used (segments are numbered across all stripes)
+	 */
+	private final AtomicInteger seq = new AtomicInteger();
+
+	/**
+	 * The last event sequence number used (across all stripes, and carried on from the replay)
+	 */
+	private final AtomicLong eventSeq = new AtomicLong();
+
+	/**
+	 * Replay marks, from the 1st pass. See {@link #SENT} and {@link #SAVED}
+	 */
+	private long replaySent;
+	private long replaySaved;
+
+	// guarded by all the stripe locks (so any one of them is enough to read)
+	private long bucketStart;
+	private long bucketMillis;
+
+	private volatile boolean closed;
+	private final Thread syncThread;
+
+	/**
+	 * One stripe. Creates the directory if need be. Does not replay -- call {@link #replay(Visitor)},
+	 * then {@link #rollover(Period)} to start logging.
+	 */
+	DataLogWAL(File dir, int segmentSize, long syncMillis) {
+		this(dir, segmentSize, syncMillis, 1);
+	}
+
+	/**
+	 * @param nStripes How many independent logs to spread threads over.
+	 * Each has its own segment files.
+	 */
+	DataLogWAL(File dir, int segmentSize, long syncMillis, int nStripes) {
+		this.dir = dir;
+		this.segmentSize = Math.max(HEADER + 1024, segmentSize);
+		this.syncMillis = Math.max(1, syncMillis);
+		dir.mkdirs();
+		if ( ! dir.isDirectory()) throw Utils.runtime(new IOException("Cannot make WAL dir "+dir));
+		stripes = new Stripe[Math.max(1, nStripes)];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
+		}
+		syncThread = new Thread(this::runSync, "DataLog.wal.sync");
+		syncThread.setDaemon(true);
+	}
+
+	/**
+	 * @return the current thread's stripe. DataLogImpl holds its lock around
+	 * "append + update the counters", so every logged op is in the same
+	 * segment as the bucket it was counted in.
+	 */
+	Stripe stripe() {
+		return stripes[StatCounters.stripeIndex() % stripes.length];
+	}
+
+	/**
+	 * Lock every stripe (in order). DataLogImpl holds this around "rollover + drain the counters".
+	 */
+	void lockAll() {
+		for (Stripe s : stripes) {
+			s.lock.lock();
+		}
+	}
+
+	void unlockAll() {
+		for (int i = stripes.length - 1; i >= 0; i--) {
+			stripes[i].lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the segment files, oldest first
+	 */
+	List<File> getSegments() {
+		File[] fs = dir.listFiles((d, n) -> n.endsWith(".wal"));
+		if (fs==null) return new ArrayList();
+		Arrays.sort(fs, (a, b) -> Integer.compare(seq(a), seq(b)));
+		return Arrays.asList(fs);
+	}
+
+	private static int seq(File f) {
+		String n = f.getName();
+		return Integer.parseInt(n.substring(0, n.length() - 4));
+	}
+
+	/**
+	 * Feed every logged op (oldest first) to v -- except those already saved or sent.
+	 * Call before logging starts.
+	 * @return number of ops replayed
+	 */
+	int replay(Visitor v) {
+		List<File> segments = getSegments();
+		// 1st pass: find the saved and sent marks
+		replaySent = 0;
+		replaySaved = 0;
+		for (File f : segments) {
+			if (seq(f) > seq.get()) seq.set(seq(f));
+			replay1(f, null);
+		}
+		if (replaySent > eventSeq.get()) eventSeq.set(replaySent);
+		// 2nd pass: replay
+		int n = 0;
+		for (File f : segments) {
+			n += replay1(f, v);
+		}
+		if (n != 0) Log.i(LOGTAG, "Replayed "+n+" ops from "+dir);
+		return n;
+	}
+
+	/**
+	 * @param v null for the 1st pass, which only reads the marks
+	 */
+	private int replay1(File f, Visitor v) {
+		try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			if (fc.size() < HEADER) return 0;
+			ByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			return replay2(f, bb, v);
+		} catch (IOException ex) {
+			if (v != null) Log.e(LOGTAG, "Cannot replay "+f+": "+ex);
+			return 0;
+		}
+	}
+
+	private int replay2(File f, ByteBuffer bb, Visitor v) {
+		if (bb.getInt() != MAGIC || bb.get() != VERSION) {
+			if (v != null) Log.e(LOGTAG, "Not a WAL segment: "+f);
+			return 0;
+		}
+		// counts and sets in this segment already saved?
+		boolean saved = seq(f) < replaySaved;
+		long start = bb.getLong();
+		Period bucket = new Period(new Time(start), new Time(start + bb.getLong()));
+		int n = 0;
+		CRC32 c = new CRC32();
+		while (bb.remaining() >= 8) {
+			int len = bb.getInt();
+			if (len <= 0) break;
+			int sum = bb.getInt();
+			if (len > bb.remaining()) {
+				if (v != null) Log.w(LOGTAG, "Torn record at the end of "+f);
+				break;
+			}
+			ByteBuffer rec = bb.slice();
+			rec.limit(len);
+			bb.position(bb.position() + len);
+			c.reset();
+			c.update(rec.duplicate());
+			if ((int) c.getValue() != sum) {
+				if (v != null) Log.w(LOGTAG, "Bad checksum in "+f+" - skipping the rest");
+				break;
+			}
+			try {
+				n += replay3(rec, bucket, saved, v);
+			} catch (BufferUnderflowException | IOException | ClassNotFoundException ex) {
+				Log.e(LOGTAG, "Bad record in "+f+": "+ex);
+			} catch (Throwable ex) {
+				// e.g. a visitor failure -- carry on with the rest
+				Log.e(LOGTAG, ex);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @param saved true if the counts and sets in this segment have been saved
+	 * @param v null for the 1st pass, which only reads the marks
+	 * @return number of ops replayed
+	 */
+	private int replay3(ByteBuffer rec, Period bucket, boolean saved, Visitor v) throws IOException, ClassNotFoundException {
+		byte op = rec.get();
+		switch(op) {
+		case SENT:
+			replaySent = Math.max(replaySent, rec.getLong());
+			return 0;
+		case SAVED:
+			replaySaved = Math.max(replaySaved, rec.getLong());
+			return 0;
+		}
+		if (v == null) return 0;
+		if (saved && op != EVENT && op != EVENTS && op != EVENTS_SEQ) return 0;
+		switch(op) {
+		case COUNT:
+			v.count(bucket, rec.getDouble(), getTags(rec));
+			return 1;
+		case SET:
+			v.set(bucket, rec.getDouble(), getTags(rec));
+			return 1;
+		case COUNT_AT:
+			Time at = new Time(rec.getLong());
+			v.countAt(at, rec.getDouble(), getTags(rec));
+			return 1;
+		case SET_AT:
+			at = new Time(rec.getLong());
+			v.setAt(at, rec.getDouble(), getTags(rec));
+			return 1;
+		case EVENT:
+			byte[] bytes = new byte[rec.remaining()];
+			rec.get(bytes);
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+				v.event(bucket, (DataLogEvent) in.readObject());
+			}
+			return 1;
+		case EVENTS:
+			bytes = new byte[rec.remaining()];
+			rec.get(bytes);
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+				int n = in.readInt();
+				for (int i = 0; i < n; i++) {
+					v.event(bucket, (DataLogEvent) in.readObject());
+				}
+				return n;
+			}
+		case EVENTS_SEQ:
+			bytes = new byte[rec.remaining()];
+			rec.get(bytes);
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+				int n = in.readInt();
+				int replayed = 0;
+				for (int i = 0; i < n; i++) {
+					long es = in.readLong();
+					DataLogEvent event = (DataLogEvent) in.readObject();
+					if (es > eventSeq.get()) eventSeq.set(es);
+					if (es <= replaySent) continue; // already sent
+					v.event(bucket, event);
+					replayed++;
+				}
+				return replayed;
+			}
+		default:
+			throw new IOException("Unknown op "+op);
+		}
+	}
+
+	private static String[] getTags(ByteBuffer rec) {
+		String[] tags = new String[rec.get() & 0xFF];
+		for (int i = 0; i < tags.length; i++) {
+			byte[] bytes = new byte[rec.getShort() & 0xFFFF];
+			rec.get(bytes);
+			tags[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return tags;
+	}
+
+	/**
+	 * Log to the current thread's stripe
+	 */
+	void logCount(double dx, Object[] tags) {
+		stripe().logCount(dx, tags);
+	}
+
+	void logSet(double x, Object[] tags) {
+		stripe().logSet(x, tags);
+	}
+
+	void logCountAt(Time at, double dx, Object[] tags) {
+		stripe().logCountAt(at, dx, tags);
+	}
+
+	void logSetAt(Time at, double x, Object[] tags) {
+		stripe().logSetAt(at, x, tags);
+	}
+
+	/**
+	 * @return the event's sequence number
+	 */
+	long logEvent(DataLogEvent event) {
+		return stripe().logEvent(event);
+	}
+
+	/**
+	 * @return the last event sequence number used
+	 */
+	long lastEventSeq() {
+		return eventSeq.get();
+	}
+
+	/**
+	 * Record that every event up to sentSeq has been sent, so replay will skip them.
+	 */
+	void logSent(long sentSeq) {
+		stripe().logMark(SENT, sentSeq);
+	}
+
+	/**
+	 * Record that the counts and sets before segment keepFrom have been saved, so replay will skip them.
+	 * @param keepFrom from {@link #rollover(Period)}
+	 */
+	void logSaved(int keepFrom) {
+		stripe().logMark(SAVED, keepFrom);
+	}
+
+	/**
+	 * An independent log: its own lock, scratch buffer and segment files.
+	 */
+	final class Stripe {
+
+		final ReentrantLock lock = new ReentrantLock();
+
+		// guarded by lock
+		private FileChannel channel;
+		private volatile MappedByteBuffer buf;
+		private ByteBuffer scratch = ByteBuffer.allocate(1024);
+		private final CRC32 crc = new CRC32();
+		/**
+		 * Events (with their sequence numbers) waiting to be written as one record
+		 */
+		private final List<Pair2<Long, DataLogEvent>> events = new ArrayList<>();
+
+		private volatile boolean dirty;
+
+		void logCount(double dx, Object[] tags) {
+			log(COUNT, 0, dx, tags);
+		}
+
+		void logSet(double x, Object[] tags) {
+			log(SET, 0, x, tags);
+		}
+
+		void logCountAt(Time at, double dx, Object[] tags) {
+			log(COUNT_AT, at.getTime(), dx, tags);
+		}
+
+		void logSetAt(Time at, double x, Object[] tags) {
+			log(SET_AT, at.getTime(), x, tags);
+		}
+
+		/**
+		 * Buffered -- see {@link #writeEvents()}
+		 * @return the event's sequence number
+		 */
+		long logEvent(DataLogEvent event) {
+			lock.lock();
+			try {
+				long es = eventSeq.incrementAndGet();
+				events.add(new Pair2<>(es, event));
+				if (events.size() >= EVENT_BATCH) writeEvents();
+				return es;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void logMark(byte op, long x) {
+			lock.lock();
+			try {
+				ByteBuffer sb = scratch(1 + 8);
+				sb.put(op);
+				sb.putLong(x);
+				append();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Write the buffered events as one record. lock must be held.
+		 */
+		private void writeEvents() {
+			if (events.isEmpty()) return;
+			writeEvents2(events);
+			events.clear();
+		}
+
+		private void writeEvents2(List<Pair2<Long, DataLogEvent>> batch) {
+			byte[] bytes;
+			try {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(256 * batch.size());
+				try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+					out.writeInt(batch.size());
+					for (Pair2<Long, DataLogEvent> event : batch) {
+						out.writeLong(event.first);
+						out.writeObject(event.second);
+					}
+				}
+				bytes = bos.toByteArray();
+			} catch (IOException ex) {
+				// e.g. a non-serializable prop -- log the others, each on its own
+				if (batch.size() == 1) {
+					// not fatal, the event just isn't crash-safe
+					Log.w(LOGTAG, "Cannot log "+batch.get(0).second+": "+ex);
+					return;
+				}
+				for (Pair2<Long, DataLogEvent> event : batch) {
+					writeEvents2(Collections.singletonList(event));
+				}
+				return;
+			}
+			if (HEADER + 8 + 1 + bytes.length > segmentSize && batch.size() > 1) {
+				// too big for one record -- split it
+				int half = batch.size() / 2;
+				writeEvents2(batch.subList(0, half));
+				writeEvents2(batch.subList(half, batch.size()));
+				return;
+			}
+			ByteBuffer sb = scratch(1 + bytes.length);
+			sb.put(EVENTS_SEQ);
+			sb.put(bytes);
+			append();
+		}
+
+		private void log(byte op, long at, double x, Object[] tags) {
+			if (tags.length > 255) throw new IllegalArgumentException("Too many tag-bits: "+tags.length);
+			lock.lock();
+			try {
+				int size = 1 + 8 + 8 + 1;
+				for (Object tg : tags) size += 2 + 3 * tg.toString().length();
+				ByteBuffer sb = scratch(size);
+				sb.put(op);
+				if (op == COUNT_AT || op == SET_AT) sb.putLong(at);
+				sb.putDouble(x);
+				sb.put((byte) tags.length);
+				for (Object tg : tags) {
+					byte[] bytes = tg.toString().getBytes(StandardCharsets.UTF_8);
+					if (bytes.length > 0xFFFF) throw new IllegalArgumentException("Tag too long: "+tg);
+					sb.putShort((short) bytes.length);
+					sb.put(bytes);
+				}
+				append();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return the cleared scratch buffer, with room for size bytes. lock must be held.
+		 */
+		private ByteBuffer scratch(int size) {
+			if (scratch.capacity() < size) {
+				scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+			}
+			scratch.clear();
+			return scratch;
+		}
+
+		/**
+		 * Copy the scratch record into the segment. lock must be held.
+		 */
+		private void append() {
+			if (closed) return;
+			if (bucketMillis == 0) throw new IllegalStateException("Call rollover() first");
+			scratch.flip();
+			int len = scratch.remaining();
+			if (HEADER + 8 + len > segmentSize) {
+				Log.e(LOGTAG, "Record too big for the WAL ("+len+" bytes) - not logged");
+				return;
+			}
+			if (buf == null || buf.remaining() < 8 + len) {
+				// no segment since the rollover, or segment full -- carry on in a new one (same bucket)
+				openSegment();
+			}
+			crc.reset();
+			crc.update(scratch.duplicate());
+			// write the body first, then the length, so a reader never sees a length without its body
+			int pos = buf.position();
+			buf.position(pos + 8);
+			buf.put(scratch);
+			buf.putInt(pos + 4, (int) crc.getValue());
+			buf.putInt(pos, len);
+			dirty = true;
+		}
+
+		private void openSegment() {
+			try {
+				closeSegment();
+				File f = new File(dir, String.format("%010d.wal", seq.incrementAndGet()));
+				channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+				buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+				buf.putInt(MAGIC);
+				buf.put(VERSION);
+				buf.putLong(bucketStart);
+				buf.putLong(bucketMillis);
+				dirty = true;
+			} catch (IOException ex) {
+				throw Utils.runtime(ex);
+			}
+		}
+
+		/**
+		 * lock must be held
+		 */
+		private void closeSegment() throws IOException {
+			if (buf == null) return;
+			buf.force();
+			channel.close();
+			buf = null;
+			channel = null;
+		}
+
+		/**
+		 * Write buffered events, then fsync.
+		 */
+		void sync() {
+			lock.lock();
+			try {
+				writeEvents();
+			} finally {
+				lock.unlock();
+			}
+			MappedByteBuffer b = buf;
+			if (b == null || ! dirty) return;
+			dirty = false;
+			b.force();
+		}
+	}
+
+	/**
+	 * Start new segments for the bucket (each stripe opens one on its next append).
+	 * Call with {@link #lockAll()} held, at the same time as draining the counters
+	 * for the previous bucket.
+	 *
+	 * @return the first segment number for the new bucket. Pass this to {@link #truncate(int)} once
+	 * the previous bucket is safely saved.
+	 */
+	int rollover(Period bucket) {
+		lockAll();
+		try {
+			for (Stripe s : stripes) {
+				s.writeEvents();
+				s.closeSegment();
+			}
+			bucketStart = bucket.first.getTime();
+			bucketMillis = Math.max(1, bucket.second.getTime() - bucketStart);
+			if ( ! syncThread.isAlive() && ! closed) syncThread.start();
+			return seq.get() + 1;
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Delete the segments before keepFrom (which have been saved).
+	 */
+	void truncate(int keepFrom) {
+		for (File f : getSegments()) {
+			if (seq(f) >= keepFrom) break;
+			if ( ! f.delete()) {
+				Log.w(LOGTAG, "Could not delete "+f);
+			}
+		}
+	}
+
+	/**
+	 * Write buffered events and fsync now. Normally the background thread does this.
+	 */
+	void sync() {
+		for (Stripe s : stripes) {
+			s.sync();
+		}
+	}
+
+	private void runSync() {
+		while ( ! closed) {
+			Utils.sleep(syncMillis);
+			try {
+				sync();
+			} catch (Throwable ex) {
+				// don't die!
+				Log.e(LOGTAG, ex);
+			}
+		}
+	}
+
+	/**
+	 * fsync and stop logging. The segments are kept, so they will be replayed
+	 * on restart (unless they have been truncated).
+	 */
+	void close() {
+		lockAll();
+		try {
+			for (Stripe s : stripes) {
+				s.writeEvents();
+				s.closeSegment();
+			}
+			closed = true;
+		} catch (IOException ex) {
+			Log.e(LOGTAG, ex);
+		} finally {
+			unlockAll();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DataLogWAL["+dir+" seq="+seq+" stripes="+stripes.length+"]";
+	}
+}
@@ -0,0 +1,435 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.winterwell.es.ESPath;
+import com.winterwell.es.client.BulkRequestBuilder;
+import com.winterwell.es.client.ESHttpClient;
+import com.winterwell.es.client.IESResponse;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Period;
+
+/**
+ * Batches DataLogEvents into ES bulk requests, for {@link ESStorage}.
+ * <p>
+ * Events go into a bounded in-memory queue. Events with the same ES id are
+ * coalesced while they wait: grouped (gby) events have their counts summed and
+ * props merged (matching the scripted upsert ES would otherwise do one-by-one),
+ * whilst for other events the latest wins (matching an index overwrite).
+ * <p>
+ * A background thread sends a bulk request when there are
+ * {@link DataLogConfig#esBulkMaxEvents} events or
+ * {@link DataLogConfig#esBulkMaxBytes} bytes waiting, or the oldest has waited
+ * {@link DataLogConfig#esBulkMaxLatency}.
+ * <p>
+ * Backpressure: when the queue is full, {@link #offer(Dataspace, DataLogEvent, Period)}
+ * waits up to {@link #offerTimeoutMillis}, then drops the event (and counts it).
+ * <p>
+ * Retry: if the bulk request fails outright (no response, e.g. connection refused),
+ * it is retried with exponential backoff. If ES answers but reports errors, the batch is
+ * NOT retried -- some items will have been applied, and re-sending the grouped upserts
+ * would double count.
+ * <p>
+ * Stats are logged to DataLog under "datalog_es_bulk".
+ *
+ * @testedby {@link ESBulkIngesterTest}
+ */
+final class ESBulkIngester {
+
+	private static final String LOGTAG = "DataLog.ES.bulk";
+
+	static final String STAT = "datalog_es_bulk";
+
+	final int maxEvents;
+	final long maxBytes;
+	final long maxLatencyMillis;
+	final int capacity;
+
+	long offerTimeoutMillis = 1000;
+	/**
+	 * Retries after the first attempt.
+	 */
+	int retries = 3;
+	long retryBackoffMillis = 100;
+
+	private final ESStorage storage;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final Condition ready = lock.newCondition();
+	// guarded by lock
+	private LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+	private long pendingBytes;
+	private int inFlight;
+	private boolean closed;
+	/**
+	 * Sequence number of the last event queued. Events are sent in this order.
+	 */
+	private long lastSeq;
+	/**
+	 * Every event up to (and including) this sequence number has been sent (or has failed).
+	 */
+	private long doneSeq;
+	/**
+	 * Send events up to this sequence number now, don't wait for the batch to fill
+	 */
+	private long flushSeq;
+
+	final AtomicLong received = new AtomicLong();
+	final AtomicLong coalesced = new AtomicLong();
+	final AtomicLong sent = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+	final AtomicLong batches = new AtomicLong();
+
+	/**
+	 * Only touched by the background thread
+	 */
+	private long droppedReported;
+
+	private final Thread thread;
+
+	static final class Pending {
+		final Dataspace dataspace;
+		final ESPath path;
+		DataLogEvent event;
+		final long enqueued;
+		final int bytes;
+		/**
+		 * Queue order. A coalesced event keeps the first one's number.
+		 */
+		final long seq;
+
+		Pending(Dataspace dataspace, ESPath path, DataLogEvent event, int bytes, long seq) {
+			this.dataspace = dataspace;
+			this.path = path;
+			this.event = event;
+			this.bytes = bytes;
+			this.seq = seq;
+			this.enqueued = System.currentTimeMillis();
+		}
+	}
+
+	ESBulkIngester(ESStorage storage, DataLogConfig config) {
+		this.storage = storage;
+		this.maxEvents = Math.max(1, config.esBulkMaxEvents);
+		this.maxBytes = Math.max(1, config.esBulkMaxBytes);
+		this.maxLatencyMillis = Math.max(1, config.esBulkMaxLatency.getMillisecs());
+		this.capacity = Math.max(maxEvents, config.esBulkQueueCapacity);
+		thread = new Thread(this::run, "DataLog.ES.bulk");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue an event for saving. Blocks if the queue is full.
+	 *
+	 * @return false if the event was dropped
+	 */
+	boolean offer(Dataspace dataspace, DataLogEvent event, Period bucketPeriod) {
+		received.incrementAndGet();
+		ESPath path = storage.saveEvent2_path(dataspace, event, bucketPeriod);
+		String key = path.index() + "/" + path.id;
+		lock.lock();
+		try {
+			if (closed) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			Pending old = pending.get(key);
+			if (old != null) {
+				old.event = old.event.groupById == null ? event : merge(old.event, event);
+				coalesced.incrementAndGet();
+				return true;
+			}
+			// backpressure
+			long nanos = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+			while (pending.size() + inFlight >= capacity && ! closed) {
+				if (nanos <= 0) {
+					dropped.incrementAndGet();
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			Pending p = new Pending(dataspace, path, event, estimateBytes(key, event), ++lastSeq);
+			pending.put(key, p);
+			pendingBytes += p.bytes;
+			if (pending.size() >= maxEvents || pendingBytes >= maxBytes) {
+				ready.signal();
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			dropped.incrementAndGet();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Combine two grouped events with the same id.
+	 */
+	static DataLogEvent merge(DataLogEvent a, DataLogEvent b) {
+		Map<String, Object> props = new HashMap<>(a.getProps());
+		props.putAll(b.getProps());
+		DataLogEvent ab = new DataLogEvent(a.dataspace, a.groupById, a.count + b.count, a.getEventType(), props);
+		ab.time = a.time;
+		assert ab.getId().equals(a.getId()) : ab + " vs " + a;
+		return ab;
+	}
+
+	/**
+	 * Rough size of the bulk-request lines for this event. Cheap, not exact.
+	 */
+	static int estimateBytes(String key, DataLogEvent event) {
+		int n = 128 + key.length() * 2;
+		for (Map.Entry<String, Object> e : event.getProps().entrySet()) {
+			n += e.getKey().length() + 8;
+			Object v = e.getValue();
+			n += v == null ? 4 : v instanceof String ? ((String) v).length() : 16;
+		}
+		return n;
+	}
+
+	/**
+	 * Send everything queued before this call, and wait for it to go.
+	 * Events offered after the call starts are not waited for -- so this returns
+	 * even under sustained ingest.
+	 */
+	void flush() {
+		flush(Long.MAX_VALUE);
+	}
+
+	/**
+	 * As {@link #flush()}, but gives up waiting after timeoutMillis.
+	 * @return true if everything queued before the call has been sent (or has failed)
+	 */
+	boolean flush(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + Math.min(timeoutMillis, Long.MAX_VALUE / 2);
+		lock.lock();
+		try {
+			long target = lastSeq;
+			if (target > flushSeq) flushSeq = target;
+			ready.signal();
+			while (doneSeq < target && thread.isAlive()) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) return false;
+				notFull.await(Math.min(wait, 100), TimeUnit.MILLISECONDS);
+			}
+			return doneSeq >= target;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return a mark for the events queued so far. See {@link #isSent(long)}
+	 */
+	long mark() {
+		lock.lock();
+		try {
+			return lastSeq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param mark from {@link #mark()}
+	 * @return true if every event queued before the mark has been sent (or has failed)
+	 */
+	boolean isSent(long mark) {
+		lock.lock();
+		try {
+			return doneSeq >= mark;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flush and stop the background thread.
+	 */
+	void close() {
+		close(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Flush (waiting at most timeoutMillis) and stop the background thread.
+	 * @return true if everything queued was sent (or failed)
+	 */
+	boolean close(long timeoutMillis) {
+		boolean sent = flush(timeoutMillis);
+		lock.lock();
+		try {
+			closed = true;
+			ready.signal();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if ( ! sent) {
+			Log.w(DataLog.LOGTAG, "bulk close timed out with "+size()+" events unsent");
+		}
+		return sent;
+	}
+
+	/**
+	 * @return number of queued (not yet sent) events
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return pending.size() + inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void run() {
+		while (true) {
+			List<Pending> batch;
+			lock.lock();
+			try {
+				while (true) {
+					if (closed && pending.isEmpty()) return;
+					if ( ! pending.isEmpty()) {
+						long waited = System.currentTimeMillis() - pending.values().iterator().next().enqueued;
+						long wait = maxLatencyMillis - waited;
+						long headSeq = pending.values().iterator().next().seq;
+						if (wait <= 0 || closed || headSeq <= flushSeq || pending.size() >= maxEvents || pendingBytes >= maxBytes) {
+							break;
+						}
+						ready.await(wait, TimeUnit.MILLISECONDS);
+					} else {
+						ready.await();
+					}
+				}
+				batch = run2_take();
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				send(batch);
+			} catch (Throwable ex) {
+				// don't die!
+				Log.e(LOGTAG, ex);
+				failed.addAndGet(batch.size());
+			} finally {
+				lock.lock();
+				try {
+					inFlight -= batch.size();
+					// batches are taken and sent in queue order
+					doneSeq = batch.get(batch.size() - 1).seq;
+					notFull.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take the oldest events, up to the max count and bytes. lock must be held.
+	 */
+	private List<Pending> run2_take() {
+		List<Pending> batch = new ArrayList<>(Math.min(pending.size(), maxEvents));
+		long bytes = 0;
+		Iterator<Pending> it = pending.values().iterator();
+		while (it.hasNext() && batch.size() < maxEvents && (bytes < maxBytes || batch.isEmpty())) {
+			Pending p = it.next();
+			it.remove();
+			batch.add(p);
+			bytes += p.bytes;
+		}
+		pendingBytes -= bytes;
+		inFlight += batch.size();
+		return batch;
+	}
+
+	private void send(List<Pending> batch) {
+		// one bulk request per dataspace (as dataspaces can have their own ES config)
+		Map<Dataspace, List<Pending>> byDataspace = new HashMap<>();
+		for (Pending p : batch) {
+			byDataspace.computeIfAbsent(p.dataspace, k -> new ArrayList<>()).add(p);
+		}
+		for (Map.Entry<Dataspace, List<Pending>> e : byDataspace.entrySet()) {
+			send2(e.getKey(), e.getValue());
+		}
+	}
+
+	private void send2(Dataspace dataspace, List<Pending> batch) {
+		long oldest = Long.MAX_VALUE;
+		ESHttpClient client = storage.client(dataspace);
+		BulkRequestBuilder bulk = client.prepareBulk();
+		for (Pending p : batch) {
+			if (p.event.groupById != null) {
+				bulk.add(storage.saveEvent3_update(client, p.path, p.event));
+			} else {
+				bulk.add(storage.saveEvent3_index(client, p.path, p.event));
+			}
+			oldest = Math.min(oldest, p.enqueued);
+		}
+		long t0 = System.currentTimeMillis();
+		IESResponse response = null;
+		for (int attempt = 0; ; attempt++) {
+			try {
+				response = bulk.get();
+				break;
+			} catch (Throwable ex) {
+				if (attempt >= retries) {
+					Log.e(LOGTAG, "Bulk save of " + batch.size() + " events failed after " + (attempt + 1) + " tries: " + ex);
+					failed.addAndGet(batch.size());
+					client.close();
+					return;
+				}
+				Log.w(LOGTAG, "Bulk save of " + batch.size() + " events failed (will retry): " + ex);
+				Utils.sleep(retryBackoffMillis << attempt);
+			}
+		}
+		client.close();
+		long now = System.currentTimeMillis();
+		batches.incrementAndGet();
+		try {
+			response.check();
+			sent.addAndGet(batch.size());
+		} catch (Throwable ex) {
+			// Some items may have been applied -- so don't retry
+			Log.e(LOGTAG, "Bulk save of " + batch.size() + " events had errors: " + ex);
+			failed.addAndGet(batch.size());
+		}
+		// stats
+		if (DataLog.dflt != null) {
+			DataLog.count(batch.size(), STAT, "events");
+			DataLog.mean(now - t0, STAT, "request_ms");
+			DataLog.mean(now - oldest, STAT, "latency_ms");
+			long d = dropped.get();
+			if (d != droppedReported) {
+				DataLog.count(d - droppedReported, STAT, "dropped");
+				droppedReported = d;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ESBulkIngester[received=" + received + " coalesced=" + coalesced + " sent=" + sent + " dropped="
+				+ dropped + " failed=" + failed + "]";
+	}
+}
@@ -80,6 +80,11 @@ public class ESStorage implements IDataLogStorage {
 	private static final String LOGTAG = "DataLog.ES";
 	private ESConfig esConfig;
 	
+	/**
+	 * Batches events into bulk requests. null if {@link DataLogConfig#esBulk} is off, or after {@link #close(Dt)}.
+	 */
+	volatile ESBulkIngester bulk;
+	
 	@Override
 	public void save(Period period, Map<String, Double> tag2count, Map<String, IDistribution1D> tag2mean) {
 		Collection<DataLogEvent> events = new ArrayList();
@@ -201,7 +206,9 @@ public class ESStorage implements IDataLogStorage {
 
 	@Override
 	public void setHistory(Map<Pair2<String, Time>, Double> tagTime2set) {
-		// TODO Auto-generated method stub
+		// TODO
+		if (tagTime2set.isEmpty()) return;
+		Log.e(DataLog.LOGTAG, "Cannot set history in ESStorage! Losing values for: "+tagTime2set.keySet());
 	}
 
 	public IDataLogStorage init(DataLogConfig config) {
@@ -247,6 +254,10 @@ public class ESStorage implements IDataLogStorage {
 		for (Dataspace d : dataspaces) {			
 			registerDataspace(d);
 		}
+		// bulk saving
+		if (config.esBulk && bulk == null) {
+			bulk = new ESBulkIngester(this, config);
+		}
 		// share via Dep
 		Dep.setIfAbsent(ESStorage.class, this);
 		return this;
@@ -410,57 +421,22 @@ public class ESStorage implements IDataLogStorage {
 	 */
 	@Override
 	public Future<ESHttpResponse> saveEvent(Dataspace dataspace, DataLogEvent event, Period bucketPeriod) {
-		if (event.dataspace!=null && ! event.dataspace.equals(dataspace.name)) {
-			Log.e(LOGTAG, new WeirdException("(swallowing) Dataspace mismatch: "+dataspace+" vs "+event.dataspace+" in "+event));
-		}
-		// init?
-		registerDataspace(dataspace);
-		String type = ESTYPE;
-		
-		// ID
-		String id;
-		boolean grpById = event.groupById!=null; 
-		if (grpById) {
-			// HACK group by means no time bucketing
-			id = event.getId();
-		} else {
-			// put a time marker on it -- the end in seconds is enough
-			long secs = bucketPeriod.getEnd().getTime() % 1000;
-			id = event.getId()+"_"+secs;
-		}
-		
-		// always have a time
-		if (event.time==null) {
-			event.time = bucketPeriod.getEnd();
-		}
+		ESPath path = saveEvent2_path(dataspace, event, bucketPeriod);
 		
 		ESHttpClient client = client(dataspace);
 		
 //		client.debug = true;
 		
-		String index = writeIndexFromDataspace(dataspace);
 		// save -- update for grouped events, index otherwise
-		ESPath path = new ESPath(index, type, id);
 		Future<ESHttpResponse> f;
-		if (grpById) {
-			UpdateRequestBuilder saveReq = client.prepareUpdate(path);
+		if (event.groupById!=null) {
+			UpdateRequestBuilder saveReq = saveEvent3_update(client, path, event);
 			saveReq.setDebug(true); // Debugging Sep 2018 (this will be noisy)
 			// try x3 before failing
 			saveReq.setRetries(2);
-			// set doc
-			Map<String, Object> doc = event.toJson2();
-			PainlessScriptBuilder psb = PainlessScriptBuilder.fromJsonObject(doc);
-			saveReq.setScript(psb);
-			// upsert		
-			saveReq.setUpsert(doc);
-			saveReq.setDebug(true); 
 			f = saveReq.execute();
 		} else {
-			IndexRequestBuilder saveReq = client.prepareIndex(path);
-			if (event.time==null) event.time = bucketPeriod.getEnd();
-			// set doc
-			Map<String, Object> doc = event.toJson2();			
-			saveReq.setBodyMap(doc);
+			IndexRequestBuilder saveReq = saveEvent3_index(client, path, event);
 			f = saveReq.execute();
 		}		
 		client.close();
@@ -481,6 +457,61 @@ public class ESStorage implements IDataLogStorage {
 		return f;
 	}
 
+	/**
+	 * Shared by {@link #saveEvent(Dataspace, DataLogEvent, Period)} and the bulk path.
+	 * Registers the dataspace (if needed) and sets the event time (if unset).
+	 * @return where to save this event
+	 */
+	ESPath saveEvent2_path(Dataspace dataspace, DataLogEvent event, Period bucketPeriod) {
+		if (event.dataspace!=null && ! event.dataspace.equals(dataspace.name)) {
+			Log.e(LOGTAG, new WeirdException("(swallowing) Dataspace mismatch: "+dataspace+" vs "+event.dataspace+" in "+event));
+		}
+		// init?
+		registerDataspace(dataspace);
+		String type = ESTYPE;
+		
+		// ID
+		String id;
+		if (event.groupById!=null) {
+			// HACK group by means no time bucketing
+			id = event.getId();
+		} else {
+			// put a time marker on it -- the end in seconds is enough
+			long secs = bucketPeriod.getEnd().getTime() % 1000;
+			id = event.getId()+"_"+secs;
+		}
+		
+		// always have a time
+		if (event.time==null) {
+			event.time = bucketPeriod.getEnd();
+		}
+		
+		String index = writeIndexFromDataspace(dataspace);
+		return new ESPath(index, type, id);
+	}
+
+	/**
+	 * A scripted upsert, for grouped events
+	 */
+	UpdateRequestBuilder saveEvent3_update(ESHttpClient client, ESPath path, DataLogEvent event) {
+		UpdateRequestBuilder saveReq = client.prepareUpdate(path);
+		// set doc
+		Map<String, Object> doc = event.toJson2();
+		PainlessScriptBuilder psb = PainlessScriptBuilder.fromJsonObject(doc);
+		saveReq.setScript(psb);
+		// upsert		
+		saveReq.setUpsert(doc);
+		return saveReq;
+	}
+
+	IndexRequestBuilder saveEvent3_index(ESHttpClient client, ESPath path, DataLogEvent event) {
+		IndexRequestBuilder saveReq = client.prepareIndex(path);
+		// set doc
+		Map<String, Object> doc = event.toJson2();			
+		saveReq.setBodyMap(doc);
+		return saveReq;
+	}
+
 	@Override
 	public String toString() {
 		return "ESStorage [esConfig=" + esConfig + "]";
@@ -577,12 +608,63 @@ public class ESStorage implements IDataLogStorage {
 
 	@Override
 	public void saveEvents(Collection<DataLogEvent> events, Period period) {
-		// TODO use a batch-save for speed
 		for (DataLogEvent e : events) {
-			saveEvent(new Dataspace(e.dataspace), e, period);
+			saveEventBatched(new Dataspace(e.dataspace), e, period);
 		}
 	}
 
+	/**
+	 * Like {@link #saveEvent(Dataspace, DataLogEvent, Period)}, but goes via the bulk queue
+	 * (unless {@link DataLogConfig#esBulk} is off). Returns without waiting for ES.
+	 * @return false if the event was dropped (because the queue was full)
+	 */
+	public boolean saveEventBatched(Dataspace dataspace, DataLogEvent event, Period bucketPeriod) {
+		ESBulkIngester _bulk = bulk;
+		if (_bulk == null) {
+			saveEvent(dataspace, event, bucketPeriod);
+			return true;
+		}
+		return _bulk.offer(dataspace, event, bucketPeriod);
+	}
+
+	/**
+	 * Send any queued events, and wait for them to go. 
+	 */
+	public void flush() {
+		ESBulkIngester _bulk = bulk;
+		if (_bulk != null) _bulk.flush();
+	}
+
+	/**
+	 * Send any queued events (waiting at most timeout), then stop the bulk thread.
+	 * Later events are saved directly.
+	 * @return true if all the queued events were sent
+	 */
+	public boolean close(Dt timeout) {
+		ESBulkIngester _bulk = bulk;
+		if (_bulk == null) return true;
+		bulk = null;
+		return _bulk.close(timeout.getMillisecs());
+	}
+
+	/**
+	 * Does not wait.
+	 * @return a mark for the events queued so far. See {@link #isSent(long)}
+	 */
+	public long markEvents() {
+		ESBulkIngester _bulk = bulk;
+		return _bulk==null? 0 : _bulk.mark();
+	}
+
+	/**
+	 * @param mark from {@link #markEvents()}
+	 * @return true if every event queued before the mark has been sent (or has failed)
+	 */
+	public boolean isSent(long mark) {
+		ESBulkIngester _bulk = bulk;
+		return _bulk==null || _bulk.isSent(mark);
+	}
+
 	/**
 	 * Repeated calls are fast and harmless
 	 * @param dataspace
@@ -0,0 +1,292 @@
+package com.winterwell.datalog;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compression for time-series columns, as per Facebook's Gorilla paper:
+ * timestamps are stored as delta-of-deltas (so a regular bucket interval costs 1
+ * bit per point), and values are XORed against the previous value (so a
+ * repeated or slowly changing value costs a few bits).
+ * <p>
+ * A chunk is: the timestamps, then each value column, all in one bit-stream.
+ * The number of points and columns is stored elsewhere (see {@link ColumnarSegment}).
+ *
+ * @testedby {@link GorillaCodecTest}
+ */
+final class GorillaCodec {
+
+	/**
+	 * A growable array of timestamps + value columns, for one tag.
+	 */
+	static final class Series {
+		long[] ts;
+		/**
+		 * [column][point]
+		 */
+		double[][] cols;
+		int n;
+
+		Series(int ncols) {
+			this(ncols, 16);
+		}
+
+		Series(int ncols, int capacity) {
+			ts = new long[capacity];
+			cols = new double[ncols][capacity];
+		}
+
+		int ncols() {
+			return cols.length;
+		}
+
+		void add(long t, double... vs) {
+			if (n == ts.length) {
+				int cap = Math.max(16, n * 2);
+				ts = Arrays.copyOf(ts, cap);
+				for (int c = 0; c < cols.length; c++) {
+					cols[c] = Arrays.copyOf(cols[c], cap);
+				}
+			}
+			ts[n] = t;
+			for (int c = 0; c < cols.length; c++) {
+				cols[c][n] = c < vs.length ? vs[c] : 0;
+			}
+			n++;
+		}
+
+		void addAll(Series other) {
+			assert other.ncols() == ncols() : other.ncols() + " vs " + ncols();
+			double[] row = new double[ncols()];
+			for (int i = 0; i < other.n; i++) {
+				for (int c = 0; c < row.length; c++) row[c] = other.cols[c][i];
+				add(other.ts[i], row);
+			}
+		}
+
+		/**
+		 * Sort by time (stable, so repeated timestamps keep their order).
+		 */
+		void sort() {
+			boolean sorted = true;
+			for (int i = 1; i < n; i++) {
+				if (ts[i] < ts[i - 1]) {
+					sorted = false;
+					break;
+				}
+			}
+			if (sorted) return;
+			Integer[] idx = new Integer[n];
+			for (int i = 0; i < n; i++) idx[i] = i;
+			Arrays.sort(idx, (a, b) -> Long.compare(ts[a], ts[b]));
+			long[] ts2 = new long[ts.length];
+			double[][] cols2 = new double[cols.length][ts.length];
+			for (int i = 0; i < n; i++) {
+				ts2[i] = ts[idx[i]];
+				for (int c = 0; c < cols.length; c++) cols2[c][i] = cols[c][idx[i]];
+			}
+			ts = ts2;
+			cols = cols2;
+		}
+
+		long minTime() {
+			return n == 0 ? Long.MAX_VALUE : ts[0];
+		}
+
+		long maxTime() {
+			return n == 0 ? Long.MIN_VALUE : ts[n - 1];
+		}
+	}
+
+	/**
+	 * @param s Must be sorted by time
+	 * @return the compressed chunk
+	 */
+	static byte[] encode(Series s) {
+		BitWriter w = new BitWriter(16 + s.n * (1 + s.ncols()) * 2);
+		// timestamps: delta-of-delta
+		long prevT = 0, prevDelta = 0;
+		for (int i = 0; i < s.n; i++) {
+			long t = s.ts[i];
+			if (i == 0) {
+				w.write(t, 64);
+			} else {
+				long delta = t - prevT;
+				long dod = delta - prevDelta;
+				if (dod == 0) {
+					w.write(0, 1);
+				} else if (dod >= -64 && dod <= 63) {
+					w.write(0b10, 2);
+					w.write(dod, 7);
+				} else if (dod >= -256 && dod <= 255) {
+					w.write(0b110, 3);
+					w.write(dod, 9);
+				} else if (dod >= -2048 && dod <= 2047) {
+					w.write(0b1110, 4);
+					w.write(dod, 12);
+				} else {
+					w.write(0b1111, 4);
+					w.write(dod, 64);
+				}
+				prevDelta = delta;
+			}
+			prevT = t;
+		}
+		// values: XOR
+		for (int c = 0; c < s.ncols(); c++) {
+			double[] col = s.cols[c];
+			long prev = 0;
+			int prevLead = -1, prevTrail = 0;
+			for (int i = 0; i < s.n; i++) {
+				long bits = Double.doubleToRawLongBits(col[i]);
+				if (i == 0) {
+					w.write(bits, 64);
+					prev = bits;
+					continue;
+				}
+				long xor = bits ^ prev;
+				prev = bits;
+				if (xor == 0) {
+					w.write(0, 1);
+					continue;
+				}
+				w.write(1, 1);
+				int lead = Math.min(31, Long.numberOfLeadingZeros(xor));
+				int trail = Long.numberOfTrailingZeros(xor);
+				if (prevLead != -1 && lead >= prevLead && trail >= prevTrail) {
+					// fits in the previous window
+					w.write(0, 1);
+					w.write(xor >>> prevTrail, 64 - prevLead - prevTrail);
+				} else {
+					w.write(1, 1);
+					int len = 64 - lead - trail;
+					w.write(lead, 5);
+					w.write(len - 1, 6); // len is 1..64
+					w.write(xor >>> trail, len);
+					prevLead = lead;
+					prevTrail = trail;
+				}
+			}
+		}
+		return w.toByteArray();
+	}
+
+	/**
+	 * @param bb Positioned at the start of the chunk. Will not be modified.
+	 * @param n number of points
+	 * @param ncols number of value columns
+	 */
+	static Series decode(ByteBuffer bb, int n, int ncols) {
+		Series s = new Series(ncols, Math.max(n, 1));
+		s.n = n;
+		BitReader r = new BitReader(bb);
+		long prevT = 0, prevDelta = 0;
+		for (int i = 0; i < n; i++) {
+			if (i == 0) {
+				prevT = r.read(64);
+				s.ts[0] = prevT;
+				continue;
+			}
+			long dod;
+			if (r.read(1) == 0) {
+				dod = 0;
+			} else if (r.read(1) == 0) {
+				dod = r.readSigned(7);
+			} else if (r.read(1) == 0) {
+				dod = r.readSigned(9);
+			} else if (r.read(1) == 0) {
+				dod = r.readSigned(12);
+			} else {
+				dod = r.read(64);
+			}
+			prevDelta += dod;
+			prevT += prevDelta;
+			s.ts[i] = prevT;
+		}
+		for (int c = 0; c < ncols; c++) {
+			double[] col = s.cols[c];
+			long prev = 0;
+			int lead = 0, trail = 0;
+			for (int i = 0; i < n; i++) {
+				if (i == 0) {
+					prev = r.read(64);
+				} else if (r.read(1) == 1) {
+					if (r.read(1) == 1) {
+						lead = (int) r.read(5);
+						int len = (int) r.read(6) + 1;
+						trail = 64 - lead - len;
+					}
+					long xor = r.read(64 - lead - trail) << trail;
+					prev ^= xor;
+				}
+				col[i] = Double.longBitsToDouble(prev);
+			}
+		}
+		return s;
+	}
+
+	static final class BitWriter {
+		private byte[] bytes;
+		/**
+		 * bit position
+		 */
+		private long pos;
+
+		BitWriter(int capacity) {
+			bytes = new byte[Math.max(8, capacity)];
+		}
+
+		/**
+		 * Write the low nbits of value, most significant first.
+		 */
+		void write(long value, int nbits) {
+			if (nbits == 0) return;
+			int need = (int) ((pos + nbits + 7) >>> 3);
+			if (need > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(need, bytes.length * 2));
+			}
+			for (int b = nbits - 1; b >= 0; b--) {
+				if (((value >>> b) & 1) != 0) {
+					bytes[(int) (pos >>> 3)] |= (byte) (0x80 >>> (pos & 7));
+				}
+				pos++;
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, (int) ((pos + 7) >>> 3));
+		}
+	}
+
+	static final class BitReader {
+		private final ByteBuffer bb;
+		private final int start;
+		private long pos;
+
+		BitReader(ByteBuffer bb) {
+			this.bb = bb;
+			this.start = bb.position();
+		}
+
+		long read(int nbits) {
+			long v = 0;
+			for (int b = 0; b < nbits; b++) {
+				int bite = bb.get(start + (int) (pos >>> 3));
+				int bit = (bite >>> (7 - (pos & 7))) & 1;
+				v = (v << 1) | bit;
+				pos++;
+			}
+			return v;
+		}
+
+		/**
+		 * Read an nbits two's-complement number
+		 */
+		long readSigned(int nbits) {
+			long v = read(nbits);
+			// sign extend
+			return (v << (64 - nbits)) >> (64 - nbits);
+		}
+	}
+
+}
@@ -0,0 +1,541 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.eclipse.jetty.util.ajax.JSON;
+
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.maths.timeseries.ListDataStream;
+import com.winterwell.utils.MathUtils;
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+/**
+ * Pre-aggregated counts for DataLog events: a datacube, kept in memory and
+ * updated as events are saved.
+ * <p>
+ * For each dataspace, there are minute, hour and day cubes. Each cube is
+ * broken down by the configured breakdowns ({@link DataLogConfig#rollupBreakdowns}, e.g. "evt", "pub" or
+ * "evt/pub"), plus an overall total. Each cell holds count/sum/min/max for the
+ * {@link DataLogConfig#rollupFields} (e.g. "count").
+ * <p>
+ * A query is answered by splitting its time range into the coarsest whole
+ * buckets: e.g. minutes up to the hour, hours up to the day, then days. If any
+ * piece can't be answered -- the range isn't minute-aligned, or is from
+ * before this cube started, or older than a grain keeps -- the query returns
+ * null, and the caller should fall back to the raw events.
+ * <p>
+ * NB: The cube only sees events logged through this JVM, so only switch it on
+ * where that's all of them (i.e. the lg server for its dataspaces).
+ *
+ * @testedby {@link RollupCubeTest}
+ */
+public final class RollupCube {
+
+	/**
+	 * The value used for a missing property (as in ES breakdowns).
+	 */
+	static final String UNSET = "unset";
+
+	/**
+	 * Cap on cells per bucket (per breakdown), to protect memory from
+	 * high-cardinality properties. A bucket which hits this cannot answer queries.
+	 */
+	static final int MAX_CELLS = 10000;
+
+	public static enum Grain {
+		MINUTE(TUnit.MINUTE.dt, new Dt(6, TUnit.HOUR)),
+		HOUR(TUnit.HOUR.dt, new Dt(14, TUnit.DAY)),
+		DAY(TUnit.DAY.dt, new Dt(400, TUnit.DAY));
+
+		final long millis;
+		final long retention;
+
+		Grain(Dt dt, Dt retention) {
+			this.millis = dt.getMillisecs();
+			this.retention = retention.getMillisecs();
+		}
+
+		long floor(long t) {
+			return Math.floorDiv(t, millis) * millis;
+		}
+
+		long ceil(long t) {
+			return -Math.floorDiv(-t, millis) * millis;
+		}
+	}
+
+	/**
+	 * The stats for one cell
+	 */
+	static final class Cell {
+		final String[] key;
+		long n;
+		final long[] count;
+		final double[] sum;
+		final double[] min;
+		final double[] max;
+
+		Cell(String[] key, int nFields) {
+			this.key = key;
+			count = new long[nFields];
+			sum = new double[nFields];
+			min = new double[nFields];
+			max = new double[nFields];
+		}
+
+		synchronized void add(double[] values) {
+			n++;
+			for (int i = 0; i < values.length; i++) {
+				double v = values[i];
+				if (Double.isNaN(v)) continue;
+				if (count[i] == 0) {
+					min[i] = v;
+					max[i] = v;
+				} else {
+					if (v < min[i]) min[i] = v;
+					if (v > max[i]) max[i] = v;
+				}
+				count[i]++;
+				sum[i] += v;
+			}
+		}
+
+		synchronized void addTo(Cell total) {
+			synchronized (total) {
+				total.n += n;
+				for (int i = 0; i < count.length; i++) {
+					if (count[i] == 0) continue;
+					if (total.count[i] == 0) {
+						total.min[i] = min[i];
+						total.max[i] = max[i];
+					} else {
+						total.min[i] = Math.min(total.min[i], min[i]);
+						total.max[i] = Math.max(total.max[i], max[i]);
+					}
+					total.count[i] += count[i];
+					total.sum[i] += sum[i];
+				}
+			}
+		}
+
+		/**
+		 * @return ES "stats" aggregation format
+		 */
+		synchronized Map<String, Object> toJson2(int field) {
+			long c = count[field];
+			return new ArrayMap("count", c, "min", c == 0 ? null : min[field], "max", c == 0 ? null : max[field], "avg",
+					c == 0 ? null : sum[field] / c, "sum", sum[field]);
+		}
+	}
+
+	static final class Bucket {
+		final ConcurrentHashMap<String, Cell> cells = new ConcurrentHashMap<>();
+		volatile boolean overflow;
+	}
+
+	/**
+	 * The cubes for one dataspace: [grain][breakdown] bucket-start -> bucket
+	 */
+	final class Space {
+		final ConcurrentSkipListMap<Long, Bucket>[][] cubes;
+
+		Space() {
+			cubes = new ConcurrentSkipListMap[Grain.values().length][paths.size()];
+			for (int g = 0; g < cubes.length; g++) {
+				for (int p = 0; p < paths.size(); p++) {
+					cubes[g][p] = new ConcurrentSkipListMap<>();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Index 0 is the total (no properties)
+	 */
+	final List<String[]> paths = new ArrayList<>();
+	final String[] fields;
+	/**
+	 * When did this cube start seeing events?
+	 */
+	final long created;
+
+	private final Map<String, Space> spaces = new ConcurrentHashMap<>();
+
+	private volatile long lastPrune;
+
+	/**
+	 * @param breakdowns e.g. ["evt", "pub", "evt/pub"]
+	 * @param fields     numeric properties to track, e.g. ["count"]
+	 */
+	public RollupCube(List<String> breakdowns, List<String> fields) {
+		this(breakdowns, fields, System.currentTimeMillis());
+	}
+
+	RollupCube(List<String> breakdowns, List<String> fields, long created) {
+		paths.add(new String[0]);
+		for (String bd : breakdowns) {
+			String[] path = bd.trim().split("/");
+			if (path.length == 0 || path[0].isEmpty() || pathIndex(path) != -1) continue;
+			paths.add(path);
+		}
+		this.fields = fields.toArray(new String[0]);
+		this.created = created;
+	}
+
+	int pathIndex(String... path) {
+		for (int i = 0; i < paths.size(); i++) {
+			if (Arrays.equals(paths.get(i), path)) return i;
+		}
+		return -1;
+	}
+
+	int fieldIndex(String field) {
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i].equals(field)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Add an event (which is being saved) to the cubes.
+	 */
+	public void add(DataLogEvent event) {
+		long t = event.time == null ? System.currentTimeMillis() : event.time.getTime();
+		Space space = spaces.computeIfAbsent(event.dataspace, k -> new Space());
+		double[] values = new double[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			values[i] = fieldValue(event, fields[i]);
+		}
+		String[][] keys = new String[paths.size()][];
+		for (int p = 0; p < keys.length; p++) {
+			String[] path = paths.get(p);
+			String[] key = new String[path.length];
+			for (int i = 0; i < path.length; i++) {
+				key[i] = propValue(event, path[i]);
+			}
+			keys[p] = key;
+		}
+		for (Grain g : Grain.values()) {
+			Long b = g.floor(t);
+			for (int p = 0; p < keys.length; p++) {
+				Bucket bucket = space.cubes[g.ordinal()][p].computeIfAbsent(b, k -> new Bucket());
+				String[] key = keys[p];
+				String skey = key.length == 1 ? key[0] : StrUtils.join(key, "\u0001");
+				Cell cell = bucket.cells.get(skey);
+				if (cell == null) {
+					if (bucket.cells.size() >= MAX_CELLS) {
+						bucket.overflow = true;
+						continue;
+					}
+					cell = bucket.cells.computeIfAbsent(skey, k -> new Cell(key, fields.length));
+				}
+				cell.add(values);
+			}
+		}
+		prune();
+	}
+
+	private static double fieldValue(DataLogEvent event, String field) {
+		if ("count".equals(field)) return event.count;
+		Object v = event.getProp(field);
+		if (v == null || ! MathUtils.isNumber(v)) return Double.NaN;
+		return MathUtils.toNum(v);
+	}
+
+	private static String propValue(DataLogEvent event, String prop) {
+		Object v = DataLogEvent.EVT.equals(prop) ? event.getEventType0() : event.getProp(prop);
+		if (v == null) return UNSET;
+		String s = v.toString();
+		return s.isEmpty() ? UNSET : s;
+	}
+
+	/**
+	 * Drop buckets which are past their grain's retention. At most once a minute.
+	 */
+	void prune() {
+		long now = System.currentTimeMillis();
+		if (now - lastPrune < Grain.MINUTE.millis) return;
+		lastPrune = now;
+		for (Space space : spaces.values()) {
+			for (Grain g : Grain.values()) {
+				for (ConcurrentSkipListMap<Long, Bucket> cube : space.cubes[g.ordinal()]) {
+					cube.headMap(now - g.retention).clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A piece of a query: [start, end) in whole buckets of one grain
+	 */
+	static final class Piece {
+		final Grain grain;
+		final long start;
+		final long end;
+
+		Piece(Grain grain, long start, long end) {
+			this.grain = grain;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public String toString() {
+			return grain + "[" + new Time(start) + " - " + new Time(end) + ")";
+		}
+	}
+
+	/**
+	 * Split [start, end) into the coarsest whole buckets we hold.
+	 *
+	 * @param maxGrain The coarsest grain allowed
+	 * @return null if this range cannot be answered from the cube
+	 */
+	List<Piece> cover(long start, long end, Grain maxGrain, long now) {
+		List<Piece> pieces = new ArrayList<>();
+		if (start >= end) return pieces;
+		if ( ! cover2(start, end, maxGrain.ordinal(), now, pieces)) return null;
+		return pieces;
+	}
+
+	private boolean cover2(long s, long e, int gi, long now, List<Piece> pieces) {
+		if (s >= e) return true;
+		if (gi < 0) return false; // not minute aligned
+		Grain g = Grain.values()[gi];
+		long a = g.ceil(s);
+		long b = g.floor(e);
+		if (a >= b) {
+			return cover2(s, e, gi - 1, now, pieces);
+		}
+		if ( ! cover2(s, a, gi - 1, now, pieces)) return false;
+		// do we hold [a, b) at this grain?
+		long coverStart = Math.max(g.ceil(created), now - g.retention);
+		if (a >= coverStart) {
+			pieces.add(new Piece(g, a, b));
+		} else if (gi == 0 || ! cover2(a, b, gi - 1, now, pieces)) {
+			return false;
+		}
+		return cover2(b, e, gi - 1, now, pieces);
+	}
+
+	/**
+	 * @return the total cell over these pieces, for the cells which match key. null if a bucket overflowed.
+	 */
+	private List<Cell> collect(Space space, int path, List<Piece> pieces, boolean byTime) {
+		List<Cell> out = new ArrayList<>();
+		for (Piece piece : pieces) {
+			NavigableMap<Long, Bucket> buckets = space.cubes[piece.grain.ordinal()][path].subMap(piece.start, true,
+					piece.end, false);
+			for (Map.Entry<Long, Bucket> be : buckets.entrySet()) {
+				Bucket bucket = be.getValue();
+				if (bucket.overflow) return null;
+				for (Cell cell : bucket.cells.values()) {
+					if ( ! byTime) {
+						out.add(cell);
+						continue;
+					}
+					// tag it with the bucket time
+					String[] key = Arrays.copyOf(cell.key, cell.key.length + 1);
+					key[key.length - 1] = be.getKey().toString();
+					Cell tc = new Cell(key, fields.length);
+					cell.addTo(tc);
+					out.add(tc);
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * @param start Can be null, in which case the cube cannot answer
+	 * @param end   Can be null for now
+	 * @return sum of count for events with tag=tag, or null if the cube cannot answer.
+	 */
+	public Double getTotal(String dataspace, String tag, Time start, Time end) {
+		int p = pathIndex("tag");
+		int f = fieldIndex("count");
+		if (p == -1 || f == -1 || start == null) return null;
+		long now = System.currentTimeMillis();
+		List<Piece> pieces = cover(start.getTime(), end == null ? Grain.MINUTE.ceil(now) : end.getTime(), Grain.DAY, now);
+		if (pieces == null) return null;
+		Space space = spaces.get(dataspace);
+		if (space == null) return 0.0;
+		double total = 0;
+		for (Piece piece : pieces) {
+			for (Bucket bucket : space.cubes[piece.grain.ordinal()][p].subMap(piece.start, true, piece.end, false).values()) {
+				if (bucket.overflow) return null;
+				Cell cell = bucket.cells.get(tag);
+				if (cell == null) continue;
+				synchronized (cell) {
+					total += cell.sum[f];
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @param bucketSize Must be a minute, hour or day -- or null for minutes
+	 * @return (bucket-start, sum of count) for the tag, or null if the cube cannot answer.
+	 */
+	public ListDataStream getData(String dataspace, String tag, Time start, Time end, Dt bucketSize) {
+		int p = pathIndex("tag");
+		int f = fieldIndex("count");
+		if (p == -1 || f == -1 || start == null) return null;
+		Grain grain = Grain.MINUTE;
+		if (bucketSize != null) {
+			grain = null;
+			for (Grain g : Grain.values()) {
+				if (g.millis == bucketSize.getMillisecs()) grain = g;
+			}
+			if (grain == null) return null;
+		}
+		long now = System.currentTimeMillis();
+		long s = start.getTime();
+		long e = end == null ? grain.ceil(now) : end.getTime();
+		if (s % grain.millis != 0 || e % grain.millis != 0) return null;
+		if (s < Math.max(grain.ceil(created), now - grain.retention)) return null;
+		ListDataStream list = new ListDataStream(1);
+		Space space = spaces.get(dataspace);
+		if (space == null) return list;
+		for (Map.Entry<Long, Bucket> be : space.cubes[grain.ordinal()][p].subMap(s, true, e, false).entrySet()) {
+			if (be.getValue().overflow) return null;
+			Cell cell = be.getValue().cells.get(tag);
+			if (cell == null) continue;
+			double x;
+			synchronized (cell) {
+				x = cell.sum[f];
+			}
+			list.add(new Datum(new Time(be.getKey()), x, tag));
+		}
+		return list;
+	}
+
+	/**
+	 * Answer DataServlet breakdowns, in the same format as the ES aggregations.
+	 *
+	 * @param breakdowns e.g. "pub{"count":"sum"}" or "evt/time"
+	 * @param numTerms   max buckets per breakdown
+	 * @return aggregations, or null if the cube cannot answer
+	 */
+	public Map<String, Object> getBreakdown(String dataspace, List<String> breakdowns, Time start, Time end,
+			int numTerms) {
+		long now = System.currentTimeMillis();
+		long s = start.getTime();
+		long e = end == null ? Grain.MINUTE.ceil(now) : end.getTime();
+		Space space = spaces.get(dataspace);
+		Map<String, Object> aggs = new ArrayMap();
+		List<String> allOutputs = new ArrayList<>();
+		for (String bd : breakdowns) {
+			if (bd == null) continue;
+			String[] breakdown_output = bd.split("\\{");
+			String[] b = breakdown_output[0].trim().split("/");
+			List<String> outputs = new ArrayList<>();
+			if (breakdown_output.length > 1) {
+				String json = bd.substring(bd.indexOf("{"));
+				Map<String, Object> output = (Map) JSON.parse(json);
+				outputs.addAll(output.keySet());
+			}
+			for (String o : outputs) {
+				if (fieldIndex(o) == -1) return null;
+				if ( ! allOutputs.contains(o)) allOutputs.add(o);
+			}
+			// e.g. pub/time -> the pub cube, by bucket time
+			boolean byTime = "time".equals(b[b.length - 1]);
+			String[] path = byTime ? Arrays.copyOf(b, b.length - 1) : b;
+			int p = pathIndex(path);
+			if (p == -1 || path.length > 1 && byTime) return null;
+			List<Piece> pieces = cover(s, e, byTime ? Grain.HOUR : Grain.DAY, now);
+			if (pieces == null) return null;
+			List<Cell> cells = space == null ? Collections.emptyList() : collect(space, p, pieces, byTime);
+			if (cells == null) return null;
+			String name = "by_" + StrUtils.join(b, '_');
+			aggs.put(name, getBreakdown2_buckets(cells, 0, b, outputs, numTerms));
+		}
+		// add a total as well
+		if ( ! allOutputs.isEmpty()) {
+			List<Piece> pieces = cover(s, e, Grain.DAY, now);
+			List<Cell> cells = pieces == null || space == null ? null : collect(space, 0, pieces, false);
+			if (pieces == null || space != null && cells == null) return null;
+			Cell total = new Cell(new String[0], fields.length);
+			if (cells != null) {
+				for (Cell cell : cells) cell.addTo(total);
+			}
+			for (String o : allOutputs) {
+				aggs.put(o, total.toJson2(fieldIndex(o)));
+			}
+		}
+		return aggs;
+	}
+
+	/**
+	 * Group the cells by key[depth], recursing for nested breakdowns.
+	 * Hour-of-time buckets are output oldest-first (like an ES date histogram), others by count.
+	 */
+	private Map<String, Object> getBreakdown2_buckets(List<Cell> cells, int depth, String[] b, List<String> outputs,
+			int numTerms) {
+		boolean isTime = "time".equals(b[depth]);
+		Map<String, Cell> totals = new HashMap<>();
+		Map<String, List<Cell>> children = new HashMap<>();
+		for (Cell cell : cells) {
+			String k = cell.key[depth];
+			if (isTime) {
+				// group minutes into hours
+				k = Long.toString(Grain.HOUR.floor(Long.parseLong(k)));
+			}
+			Cell t = totals.computeIfAbsent(k, kk -> new Cell(new String[] { kk }, fields.length));
+			cell.addTo(t);
+			if (depth + 1 < b.length) {
+				children.computeIfAbsent(k, kk -> new ArrayList<>()).add(cell);
+			}
+		}
+		List<Cell> sorted = new ArrayList<>(totals.values());
+		if (isTime) {
+			sorted.sort(Comparator.comparingLong(c -> Long.parseLong(c.key[0])));
+		} else {
+			sorted.sort((c1, c2) -> Long.compare(c2.n, c1.n));
+			if (sorted.size() > numTerms) sorted = sorted.subList(0, numTerms);
+		}
+		List<Map<String, Object>> buckets = new ArrayList<>(sorted.size());
+		for (Cell t : sorted) {
+			Map<String, Object> bucket = new ArrayMap();
+			String k = t.key[0];
+			if (isTime) {
+				long ms = Long.parseLong(k);
+				bucket.put("key_as_string", new Time(ms).toISOString());
+				bucket.put("key", ms);
+			} else {
+				bucket.put("key", k);
+			}
+			bucket.put("doc_count", t.n);
+			if (depth + 1 < b.length) {
+				String sub = "time".equals(b[depth + 1]) ? "by_time" : "by_" + b[depth + 1];
+				bucket.put(sub, getBreakdown2_buckets(children.get(k), depth + 1, b, outputs, numTerms));
+			} else {
+				for (String o : outputs) {
+					bucket.put(o, t.toJson2(fieldIndex(o)));
+				}
+			}
+			buckets.add(bucket);
+		}
+		return new ArrayMap("buckets", buckets);
+	}
+
+	@Override
+	public String toString() {
+		return "RollupCube[" + spaces.keySet() + "]";
+	}
+}
@@ -0,0 +1,472 @@
+package com.winterwell.datalog;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.winterwell.maths.ITrainable;
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
+
+/**
+ * The "what's happening now?" counters behind {@link DataLogImpl}.
+ * <p>
+ * This is the hot path, so:
+ * <ul>
+ * <li>Tag hierarchies are interned as a tree of {@link TagNode}s, so
+ * count("a","b") does not build a StringBuilder per call.
+ * <li>Counts live in striped cells (ala LongAdder, but holding doubles) which
+ * only inflate under contention. Updates never get lost -- a cell is drained
+ * with an atomic get-and-set, so each update lands in exactly one bucket.
+ * <li>Means use per-thread-ish stripes of {@link MeanVar1D}, merged when drained.
+ * </ul>
+ * Counters which sit idle for a whole bucket are retired, so that one-off tags
+ * do not leak memory.
+ *
+ * @testedby {@link StatCountersTest}
+ */
+final class StatCounters {
+
+	/**
+	 * Stop interning tag-trees beyond this size (we then clear and start again).
+	 */
+	static final int MAX_TAG_NODES = 100000;
+
+	static final int STRIPES = stripes();
+
+	/**
+	 * Spread cells over separate cache lines, to avoid false sharing
+	 */
+	private static final int PAD = 8;
+
+	private static int stripes() {
+		int n = Runtime.getRuntime().availableProcessors();
+		int s = 1;
+		while(s < n && s < 64) s *= 2;
+		return s;
+	}
+
+	static int stripeIndex() {
+		long id = Thread.currentThread().getId();
+		int h = (int) (id ^ (id >>> 16)) * 0x9E3779B9;
+		return (h >>> 16) & (STRIPES - 1);
+	}
+
+	private static final Function<String, Counter> NEW_COUNTER = k -> new Counter();
+
+	final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+	final ConcurrentHashMap<String, MeanCell> means = new ConcurrentHashMap<>();
+
+	/**
+	 * top-tag to custom distribution (or null for the default striped mean-var)
+	 */
+	private final Function<String, Supplier<IDistribution1D>> tagHandler;
+
+	private volatile TagNode root = new TagNode(null);
+
+	private final AtomicInteger tagNodes = new AtomicInteger();
+
+	/**
+	 * @param tagHandler top-tag to custom distribution. Returns null for the default striped mean-var.
+	 */
+	StatCounters(Function<String, Supplier<IDistribution1D>> tagHandler) {
+		this.tagHandler = tagHandler;
+	}
+
+	/**
+	 * @return the root of the interned tag tree. Use {@link TagNode#child(Object)} to walk down a tag hierarchy.
+	 */
+	TagNode root() {
+		return root;
+	}
+
+	/**
+	 * Add dx to the count for tag.
+	 */
+	void count(String tag, double dx) {
+		Counter c = counters.get(tag);
+		if (c==null) c = counters.computeIfAbsent(tag, NEW_COUNTER);
+		c.add(dx);
+		if (c.dead) {
+			// We raced with retirement -- rescue any late updates into a live counter
+			double late = c.drain();
+			if (late != 0) count(tag, late);
+		}
+	}
+
+	/**
+	 * Replace the count for tag.
+	 */
+	void set(String tag, double x) {
+		Counter c = counters.get(tag);
+		if (c==null) c = counters.computeIfAbsent(tag, NEW_COUNTER);
+		c.set(x);
+		if (c.dead) {
+			set(tag, x);
+		}
+	}
+
+	/**
+	 * @return current count (not drained), or null if there is no live count for tag
+	 */
+	Double get(String tag) {
+		Counter c = counters.get(tag);
+		if (c==null || c.isIdle()) return null;
+		return c.sum();
+	}
+
+	/**
+	 * @return current count (not drained), or null if there is no live count for tag -- or if it was set rather than counted
+	 */
+	Double getCount(String tag) {
+		Counter c = counters.get(tag);
+		if (c==null || c.wasSet || c.isIdle()) return null;
+		return c.sum();
+	}
+
+	/**
+	 * Train the distribution for tag. The default {@link MeanVar1D} is striped;
+	 * custom distributions (see the tagHandler) are trained under a single lock.
+	 * @param topTag The first tag-bit, which picks the type of distribution.
+	 */
+	void mean(String topTag, String tag, double x) {
+		while(true) {
+			MeanCell m = means.get(tag);
+			if (m==null) {
+				Supplier<IDistribution1D> custom = tagHandler.apply(topTag);
+				m = means.computeIfAbsent(tag, k -> new MeanCell(custom));
+			}
+			if (m.train(x)) return;
+			// it was retired under us -- try again with a fresh cell
+		}
+	}
+
+	/**
+	 * @return a snapshot of the current distribution (not drained), or null
+	 */
+	IDistribution1D getDist(String tag) {
+		MeanCell m = means.get(tag);
+		return m==null? null : m.snapshot();
+	}
+
+	/**
+	 * Install a pre-made distribution for tag (replacing any current one).
+	 * Mainly for testing.
+	 */
+	void putDist(String tag, IDistribution1D dist) {
+		MeanCell m = new MeanCell(MeanVar1D::new);
+		m.slots.set(0, new Stripe(dist));
+		MeanCell old = means.put(tag, m);
+		if (old!=null) old.dead = true;
+	}
+
+	Set<String> countTags() {
+		return counters.keySet();
+	}
+
+	Set<String> meanTags() {
+		return means.keySet();
+	}
+
+	int countSize() {
+		return counters.size();
+	}
+
+	int meanSize() {
+		return means.size();
+	}
+
+	/**
+	 * Swap out the current counts. Each update is in exactly one drain.
+	 * Idle counters are retired.
+	 * @return tag to count for all tags touched since the last drain
+	 */
+	Map<String, Double> drainCounts() {
+		return drainCounts(null);
+	}
+
+	/**
+	 * As {@link #drainCounts()}, noting which tags were set (gauges) rather than counted.
+	 * @param setTags Can be null. Tags which were set since the last drain are added to this.
+	 */
+	Map<String, Double> drainCounts(Set<String> setTags) {
+		HashMap<String, Double> out = new HashMap<>(counters.size());
+		for (Map.Entry<String, Counter> e : counters.entrySet()) {
+			Counter c = e.getValue();
+			if (c.isIdle()) {
+				// retire (late arrivals will either be caught below, or rescued by the writer)
+				counters.remove(e.getKey(), c);
+				c.dead = true;
+				if (c.isIdle()) continue;
+			}
+			if (setTags != null && c.wasSet) setTags.add(e.getKey());
+			out.put(e.getKey(), c.drain());
+		}
+		// cap the interned tag tree
+		if (tagNodes.get() > MAX_TAG_NODES) {
+			root = new TagNode(null);
+			tagNodes.set(0);
+		}
+		return out;
+	}
+
+	/**
+	 * Swap out the current distributions. Idle cells are retired.
+	 * @return tag to distribution for all tags trained since the last drain
+	 */
+	Map<String, IDistribution1D> drainMeans() {
+		HashMap<String, IDistribution1D> out = new HashMap<>(means.size());
+		for (Map.Entry<String, MeanCell> e : means.entrySet()) {
+			MeanCell m = e.getValue();
+			if (m.isIdle()) {
+				means.remove(e.getKey(), m);
+				m.dead = true;
+			}
+			IDistribution1D dist = m.drain();
+			if (dist != null) out.put(e.getKey(), dist);
+		}
+		return out;
+	}
+
+
+	/**
+	 * An interned tag, e.g. "a/b" as reached from "a".
+	 */
+	final class TagNode {
+		/**
+		 * The full hierarchical tag. null for the root.
+		 */
+		final String tag;
+
+		private volatile ConcurrentHashMap<Object, TagNode> kids;
+
+		TagNode(String tag) {
+			this.tag = tag;
+		}
+
+		/**
+		 * @param tg a tag-bit. Must not be null.
+		 * @return the node for this tag + tg
+		 */
+		TagNode child(Object tg) {
+			if (tg == null) throw new IllegalArgumentException("null tag-bit after "+tag);
+			Object key = tg instanceof String? tg : tg.toString();
+			ConcurrentHashMap<Object, TagNode> _kids = kids;
+			if (_kids != null) {
+				TagNode kid = _kids.get(key);
+				if (kid != null) return kid;
+			} else {
+				synchronized (this) {
+					if (kids == null) kids = new ConcurrentHashMap<>(4);
+					_kids = kids;
+				}
+			}
+			String esc = DataLog.tag2_escape((String) key);
+			String stag = tag==null? esc : tag + DataLog.HIERARCHY_CHAR + esc;
+			TagNode kid = new TagNode(stag);
+			TagNode old = _kids.putIfAbsent(key, kid);
+			if (old != null) return old;
+			tagNodes.incrementAndGet();
+			return kid;
+		}
+
+		@Override
+		public String toString() {
+			return "TagNode["+tag+"]";
+		}
+	}
+
+
+	/**
+	 * A double adder whose cells can be drained without losing concurrent updates.
+	 */
+	static final class Counter {
+		/**
+		 * double bits -- the uncontended cell
+		 */
+		final AtomicLong base = new AtomicLong();
+		/**
+		 * double bits -- created on first contention
+		 */
+		private volatile AtomicLongArray cells;
+		/**
+		 * Set by set() so that a set-to-zero is still saved
+		 */
+		private volatile boolean wasSet;
+		/**
+		 * Retired: no longer in the map. Writers must rescue late updates.
+		 */
+		volatile boolean dead;
+
+		void add(double dx) {
+			AtomicLongArray cs = cells;
+			if (cs == null) {
+				long b = base.get();
+				if (base.compareAndSet(b, Double.doubleToRawLongBits(Double.longBitsToDouble(b) + dx))) {
+					return;
+				}
+				cs = inflate();
+			}
+			int i = stripeIndex() * PAD;
+			while(true) {
+				long c = cs.get(i);
+				if (cs.compareAndSet(i, c, Double.doubleToRawLongBits(Double.longBitsToDouble(c) + dx))) {
+					return;
+				}
+			}
+		}
+
+		private synchronized AtomicLongArray inflate() {
+			if (cells == null) cells = new AtomicLongArray(STRIPES * PAD);
+			return cells;
+		}
+
+		void set(double x) {
+			AtomicLongArray cs = cells;
+			if (cs != null) {
+				for(int i=0; i<cs.length(); i+=PAD) cs.set(i, 0);
+			}
+			base.set(Double.doubleToRawLongBits(x));
+			wasSet = true;
+		}
+
+		double sum() {
+			double s = Double.longBitsToDouble(base.get());
+			AtomicLongArray cs = cells;
+			if (cs != null) {
+				for(int i=0; i<cs.length(); i+=PAD) s += Double.longBitsToDouble(cs.get(i));
+			}
+			return s;
+		}
+
+		boolean isIdle() {
+			if (wasSet || base.get() != 0) return false;
+			AtomicLongArray cs = cells;
+			if (cs != null) {
+				for(int i=0; i<cs.length(); i+=PAD) {
+					if (cs.get(i) != 0) return false;
+				}
+			}
+			return true;
+		}
+
+		double drain() {
+			wasSet = false;
+			double s = Double.longBitsToDouble(base.getAndSet(0));
+			AtomicLongArray cs = cells;
+			if (cs != null) {
+				for(int i=0; i<cs.length(); i+=PAD) s += Double.longBitsToDouble(cs.getAndSet(i, 0));
+			}
+			return s;
+		}
+
+		@Override
+		public String toString() {
+			return "Counter["+sum()+"]";
+		}
+	}
+
+
+	/**
+	 * A distribution under construction. Stripes are closed (under their lock)
+	 * when drained, so a writer can never train a stripe that has already been collected.
+	 */
+	static final class Stripe {
+		final IDistribution1D dist;
+		/**
+		 * guarded by this
+		 */
+		boolean closed;
+
+		Stripe(IDistribution1D dist) {
+			this.dist = dist;
+		}
+	}
+
+
+	static final class MeanCell {
+		/**
+		 * null for striped MeanVar1D
+		 */
+		final Supplier<IDistribution1D> custom;
+		final AtomicReferenceArray<Stripe> slots;
+		volatile boolean dead;
+
+		MeanCell(Supplier<IDistribution1D> custom) {
+			this.custom = custom;
+			slots = new AtomicReferenceArray<>(custom==null? STRIPES : 1);
+		}
+
+		/**
+		 * @return false if this cell is dead, in which case the caller should retry via the map.
+		 */
+		boolean train(double x) {
+			int i = custom==null? stripeIndex() : 0;
+			while(true) {
+				Stripe s = slots.get(i);
+				if (s == null) {
+					if (dead) return false;
+					s = new Stripe(custom==null? new MeanVar1D() : custom.get());
+					if ( ! slots.compareAndSet(i, null, s)) continue;
+				}
+				synchronized (s) {
+					if (dead) return false;
+					if (s.closed) continue;
+					((ITrainable.Unsupervised) s.dist).train1(x);
+					return true;
+				}
+			}
+		}
+
+		boolean isIdle() {
+			for(int i=0; i<slots.length(); i++) {
+				if (slots.get(i) != null) return false;
+			}
+			return true;
+		}
+
+		IDistribution1D drain() {
+			IDistribution1D dist = null;
+			for(int i=0; i<slots.length(); i++) {
+				Stripe s = slots.getAndSet(i, null);
+				if (s == null) continue;
+				synchronized (s) {
+					s.closed = true;
+					dist = combine(dist, s.dist);
+				}
+			}
+			return dist;
+		}
+
+		IDistribution1D snapshot() {
+			IDistribution1D dist = null;
+			for(int i=0; i<slots.length(); i++) {
+				Stripe s = slots.get(i);
+				if (s == null) continue;
+				synchronized (s) {
+					if (custom != null) return s.dist;
+					MeanVar1D copy = new MeanVar1D();
+					copy.merge((MeanVar1D) s.dist);
+					dist = combine(dist, copy);
+				}
+			}
+			return dist;
+		}
+
+		private IDistribution1D combine(IDistribution1D a, IDistribution1D b) {
+			if (a == null) return b;
+			// only striped (i.e. MeanVar1D) cells have more than one stripe
+			((MeanVar1D) a).merge((MeanVar1D) b);
+			return a;
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.winterwell.datalog.DataLog.KInterpolate;
+import com.winterwell.depot.Desc;
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Time;
+
+/**
+ * A {@link ColumnarStorage} implementation of the StatReq.
+ * <p>
+ * No batching is needed (cf. {@link StatReqCSV}): each request only decodes
+ * the chunks for its own tag.
+ *
+ * @testedby {@link ColumnarStorageTest}
+ * @param <X>
+ */
+public class StatReqColumnar<X> extends StatReq<X> {
+
+	private final ColumnarStorage storage;
+
+	/**
+	 * If true, read the means (mean, var, min, max) entries instead of the counts.
+	 */
+	private boolean means;
+
+	public StatReqColumnar(ColumnarStorage storage, String cmd, Pattern tagMatcher, Time start, Time end) {
+		super(cmd, tagMatcher, start, end);
+		this.storage = storage;
+	}
+
+	public StatReqColumnar(ColumnarStorage storage, String cmd, String tag, Time start, Time end,
+			KInterpolate interpolate, Dt bucketSize) {
+		super(cmd, tag, start, end, interpolate, bucketSize);
+		this.storage = storage;
+	}
+
+	StatReqColumnar<X> setMeans(boolean means) {
+		this.means = means;
+		return this;
+	}
+
+	@Override
+	protected void run() {
+		stat = DataLog.dflt instanceof DataLogImpl ? (DataLogImpl) DataLog.dflt : null;
+		initV(this);
+		Pattern tm = tagMatcher;
+		List<Datum> data = new ArrayList<>();
+		storage.scan(start, end, tag, tm == null ? null : tg -> tm.matcher(tg).matches(), means ? 4 : 1,
+				(String tg, long t, double[] vs) -> {
+					data.add(new Datum(new Time(t), vs[0], tg));
+					return true;
+				});
+		// in time order (retro counts are stored out of order), e.g. for bucketing
+		data.sort((a, b) -> a.getTime().compareTo(b.getTime()));
+		for (Datum d : data) {
+			add(this, d);
+		}
+		// Add in the last bucket -- only if it's local
+		if (means || tag == null || stat == null) return;
+		if (server == null || Desc.LOCAL_SERVER.equals(server) || Desc.MY_SERVER().equals(server)) {
+			addLatestBucket(this);
+		}
+	}
+
+}
@@ -10,14 +10,17 @@ import com.winterwell.datalog.DataLogImpl;
 import com.winterwell.datalog.DataLogSecurity;
 import com.winterwell.datalog.Dataspace;
 import com.winterwell.datalog.ESStorage;
+import com.winterwell.datalog.RollupCube;
 import com.winterwell.es.client.SearchResponse;
 import com.winterwell.nlp.query.SearchQuery;
 import com.winterwell.nlp.query.SearchQuery.SearchFormatException;
+import com.winterwell.utils.Utils;
 import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.threads.ICallable;
 import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.time.Time;
+import com.winterwell.utils.time.TimeUtils;
 import com.winterwell.utils.web.WebUtils2;
 import com.winterwell.web.WebEx;
 import com.winterwell.web.ajax.JsonResponse;
@@ -72,9 +75,13 @@ public class DataServlet implements IServlet {
 		int numTerms = state.get(numRows, 1000);		
 		// num examples
 		int size = state.get(new IntField("size"), 10);
+		DataLogImpl dl = (DataLogImpl) DataLog.getImplementation();
+		RollupCube rollups = dl.getRollups();
 		// time window
 		ICallable<Time> cstart = state.get(DataLogFields.START);
 		Time start = cstart==null? new Time().minus(TUnit.MONTH) : cstart.call();
+		// NB: with rollups, the default start is a whole day, which lets the cube answer
+		if (cstart==null && rollups!=null) start = TimeUtils.getStartOfDay(start);
 		ICallable<Time> cend = state.get(DataLogFields.END);
 		Time end = cend==null? new Time() : cend.call();
 		
@@ -85,10 +92,28 @@ public class DataServlet implements IServlet {
 		String q = state.get("q");
 		SearchQuery filter = makeQueryFilter(q, start, end);
 
-		DataLogImpl dl = (DataLogImpl) DataLog.getImplementation();
 		ESStorage ess = (ESStorage) dl.getStorage();
 //		ESStorage ess = Dep.get(ESStorage.class);
 		
+		// Can the rollup cube answer? (it can't filter, so only if there's no query)
+		if (rollups != null && Utils.isBlank(q)) {
+			// null end = up to now (including the latest minute)
+			Map aggregations = rollups.getBreakdown(dataspace.name, breakdown, start, cend==null? null : end, numTerms);
+			if (aggregations != null) {
+				// also send eg data (but no breakdowns)
+				Object examples = new ArrayList();
+				if (size > 0) {
+					SearchResponse sr = ess.doSearchEvents(dataspace, numTerms, size, start, end, filter, new ArrayList());
+					sr.check();
+					examples = sr.getHits();
+				}
+				aggregations.put("examples", examples);
+				JsonResponse jr = new JsonResponse(state, aggregations);
+				WebUtils2.sendJson(jr, state);
+				return;
+			}
+		}
+		
 		SearchResponse sr = ess.doSearchEvents(dataspace, numTerms, size, start, end, filter, breakdown);
 		sr.check();
 		
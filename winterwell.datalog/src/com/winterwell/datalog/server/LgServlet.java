@@ -30,6 +30,7 @@ import com.winterwell.web.app.AppUtils;
 import com.winterwell.web.app.BrowserType;
 import com.winterwell.web.app.FileServlet;
 import com.winterwell.web.app.KServerType;
+import com.winterwell.web.app.StaticFiles;
 import com.winterwell.web.app.WebRequest;
 import com.winterwell.web.app.WebRequest.KResponseType;
 import com.winterwell.web.fields.AField;
@@ -126,7 +127,7 @@ public class LgServlet {
 		// Reply
 		// .gif?
 		if (state.getResponseType()==KResponseType.image) {
-			FileServlet.serveFile(TrackingPixelServlet.PIXEL, state);
+			FileServlet.serveFile(TrackingPixelServlet.PIXEL, state, StaticFiles.getDefault());
 			return;
 		}
 		if (DataLogServer.settings.CORS) {
@@ -11,6 +11,7 @@ import com.winterwell.utils.log.Log;
 import com.winterwell.utils.time.TUnit;
 import com.winterwell.web.app.FileServlet;
 import com.winterwell.web.app.IServlet;
+import com.winterwell.web.app.StaticFiles;
 import com.winterwell.web.app.WebRequest;
 import com.winterwell.web.data.XId;
 import com.winterwell.youagain.client.AuthToken;
@@ -67,7 +68,7 @@ public class TrackingPixelServlet implements IServlet {
 		// ??transfer link properties to cookie? -- like the affiliate
 		// serve the resource, so we can release the request
 		try {
-			FileServlet.serveFile(PIXEL, state);
+			FileServlet.serveFile(PIXEL, state, StaticFiles.getDefault());
 		} catch (IOException e) {
 			Log.w("img0", e);
 		}
@@ -0,0 +1,139 @@
+package com.winterwell.datalog;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
+import com.winterwell.maths.timeseries.Datum;
+import com.winterwell.maths.timeseries.ListDataStream;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.io.CSVWriter;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class ColumnarStorageTest {
+
+	private static ColumnarStorage newStorage() {
+		DataLogConfig config = new DataLogConfig();
+		config.segmentDir = FileUtils.createTempDir();
+		return new ColumnarStorage(config);
+	}
+
+	@Test
+	public void testIO() {
+		Time start = new Time();
+		Time end = start.plus(10, TUnit.SECOND);
+		Period p = new Period(start, end);
+
+		Map<String, Double> tag2count = new HashMap<String, Double>();
+		tag2count.put("hello", 4.0);
+		tag2count.put("hello_world", 100.0);
+
+		Map<String, IDistribution1D> tag2mean = new HashMap<>();
+		MeanVar1D mv = new MeanVar1D();
+		mv.train1(1.0);
+		mv.train1(2.0);
+		tag2mean.put("world", mv);
+
+		ColumnarStorage storage = newStorage();
+		storage.save(p, tag2count, tag2mean);
+		// exact tag matching
+		assertEquals(4.0, storage.getTotal("hello", p.first, p.second).get());
+		ListDataStream stream = (ListDataStream) storage.getMeanData("world", p.first, p.second, null, null).get();
+		assertEquals(1.5, stream.get(0).x());
+	}
+
+	@Test
+	public void testSeal() throws Exception {
+		ColumnarStorage storage = newStorage();
+		// a week ago -- so the head gets sealed
+		Time old = new Time().minus(TUnit.WEEK);
+		for (int i = 0; i < 10; i++) {
+			Time s = old.plus(i * 15, TUnit.MINUTE);
+			Map<String, Double> tag2count = new HashMap<String, Double>();
+			tag2count.put("foo", 1.0 * i);
+			storage.save(new Period(s, s.plus(TUnit.MINUTE)), tag2count, new HashMap<>());
+		}
+		File[] segs = storage.dir.listFiles((d, n) -> n.endsWith(ColumnarStorage.SEG));
+		File[] heads = storage.dir.listFiles((d, n) -> n.endsWith(ColumnarStorage.HEAD));
+		assertTrue(segs.length > 0);
+		assertEquals(0, heads.length);
+
+		assertEquals(45.0, storage.getTotal("foo", old.minus(TUnit.HOUR), old.plus(TUnit.DAY)).get());
+		// a window in the middle
+		assertEquals(1.0 + 2 + 3, storage.getTotal("foo", old.plus(10, TUnit.MINUTE), old.plus(50, TUnit.MINUTE)).get());
+		assertEquals(0.0, storage.getTotal("bar", old.minus(TUnit.HOUR), old.plus(TUnit.DAY)).get());
+	}
+
+	@Test
+	public void testImportCSV() throws Exception {
+		File csv = File.createTempFile("all", ".csv");
+		Time t = new Time(2019, 1, 1);
+		CSVWriter w = new CSVWriter(csv, ',');
+		w.write(t.getTime(), "foo", 2);
+		w.write(t.plus(TUnit.HOUR).getTime(), "foo", 3);
+		w.write(t.getTime(), "bar", 1.5, 0.25, 1, 2);
+		w.close();
+
+		ColumnarStorage storage = newStorage();
+		assertEquals(3, storage.importCSV(csv));
+		assertEquals(5.0, storage.getTotal("foo", t, t.plus(TUnit.DAY)).get());
+
+		Iterator<Datum> r = storage.getReader(null, t, t.plus(TUnit.DAY), null, "bar");
+		Datum d = r.next();
+		assertEquals(1.5, d.x());
+		assertEquals("bar", d.getLabel());
+		assertFalse(r.hasNext());
+		FileUtils.delete(csv);
+	}
+
+	@Test
+	public void testHistory() {
+		ColumnarStorage storage = newStorage();
+		Time old = new Time(2019, 1, 1);
+		Map<String, Double> tag2count = new HashMap<String, Double>();
+		tag2count.put("foo", 2.0);
+		storage.save(new Period(old, old.plus(TUnit.MINUTE)), tag2count, new HashMap<>());
+		// retro count into a sealed period
+		Map<Pair2<String, Time>, Double> history = new HashMap<>();
+		history.put(new Pair2<>("foo", old.plus(TUnit.HOUR)), 3.0);
+		storage.saveHistory(history);
+		assertEquals(5.0, storage.getTotal("foo", old, old.plus(TUnit.DAY)).get());
+		// retro set replaces what's there
+		Map<Pair2<String, Time>, Double> sets = new HashMap<>();
+		sets.put(new Pair2<>("foo", old.plus(TUnit.HOUR)), 10.0);
+		storage.setHistory(sets);
+		storage.setHistory(sets);
+		assertEquals(12.0, storage.getTotal("foo", old, old.plus(TUnit.DAY)).get());
+	}
+
+	@Test
+	public void testBucketSize() {
+		ColumnarStorage storage = newStorage();
+		Time t = new Time(2019, 1, 1);
+		Map<Pair2<String, Time>, Double> history = new HashMap<>();
+		for (int i = 0; i < 6; i++) {
+			history.put(new Pair2<>("foo", t.plus(i * 10, TUnit.MINUTE)), 1.0 + i);
+		}
+		storage.saveHistory(history);
+		ListDataStream raw = new ListDataStream(storage.getData("foo", t, t.plus(TUnit.DAY), null, null).get());
+		assertEquals(6, raw.size());
+		// two half-hour buckets
+		ListDataStream hh = new ListDataStream(storage.getData("foo", t, t.plus(TUnit.DAY), null, new Dt(30, TUnit.MINUTE)).get());
+		assertEquals(2, hh.size());
+		assertEquals(1.0 + 2 + 3, hh.get(0).x());
+		assertEquals(4.0 + 5 + 6, hh.get(1).x());
+	}
+}
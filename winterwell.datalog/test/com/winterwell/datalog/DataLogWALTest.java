@@ -0,0 +1,240 @@
+package com.winterwell.datalog;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class DataLogWALTest {
+
+	/**
+	 * Records what was replayed, as strings
+	 */
+	static class Recorder implements DataLogWAL.Visitor {
+		List<String> ops = new ArrayList<>();
+
+		@Override
+		public void count(Period bucket, double dx, String[] tags) {
+			ops.add("count " + bucket.first.getTime() + " " + dx + " " + String.join("/", tags));
+		}
+
+		@Override
+		public void set(Period bucket, double x, String[] tags) {
+			ops.add("set " + bucket.first.getTime() + " " + x + " " + String.join("/", tags));
+		}
+
+		@Override
+		public void countAt(Time at, double dx, String[] tags) {
+			ops.add("countAt " + at.getTime() + " " + dx + " " + String.join("/", tags));
+		}
+
+		@Override
+		public void setAt(Time at, double x, String[] tags) {
+			ops.add("setAt " + at.getTime() + " " + x + " " + String.join("/", tags));
+		}
+
+		@Override
+		public void event(Period bucket, DataLogEvent event) {
+			ops.add("event " + event.getEventType0() + " " + event.count + " " + event.getProp("pub"));
+		}
+	}
+
+	private File newDir() {
+		return new File(FileUtils.getWorkingDirectory(), "test-out/wal" + System.nanoTime());
+	}
+
+	@Test
+	public void testReplayAfterCrash() {
+		File dir = newDir();
+		Period bucket = new Period(new Time(100000), new Time(100000 + TUnit.MINUTE.millisecs));
+		DataLogWAL wal = new DataLogWAL(dir, 1 << 20, 1000);
+		assertEquals(0, wal.replay(new Recorder()));
+		wal.rollover(bucket);
+		wal.logCount(2, new Object[] { "foo", "bar" });
+		wal.logSet(7, new Object[] { "mem" });
+		wal.logCountAt(new Time(5000), 1.5, new Object[] { "old" });
+		wal.logSetAt(new Time(6000), 3, new Object[] { "olds" });
+		wal.logEvent(new DataLogEvent("testspace", 4, "view", new ArrayMap("pub", "bbc.co.uk")));
+		// events are buffered until the next sync
+		wal.sync();
+		// no close -- as if the process was killed
+
+		Recorder rec = new Recorder();
+		DataLogWAL wal2 = new DataLogWAL(dir, 1 << 20, 1000);
+		assertEquals(5, wal2.replay(rec));
+		assertEquals("[count 100000 2.0 foo/bar, set 100000 7.0 mem, countAt 5000 1.5 old, setAt 6000 3.0 olds, event view 4.0 bbc.co.uk]",
+				rec.ops.toString());
+		FileUtils.deleteDir(dir);
+	}
+
+	@Test
+	public void testRolloverAndTruncate() {
+		File dir = newDir();
+		Period b1 = new Period(new Time(0), new Time(1000));
+		Period b2 = new Period(new Time(1000), new Time(2000));
+		DataLogWAL wal = new DataLogWAL(dir, 1 << 20, 1000);
+		wal.replay(new Recorder());
+		wal.rollover(b1);
+		wal.logCount(1, new Object[] { "a" });
+		int seg = wal.rollover(b2);
+		wal.logCount(2, new Object[] { "b" });
+		// not saved yet -- both buckets come back
+		Recorder rec = new Recorder();
+		new DataLogWAL(dir, 1 << 20, 1000).replay(rec);
+		assertEquals("[count 0 1.0 a, count 1000 2.0 b]", rec.ops.toString());
+		// b1 saved
+		wal.truncate(seg);
+		rec = new Recorder();
+		new DataLogWAL(dir, 1 << 20, 1000).replay(rec);
+		assertEquals("[count 1000 2.0 b]", rec.ops.toString());
+		// numbering carries on after a restart
+		wal.close();
+		DataLogWAL wal3 = new DataLogWAL(dir, 1 << 20, 1000);
+		wal3.replay(new Recorder());
+		assertEquals(seg + 1, wal3.rollover(b2));
+		wal3.close();
+		FileUtils.deleteDir(dir);
+	}
+
+	@Test
+	public void testSavedAndSentMarks() {
+		File dir = newDir();
+		Period b1 = new Period(new Time(0), new Time(1000));
+		Period b2 = new Period(new Time(1000), new Time(2000));
+		DataLogWAL wal = new DataLogWAL(dir, 1 << 20, 1000);
+		wal.replay(new Recorder());
+		wal.rollover(b1);
+		wal.logCount(1, new Object[] { "a" });
+		long s1 = wal.logEvent(new DataLogEvent("testspace", 1, "view", new ArrayMap("pub", "p1")));
+		int seg = wal.rollover(b2);
+		long s2 = wal.logEvent(new DataLogEvent("testspace", 2, "view", new ArrayMap("pub", "p2")));
+		wal.logCount(2, new Object[] { "b" });
+		assert s2 > s1;
+		// b1 is saved, and the 1st event sent -- but the segments are not truncated yet (e.g. a crash)
+		wal.logSaved(seg);
+		wal.logSent(s1);
+		wal.sync();
+		Recorder rec = new Recorder();
+		DataLogWAL wal2 = new DataLogWAL(dir, 1 << 20, 1000);
+		assertEquals(2, wal2.replay(rec));
+		assertEquals("[count 1000 2.0 b, event view 2.0 p2]", rec.ops.toString());
+		// event numbering carries on after a restart
+		wal2.rollover(b2);
+		assert wal2.logEvent(new DataLogEvent("testspace", 3, "view", new ArrayMap("pub", "p3"))) > s2;
+		wal2.close();
+		wal.close();
+		FileUtils.deleteDir(dir);
+	}
+
+	@Test
+	public void testSegmentFull() {
+		File dir = newDir();
+		DataLogWAL wal = new DataLogWAL(dir, 2048, 1000);
+		wal.replay(new Recorder());
+		wal.rollover(new Period(new Time(0), new Time(1000)));
+		for (int i = 0; i < 500; i++) {
+			wal.logCount(i, new Object[] { "tag" + i });
+		}
+		wal.close();
+		assert wal.getSegments().size() > 5 : wal.getSegments();
+		Recorder rec = new Recorder();
+		assertEquals(500, new DataLogWAL(dir, 2048, 1000).replay(rec));
+		assertEquals("count 0 499.0 tag499", rec.ops.get(499));
+		FileUtils.deleteDir(dir);
+	}
+
+	@Test
+	public void testEventBatches() {
+		File dir = newDir();
+		DataLogWAL wal = new DataLogWAL(dir, 1 << 20, 1000);
+		wal.replay(new Recorder());
+		wal.rollover(new Period(new Time(0), new Time(1000)));
+		int n = DataLogWAL.EVENT_BATCH * 2 + 5;
+		for (int i = 0; i < n; i++) {
+			wal.logEvent(new DataLogEvent("testspace", i, "view", new ArrayMap("pub", "pub" + i)));
+		}
+		// two full batches are written, the rest wait for a sync
+		Recorder rec = new Recorder();
+		assertEquals(DataLogWAL.EVENT_BATCH * 2, new DataLogWAL(dir, 1 << 20, 1000).replay(rec));
+		wal.close();
+		rec = new Recorder();
+		assertEquals(n, new DataLogWAL(dir, 1 << 20, 1000).replay(rec));
+		assertEquals("event view " + (n - 1.0) + " pub" + (n - 1), rec.ops.get(n - 1));
+		FileUtils.deleteDir(dir);
+	}
+
+	@Test
+	public void testStripes() throws InterruptedException {
+		File dir = newDir();
+		DataLogWAL wal = new DataLogWAL(dir, 1 << 20, 1000, 4);
+		wal.replay(new Recorder());
+		wal.rollover(new Period(new Time(0), new Time(1000)));
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final String tag = "t" + t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					wal.logCount(i, new Object[] { tag });
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		int seg = wal.rollover(new Period(new Time(1000), new Time(2000)));
+		wal.logCount(1, new Object[] { "b2" });
+		Recorder rec = new Recorder();
+		assertEquals(8001, new DataLogWAL(dir, 1 << 20, 1000).replay(rec));
+		// each thread's ops are in order
+		for (int t = 0; t < threads.length; t++) {
+			int last = -1;
+			for (String op : rec.ops) {
+				if ( ! op.endsWith(" t" + t)) continue;
+				int i = (int) Double.parseDouble(op.split(" ")[2]);
+				assertEquals(last + 1, i);
+				last = i;
+			}
+			assertEquals(999, last);
+		}
+		// the 1st bucket can go
+		wal.truncate(seg);
+		rec = new Recorder();
+		new DataLogWAL(dir, 1 << 20, 1000).replay(rec);
+		assertEquals("[count 1000 1.0 b2]", rec.ops.toString());
+		wal.close();
+		FileUtils.deleteDir(dir);
+	}
+
+	@Test
+	public void testTornWrite() throws Exception {
+		File dir = newDir();
+		DataLogWAL wal = new DataLogWAL(dir, 4096, 1000);
+		wal.replay(new Recorder());
+		wal.rollover(new Period(new Time(0), new Time(1000)));
+		wal.logCount(1, new Object[] { "a" });
+		wal.logCount(2, new Object[] { "b" });
+		wal.close();
+		// scribble on the last byte of the 2nd record
+		File f = wal.getSegments().get(0);
+		int rec1 = 8 + 1 + 8 + 1 + 2 + 1;
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.seek(DataLogWAL.HEADER + rec1 * 2 - 1);
+			raf.write('z');
+		}
+		Recorder rec = new Recorder();
+		assertEquals(1, new DataLogWAL(dir, 4096, 1000).replay(rec));
+		assertEquals("[count 0 1.0 a]", rec.ops.toString());
+		FileUtils.deleteDir(dir);
+	}
+}
@@ -1,7 +1,6 @@
 package com.winterwell.datalog;
 
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
 import com.winterwell.maths.timeseries.Datum;
@@ -79,12 +78,10 @@ public class DatalogTestCase {
 		Time te1 = new Time(e1);
 		Period period = new Period(ts1, te1);
 		
-		Map<String, Double> old = si.tag2count;		
-		Map<String, IDistribution1D> oldMean = si.tag2dist;	
+		Map<String, Double> old = si.counters.drainCounts();
+		Map<String, IDistribution1D> oldMean = si.counters.drainMeans();
 		
 		si.save(period, old, oldMean);
-		si.tag2count = new ConcurrentHashMap();
-		si.tag2dist = new ConcurrentHashMap();
 		return period;
 	}
 	
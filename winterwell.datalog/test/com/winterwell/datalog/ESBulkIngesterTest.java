@@ -0,0 +1,198 @@
+package com.winterwell.datalog;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+import com.winterwell.es.client.ESConfig;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Period;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+/**
+ * Runs against a fake ES: a local http server which records _bulk bodies.
+ */
+public class ESBulkIngesterTest {
+
+	HttpServer fakeES;
+	final List<String> bulkBodies = new CopyOnWriteArrayList<>();
+	/**
+	 * How many requests to fail (by closing the connection)
+	 */
+	final AtomicInteger failNext = new AtomicInteger();
+	ESStorage storage;
+	Dataspace ds = new Dataspace("bulktest");
+	Period period = new Period(new Time().minus(TUnit.MINUTE), new Time());
+
+	@Before
+	public void setup() throws IOException {
+		fakeES = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		fakeES.createContext("/", exchange -> {
+			String body = FileUtils.read(exchange.getRequestBody());
+			if (exchange.getRequestURI().getPath().endsWith("_bulk")) {
+				if (failNext.getAndDecrement() > 0) {
+					exchange.close();
+					return;
+				}
+				bulkBodies.add(body);
+			}
+			byte[] resp = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, resp.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(resp);
+			}
+		});
+		fakeES.start();
+		ESConfig esc = new ESConfig();
+		esc.esUrl = "http://localhost:" + fakeES.getAddress().getPort();
+		ESStorage.config4dataspace.put(ds, esc);
+		storage = new ESStorage();
+		// skip index setup
+		storage.knownBaseIndexes.add(storage.baseIndexFromDataspace(ds, new Time()));
+	}
+
+	@After
+	public void teardown() {
+		ESStorage.config4dataspace.remove(ds);
+		fakeES.stop(0);
+	}
+
+	private ESBulkIngester newIngester(int maxEvents, Dt maxLatency) {
+		DataLogConfig config = new DataLogConfig();
+		config.esBulkMaxEvents = maxEvents;
+		config.esBulkMaxLatency = maxLatency;
+		return new ESBulkIngester(storage, config);
+	}
+
+	private int countOps() {
+		int n = 0;
+		for (String body : bulkBodies) {
+			for (String line : body.split("\n")) {
+				if (line.startsWith("{\"index\"") || line.startsWith("{\"update\"")) n++;
+			}
+		}
+		return n;
+	}
+
+	@Test
+	public void testBatchByCount() {
+		ESBulkIngester ingester = newIngester(10, new Dt(1, TUnit.HOUR));
+		for (int i = 0; i < 25; i++) {
+			ingester.offer(ds, new DataLogEvent(ds, 1, "view", new ArrayMap("i", i)), period);
+		}
+		ingester.flush();
+		assertEquals(25, ingester.sent.get());
+		assertEquals(3, bulkBodies.size());
+		assertEquals(25, countOps());
+		ingester.close();
+	}
+
+	@Test
+	public void testBatchByLatency() throws InterruptedException {
+		ESBulkIngester ingester = newIngester(1000, new Dt(100, TUnit.MILLISECOND));
+		ingester.offer(ds, new DataLogEvent(ds, 1, "view", new ArrayMap("i", 1)), period);
+		Thread.sleep(1000);
+		assertEquals(1, bulkBodies.size());
+		assertEquals(0, ingester.size());
+		ingester.close();
+	}
+
+	@Test
+	public void testCoalesceByGroupId() {
+		ESBulkIngester ingester = newIngester(1000, new Dt(1, TUnit.HOUR));
+		for (int i = 0; i < 10; i++) {
+			DataLogEvent e = new DataLogEvent(ds, "user1_page1", 2, new String[] { "minview" },
+					new ArrayMap("n", i));
+			ingester.offer(ds, e, period);
+		}
+		ingester.offer(ds, new DataLogEvent(ds, "user2_page1", 1, new String[] { "minview" }, null), period);
+		assertEquals(2, ingester.size());
+		assertEquals(9, ingester.coalesced.get());
+		ingester.flush();
+		assertEquals(1, bulkBodies.size());
+		assertEquals(2, countOps());
+		// summed count
+		assertTrue(bulkBodies.get(0), bulkBodies.get(0).contains("20"));
+		ingester.close();
+	}
+
+	@Test
+	public void testFlushUnderSustainedIngest() throws InterruptedException {
+		ESBulkIngester ingester = newIngester(10, new Dt(1, TUnit.HOUR));
+		for (int i = 0; i < 25; i++) {
+			ingester.offer(ds, new DataLogEvent(ds, 1, "view", new ArrayMap("i", i)), period);
+		}
+		// keep the queue busy while flushing
+		Thread producer = new Thread(() -> {
+			for (int i = 0; ! Thread.currentThread().isInterrupted(); i++) {
+				ingester.offer(ds, new DataLogEvent(ds, 1, "other", new ArrayMap("j", i)), period);
+			}
+		});
+		producer.start();
+		ingester.flush();
+		assertTrue(ingester.sent.get() >= 25);
+		producer.interrupt();
+		producer.join();
+		ingester.close();
+	}
+
+	@Test
+	public void testRetry() {
+		ESBulkIngester ingester = newIngester(1000, new Dt(1, TUnit.HOUR));
+		ingester.retryBackoffMillis = 10;
+		failNext.set(2);
+		ingester.offer(ds, new DataLogEvent(ds, 1, "view", new ArrayMap("i", 1)), period);
+		ingester.flush();
+		assertEquals(1, ingester.sent.get());
+		assertEquals(0, ingester.failed.get());
+		ingester.close();
+	}
+
+	@Test
+	public void testBackpressureDrops() {
+		DataLogConfig config = new DataLogConfig();
+		config.esBulkMaxEvents = 10;
+		config.esBulkQueueCapacity = 10;
+		config.esBulkMaxLatency = new Dt(1, TUnit.HOUR);
+		// a dead ES: every request fails, slowly
+		failNext.set(Integer.MAX_VALUE);
+		ESBulkIngester ingester = new ESBulkIngester(storage, config);
+		ingester.offerTimeoutMillis = 10;
+		ingester.retryBackoffMillis = 200;
+		int ok = 0;
+		for (int i = 0; i < 50; i++) {
+			if (ingester.offer(ds, new DataLogEvent(ds, 1, "view", new ArrayMap("i", i)), period)) ok++;
+		}
+		assertTrue(ok + " accepted", ok < 50);
+		assertEquals(50 - ok, ingester.dropped.get());
+		ingester.close();
+	}
+
+	@Test
+	public void testStorageCloseSendsQueued() {
+		// a long latency, so only the close sends them
+		storage.bulk = newIngester(1000, new Dt(1, TUnit.HOUR));
+		for (int i = 0; i < 5; i++) {
+			storage.saveEventBatched(ds, new DataLogEvent(ds, 1, "view", new ArrayMap("i", i)), period);
+		}
+		assertTrue(storage.close(new Dt(10, TUnit.SECOND)));
+		assertEquals(5, countOps());
+		assertTrue(storage.bulk == null);
+	}
+}
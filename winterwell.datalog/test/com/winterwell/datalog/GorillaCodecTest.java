@@ -0,0 +1,109 @@
+package com.winterwell.datalog;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.GorillaCodec.Series;
+import com.winterwell.utils.io.FileUtils;
+
+public class GorillaCodecTest {
+
+	@Test
+	public void testRoundTripRegular() {
+		// 15 minute buckets, slowly changing counts: the common case
+		Series s = new Series(1);
+		long t = 1500000000000L;
+		for (int i = 0; i < 1000; i++) {
+			s.add(t + i * 900000L, i % 10 == 0 ? 5 : 7);
+		}
+		byte[] chunk = GorillaCodec.encode(s);
+		Series s2 = GorillaCodec.decode(ByteBuffer.wrap(chunk), s.n, 1);
+		assertEquals(s.n, s2.n);
+		for (int i = 0; i < s.n; i++) {
+			assertEquals(s.ts[i], s2.ts[i]);
+			assertEquals(s.cols[0][i], s2.cols[0][i]);
+		}
+		// vs 16 bytes per point raw
+		assertTrue(chunk.length + " bytes", chunk.length < s.n);
+	}
+
+	@Test
+	public void testRoundTripIrregular() {
+		Random r = new Random(42);
+		Series s = new Series(4);
+		long t = -123456789L;
+		for (int i = 0; i < 5000; i++) {
+			// a mix of small and huge jumps
+			t += r.nextInt(10) == 0 ? r.nextInt(Integer.MAX_VALUE) : r.nextInt(3000);
+			s.add(t, r.nextGaussian(), r.nextInt(3), i, r.nextBoolean() ? Double.NaN : -r.nextDouble() * 1e10);
+		}
+		byte[] chunk = GorillaCodec.encode(s);
+		Series s2 = GorillaCodec.decode(ByteBuffer.wrap(chunk), s.n, 4);
+		for (int i = 0; i < s.n; i++) {
+			assertEquals(s.ts[i], s2.ts[i]);
+			for (int c = 0; c < 4; c++) {
+				assertEquals(Double.doubleToRawLongBits(s.cols[c][i]), Double.doubleToRawLongBits(s2.cols[c][i]));
+			}
+		}
+	}
+
+	@Test
+	public void testSort() {
+		Series s = new Series(1);
+		s.add(30, 3);
+		s.add(10, 1);
+		s.add(20, 2);
+		s.sort();
+		assertEquals(10, s.ts[0]);
+		assertEquals(2.0, s.cols[0][1]);
+		assertEquals(30, s.maxTime());
+	}
+
+	@Test
+	public void testSegment() throws Exception {
+		File f = File.createTempFile("test", ".seg");
+		try {
+			Map<String, List<Series>> data = new HashMap<>();
+			Series counts = new Series(1);
+			counts.add(100, 1);
+			counts.add(200, 2);
+			Series means = new Series(4);
+			means.add(150, 1.5, 0.25, 1, 2);
+			data.put("foo", Arrays.asList(counts, means));
+			Series bar = new Series(1);
+			bar.add(100, 10);
+			data.put("bär", new ArrayList<>(Arrays.asList(bar)));
+			ColumnarSegment.write(f, data);
+
+			ColumnarSegment seg = new ColumnarSegment(f);
+			assertEquals(2, seg.getEntries("foo").size());
+			assertEquals(0, seg.getEntries("nope").size());
+			ColumnarSegment.Entry e = seg.getEntries("bär").get(0);
+			assertEquals(100, e.minTime);
+			Series read = seg.read(e);
+			assertEquals(10.0, read.cols[0][0]);
+			for (ColumnarSegment.Entry fe : seg.getEntries("foo")) {
+				Series fs = seg.read(fe);
+				if (fe.ncols == 4) {
+					assertEquals(0.25, fs.cols[1][0]);
+				} else {
+					assertEquals(200, fs.ts[1]);
+					assertEquals(2.0, fs.cols[0][1]);
+				}
+			}
+		} finally {
+			FileUtils.delete(f);
+		}
+	}
+}
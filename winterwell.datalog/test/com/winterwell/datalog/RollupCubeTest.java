@@ -0,0 +1,125 @@
+package com.winterwell.datalog;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.RollupCube.Grain;
+import com.winterwell.datalog.RollupCube.Piece;
+import com.winterwell.maths.timeseries.ListDataStream;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+import com.winterwell.utils.web.SimpleJson;
+
+public class RollupCubeTest {
+
+	static final long DAY = TUnit.DAY.millisecs;
+	static final long HOUR = TUnit.HOUR.millisecs;
+	static final long MINUTE = TUnit.MINUTE.millisecs;
+
+	@Test
+	public void testCover() {
+		long now = System.currentTimeMillis();
+		long today = Grain.DAY.floor(now);
+		RollupCube cube = new RollupCube(Arrays.asList("tag"), Arrays.asList("count"), today - 10 * DAY);
+		// 2 days ago 22:00 to 5 minutes ago
+		long s = today - 2 * DAY + 22 * HOUR;
+		long e = Grain.MINUTE.floor(now) - 5 * MINUTE;
+		List<Piece> pieces = cube.cover(s, e, Grain.DAY, now);
+		assertEquals(Grain.HOUR, pieces.get(0).grain);
+		assertEquals(s, pieces.get(0).start);
+		assertEquals(Grain.DAY, pieces.get(1).grain);
+		assertEquals(e, pieces.get(pieces.size() - 1).end);
+		// no gaps
+		for (int i = 1; i < pieces.size(); i++) {
+			assertEquals(pieces.get(i - 1).end, pieces.get(i).start);
+		}
+		// not minute aligned
+		assertNull(cube.cover(s + 1000, e, Grain.DAY, now));
+		// before the cube existed
+		assertNull(cube.cover(today - 20 * DAY, e, Grain.DAY, now));
+		// minutes a week ago are not kept
+		assertNull(cube.cover(today - 7 * DAY + MINUTE, e, Grain.DAY, now));
+	}
+
+	@Test
+	public void testGetTotal() {
+		long now = System.currentTimeMillis();
+		long today = Grain.DAY.floor(now);
+		RollupCube cube = new RollupCube(Arrays.asList("tag"), Arrays.asList("count"), today - 10 * DAY);
+		for (int i = 0; i < 5; i++) {
+			DataLogEvent e = new DataLogEvent("testspace", 2, "simple", new ArrayMap("tag", "foo"));
+			e.time = new Time(today - 3 * DAY + i * HOUR);
+			cube.add(e);
+		}
+		DataLogEvent bar = new DataLogEvent("testspace", 7, "simple", new ArrayMap("tag", "bar"));
+		cube.add(bar);
+
+		assertEquals(10.0, cube.getTotal("testspace", "foo", new Time(today - 5 * DAY), null));
+		assertEquals(4.0, cube.getTotal("testspace", "foo", new Time(today - 3 * DAY + 3 * HOUR), null));
+		assertEquals(7.0, cube.getTotal("testspace", "bar", new Time(today - 5 * DAY), null));
+		assertEquals(0.0, cube.getTotal("otherspace", "bar", new Time(today - 5 * DAY), null));
+		// can't answer
+		assertNull(cube.getTotal("testspace", "foo", null, null));
+		assertNull(cube.getTotal("testspace", "foo", new Time(today - 50 * DAY), null));
+
+		ListDataStream data = cube.getData("testspace", "foo", new Time(today - 5 * DAY), new Time(today), TUnit.HOUR.dt);
+		assertEquals(5, data.size());
+		assertEquals(2.0, data.get(0).x());
+	}
+
+	@Test
+	public void testBreakdown() {
+		long now = System.currentTimeMillis();
+		long today = Grain.DAY.floor(now);
+		RollupCube cube = new RollupCube(Arrays.asList("pub", "evt/pub"), Arrays.asList("count", "price"), today - 10 * DAY);
+		long t = today - DAY;
+		cube.add(event("view", "bbc.co.uk", 1, t));
+		cube.add(event("view", "bbc.co.uk", 1, t + HOUR));
+		cube.add(event("click", "bbc.co.uk", 1, t + HOUR));
+		cube.add(event("view", "cnn.com", 1, t + 2 * HOUR));
+		cube.add(new DataLogEvent("testspace", 1, "view", null)); // no pub
+
+		Map<String, Object> aggs = cube.getBreakdown("testspace", Arrays.asList("pub{\"count\":\"sum\"}"),
+				new Time(today - 2 * DAY), null, 10);
+		List<Map> buckets = (List) SimpleJson.get(aggs, "by_pub", "buckets");
+		assertEquals(3, buckets.size());
+		assertEquals("bbc.co.uk", buckets.get(0).get("key"));
+		assertEquals(3.0, SimpleJson.get(buckets.get(0), "count", "sum"));
+		// overall total
+		assertEquals(5.0, SimpleJson.get(aggs, "count", "sum"));
+		assertTrue(buckets.toString(), buckets.toString().contains(RollupCube.UNSET));
+
+		// nested
+		aggs = cube.getBreakdown("testspace", Arrays.asList("evt/pub"), new Time(today - 2 * DAY), null, 10);
+		List<Map> evts = (List) SimpleJson.get(aggs, "by_evt_pub", "buckets");
+		assertEquals("view", evts.get(0).get("key"));
+		List<Map> pubs = (List) SimpleJson.get(evts.get(0), "by_pub", "buckets");
+		assertEquals(3, pubs.size());
+
+		// by time (hourly)
+		aggs = cube.getBreakdown("testspace", Arrays.asList("pub/time"), new Time(today - 2 * DAY), new Time(today), 10);
+		List<Map> bbc = (List) SimpleJson.get(aggs, "by_pub_time", "buckets");
+		List<Map> hours = (List) SimpleJson.get(bbc.get(0), "by_time", "buckets");
+		assertEquals(2, hours.size());
+		assertEquals(t, hours.get(0).get("key"));
+		assertEquals(2L, hours.get(1).get("doc_count"));
+
+		// can't answer: no such breakdown or field
+		assertNull(cube.getBreakdown("testspace", Arrays.asList("host"), new Time(today - 2 * DAY), null, 10));
+		assertNull(cube.getBreakdown("testspace", Arrays.asList("pub{\"dntn\":\"sum\"}"), new Time(today - 2 * DAY), null, 10));
+	}
+
+	private DataLogEvent event(String evt, String pub, double count, long t) {
+		DataLogEvent e = new DataLogEvent("testspace", count, evt, new ArrayMap("pub", pub, "price", 2));
+		e.time = new Time(t);
+		return e;
+	}
+}
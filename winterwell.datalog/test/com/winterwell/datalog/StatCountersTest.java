@@ -0,0 +1,127 @@
+package com.winterwell.datalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
+
+public class StatCountersTest {
+
+	@Test
+	public void testTagNodesAreInterned() {
+		StatCounters sc = new StatCounters(t -> null);
+		StatCounters.TagNode a = sc.root().child("a");
+		StatCounters.TagNode ab = a.child("b");
+		assertEquals("a", a.tag);
+		assertEquals("a"+DataLog.HIERARCHY_CHAR+"b", ab.tag);
+		assertSame(ab, sc.root().child("a").child("b"));
+	}
+
+	@Test
+	public void testCountAndDrain() {
+		StatCounters sc = new StatCounters(t -> null);
+		sc.count("foo", 2);
+		sc.count("foo", 3);
+		sc.set("bar", 0);
+		assertEquals(5.0, sc.get("foo"), 0);
+		Map<String, Double> bucket = sc.drainCounts();
+		assertEquals(5.0, bucket.get("foo"), 0);
+		assertEquals(0.0, bucket.get("bar"), 0);
+		// fresh bucket
+		assertNull(sc.get("foo"));
+		assertTrue(sc.drainCounts().isEmpty());
+		// idle counters were retired
+		assertEquals(0, sc.countSize());
+	}
+
+	@Test
+	public void testDrainNotesSetTags() {
+		StatCounters sc = new StatCounters(t -> null);
+		sc.count("foo", 2);
+		sc.set("bar", 7);
+		Set<String> setTags = new HashSet<>();
+		Map<String, Double> bucket = sc.drainCounts(setTags);
+		assertEquals(2, bucket.size());
+		assertEquals(Collections.singleton("bar"), setTags);
+		// a later count is not a set
+		sc.count("bar", 1);
+		setTags.clear();
+		sc.drainCounts(setTags);
+		assertTrue(setTags.isEmpty());
+	}
+
+	@Test
+	public void testGetCount() {
+		StatCounters sc = new StatCounters(t -> null);
+		sc.count("foo", 2);
+		sc.set("bar", 7);
+		assertEquals(2.0, sc.getCount("foo"), 0.0);
+		// set, not counted
+		assertNull(sc.getCount("bar"));
+		assertNull(sc.getCount("nope"));
+		sc.drainCounts();
+		assertNull(sc.getCount("foo"));
+	}
+
+	@Test
+	public void testMeanAndDrain() {
+		StatCounters sc = new StatCounters(t -> null);
+		sc.mean("m", "m", 1);
+		sc.mean("m", "m", 3);
+		assertEquals(2.0, sc.getDist("m").getMean(), 0.0001);
+		Map<String, IDistribution1D> bucket = sc.drainMeans();
+		MeanVar1D mv = (MeanVar1D) bucket.get("m");
+		assertEquals(2.0, mv.getMean(), 0.0001);
+		assertEquals(2, mv.getCount());
+		assertNull(sc.getDist("m"));
+	}
+
+	/**
+	 * Hammer the counters whilst draining -- no update should get lost or double counted.
+	 */
+	@Test
+	public void testNoLostUpdates() throws InterruptedException {
+		final StatCounters sc = new StatCounters(t -> null);
+		final int nThreads = 8, n = 100000;
+		final String[] tags = {"x", "y", "z"};
+		List<Thread> threads = new ArrayList<>();
+		for(int t=0; t<nThreads; t++) {
+			Thread th = new Thread(() -> {
+				for(int i=0; i<n; i++) {
+					sc.count(tags[i % tags.length], 1);
+					sc.mean("m", "m", 1);
+				}
+			});
+			threads.add(th);
+			th.start();
+		}
+		double total = 0;
+		int meanCount = 0;
+		boolean running = true;
+		while(running) {
+			running = false;
+			for (Thread th : threads) if (th.isAlive()) running = true;
+			for(Double v : sc.drainCounts().values()) total += v;
+			MeanVar1D mv = (MeanVar1D) sc.drainMeans().get("m");
+			if (mv != null) meanCount += mv.getCount();
+		}
+		for (Thread th : threads) th.join();
+		for(Double v : sc.drainCounts().values()) total += v;
+		MeanVar1D mv = (MeanVar1D) sc.drainMeans().get("m");
+		if (mv != null) meanCount += mv.getCount();
+		assertEquals(1.0*nThreads*n, total, 0);
+		assertEquals(nThreads*n, meanCount);
+	}
+}
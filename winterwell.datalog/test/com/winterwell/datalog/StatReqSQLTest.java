@@ -70,7 +70,7 @@ public class StatReqSQLTest extends DatalogTestCase {
 		MeanVar1D mv = new MeanVar1D();
 		mv.train1(1.0);
 		mv.train1(2.0);
-		si.tag2dist.put("bob", mv);
+		si.counters.putDist("bob", mv);
 		
 		ListDataStream stream = (ListDataStream) si.getData(p.first, p.second, null, null, "bob").get();
 		assertEquals(1.5, stream.get(0).x(), 0.0001);
@@ -123,7 +123,7 @@ public class StatReqSQLTest extends DatalogTestCase {
 			Time t = new Time(2013, 01, i);
 			si.count(t, 1, tag);
 		}
-		storage.save(period, si.tag2count, si.tag2dist);
+		storage.save(period, si.counters.drainCounts(), si.counters.drainMeans());
 		
 		StatReqSQL statreq = new StatReqSQL(KStatReq.DATA, tag, start.minus(1, TUnit.SECOND), end.plus(1, TUnit.SECOND), null, null);
 		StatReq.initV(statreq);
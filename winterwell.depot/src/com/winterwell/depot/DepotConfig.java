@@ -73,12 +73,21 @@ public class DepotConfig {
 	
 	@Option
 	Dt batch;
+
+	@Option(description="Max parallel batch-saves from the write-behind. Only used if the store supports it (see IBatchStore).")
+	int writeBehindThreads = 4;
 	
 	@Option
 	File dir;
 
 	@Option(description="Set this to store certain tags in a different directory. Only applies if FileStorage is used")
 	Map<String,String> dir4tag;
+
+	@Option(description="If true (the default), FileStore keeps a key catalogue (dir/.catalogue) for fast loadKeys/contains/getMetaData. "
+			+ "An existing depot without one is catalogued in the background on first use (until then, lookups read the disk). "
+			+ "Lookups which miss the catalogue fall back to the .meta file, but loadKeys only sees catalogued artifacts -- "
+			+ "so set false if other (older) code writes to the depot directly.")
+	boolean catalogue = true;
 	
 	@Option
 	KErrorPolicy errorPolicy = KErrorPolicy.DELETE_CAUSE; // !!
@@ -133,6 +142,9 @@ public class DepotConfig {
 					wb.setDelayJitter(writeBehindJitter);
 				}
 			}
+			if (writeBehindThreads > 0) {
+				wb.setThreads(writeBehindThreads);
+			}
 			if (batch!=null && batch.getMillisecs() != 0) {
 				if (batch.getMillisecs() < 0) {
 					Log.e("DepotConfig", "Invalid batch "+batch);
@@ -35,7 +35,7 @@ import com.winterwell.utils.web.XStreamUtils;
  * @author daniel
  *
  */
-public class ESDepotStore implements IStore {
+public class ESDepotStore implements IBatchStore {
 
 //	/**
 //	 * TODO Used for flush
@@ -57,6 +57,7 @@ public class ESDepotStore implements IStore {
 	
 	@Override
 	public void storeBatch(List<Pair2<Desc, Object>> add, List<Desc> remove) {
+		if (add.isEmpty() && remove.isEmpty()) return;
 		ESHttpClient esc = Dep.get(ESHttpClient.class);
 		BulkRequestBuilder bulk = esc.prepareBulk();
 		// remove all
@@ -68,6 +69,7 @@ public class ESDepotStore implements IStore {
 		// add all
 		for (Pair2<Desc, Object> desc_artifact : add) {
 			ESPath path = getPath(desc_artifact.first);
+			initIndex(path.index(), path.type);
 			IndexRequestBuilder index = esc.prepareIndex(path);
 			ESStoreWrapper doc = new ESStoreWrapper(desc_artifact.second);
 			index.setBodyDoc(doc);
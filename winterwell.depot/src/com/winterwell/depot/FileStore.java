@@ -23,6 +23,7 @@ import com.winterwell.datalog.DataLog;
 import com.winterwell.utils.IFn;
 import com.winterwell.utils.StrUtils;
 import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.BinarySerialiser;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.time.Period;
@@ -112,6 +113,20 @@ public class FileStore implements IStore {
 
 	private DepotConfig depotConfig;
 
+	/**
+	 * null if {@link DepotConfig#catalogue} is off
+	 */
+	private final FileStoreCatalogue catalogue;
+	/**
+	 * false whilst an existing depot is being catalogued (in the background) --
+	 * meanwhile loadKeys walks the disk.
+	 */
+	private volatile boolean catalogueReady;
+	/**
+	 * The background cataloguer, or null
+	 */
+	private Thread cataloguer;
+
 	public FileStore(DepotConfig config) {
 		this.dir = config.dir.getAbsoluteFile();
 		this.depotConfig = config;
@@ -126,7 +141,72 @@ public class FileStore implements IStore {
 				new File(d).mkdirs();
 			}
 		}
-	}	
+		if (depotConfig.catalogue) {
+			catalogue = new FileStoreCatalogue(dir);
+			catalogueReady = true;
+			// an existing depot? catalogue it (in the background -- it may be big)
+			if (catalogue.isEmpty() && ! action) {
+				String[] files = dir.list();
+				if (files != null && files.length > 1) {
+					catalogueReady = false;
+					cataloguer = new Thread(() -> {
+						try {
+							rebuildCatalogue();
+							catalogueReady = true;
+						} catch (Throwable ex) {
+							// carry on without (loadKeys walks the disk)
+							Log.e(LOGTAG, ex);
+						}
+					}, "depot.catalogue.rebuild");
+					cataloguer.setDaemon(true);
+					cataloguer.start();
+				}
+			}
+		} else {
+			catalogue = null;
+		}
+	}
+
+	/**
+	 * Rewrite the key catalogue from the .meta files on disk.
+	 * Use for depots written without one, or edited by hand.
+	 * @return number of artifacts catalogued
+	 */
+	public int rebuildCatalogue() {
+		if (catalogue == null) throw new IllegalStateException("catalogue is off for "+this);
+		// NB: puts during the rebuild are kept (see FileStoreCatalogue.rebuild())
+		List<File> dirs = new ArrayList();
+		dirs.add(dir);
+		if (depotConfig.dir4tag != null) {
+			for(String d : depotConfig.dir4tag.values()) {
+				dirs.add(new File(d).getAbsoluteFile());
+			}
+		}
+		return catalogue.rebuild(dirs);
+	}
+
+	/**
+	 * Wait for the background cataloguing of an existing depot (if any) to finish.
+	 */
+	void awaitCatalogue() throws InterruptedException {
+		Thread t = cataloguer;
+		if (t != null) t.join();
+	}
+
+	/**
+	 * Rebuild the key catalogue for a depot directory.
+	 * Usage: java com.winterwell.depot.FileStore depot-dir
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("Usage: java com.winterwell.depot.FileStore depot-dir\n"
+					+ "(Re)builds the key catalogue from the .meta files. Don't write to the depot meanwhile.");
+			return;
+		}
+		FileStore fs = new FileStore(new DepotConfig().setDir(new File(args[0])));
+		int n = fs.rebuildCatalogue();
+		System.out.println("Catalogued "+n+" artifacts in "+fs.getDepotDir());
+	}
 
 	@Override
 	public <X> void put(Desc<X> desc, X artifact) {
@@ -164,17 +244,22 @@ public class FileStore implements IStore {
 			try {
 				File tmpFile = File.createTempFile("depot", ".xml");
 				strm = new FileOutputStream(tmpFile);
-				if (desc.gzip) strm = new GZIPOutputStream(strm); 
-				if (desc.ser==Desc.KSerialiser.JAVA) {
-					// use java serialisation (good for some forms of dense data)
-					ObjectOutputStream objStrm = new ObjectOutputStream(strm);
-					objStrm.writeObject(artifact);			
-					objStrm.close();	
+				if (desc.ser==Desc.KSerialiser.BINARY) {
+					// compact binary, straight to the file channel (gzip means LZ4 here)
+					BinarySerialiser.write(artifact, ((FileOutputStream) strm).getChannel(), desc.gzip);
 				} else {
-					// xstream by default
-					Writer w = FileUtils.getWriter(strm);
-					XStreamUtils.serialiseToXml(w, artifact);
-					w.close();
+					if (desc.gzip) strm = new GZIPOutputStream(strm); 
+					if (desc.ser==Desc.KSerialiser.JAVA) {
+						// use java serialisation (good for some forms of dense data)
+						ObjectOutputStream objStrm = new ObjectOutputStream(strm);
+						objStrm.writeObject(artifact);			
+						objStrm.close();	
+					} else {
+						// xstream by default
+						Writer w = FileUtils.getWriter(strm);
+						XStreamUtils.serialiseToXml(w, artifact);
+						w.close();
+					}
 				}
 				FileUtils.close(strm);
 				// move it into place
@@ -194,13 +279,22 @@ public class FileStore implements IStore {
 			md = new MetaData(desc);
 		} 
 		md.file = storeHere;
-		FileUtils.save(md, index);		
+		FileUtils.save(md, index);
+		if (catalogue != null) {
+			catalogue.put(storeHere, md);
+		}
 	}
 	
 
 	@Override
 	public boolean contains(Desc config) {
-		return getLocalPath(config).exists();
+		File f = getLocalPath(config);
+		// the catalogue answers "yes" without touching the disk -- but a file put
+		// by other means (e.g. copied in by hand) still counts
+		if (catalogue != null && catalogue.contains(f)) {
+			return true;
+		}
+		return f.exists();
 	}
 	
 	/**
@@ -342,6 +436,10 @@ public class FileStore implements IStore {
 		InputStream in = null;
 		try {
 			in = new FileInputStream(f);
+			if (config.ser==Desc.KSerialiser.BINARY) {
+				// its own (LZ4) compression, so no gzip wrapper
+				return BinarySerialiser.read(((FileInputStream) in).getChannel());
+			}
 			if (config.gzip) in = new GZIPInputStream(in); 
 			if (config.ser==Desc.KSerialiser.JAVA) {
 				// use java serialisation (good for some forms of dense data)
@@ -386,6 +484,9 @@ public class FileStore implements IStore {
 		
 		File mf = getMetaFile(f);
 		FileUtils.delete(mf);
+		if (catalogue != null) {
+			catalogue.remove(f);
+		}
 
 	}
 	
@@ -406,6 +507,10 @@ public class FileStore implements IStore {
 		String rp = FileUtils.getRelativePath(lp, highDir);
 		assert rp != null;
 		
+		if (catalogue != null && catalogueReady) {
+			return catalogue.loadKeys(partialDesc);
+		}
+		
 		// Sadly, we can't go from an artifact to it's Desc
 		// Find meta-data files
 		List<File> files = FileUtils.find(highDir, ".+\\.meta");
@@ -431,11 +536,14 @@ public class FileStore implements IStore {
 	MetaData getMetaData2(Desc desc) {
 		File storeHere = getLocalPath(desc);
 		File index = getMetaFile(storeHere);
-		if ( ! index.exists()) {
-			return null;
-		}
 		try {
-			MetaData md = FileUtils.load(index);
+			MetaData md = catalogue == null? null : catalogue.getMetaData(storeHere);
+			if (md == null) {
+				// not catalogued (yet) -- e.g. written by code without the catalogue
+				if ( ! index.exists()) return null;
+				md = FileUtils.load(index);
+			}
+			md.file = storeHere;
 			
 			// HACK: Poke maxAge if set! This allows the user making the request to specify a max-age
 			if (desc.maxAge!=null) md.getDesc().setMaxAge(desc.maxAge);
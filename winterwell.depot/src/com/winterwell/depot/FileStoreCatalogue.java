@@ -0,0 +1,528 @@
+package com.winterwell.depot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.winterwell.utils.Key;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Containers;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.web.XStreamUtils;
+
+/**
+ * An append-only key catalogue for {@link FileStore}, so that loadKeys, contains and
+ * getMetaData don't have to walk the directory tree and deserialise every .meta file.
+ * <p>
+ * The catalogue is a single log file (dir/.catalogue) of put / remove records.
+ * Each put holds the artifact's path, its index terms (tag+type, and key=value for each
+ * Desc property), and the MetaData xml. On open (and whenever the file has grown -- e.g.
+ * another process sharing the depot has appended to it) only the new records are read into
+ * in-memory postings, in chunks. The MetaData xml is not kept in memory: it is read (by file
+ * position) and deserialised only for the candidates an index lookup returns.
+ * <p>
+ * Appends are a single write to a file opened for append, made under a {@link FileLock},
+ * so processes sharing a depot can safely append to the same catalogue. A torn record
+ * (left by a crash mid-append) is only chopped off under the same lock -- so another
+ * process's in-progress append is never mistaken for one. Stale records are only dropped by
+ * {@link #rebuild(Collection)}, which rewrites the catalogue from the .meta files on disk.
+ * Use this for existing depots -- or for depots which have been edited by hand. Appends
+ * made during a rebuild are carried over, so it can run in the background.
+ *
+ * @testedby {@link FileStoreCatalogueTest}
+ */
+final class FileStoreCatalogue {
+
+	private static final String LOGTAG = "depot.catalogue";
+
+	static final String FILENAME = ".catalogue";
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	/**
+	 * Long property values are cut down to this in the index
+	 * (the final check is a full {@link Desc#partialMatch(Desc)}).
+	 */
+	private static final int MAX_TERM = 256;
+
+	/**
+	 * How much of the file {@link #refresh()} reads at a time
+	 */
+	static int CHUNK = 16 * 1024 * 1024;
+
+	/**
+	 * FileLocks are held by the JVM, not the thread -- so catalogues (of the same file) within
+	 * this JVM also synchronize on a per-file monitor from here.
+	 */
+	private static final ConcurrentHashMap<String, Object> path2monitor = new ConcurrentHashMap<>();
+
+	private final File file;
+	/**
+	 * Paths are stored relative to this (if inside it)
+	 */
+	private final String base;
+
+	/**
+	 * For appends
+	 */
+	private FileChannel out;
+	/**
+	 * For reads
+	 */
+	private FileChannel channel;
+	/**
+	 * How far into the file we have indexed
+	 */
+	private long readPos;
+
+	/**
+	 * Only one rebuild at a time
+	 */
+	private final Object rebuildLock = new Object();
+
+	private final Map<String, Entry> path2entry = new HashMap<>();
+	/**
+	 * tag+type to paths
+	 */
+	private final Map<String, Set<String>> tagType2paths = new HashMap<>();
+	/**
+	 * key=value to paths
+	 */
+	private final Map<String, Set<String>> term2paths = new HashMap<>();
+
+	static final class Entry {
+		final String path;
+		final String tagType;
+		final String[] terms;
+		final long xmlOffset;
+		final int xmlLength;
+
+		Entry(String path, String tagType, String[] terms, long xmlOffset, int xmlLength) {
+			this.path = path;
+			this.tagType = tagType;
+			this.terms = terms;
+			this.xmlOffset = xmlOffset;
+			this.xmlLength = xmlLength;
+		}
+	}
+
+	/**
+	 * Open (or create) the catalogue for a depot directory.
+	 */
+	FileStoreCatalogue(File depotDir) {
+		this.file = new File(depotDir, FILENAME);
+		this.base = depotDir.getAbsolutePath() + File.separator;
+		open();
+	}
+
+	boolean isEmpty() {
+		return file.length() == 0;
+	}
+
+	private synchronized void open() {
+		try {
+			out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			path2entry.clear();
+			tagType2paths.clear();
+			term2paths.clear();
+			readPos = 0;
+			refresh();
+			if (readPos == channel.size()) return;
+			// A partial record at the end: a crash mid-append, or another process mid-append?
+			// Appends hold the lock, so under it we can tell.
+			synchronized (monitor()) {
+				try (FileLock lock = out.lock()) {
+					refresh();
+					// chop a torn record left by a crash, so later appends line up
+					if (readPos < channel.size()) {
+						Log.w(LOGTAG, "Truncating torn record at "+readPos+" in "+file);
+						out.truncate(readPos);
+					}
+				}
+			}
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	private Object monitor() {
+		return path2monitor.computeIfAbsent(file.getAbsolutePath(), k -> new Object());
+	}
+
+	/**
+	 * Index any records appended since we last looked. Only the new bytes are read,
+	 * a chunk at a time, so a big catalogue is fine.
+	 */
+	private void refresh() throws IOException {
+		long size = channel.size();
+		int need = 0;
+		while (readPos < size) {
+			int len = (int) Math.min(size - readPos, Math.max(CHUNK, need));
+			ByteBuffer bb = ByteBuffer.allocate(len);
+			while (bb.hasRemaining()) {
+				if (channel.read(bb, readPos + bb.position()) < 0) break;
+			}
+			bb.flip();
+			int done = refresh2_records(bb, readPos);
+			readPos += done;
+			if (done != 0) {
+				need = 0;
+				continue;
+			}
+			// no whole record in this chunk
+			if (len >= size - readPos) break;
+			int recLen = bb.getInt(0);
+			// incomplete (another process mid-append?) -- try again next time
+			if (recLen <= 0 || 4L + recLen > size - readPos) break;
+			// a record bigger than a chunk
+			need = 4 + recLen;
+		}
+	}
+
+	/**
+	 * @param bb holds the file from pos
+	 * @return bytes of whole records indexed
+	 */
+	private int refresh2_records(ByteBuffer bb, long pos) {
+		while (bb.remaining() >= 4) {
+			int start = bb.position();
+			int len = bb.getInt();
+			if (len <= 0 || len > bb.remaining()) {
+				bb.position(start);
+				break;
+			}
+			int end = bb.position() + len;
+			refresh2_record(bb, pos);
+			bb.position(end);
+		}
+		return bb.position();
+	}
+
+	private void refresh2_record(ByteBuffer bb, long pos) {
+		byte op = bb.get();
+		String path = getString(bb);
+		unindex(path);
+		if (op == REMOVE) return;
+		String tagType = getString(bb);
+		String[] terms = new String[bb.getShort() & 0xFFFF];
+		for (int i = 0; i < terms.length; i++) {
+			terms[i] = getString(bb);
+		}
+		int xmlLength = bb.getInt();
+		Entry e = new Entry(path, tagType, terms, pos + bb.position(), xmlLength);
+		path2entry.put(path, e);
+		tagType2paths.computeIfAbsent(tagType, k -> new HashSet<>()).add(path);
+		for (String t : terms) {
+			term2paths.computeIfAbsent(t, k -> new HashSet<>()).add(path);
+		}
+	}
+
+	private void unindex(String path) {
+		Entry old = path2entry.remove(path);
+		if (old == null) return;
+		unindex2(tagType2paths, old.tagType, path);
+		for (String t : old.terms) {
+			unindex2(term2paths, t, path);
+		}
+	}
+
+	private static void unindex2(Map<String, Set<String>> postings, String term, String path) {
+		Set<String> paths = postings.get(term);
+		if (paths == null) return;
+		paths.remove(path);
+		if (paths.isEmpty()) postings.remove(term);
+	}
+
+	private static String getString(ByteBuffer bb) {
+		byte[] bytes = new byte[bb.getShort() & 0xFFFF];
+		bb.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static String tagType(String tag, Class type) {
+		return (tag == null ? "" : tag) + "/" + (type == null ? "" : type.getName());
+	}
+
+	/**
+	 * @return key=value, normalised so that values which {@link Utils#equals(Object, Object)}
+	 * treats as equal give the same term.
+	 */
+	static String term(String key, Object value) {
+		String v;
+		if (value == null) {
+			v = "null";
+		} else if (value.getClass().isArray()) {
+			v = Containers.asList(value).toString();
+		} else {
+			v = value.toString();
+			if (value instanceof Number && v.endsWith(".0")) {
+				v = v.substring(0, v.length() - 2);
+			}
+		}
+		String t = key + "=" + v;
+		return t.length() > MAX_TERM ? t.substring(0, MAX_TERM) : t;
+	}
+
+	private String relPath(File f) {
+		String p = f.getAbsolutePath();
+		return p.startsWith(base) ? p.substring(base.length()) : p;
+	}
+
+	/**
+	 * Record a put. The MetaData's desc supplies the index terms.
+	 */
+	synchronized void put(File artifact, MetaData md) {
+		Desc desc = md.getDesc();
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0); // length -- filled in below
+			out.writeByte(PUT);
+			putString(out, relPath(artifact));
+			putString(out, tagType(desc.getTag(), desc.getType()));
+			Collection<Key> keys = desc.getKeys();
+			List<String> terms = new ArrayList<>(keys.size());
+			for (Key k : keys) {
+				terms.add(term(k.getName(), desc.get(k)));
+			}
+			out.writeShort(terms.size());
+			for (String t : terms) {
+				putString(out, t);
+			}
+			byte[] xml = XStreamUtils.serialiseToXml(md).getBytes(StandardCharsets.UTF_8);
+			out.writeInt(xml.length);
+			out.write(xml);
+			append(bytes);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	synchronized void remove(File artifact) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0);
+			out.writeByte(REMOVE);
+			putString(out, relPath(artifact));
+			append(bytes);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	private void append(ByteArrayOutputStream bytes) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(bytes.toByteArray());
+		bb.putInt(0, bb.capacity() - 4);
+		// in append mode, under the lock -- so records from different processes don't interleave,
+		// and open() can't mistake this for a torn record
+		synchronized (monitor()) {
+			try (FileLock lock = out.lock()) {
+				while (bb.hasRemaining()) {
+					out.write(bb);
+				}
+			}
+		}
+		refresh();
+	}
+
+	private static void putString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF) throw new IOException("Too long for the catalogue: "+s.substring(0, 100)+"...");
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	synchronized boolean contains(File artifact) {
+		try {
+			refresh();
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		return path2entry.containsKey(relPath(artifact));
+	}
+
+	/**
+	 * @return the stored MetaData, or null
+	 */
+	synchronized MetaData getMetaData(File artifact) {
+		try {
+			refresh();
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		Entry e = path2entry.get(relPath(artifact));
+		return e == null ? null : getMetaData2(e);
+	}
+
+	private MetaData getMetaData2(Entry e) {
+		ByteBuffer xml = ByteBuffer.allocate(e.xmlLength);
+		try {
+			while (xml.hasRemaining()) {
+				if (channel.read(xml, e.xmlOffset + xml.position()) < 0) {
+					throw new IOException("Truncated "+file+" at "+e.path);
+				}
+			}
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		return XStreamUtils.serialiseFromXml(new String(xml.array(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return Descs which partialMatch partialDesc. Only the xml for candidates which
+	 * match on tag, type and every (non-null) property is deserialised.
+	 */
+	synchronized Set<Desc> loadKeys(Desc partialDesc) {
+		try {
+			refresh();
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		Set<String> candidates;
+		if (partialDesc.getTag() != null) {
+			candidates = tagType2paths.get(tagType(partialDesc.getTag(), partialDesc.getType()));
+			if (candidates == null) return new HashSet<>();
+		} else {
+			// any tag
+			candidates = new HashSet<>();
+			String type = tagType("", partialDesc.getType());
+			for (Map.Entry<String, Set<String>> e : tagType2paths.entrySet()) {
+				if (e.getKey().endsWith(type)) candidates.addAll(e.getValue());
+			}
+		}
+		// intersect the postings, smallest first
+		List<Set<String>> postings = new ArrayList<>();
+		for (Object k : partialDesc.getKeys()) {
+			Object v = partialDesc.get((Key) k);
+			if (v == null) continue; // matches "unset" -- can't use the index
+			Set<String> paths = term2paths.get(term(((Key) k).getName(), v));
+			if (paths == null) return new HashSet<>();
+			postings.add(paths);
+		}
+		postings.add(candidates);
+		Collections.sort(postings, (a, b) -> Integer.compare(a.size(), b.size()));
+		Set<Desc> descs = new HashSet<>();
+		outer: for (String path : postings.get(0)) {
+			for (int i = 1; i < postings.size(); i++) {
+				if ( ! postings.get(i).contains(path)) continue outer;
+			}
+			try {
+				Desc d = getMetaData2(path2entry.get(path)).getDesc();
+				if (partialDesc.partialMatch(d)) {
+					descs.add(d);
+				}
+			} catch (Exception ex) {
+				Log.w(LOGTAG, ex);
+			}
+		}
+		return descs;
+	}
+
+	synchronized int size() {
+		return path2entry.size();
+	}
+
+	/**
+	 * Rewrite the catalogue from the .meta files under dirs (which also drops stale records).
+	 * This process can keep writing meanwhile: the .meta files are read without holding the
+	 * catalogue, and records appended during the scan are copied over at the end.
+	 * Other processes sharing the depot should not write during a rebuild.
+	 *
+	 * @return the number of artifacts catalogued
+	 */
+	int rebuild(Collection<File> dirs) {
+		synchronized (rebuildLock) {
+			Log.i(LOGTAG, "Rebuilding "+file+" from "+dirs+"...");
+			long from;
+			synchronized (this) {
+				from = readPos;
+			}
+			File tmp = new File(file.getPath()+".tmp");
+			FileUtils.delete(tmp);
+			FileStoreCatalogue fresh = new FileStoreCatalogue(tmp, base);
+			int n = 0;
+			for (File dir : dirs) {
+				if ( ! dir.isDirectory()) continue;
+				for (File mf : FileUtils.find(dir, ".+\\.meta")) {
+					try {
+						MetaData md = FileUtils.load(mf);
+						File artifact = new File(mf.getPath().substring(0, mf.getPath().length() - 5));
+						if ( ! artifact.exists()) continue;
+						md.file = artifact;
+						fresh.put(artifact, md);
+						n++;
+					} catch (Exception ex) {
+						Log.w(LOGTAG, "Skipping "+mf+": "+ex);
+					}
+				}
+			}
+			synchronized (this) {
+				try {
+					// carry over what was appended meanwhile (the later record wins)
+					refresh();
+					rebuild2_copy(from, readPos, fresh);
+				} catch (IOException ex) {
+					fresh.close();
+					throw Utils.runtime(ex);
+				}
+				fresh.close();
+				close();
+				FileUtils.move(tmp, file);
+				open();
+			}
+			Log.i(LOGTAG, "Rebuilt "+file+": "+n+" artifacts");
+			return n;
+		}
+	}
+
+	/**
+	 * Append the raw records in [start, end) of this file to the other catalogue.
+	 */
+	private void rebuild2_copy(long start, long end, FileStoreCatalogue to) throws IOException {
+		if (start >= end) return;
+		long copied = 0;
+		while (copied < end - start) {
+			copied += channel.transferTo(start + copied, end - start - copied, to.out);
+		}
+		to.refresh();
+	}
+
+	/**
+	 * For rebuild
+	 */
+	private FileStoreCatalogue(File file, String base) {
+		this.file = file;
+		this.base = base;
+		open();
+	}
+
+	synchronized void close() {
+		FileUtils.close(out);
+		FileUtils.close(channel);
+	}
+
+	@Override
+	public String toString() {
+		return "FileStoreCatalogue["+file+"]";
+	}
+}
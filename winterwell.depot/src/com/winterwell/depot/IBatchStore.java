@@ -0,0 +1,30 @@
+package com.winterwell.depot;
+
+import java.util.List;
+
+import com.winterwell.utils.containers.Pair2;
+
+/**
+ * An {@link IStore} whose {@link #storeBatch(List, List)} is genuinely efficient
+ * (e.g. one bulk request), and safe to call from several threads at once.
+ * {@link SlowStorage} will group its write-behind saves into batches of up to
+ * {@link #getBatchSize()}, and send them in parallel.
+ * <p>
+ * Stores which just use the default one-at-a-time storeBatch() should NOT implement this.
+ */
+public interface IBatchStore extends IStore {
+
+	/**
+	 * Must be thread-safe.
+	 */
+	@Override
+	void storeBatch(List<Pair2<Desc, Object>> add, List<Desc> remove);
+
+	/**
+	 * @return max items (adds + removes) per storeBatch() call
+	 */
+	default int getBatchSize() {
+		return 500;
+	}
+
+}
@@ -5,10 +5,17 @@ import java.io.File;
 import java.io.Flushable;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.winterwell.datalog.DataLog;
 import com.winterwell.utils.ReflectionUtils;
@@ -16,9 +23,11 @@ import com.winterwell.utils.Utils;
 import com.winterwell.utils.containers.Pair2;
 import com.winterwell.utils.log.Log;
 import com.winterwell.utils.threads.Actor;
+import com.winterwell.utils.threads.Actor.Packet;
 import com.winterwell.utils.threads.SlowActor;
 import com.winterwell.utils.time.Dt;
 import com.winterwell.utils.time.RateCounter;
+import com.winterwell.utils.time.StopWatch;
 import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.time.TimeUtils;
 
@@ -26,7 +35,12 @@ import com.winterwell.utils.time.TimeUtils;
  * A write-behind system -- shove stuff in, & it doesn't get saved for a while.
  * <p>
  * NB: Often, an artifact will be repeatedly modified. Such artifacts will get saved
- * once every {@link #delay}
+ * once every {@link #delay}: repeated puts are coalesced into one pending save.
+ * <p>
+ * Saves which fall due together are grouped into batches for {@link IStore#storeBatch(List, List)}.
+ * If the base is an {@link IBatchStore}, batches are sent in parallel (up to {@link #setThreads(int)} at once).
+ * <p>
+ * Metrics (via DataLog, tagged Depot SlowStorage): queue (pending artifacts), put, coalesced, saved, flush_ms.
  * <p>
  * Use-case: efficient database, network, & file-system access. 
  * @author daniel
@@ -38,9 +52,19 @@ public class SlowStorage
 implements IStore, Flushable, Closeable
 {
 
+	/**
+	 * Save everything pending, now (on this thread).
+	 */
 	@Override
 	public void flush() {
-		actor.flush();
+		// Clear out the save messages (NB: before looking at map, so a racing put is not lost)
+		for(Iterator<Packet<Desc>> it = actor.getQ().iterator(); it.hasNext(); ) {
+			it.next();
+			it.remove();
+		}
+		batched.clear();
+		// The map holds everything pending (including failed saves)
+		actor.saveAll(new ArrayList<>(map.keySet()));
 	}
 	
 	@Override
@@ -69,6 +93,8 @@ implements IStore, Flushable, Closeable
 	@Override
 	public void close() throws IOException {
 		flush();
+		ExecutorService ex = pool;
+		if (ex!=null) ex.shutdown();
 	}
 	
 	Dt delay;
@@ -118,7 +144,11 @@ implements IStore, Flushable, Closeable
 	@Override
 	public final <X> void put(Desc<X> desc, X artifact) {
 		map.put(desc, artifact);
+		putCount.incrementAndGet();
+		DataLog.count(1, "Depot", "SlowStorage", "put");
 		// Note: Races don't matter here -- the message is just "do something with desc"
+		// Coalesce: only one pending save message per desc
+		boolean fresh = queued.add(desc);
 		
 		Dt dt = delay;
 		// Can we afford a long delay? 
@@ -139,6 +169,11 @@ implements IStore, Flushable, Closeable
 			long totalMem = rt.totalMemory();
 //			Log.w(LOGTAG, "Fast storage with "+(freeMem/MB)+"mb of "+(totalMem/MB)+"mb");
 			dt = TUnit.SECOND.dt;
+		} else if ( ! fresh) {
+			// already queued -- it'll be saved with the latest value
+			coalescedCount.incrementAndGet();
+			DataLog.count(1, "Depot", "SlowStorage", "coalesced");
+			return;
 		}
 		// jitter
 		if (delayJitter!=0) {
@@ -176,7 +211,29 @@ implements IStore, Flushable, Closeable
 		return base.getMetaData(desc);
 	}
 
-	HashSet<Desc> batched;
+	/**
+	 * Descs waiting for the batch timer, if {@link #batch} is set
+	 */
+	final Set<Desc> batched = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Descs which have a save message in the actor's queue -- so further puts can be coalesced.
+	 */
+	final Set<Desc> queued = ConcurrentHashMap.newKeySet();
+
+	final AtomicLong putCount = new AtomicLong();
+	final AtomicLong coalescedCount = new AtomicLong();
+	final AtomicLong savedCount = new AtomicLong();
+	
+	/**
+	 * Max parallel storeBatch() calls, if base is an {@link IBatchStore}
+	 */
+	int threads = 4;
+	
+	/**
+	 * Made on demand, if base is an {@link IBatchStore}
+	 */
+	private volatile ExecutorService pool;
 		
 	/**
 	 * Count failed saves. This is reset to null after any successful save. So it should always be low
@@ -202,130 +259,275 @@ implements IStore, Flushable, Closeable
 	public void setDelayJitter(double writeBehindJitter) {
 		this.delayJitter = writeBehindJitter;
 	}
+
+	/**
+	 * @param threads Max parallel batch saves. Only used if the base is an {@link IBatchStore}. 
+	 * Must be set before use.
+	 */
+	public void setThreads(int threads) {
+		assert threads > 0 : threads;
+		this.threads = threads;
+	}
+
+	/**
+	 * @return number of artifacts waiting to be saved
+	 */
+	public int getQueueDepth() {
+		return map.size();
+	}
+	
+	/**
+	 * @return puts per save, e.g. 10 = ten puts were coalesced into each save. 1 if nothing is saved yet.
+	 */
+	public double getCoalescingRatio() {
+		long saved = savedCount.get();
+		return saved==0? 1 : putCount.get() / (double) saved;
+	}
 	
 	final SlowStorageActor actor = new SlowStorageActor();
 	
 	class SlowStorageActor extends SlowActor<Desc> {
 
+		/**
+		 * For {@link SlowActor#flush()} -- normally the actor thread uses consumeBatch()
+		 */
 		@Override
 		protected void consume(Desc desc, Actor sender) {
+			ArrayList<Packet<Desc>> one = new ArrayList();
+			one.add(new Packet(desc, sender));
+			consumeBatch(one);
+		}
+		
+		/**
+		 * The actor thread gets the save messages which are due, several at a time.
+		 */
+		@Override
+		protected void consumeBatch(ArrayList<Packet<Desc>> packets) {
+			Set<Desc> descs = new LinkedHashSet();
+			boolean saveBatch = false;
+			for (Packet<Desc> p : packets) {
+				if (SAVE_BATCH.equals(p.msg)) saveBatch = true;
+				else descs.add(p.msg);
+			}
 			// Too many errors? 
 			RateCounter ec = errorCount;
 			if (ec!=null && ec.get() > 10) {
 				// NB: Log throttle should stop thie error message going nuts 
 				Log.e(LOGTAG, "SlowStorage back off: "+errorCount+" consecutive save errors.");
 				// pause a bit
-				sendDelayed(desc, sender, delay);
+				for (Desc desc : descs) {
+					sendDelayed(desc, this, delay);
+				}
+				if (saveBatch) sendDelayed(SAVE_BATCH, this, delay);
 				return;
 			}
 			
-			try {
-				if (SAVE_BATCH.equals(desc)) {
-					consume2_saveBatch();
-					errorCount = null; // success - reset
-					return;
-				}
-				
-				// batch?
-				if (batch!=null) {
+			// batch?
+			if (batch!=null) {
+				for (Desc desc : descs) {
 					boolean freshBatch = batched.isEmpty();
 					batched.add(desc);
 					if (freshBatch) {
 						sendDelayed(SAVE_BATCH, this, batch);
 					}
-					return;			
 				}
-				
-				// normal save one at a time
-				consume2_saveOne(desc);
-				errorCount = null; // success - reset
-				
-			} catch(Throwable ex) {			
-				// try again in a bit!
-				sendDelayed(desc, sender, delay);
-				// count and back off?
-				ec = errorCount;
-				if (ec == null) {
-					ec = new RateCounter(delay);
-					errorCount = ec; // NB: race condition paranoia - ec cannot be null
+				if ( ! saveBatch) return;
+				descs.clear();
+				for(Iterator<Desc> it = batched.iterator(); it.hasNext(); ) {
+					descs.add(it.next());
+					it.remove();
+				}
+			} else {
+				// top up with any other saves which are due
+				ArrayList<Packet<Desc>> more = new ArrayList();
+				((DelayQueue) getQ()).drainTo(more, Math.max(0, getBatchSize() - descs.size()));
+				for (Packet<Desc> p : more) {
+					descs.add(p.msg);
 				}
-				ec.plus(1);
 			}
+			saveAll(descs);
 		}
-		
 
-		private void consume2_saveOne(Desc desc) {
-			consume3(desc, null, null);
+		/**
+		 * Save a set of descs, in batches. Failed saves are re-queued.
+		 * @param descs
+		 */
+		void saveAll(Collection<Desc> descs) {
+			if (descs.isEmpty()) return;
+			StopWatch sw = new StopWatch();
+			// Collect the values (this is also where merges happen)
+			List<Pair2<Desc, Object>> todo = new ArrayList();
+			for (Desc desc : descs) {
+				if (SAVE_BATCH.equals(desc)) continue;
+				try {
+					Pair2<Desc, Object> dv = consume3_prep(desc);
+					if (dv!=null) todo.add(dv);
+				} catch(Throwable ex) {
+					Log.e(LOGTAG, ex);
+					requeue(desc);
+				}
+			}
+			// chop into batches
+			int batchSize = getBatchSize();
+			List<List<Pair2<Desc, Object>>> chunks = new ArrayList();
+			for(int i=0; i<todo.size(); i += batchSize) {
+				chunks.add(todo.subList(i, Math.min(todo.size(), i+batchSize)));
+			}
+			ExecutorService ex = getPool();
+			if (ex==null || chunks.size() < 2) {
+				for (List<Pair2<Desc, Object>> chunk : chunks) {
+					consume4_store(chunk);
+				}
+			} else {
+				// in parallel, and wait
+				List<Future> futures = new ArrayList();
+				for (List<Pair2<Desc, Object>> chunk : chunks) {
+					futures.add(ex.submit(() -> consume4_store(chunk)));
+				}
+				for (Future future : futures) {
+					try {
+						future.get();
+					} catch (Exception e) {
+						// should not happen -- consume4_store catches its errors
+						Log.e(LOGTAG, e);
+					}
+				}
+			}
+			DataLog.set(map.size(), "Depot", "SlowStorage", "queue");
+			DataLog.mean(sw.getTime(), "Depot", "SlowStorage", "flush_ms");
 		}
 
-		
 		/**
-		 * Do the work for {@link #consume2_saveOne(Desc)} and {@link #consume2_saveBatch()}
 		 * @param desc
-		 * @param remove null for save-one
-		 * @param add null for save-one
+		 * @return (desc, value) to save, with value=NULL for remove. null if there's nothing to save.
 		 */
-		private void consume3(Desc desc, List<Pair2<Desc, Object>> add, List<Desc> remove) {
+		private Pair2<Desc, Object> consume3_prep(Desc desc) {
 			// The messages slowly sent are the Descs for the items to save, whilst the items themselves are stashed in map.
-			// Remove any other requests for msg
-			for(Packet p : getQ().toArray(new Packet[0])) {
-				if (desc.equals(p.msg)) {
-					getQ().remove(p);
-				}
-			}
+			// NB: un-mark before reading the map, so a racing put gets a fresh message
+			queued.remove(desc);
 			// Save or remove?
 			Object v = map.get(desc); 
 			// NB: We only modify the map at the end, and only if it stays the same
 			if (v==null) {
-				Log.w(LOGTAG, "null?! Artifact already saved in race? "+desc);
-				// nothing to do
-			} else if (v==NULL) {
-				if (remove!=null) {
-					remove.add(desc);
-				} else {
-					base.remove(desc);
+				// already saved (e.g. by a flush, or a duplicate message)
+				return null;
+			}
+			if (v==NULL) {
+				return new Pair2(desc, v);
+			}
+			// merge? NB: dec.before is normally null
+			if (desc.getBefore() != null) {
+				Object latest = base.get(desc);
+				if (latest!=null) {
+					Object vMerge = depot.merger.doMerge(desc.getBefore(), v, latest);
+					// update the binding
+					desc.bind(vMerge);
+					// NB: the map keeps v, so map.remove(desc, v) still works
+					return new Pair2(desc, new MergedValue(v, vMerge));
 				}
-			} else {
-				// merge? NB: dec.before is normally null
-				if (desc.getBefore() != null) {
-					Object latest = base.get(desc);
-					if (latest!=null) {
-						Object vMerge = depot.merger.doMerge(desc.getBefore(), v, latest);
-						v = vMerge;
-						// update the binding
-						desc.bind(vMerge);
-					}
+			}
+			return new Pair2(desc, v);
+		}
+
+		/**
+		 * Store a batch, then take the saved values out of map.
+		 * On error: re-queue the batch.
+		 */
+		private void consume4_store(List<Pair2<Desc, Object>> chunk) {
+			List<Pair2<Desc,Object>> add = new ArrayList();
+			List<Desc> remove = new ArrayList();
+			for (Pair2<Desc, Object> dv : chunk) {
+				if (dv.second==NULL) {
+					remove.add(dv.first);
+				} else {
+					add.add(new Pair2(dv.first, merged(dv.second)));
 				}
-				
-				// Store it!
-				if (add!=null) {				
-					add.add(new Pair2<>(desc, v));
+			}
+			try {
+				if (chunk.size()==1) {
+					// save one
+					if (remove.isEmpty()) base.put(add.get(0).first, add.get(0).second);
+					else base.remove(remove.get(0));
 				} else {
-					base.put(desc, v);
+					Log.d(LOGTAG, "save batch of "+chunk.size());
+					base.storeBatch(add, remove);
+				}
+				errorCount = null; // success - reset
+			} catch(Throwable ex) {
+				Log.w(LOGTAG, "Save failed for "+chunk.size()+": "+ex);
+				// try again in a bit!
+				for (Pair2<Desc, Object> dv : chunk) {
+					requeue(dv.first);
+				}
+				// count and back off?
+				RateCounter ec = errorCount;
+				if (ec == null) {
+					ec = new RateCounter(delay);
+					errorCount = ec; // NB: race condition paranoia - ec cannot be null
 				}
-				
+				ec.plus(1);
+				return;
+			}
+			savedCount.addAndGet(chunk.size());
+			DataLog.count(chunk.size(), "Depot", "SlowStorage", "saved");
+			for (Pair2<Desc, Object> dv : chunk) {
+				Desc desc = dv.first;
 				// take a new snapshot for further updates?
-				if (desc.getBefore() != null) {
+				if (dv.second!=NULL && desc.getBefore() != null) {
 					desc.remarkForMerge();
 				}
+				// Modify the map if as expected. 
+				// Do nothing to the map if someone has just reset a fresh value.
+				Object v = dv.second instanceof MergedValue? ((MergedValue) dv.second).first : dv.second;
+				map.remove(desc, v);
 			}
-			// Modify the map if as expected. 
-			// Do nothing to the map if someone has just reset a fresh value.
-			map.remove(desc, v);
 		}
-		
 
-		private void consume2_saveBatch() {
-			Log.d(LOGTAG, "save batch of "+batched.size());
-			List<Pair2<Desc,Object>> add = new ArrayList();
-			List<Desc> remove = new ArrayList();
-			
-			for(Desc desc : batched) {
-				consume3(desc, add, remove);
+		private void requeue(Desc desc) {
+			if (queued.add(desc)) {
+				sendDelayed(desc, this, delay);
+			}
+		}
+	}
+
+	/**
+	 * @return the value to store
+	 */
+	private static Object merged(Object v) {
+		return v instanceof MergedValue? ((MergedValue) v).second : v;
+	}
+	
+	/**
+	 * (value in map, merged value to store)
+	 */
+	static final class MergedValue extends Pair2<Object,Object> {
+		private static final long serialVersionUID = 1L;
+		MergedValue(Object v, Object vMerge) {
+			super(v, vMerge);
+		}
+	}
+	
+	int getBatchSize() {
+		return base instanceof IBatchStore? ((IBatchStore) base).getBatchSize() : 100;
+	}
+	
+	/**
+	 * @return null unless the base store can take parallel batches
+	 */
+	private ExecutorService getPool() {
+		if (threads < 2 || ! (base instanceof IBatchStore)) return null;
+		if (pool==null) {
+			synchronized (this) {
+				if (pool==null) {
+					pool = Executors.newFixedThreadPool(threads, r -> {
+						Thread t = new Thread(r, "SlowStorage.flush");
+						t.setDaemon(true);
+						return t;
+					});
+				}
 			}
-			// save
-			base.storeBatch(add, remove);
-		}		
+		}
+		return pool;
 	}
 
 	/**
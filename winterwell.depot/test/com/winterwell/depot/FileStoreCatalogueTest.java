@@ -0,0 +1,154 @@
+package com.winterwell.depot;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.winterwell.utils.io.FileUtils;
+
+public class FileStoreCatalogueTest {
+
+	private File newDir() {
+		return new File("test/temp-catalogue" + System.nanoTime()).getAbsoluteFile();
+	}
+
+	private Desc<String> desc(String name, Object a) {
+		Desc<String> d = new Desc(name, String.class);
+		d.setTag("test");
+		d.put("a", a);
+		return d;
+	}
+
+	@Test
+	public void testPutRemoveLookup() {
+		File dir = newDir();
+		FileStore fs = new FileStore(new DepotConfig().setDir(dir));
+		Desc<String> d1 = desc("one", 1);
+		Desc<String> d2 = desc("two", 2);
+		fs.put(d1, "artifact1");
+		fs.put(d2, "artifact2");
+		assertTrue(fs.contains(d1));
+		assertEquals("one", fs.getMetaData(d1).getDesc().getName());
+
+		Desc<String> p = new Desc(null, String.class);
+		p.setTag("test");
+		p.put("a", 2.0); // numbers match as in Utils.equals
+		Set<Desc> keys = fs.loadKeys(p);
+		assertEquals(1, keys.size());
+		assertTrue(keys.contains(d2));
+
+		fs.remove(d2);
+		assertFalse(fs.contains(d2));
+		assertTrue(fs.loadKeys(p).isEmpty());
+
+		// reopen: the catalogue is on disk
+		FileStore fs2 = new FileStore(new DepotConfig().setDir(dir));
+		assertTrue(fs2.contains(d1));
+		assertFalse(fs2.contains(d2));
+		assertEquals(1, fs2.loadKeys(new Desc(null, String.class).setTag("test")).size());
+		FileUtils.deleteDir(dir);
+	}
+
+	@Test
+	public void testTwoProcesses() {
+		File dir = newDir();
+		FileStore fs1 = new FileStore(new DepotConfig().setDir(dir));
+		FileStore fs2 = new FileStore(new DepotConfig().setDir(dir));
+		Desc<String> d1 = desc("one", "x");
+		fs1.put(d1, "artifact1");
+		// fs2 picks up fs1's append
+		assertTrue(fs2.contains(d1));
+		assertEquals(1, fs2.loadKeys(desc(null, "x")).size());
+		FileUtils.deleteDir(dir);
+	}
+
+	@Test
+	public void testTornRecord() throws Exception {
+		File dir = newDir();
+		FileStore fs = new FileStore(new DepotConfig().setDir(dir));
+		fs.put(desc("one", 1), "artifact1");
+		File cat = new File(dir, FileStoreCatalogue.FILENAME);
+		long len = cat.length();
+		// a crash mid-append
+		try (RandomAccessFile raf = new RandomAccessFile(cat, "rw")) {
+			raf.seek(len);
+			raf.writeInt(1000);
+			raf.write(new byte[] { 1, 2, 3 });
+		}
+		FileStore fs2 = new FileStore(new DepotConfig().setDir(dir));
+		assertEquals(len, cat.length());
+		fs2.put(desc("two", 2), "artifact2");
+		FileStore fs3 = new FileStore(new DepotConfig().setDir(dir));
+		assertEquals(2, fs3.loadKeys(new Desc(null, String.class).setTag("test")).size());
+		FileUtils.deleteDir(dir);
+	}
+
+	@Test
+	public void testContainsUncatalogued() {
+		File dir = newDir();
+		FileStore fs = new FileStore(new DepotConfig().setDir(dir));
+		fs.put(desc("one", 1), "artifact1");
+		// put without the catalogue
+		DepotConfig config = new DepotConfig().setDir(dir);
+		config.catalogue = false;
+		new FileStore(config).put(desc("two", 2), "artifact2");
+		// not in the index, but contains() still sees the file
+		assertTrue(fs.contains(desc("two", 2)));
+		assertEquals(1, fs.loadKeys(new Desc(null, String.class).setTag("test")).size());
+		// ...and the metadata comes from the .meta file
+		assertEquals("two", fs.getMetaData2(desc("two", 2)).getDesc().getName());
+		FileUtils.deleteDir(dir);
+	}
+
+	@Test
+	public void testSmallChunks() {
+		int chunk = FileStoreCatalogue.CHUNK;
+		FileStoreCatalogue.CHUNK = 64; // smaller than a record
+		try {
+			File dir = newDir();
+			FileStore fs = new FileStore(new DepotConfig().setDir(dir));
+			for (int i = 0; i < 10; i++) {
+				fs.put(desc("n" + i, i), "artifact" + i);
+			}
+			FileStore fs2 = new FileStore(new DepotConfig().setDir(dir));
+			assertEquals(10, fs2.loadKeys(new Desc(null, String.class).setTag("test")).size());
+			assertEquals("n7", fs2.getMetaData2(desc("n7", 7)).getDesc().getName());
+			FileUtils.deleteDir(dir);
+		} finally {
+			FileStoreCatalogue.CHUNK = chunk;
+		}
+	}
+
+	@Test
+	public void testRebuild() throws InterruptedException {
+		File dir = newDir();
+		DepotConfig config = new DepotConfig().setDir(dir);
+		config.catalogue = false;
+		FileStore old = new FileStore(config);
+		old.put(desc("one", 1), "artifact1");
+		old.put(desc("two", 2), "artifact2");
+		assertFalse(new File(dir, FileStoreCatalogue.FILENAME).exists());
+
+		// existing depot: catalogued (in the background) on first use
+		FileStore fs = new FileStore(new DepotConfig().setDir(dir));
+		assertTrue(fs.contains(desc("one", 1)));
+		assertEquals(2, fs.loadKeys(new Desc(null, String.class).setTag("test")).size());
+		fs.awaitCatalogue();
+		assertEquals(2, fs.loadKeys(new Desc(null, String.class).setTag("test")).size());
+
+		// edited behind our back
+		old.remove(desc("one", 1));
+		assertTrue(fs.contains(desc("one", 1)));
+		assertEquals(1, fs.rebuildCatalogue());
+		assertFalse(fs.contains(desc("one", 1)));
+		assertNull(fs.getMetaData2(desc("one", 1)));
+		FileUtils.deleteDir(dir);
+	}
+}
@@ -4,6 +4,8 @@
 package com.winterwell.depot;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Set;
 
 import org.junit.Test;
@@ -49,4 +51,23 @@ public class FileStoreTest {
 		assert keys3.contains(desc2);
 	}
 
+	@Test
+	public void testBinarySerialiser() {
+		File testDir = new File("test/temp").getAbsoluteFile();
+		FileStore fs = new FileStore(new DepotConfig().setDir(testDir));
+		for (boolean lz4 : new boolean[] {false, true}) {
+			Desc<ArrayList> desc = new Desc("TestBinary", ArrayList.class);
+			desc.setTag("test");
+			desc.setSerialiser(Desc.KSerialiser.BINARY, lz4);
+			assert desc.getId().endsWith(lz4? ".bin.lz4" : ".bin") : desc.getId();
+			ArrayList list = new ArrayList(Arrays.asList("a", 1, 2.5, new double[] {1, 2}));
+			fs.put(desc, list);
+			
+			ArrayList list2 = fs.get(desc);
+			assert list2.get(0).equals("a") : list2;
+			assert list2.get(2).equals(2.5);
+			assert Arrays.equals((double[]) list2.get(3), new double[] {1, 2});
+		}
+	}
+
 }
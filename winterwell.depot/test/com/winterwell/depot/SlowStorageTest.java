@@ -0,0 +1,177 @@
+package com.winterwell.depot;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+/**
+ * @tested {@link SlowStorage}
+ */
+public class SlowStorageTest {
+
+	@Test
+	public void testCoalesce() throws Exception {
+		MemStore base = new MemStore();
+		SlowStorage ss = new SlowStorage(base, new Dt(1, TUnit.HOUR), null);
+		Desc<String> desc = new Desc("coalesce", String.class);
+		for (int i = 0; i < 100; i++) {
+			ss.put(desc, "v" + i);
+		}
+		assert ss.get(desc).equals("v99");
+		assert ss.getQueueDepth() == 1;
+		// only one save message
+		assert ss.getActor().getQ().size() == 1 : ss.getActor().getQ();
+		ss.flush();
+		assert base.puts.get() == 1 : base.puts;
+		assert base.get(desc).equals("v99");
+		assert ss.getQueueDepth() == 0;
+		assert ss.getCoalescingRatio() == 100 : ss.getCoalescingRatio();
+		ss.close();
+	}
+
+	@Test
+	public void testParallelBatches() throws Exception {
+		BatchMemStore base = new BatchMemStore();
+		SlowStorage ss = new SlowStorage(base, new Dt(1, TUnit.HOUR), null);
+		ss.setThreads(3);
+		for (int i = 0; i < 95; i++) {
+			ss.put(new Desc("p" + i, String.class), "v" + i);
+		}
+		ss.remove(new Desc("p0", String.class));
+		ss.flush();
+		// 95 in batches of 10
+		assert base.batches.get() == 10 : base.batches;
+		assert base.maxParallel.get() <= 3 : base.maxParallel;
+		assert base.maxParallel.get() > 1 : base.maxParallel;
+		assert base.map.size() == 94 : base.map.size();
+		assert base.get(new Desc("p7", String.class)).equals("v7");
+		ss.close();
+	}
+
+	@Test
+	public void testWriteBehind() throws Exception {
+		BatchMemStore base = new BatchMemStore();
+		SlowStorage ss = new SlowStorage(base, new Dt(200, TUnit.MILLISECOND), null);
+		for (int i = 0; i < 50; i++) {
+			ss.put(new Desc("w" + i, String.class), "v" + i);
+		}
+		assert base.map.isEmpty();
+		for (int i = 0; i < 50 && base.map.size() < 50; i++) {
+			Utils.sleep(100);
+		}
+		assert base.map.size() == 50 : base.map.size();
+		// due saves are grouped, not one at a time
+		assert base.batches.get() < 50 : base.batches;
+		assert ss.getQueueDepth() == 0;
+		ss.close();
+	}
+
+	@Test
+	public void testFailureKeepsValues() throws Exception {
+		BatchMemStore base = new BatchMemStore();
+		base.fail = true;
+		SlowStorage ss = new SlowStorage(base, new Dt(1, TUnit.HOUR), null);
+		for (int i = 0; i < 20; i++) {
+			ss.put(new Desc("f" + i, String.class), "v" + i);
+		}
+		ss.flush();
+		assert base.map.isEmpty();
+		// still pending, and readable
+		assert ss.getQueueDepth() == 20;
+		assert ss.get(new Desc("f3", String.class)).equals("v3");
+		// retry
+		base.fail = false;
+		ss.flush();
+		assert base.map.size() == 20 : base.map.size();
+		assert ss.getQueueDepth() == 0;
+		ss.close();
+	}
+
+	static class MemStore implements IStore {
+		final Map<Desc, Object> map = new ConcurrentHashMap();
+		final AtomicInteger puts = new AtomicInteger();
+
+		@Override
+		public String getRaw(Desc desc) {
+			return null;
+		}
+
+		@Override
+		public void remove(Desc desc) {
+			map.remove(desc);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public boolean contains(Desc desc) {
+			return map.containsKey(desc);
+		}
+
+		@Override
+		public <X> void put(Desc<X> desc, X artifact) {
+			puts.incrementAndGet();
+			map.put(desc, artifact);
+		}
+
+		@Override
+		public <X> X get(Desc<X> desc) {
+			return (X) map.get(desc);
+		}
+
+		@Override
+		public Set<Desc> loadKeys(Desc partialDesc) {
+			return map.keySet();
+		}
+
+		@Override
+		public MetaData getMetaData(Desc desc) {
+			return new MetaData(desc);
+		}
+
+		@Override
+		public File getLocalPath(Desc desc) throws UnsupportedOperationException {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	static class BatchMemStore extends MemStore implements IBatchStore {
+		final AtomicInteger batches = new AtomicInteger();
+		final AtomicInteger parallel = new AtomicInteger();
+		final AtomicInteger maxParallel = new AtomicInteger();
+		volatile boolean fail;
+
+		@Override
+		public void storeBatch(List<Pair2<Desc, Object>> add, List<Desc> remove) {
+			if (fail) throw new IllegalStateException("down");
+			int p = parallel.incrementAndGet();
+			maxParallel.accumulateAndGet(p, Math::max);
+			Utils.sleep(20);
+			batches.incrementAndGet();
+			for (Desc desc : remove) {
+				map.remove(desc);
+			}
+			for (Pair2<Desc, Object> dv : add) {
+				map.put(dv.first, dv.second);
+			}
+			parallel.decrementAndGet();
+		}
+
+		@Override
+		public int getBatchSize() {
+			return 10;
+		}
+	}
+}
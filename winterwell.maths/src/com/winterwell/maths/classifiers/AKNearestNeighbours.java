@@ -5,9 +5,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
 import com.winterwell.maths.stats.distributions.ATrainableBase;
-import com.winterwell.utils.containers.ListMap;
+import com.winterwell.utils.containers.Pair2;
 
 public abstract class AKNearestNeighbours<T, X> extends ATrainableBase<T, X> {
 
@@ -49,34 +50,27 @@ public abstract class AKNearestNeighbours<T, X> extends ATrainableBase<T, X> {
 	}
 
 	/**
-	 * Given a map of the distances to each point in the training set and its
-	 * classification, find the k closest neighbours and construct a hashmap of
-	 * potencies for each possible classification.
+	 * Given the k closest neighbours, construct a hashmap of potencies for each
+	 * possible classification.
 	 * 
-	 * @param distances
+	 * @param neighbours (classification, distance), nearest first
 	 * @return
 	 */
-	private Map<X, Double> calculatePotencies(ListMap<Double, X> distances) {
-		List<Double> distList = new ArrayList<Double>(distances.keySet());
-		Collections.sort(distList);
-		int seen = 0;
+	private Map<X, Double> calculatePotencies(List<Pair2<X, Double>> neighbours) {
 		Map<X, Double> potencies = new HashMap<X, Double>();
-		findk: for (Double distance : distList) {
-			for (X classification : distances.get(distance)) {
-				if (debug) {
-					System.out.println("Considering point with classification "
-							+ classification.toString() + " at distance "
-							+ distance);
-				}
-				Double potency = potencies.get(classification);
-				if (potency == null) {
-					potency = 0.0;
-				}
-				potencies.put(classification, potency + (1 / distance));
-				if (++seen == k) {
-					break findk;
-				}
+		for (Pair2<X, Double> neighbour : neighbours) {
+			X classification = neighbour.first;
+			double distance = neighbour.second;
+			if (debug) {
+				System.out.println("Considering point with classification "
+						+ classification.toString() + " at distance "
+						+ distance);
 			}
+			Double potency = potencies.get(classification);
+			if (potency == null) {
+				potency = 0.0;
+			}
+			potencies.put(classification, potency + (1 / distance));
 		}
 		return potencies;
 	}
@@ -86,21 +80,15 @@ public abstract class AKNearestNeighbours<T, X> extends ATrainableBase<T, X> {
 			System.out.println("Classifying " + x.toString());
 		}
 		assert trainingData.size() != 0;
-		ListMap<Double, X> distances = new ListMap<Double, X>();
-		// calculate distance to all entries in training data
-		for (int i = 0; i < trainingData.size(); i++) {
-			T exemplar = trainingData.get(i);
-			double distance = distance(exemplar, x);
-			X classification = trainingDataLabels.get(i);
-			if (quickClassifyOnExactMatch && distance == 0.0)
-				return classification;
-			distances.add(distance, classification);
+		List<Pair2<X, Double>> neighbours = getNearest(x, k);
+		if (quickClassifyOnExactMatch && neighbours.get(0).second == 0.0) {
+			return neighbours.get(0).first;
 		}
 		if (debug) {
-			System.out.println("\tdistances are " + distances.toString());
+			System.out.println("\tneighbours are " + neighbours.toString());
 		}
-		// find the k nearest and calculate potencies
-		Map<X, Double> potencies = calculatePotencies(distances);
+		// calculate potencies from the k nearest
+		Map<X, Double> potencies = calculatePotencies(neighbours);
 		if (debug) {
 			System.out.println("\tpotencies are " + potencies.toString());
 		}
@@ -112,6 +100,40 @@ public abstract class AKNearestNeighbours<T, X> extends ATrainableBase<T, X> {
 		return classification;
 	}
 
+	/**
+	 * Find the k nearest training points. This default is a scan over all the training
+	 * data, keeping the best k in a heap (so O(n log k)). Sub-classes can override with
+	 * an index -- e.g. {@link KNearestNeighbours#setIndex(com.winterwell.maths.vector.INearestNeighbourIndex)}.
+	 * 
+	 * @param x
+	 * @param k
+	 * @return (classification, distance) for the k nearest, nearest first
+	 */
+	protected List<Pair2<X, Double>> getNearest(T x, int k) {
+		// max-heap: the furthest of the best-so-far is on top
+		PriorityQueue<Pair2<X, Double>> best = new PriorityQueue<Pair2<X, Double>>(k + 1,
+				(a, b) -> Double.compare(b.second, a.second));
+		for (int i = 0; i < trainingData.size(); i++) {
+			double distance = distance(trainingData.get(i), x);
+			if (best.size() == k && distance >= best.peek().second) {
+				continue;
+			}
+			best.add(new Pair2<X, Double>(trainingDataLabels.get(i), distance));
+			if (best.size() > k) {
+				best.poll();
+			}
+			if (quickClassifyOnExactMatch && distance == 0.0) {
+				break;
+			}
+		}
+		ArrayList<Pair2<X, Double>> nearest = new ArrayList<Pair2<X, Double>>(best.size());
+		while ( ! best.isEmpty()) {
+			nearest.add(best.poll());
+		}
+		Collections.reverse(nearest);
+		return nearest;
+	}
+
 	protected abstract double distance(T x, T y);
 
 	@Override
@@ -6,6 +6,8 @@ import java.util.List;
 import com.winterwell.maths.ITrainable;
 import com.winterwell.maths.stats.distributions.discrete.IDiscreteDistribution;
 import com.winterwell.maths.timeseries.DataUtils;
+import com.winterwell.maths.vector.INearestNeighbourIndex;
+import com.winterwell.utils.containers.Pair2;
 
 import no.uib.cipr.matrix.Vector;
 
@@ -15,7 +17,8 @@ import no.uib.cipr.matrix.Vector;
  * classification among said nearest neighbours, weighted by the inverse of each
  * distance.
  * 
- * This will perform horribly for large training sets.
+ * This will perform horribly for large training sets -- unless you use
+ * {@link #setIndex(INearestNeighbourIndex)}.
  * 
  * @author miles
  * 
@@ -24,10 +27,56 @@ import no.uib.cipr.matrix.Vector;
 public class KNearestNeighbours<X> extends AKNearestNeighbours<Vector, X>
 		implements IClassifier<X>, ITrainable.Supervised<Vector, X> {
 
+	/**
+	 * null = scan
+	 */
+	private INearestNeighbourIndex<X> index;
+
 	public KNearestNeighbours(int k) {
 		super(k);
 	}
 
+	/**
+	 * Use an index for the nearest-neighbour search, e.g. a
+	 * {@link com.winterwell.maths.vector.KDTree} for low dimensions or a
+	 * {@link com.winterwell.maths.vector.HNSWIndex} for high. Any existing training
+	 * data is added to it.
+	 * 
+	 * @param index Will be cleared first. null to go back to scanning.
+	 */
+	public void setIndex(INearestNeighbourIndex<X> index) {
+		this.index = index;
+		if (index == null) return;
+		index.clear();
+		if (trainingData != null && ! trainingData.isEmpty()) {
+			index.addAll(trainingData, trainingDataLabels);
+		}
+	}
+
+	@Override
+	public void train1(Vector x, X tag, double weightIgnored) {
+		super.train1(x, tag, weightIgnored);
+		if (index != null) {
+			index.add(x, tag);
+		}
+	}
+
+	@Override
+	public void resetup() {
+		super.resetup();
+		if (index != null) {
+			index.clear();
+		}
+	}
+
+	@Override
+	protected List<Pair2<X, Double>> getNearest(Vector x, int k) {
+		if (index == null) {
+			return super.getNearest(x, k);
+		}
+		return index.getNearest(x, k);
+	}
+
 	@Override
 	public boolean canPClassify() {
 		return false;
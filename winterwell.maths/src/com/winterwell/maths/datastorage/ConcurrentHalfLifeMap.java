@@ -0,0 +1,579 @@
+package com.winterwell.maths.datastorage;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.winterwell.utils.Printer;
+import com.winterwell.utils.containers.AbstractMap2;
+import com.winterwell.utils.containers.Containers;
+import com.winterwell.utils.log.Log;
+
+/**
+ * A multi-threaded version of {@link HalfLifeMap}: same decaying access-counts, same
+ * {@link IForget} contract -- but built for many ingest threads hitting one map
+ * (e.g. word-frequency counting from a Twitter stream).
+ * <p>
+ * Differences from HalfLifeMap:
+ * <ul>
+ * <li>Keys are striped over segments, each with its own lock, so threads rarely wait on each other.
+ * <li>Decay uses an inflationary unit: a boost adds the current unit (rather than 1), and devaluing
+ * grows the unit by 1/0.9. So no counts are rewritten (except for a rare re-base to avoid overflow).
+ * <li>Pruning runs on a background thread. {@link IPruneListener}s are called from that thread!
+ * If the background pruner falls behind (size > 4 x idealSize), the putting thread prunes.
+ * <li>It is a {@link ConcurrentMap}, so {@link Containers#plus(Map, Object, double)} can count lock-free.
+ * </ul>
+ * Size is normally at most 2 x idealSize, but can briefly overshoot whilst a background prune runs.
+ *
+ * @testedby {@link ConcurrentHalfLifeMapTest}
+ */
+public final class ConcurrentHalfLifeMap<K, V> extends AbstractMap2<K, V> implements
+		ConcurrentMap<K, V>, Serializable, IForget<K, V>
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Per devalueInterval, counts are multiplied by this (i.e. the unit is divided by this).
+	 */
+	private static final double DECAY = 0.9;
+
+	/**
+	 * Re-base the counts when the unit gets this big.
+	 */
+	private static final double MAX_UNIT = 1e100;
+
+	private static ExecutorService pruner;
+
+	private static synchronized ExecutorService pruner() {
+		if (pruner == null) {
+			pruner = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "ConcurrentHalfLifeMap.prune");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return pruner;
+	}
+
+	private static final class Segment<K, V> implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final HashMap<K, HLEntry<K, V>> map = new HashMap<>();
+		/**
+		 * gets since this segment last reported to {@link ConcurrentHalfLifeMap#ticks}
+		 */
+		int gets;
+	}
+
+	private final Segment<K, V>[] segments;
+
+	private final int segmentMask;
+
+	private final int idealSize;
+
+	final int devalueInterval;
+
+	/**
+	 * How many gets a segment batches up before adding to {@link #ticks}
+	 */
+	private final int tickBatch;
+
+	private final AtomicLong ticks = new AtomicLong();
+
+	/**
+	 * Guards changes to {@link #unit}
+	 */
+	private final ReentrantLock unitLock = new ReentrantLock();
+
+	/**
+	 * One prune at a time
+	 */
+	private final ReentrantLock pruneLock = new ReentrantLock();
+
+	/**
+	 * The value of a boost. Real count = HLEntry.count / unit
+	 */
+	private volatile double unit = 1;
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	private final AtomicBoolean pruneScheduled = new AtomicBoolean();
+
+	private boolean backgroundPrune = true;
+
+	private final List<IPruneListener<K, V>> listeners = new CopyOnWriteArrayList<>();
+
+	private final AtomicInteger pruned = new AtomicInteger();
+
+	/**
+	 * null unless tracking
+	 */
+	private volatile DoubleAdder prunedValue;
+
+	/**
+	 * @param idealSize Must be > 0. Pruning reduces to this.
+	 */
+	public ConcurrentHalfLifeMap(int idealSize) {
+		this(idealSize, 16);
+	}
+
+	/**
+	 * @param idealSize Must be > 0. Pruning reduces to this.
+	 * @param concurrencyLevel Roughly, how many threads will use this at once? Rounded up to a power of 2.
+	 */
+	public ConcurrentHalfLifeMap(int idealSize, int concurrencyLevel) {
+		assert idealSize > 0 : idealSize;
+		this.idealSize = idealSize;
+		// same interval as HalfLifeMap
+		devalueInterval = 10 * idealSize;
+		tickBatch = Math.min(64, devalueInterval);
+		int n = 1;
+		while (n < concurrencyLevel) n *= 2;
+		segments = new Segment[n];
+		for (int i = 0; i < n; i++) {
+			segments[i] = new Segment<K, V>();
+		}
+		segmentMask = n - 1;
+	}
+
+	/**
+	 * @param backgroundPrune true by default. If false, pruning happens in the put() call which
+	 * over-fills the map (as {@link HalfLifeMap} does), and listeners are called from that thread.
+	 * @return this
+	 */
+	public ConcurrentHalfLifeMap<K, V> setBackgroundPrune(boolean backgroundPrune) {
+		this.backgroundPrune = backgroundPrune;
+		return this;
+	}
+
+	private Segment<K, V> segment(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & segmentMask];
+	}
+
+	/**
+	 * get(key) boosts key's decay count by 1.
+	 * @return value for key, or null.
+	 */
+	@Override
+	public V get(Object key) {
+		Segment<K, V> seg = segment(key);
+		boolean tick;
+		V v;
+		synchronized (seg) {
+			HLEntry<K, V> hle = seg.map.get(key);
+			if (hle == null) return null;
+			hle.count += unit;
+			v = hle.getValue();
+			tick = ++seg.gets == tickBatch;
+			if (tick) seg.gets = 0;
+		}
+		if (tick) tick();
+		return v;
+	}
+
+	private void tick() {
+		long t = ticks.addAndGet(tickBatch);
+		if (t / devalueInterval != (t - tickBatch) / devalueInterval) {
+			devalue();
+		}
+	}
+
+	/**
+	 * Lower all the counts. This is triggered periodically by calls to get().
+	 * Cheap: it just inflates the unit.
+	 */
+	public void devalue() {
+		boolean rebase;
+		unitLock.lock();
+		try {
+			unit = unit / DECAY;
+			rebase = unit > MAX_UNIT;
+		} finally {
+			unitLock.unlock();
+		}
+		if (rebase) rebase();
+	}
+
+	/**
+	 * Divide all counts by the unit, and reset the unit to 1. Takes every segment lock.
+	 */
+	private void rebase() {
+		lockAll(0, () -> {
+			double u = unit;
+			if (u <= MAX_UNIT) return; // someone else got here first
+			for (Segment<K, V> seg : segments) {
+				for (HLEntry<K, V> e : seg.map.values()) {
+					e.count /= u;
+				}
+			}
+			unit = 1;
+		});
+	}
+
+	private void lockAll(int i, Runnable fn) {
+		if (i == segments.length) {
+			unitLock.lock();
+			try {
+				fn.run();
+			} finally {
+				unitLock.unlock();
+			}
+			return;
+		}
+		synchronized (segments[i]) {
+			lockAll(i + 1, fn);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * This may trigger a prune.
+	 * put(k,v) boosts k's decay count by 1.
+	 * Null values are NOT allowed
+	 */
+	@Override
+	public V put(K key, V val) {
+		assert key != null;
+		assert val != null : key;
+		Segment<K, V> seg = segment(key);
+		synchronized (seg) {
+			HLEntry<K, V> hle = seg.map.get(key);
+			if (hle != null) {
+				hle.count += unit;
+				return hle.setValue(val);
+			}
+			hle = new HLEntry<K, V>(key, val);
+			hle.count = unit;
+			seg.map.put(key, hle);
+		}
+		added();
+		return null;
+	}
+
+	@Override
+	public V putIfAbsent(K key, V val) {
+		assert key != null;
+		assert val != null : key;
+		Segment<K, V> seg = segment(key);
+		synchronized (seg) {
+			HLEntry<K, V> hle = seg.map.get(key);
+			if (hle != null) {
+				return hle.getValue();
+			}
+			hle = new HLEntry<K, V>(key, val);
+			hle.count = unit;
+			seg.map.put(key, hle);
+		}
+		added();
+		return null;
+	}
+
+	@Override
+	public boolean replace(K key, V oldValue, V newValue) {
+		assert newValue != null : key;
+		Segment<K, V> seg = segment(key);
+		synchronized (seg) {
+			HLEntry<K, V> hle = seg.map.get(key);
+			if (hle == null || ! hle.getValue().equals(oldValue)) return false;
+			hle.count += unit;
+			hle.setValue(newValue);
+			return true;
+		}
+	}
+
+	@Override
+	public V replace(K key, V value) {
+		assert value != null : key;
+		Segment<K, V> seg = segment(key);
+		synchronized (seg) {
+			HLEntry<K, V> hle = seg.map.get(key);
+			if (hle == null) return null;
+			hle.count += unit;
+			return hle.setValue(value);
+		}
+	}
+
+	@Override
+	public V remove(Object key) {
+		assert key != null;
+		Segment<K, V> seg = segment(key);
+		HLEntry<K, V> v;
+		synchronized (seg) {
+			v = seg.map.remove(key);
+		}
+		if (v == null) return null;
+		size.decrementAndGet();
+		return v.getValue();
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		Segment<K, V> seg = segment(key);
+		synchronized (seg) {
+			HLEntry<K, V> hle = seg.map.get(key);
+			if (hle == null || ! hle.getValue().equals(value)) return false;
+			seg.map.remove(key);
+		}
+		size.decrementAndGet();
+		return true;
+	}
+
+	private void added() {
+		int n = size.incrementAndGet();
+		if (n <= 2 * idealSize) return;
+		if ( ! backgroundPrune || n > 4 * idealSize) {
+			// the pruner has fallen behind (or is not wanted) -- do it here
+			prune();
+			return;
+		}
+		if (pruneScheduled.compareAndSet(false, true)) {
+			pruner().execute(() -> {
+				try {
+					prune();
+				} catch (Throwable ex) {
+					Log.e("map", ex);
+				} finally {
+					pruneScheduled.set(false);
+				}
+			});
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		Segment<K, V> seg = segment(key);
+		synchronized (seg) {
+			return seg.map.containsKey(key);
+		}
+	}
+
+	/**
+	 * @param obj
+	 * @return the current count/strength of this object. zero if the object is
+	 *         not in the index (or has fallen out)
+	 */
+	public double getCount(K obj) {
+		assert obj != null;
+		Segment<K, V> seg = segment(obj);
+		synchronized (seg) {
+			HLEntry<K, V> e = seg.map.get(obj);
+			return e == null ? 0 : e.count / unit;
+		}
+	}
+
+	public double getTotalCount() {
+		double sum = 0;
+		for (Segment<K, V> seg : segments) {
+			synchronized (seg) {
+				for (HLEntry<K, V> e : seg.map.values()) {
+					sum += e.count;
+				}
+			}
+		}
+		return sum / unit;
+	}
+
+	public int getIdealSize() {
+		return idealSize;
+	}
+
+	@Override
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Prune the index down to idealSize. There is no need to call this directly
+	 * - it is triggered automatically by put(). This method is
+	 * exposed for debugging/testing purposes.
+	 * <p>
+	 * Only entries which exist when the prune starts can be pruned: newer entries get a chance.
+	 */
+	public void prune() {
+		List<Map.Entry<K, V>> toPrune;
+		pruneLock.lock();
+		try {
+			if (size() <= idealSize) return;
+			// Snapshot the entries & their counts
+			HLEntry<K, V>[][] entries = new HLEntry[segments.length][];
+			int n = 0;
+			for (int s = 0; s < segments.length; s++) {
+				synchronized (segments[s]) {
+					entries[s] = segments[s].map.values().toArray(new HLEntry[0]);
+				}
+				n += entries[s].length;
+			}
+			int quota = n - idealSize;
+			if (quota <= 0) return; // race condition
+			double[] counts = new double[n];
+			for (int s = 0, i = 0; s < segments.length; s++) {
+				for (HLEntry<K, V> e : entries[s]) {
+					counts[i++] = e.count;
+				}
+			}
+			double[] sorted = counts.clone();
+			Arrays.sort(sorted);
+			double threshold = sorted[quota - 1];
+			// How many can go at exactly the threshold?
+			int tiesAllowed = quota;
+			for (int i = 0; i < quota; i++) {
+				if (sorted[i] < threshold) tiesAllowed--;
+			}
+			// prune
+			toPrune = new ArrayList<>(quota);
+			DoubleAdder track = prunedValue;
+			for (int s = 0, i = 0; s < segments.length; s++) {
+				Segment<K, V> seg = segments[s];
+				synchronized (seg) {
+					for (HLEntry<K, V> e : entries[s]) {
+						double c = counts[i++];
+						if (c > threshold) continue;
+						if (c == threshold) {
+							if (tiesAllowed == 0) continue;
+							tiesAllowed--;
+						}
+						// still the same entry?
+						if ( ! seg.map.remove(e.key, e)) continue;
+						toPrune.add(e);
+						// track what we forget
+						if (track != null && e.getValue() instanceof Number) {
+							track.add(((Number) e.getValue()).doubleValue());
+						}
+					}
+				}
+			}
+			size.addAndGet(- toPrune.size());
+			pruned.addAndGet(toPrune.size());
+		} finally {
+			pruneLock.unlock();
+		}
+		// emit an event
+		for (IPruneListener<K, V> pl : listeners) {
+			pl.pruneEvent(toPrune);
+		}
+	}
+
+	@Override
+	public void addListener(IPruneListener<K, V> listener) {
+		if (listeners.contains(listener)) return;
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeListener(IPruneListener<K, V> listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void setTrackPrunedValue(boolean track) {
+		if ( ! track) {
+			prunedValue = null;
+		} else if (prunedValue == null) {
+			prunedValue = new DoubleAdder();
+		}
+	}
+
+	@Override
+	public int getPrunedCount() {
+		return pruned.get();
+	}
+
+	@Override
+	public double getPrunedValue() {
+		DoubleAdder pv = prunedValue;
+		// At overflow, just sit on max-value
+		return pv == null ? Double.NaN : Math.min(Double.MAX_VALUE, pv.sum());
+	}
+
+	@Override
+	public void clear() {
+		for (Segment<K, V> seg : segments) {
+			synchronized (seg) {
+				size.addAndGet(- seg.map.size());
+				seg.map.clear();
+			}
+		}
+		pruned.set(0);
+		if (prunedValue != null) prunedValue = new DoubleAdder();
+	}
+
+	/**
+	 * The entries at the time of calling (per segment). setValue() writes through.
+	 * Using this does not affect the decay counts.
+	 * <p>
+	 * This set does not support editing!
+	 */
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		Set<Map.Entry<K, V>> entries = new HashSet<>(size());
+		for (Segment<K, V> seg : segments) {
+			synchronized (seg) {
+				entries.addAll(seg.map.values());
+			}
+		}
+		return Collections.unmodifiableSet(entries);
+	}
+
+	/**
+	 * WARNING: Edits will not write-through. <br>
+	 * WARNING: This copies the keys when it is called.
+	 * <p>
+	 * Calling this does not affect the decay counts.
+	 */
+	@Override
+	public Set<K> keySet() {
+		Set<K> keys = new HashSet<>(size());
+		for (Segment<K, V> seg : segments) {
+			synchronized (seg) {
+				keys.addAll(seg.map.keySet());
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * The values in the map. Calling this does not affect the decay counts.
+	 * <p>
+	 * WARNING: This copies the values when it is called.
+	 */
+	@Override
+	public Collection<V> values() {
+		ArrayList<V> vs = new ArrayList<>(size());
+		for (Segment<K, V> seg : segments) {
+			synchronized (seg) {
+				for (HLEntry<K, V> e : seg.map.values()) {
+					vs.add(e.getValue());
+				}
+			}
+		}
+		return Collections.unmodifiableList(vs);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()
+				+ "["
+				+ Printer.toString(Containers.subList(
+						new ArrayList<K>(keySet()), 0, 3), ",") + "... "
+				+ size() + "]";
+	}
+
+}
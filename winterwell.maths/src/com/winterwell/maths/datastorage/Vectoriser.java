@@ -5,6 +5,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 
+import com.winterwell.maths.matrix.CSRMatrix;
+import com.winterwell.maths.matrix.SparseMatrixBuilder;
 import com.winterwell.maths.timeseries.DataUtils;
 import com.winterwell.maths.timeseries.Datum;
 import com.winterwell.maths.timeseries.IDataStream;
@@ -285,4 +287,23 @@ public class Vectoriser<Word, Document> {
 		return vector;
 	}
 
+	/**
+	 * The term-document matrix.
+	 * @param docs
+	 * @return one row per document
+	 */
+	public CSRMatrix toMatrix(List<Document> docs) {
+		List<Vector> rows = new ArrayList(docs.size());
+		for (Document doc : docs) {
+			rows.add(toVector(doc));
+		}
+		// the dimension can grow as we go, in Add mode
+		int dim = template.size() < Integer.MAX_VALUE? template.size() : index.size();
+		SparseMatrixBuilder b = new SparseMatrixBuilder(rows.size(), dim);
+		for (int i = 0; i < rows.size(); i++) {
+			b.addRow(i, rows.get(i));
+		}
+		return b.buildCSR();
+	}
+
 }
@@ -0,0 +1,133 @@
+package com.winterwell.maths.matrix;
+
+import no.uib.cipr.matrix.Matrix;
+import no.uib.cipr.matrix.Vector;
+import no.uib.cipr.matrix.sparse.SparseVector;
+
+/**
+ * Compressed sparse column matrix: fast column access and fast A^T.x (which goes parallel
+ * for big matrices). The column-wise twin of {@link CSRMatrix}.
+ * <p>
+ * Make one with a {@link SparseMatrixBuilder}. The sparsity pattern is then fixed: set()
+ * can edit existing entries, but not add new ones.
+ *
+ * @testedby {@link CSRMatrixTest}
+ */
+public final class CSCMatrix extends CompressedMatrix {
+
+	/**
+	 * Use {@link SparseMatrixBuilder} unless you know what you're doing.
+	 * @param colPtr Length numColumns+1. Column j is entries [colPtr[j], colPtr[j+1])
+	 * @param rowIdx The row of each entry -- sorted within each column
+	 * @param vals The value of each entry
+	 */
+	public CSCMatrix(int numRows, int numColumns, int[] colPtr, int[] rowIdx, double[] vals) {
+		super(numRows, numColumns, colPtr, rowIdx, vals);
+	}
+
+	@Override
+	int numMajor() {
+		return numColumns;
+	}
+
+	@Override
+	int numMinor() {
+		return numRows;
+	}
+
+	@Override
+	boolean isRowMajor() {
+		return false;
+	}
+
+	@Override
+	public double get(int row, int column) {
+		return get2(column, row);
+	}
+
+	/**
+	 * @throws IndexOutOfBoundsException if this is a new non-zero entry
+	 */
+	@Override
+	public void set(int row, int column, double value) {
+		set2(column, row, value);
+	}
+
+	@Override
+	public void add(int row, int column, double value) {
+		add2(column, row, value);
+	}
+
+	@Override
+	public CSCMatrix copy() {
+		return new CSCMatrix(numRows, numColumns, ptr.clone(), idx.clone(), vals.clone());
+	}
+
+	/**
+	 * y = alpha A.x + y
+	 */
+	@Override
+	public Vector multAdd(double alpha, Vector x, Vector y) {
+		checkMultAdd(x, y);
+		if (alpha == 0) return y;
+		return addInto(y, data(x), (xd, yd) -> scatter(alpha, xd, yd));
+	}
+
+	/**
+	 * y = alpha A^T.x + y
+	 */
+	@Override
+	public Vector transMultAdd(double alpha, Vector x, Vector y) {
+		checkTransMultAdd(x, y);
+		if (alpha == 0) return y;
+		return addInto(y, data(x), (xd, yd) -> gather(alpha, xd, yd));
+	}
+
+	/**
+	 * @return column j, as a fresh vector
+	 */
+	public SparseVector getColumn(int col) {
+		return getMajor(col);
+	}
+
+	/**
+	 * This needs a binary search per column -- if you want lots of rows, use {@link #toCSR()}.
+	 * @return row i, as a fresh vector
+	 */
+	public SparseVector getRow(int row) {
+		return getMinor(row);
+	}
+
+	/**
+	 * @return columns [from, to), as a new matrix
+	 */
+	public CSCMatrix getColumns(int from, int to) {
+		Object[] s = sliceMajor(from, to);
+		return new CSCMatrix(numRows, to - from, (int[]) s[0], (int[]) s[1], (double[]) s[2]);
+	}
+
+	/**
+	 * @return the same matrix in row form. O(nnz) copy.
+	 */
+	public CSRMatrix toCSR() {
+		Object[] s = swapAxes();
+		return new CSRMatrix(numRows, numColumns, (int[]) s[0], (int[]) s[1], (double[]) s[2]);
+	}
+
+	/**
+	 * @return A^T, which shares storage with this (so edits show through).
+	 */
+	public CSRMatrix getTranspose() {
+		return new CSRMatrix(numColumns, numRows, ptr, idx, vals);
+	}
+
+	/**
+	 * @return a CSC copy of m, or m itself if it already is one
+	 */
+	public static CSCMatrix valueOf(Matrix m) {
+		if (m instanceof CSCMatrix) return (CSCMatrix) m;
+		if (m instanceof CSRMatrix) return ((CSRMatrix) m).toCSC();
+		return new SparseMatrixBuilder(m.numRows(), m.numColumns()).addAll(m).buildCSC();
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.winterwell.maths.matrix;
+
+import no.uib.cipr.matrix.Matrix;
+import no.uib.cipr.matrix.Vector;
+import no.uib.cipr.matrix.sparse.SparseVector;
+
+/**
+ * Compressed sparse row matrix: fast row access and fast A.x (which goes parallel for big
+ * matrices). A good fit for term-document matrices, with one row per document.
+ * <p>
+ * Make one with a {@link SparseMatrixBuilder}. The sparsity pattern is then fixed: set()
+ * can edit existing entries, but not add new ones.
+ * <p>
+ * For lots of column work, convert with {@link #toCSC()}, or use {@link #getTranspose()}
+ * (no copying).
+ *
+ * @testedby {@link CSRMatrixTest}
+ */
+public final class CSRMatrix extends CompressedMatrix {
+
+	/**
+	 * Use {@link SparseMatrixBuilder} unless you know what you're doing.
+	 * @param rowPtr Length numRows+1. Row i is entries [rowPtr[i], rowPtr[i+1])
+	 * @param colIdx The column of each entry -- sorted within each row
+	 * @param vals The value of each entry
+	 */
+	public CSRMatrix(int numRows, int numColumns, int[] rowPtr, int[] colIdx, double[] vals) {
+		super(numRows, numColumns, rowPtr, colIdx, vals);
+	}
+
+	@Override
+	int numMajor() {
+		return numRows;
+	}
+
+	@Override
+	int numMinor() {
+		return numColumns;
+	}
+
+	@Override
+	boolean isRowMajor() {
+		return true;
+	}
+
+	@Override
+	public double get(int row, int column) {
+		return get2(row, column);
+	}
+
+	/**
+	 * @throws IndexOutOfBoundsException if this is a new non-zero entry
+	 */
+	@Override
+	public void set(int row, int column, double value) {
+		set2(row, column, value);
+	}
+
+	@Override
+	public void add(int row, int column, double value) {
+		add2(row, column, value);
+	}
+
+	@Override
+	public CSRMatrix copy() {
+		return new CSRMatrix(numRows, numColumns, ptr.clone(), idx.clone(), vals.clone());
+	}
+
+	/**
+	 * y = alpha A.x + y
+	 */
+	@Override
+	public Vector multAdd(double alpha, Vector x, Vector y) {
+		checkMultAdd(x, y);
+		if (alpha == 0) return y;
+		return addInto(y, data(x), (xd, yd) -> gather(alpha, xd, yd));
+	}
+
+	/**
+	 * y = alpha A^T.x + y
+	 */
+	@Override
+	public Vector transMultAdd(double alpha, Vector x, Vector y) {
+		checkTransMultAdd(x, y);
+		if (alpha == 0) return y;
+		return addInto(y, data(x), (xd, yd) -> scatter(alpha, xd, yd));
+	}
+
+	/**
+	 * @return row i, as a fresh vector
+	 */
+	public SparseVector getRow(int row) {
+		return getMajor(row);
+	}
+
+	/**
+	 * This needs a binary search per row -- if you want lots of columns, use {@link #toCSC()}.
+	 * @return column j, as a fresh vector
+	 */
+	public SparseVector getColumn(int col) {
+		return getMinor(col);
+	}
+
+	/**
+	 * @return rows [from, to), as a new matrix
+	 */
+	public CSRMatrix getRows(int from, int to) {
+		Object[] s = sliceMajor(from, to);
+		return new CSRMatrix(to - from, numColumns, (int[]) s[0], (int[]) s[1], (double[]) s[2]);
+	}
+
+	/**
+	 * @return the same matrix in column form. O(nnz) copy.
+	 */
+	public CSCMatrix toCSC() {
+		Object[] s = swapAxes();
+		return new CSCMatrix(numRows, numColumns, (int[]) s[0], (int[]) s[1], (double[]) s[2]);
+	}
+
+	/**
+	 * @return A^T, which shares storage with this (so edits show through).
+	 */
+	public CSCMatrix getTranspose() {
+		return new CSCMatrix(numColumns, numRows, ptr, idx, vals);
+	}
+
+	/**
+	 * @return a CSR copy of m, or m itself if it already is one
+	 */
+	public static CSRMatrix valueOf(Matrix m) {
+		if (m instanceof CSRMatrix) return (CSRMatrix) m;
+		if (m instanceof CSCMatrix) return ((CSCMatrix) m).toCSR();
+		return new SparseMatrixBuilder(m.numRows(), m.numColumns()).addAll(m).buildCSR();
+	}
+
+}
@@ -0,0 +1,303 @@
+package com.winterwell.maths.matrix;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+
+import no.uib.cipr.matrix.AbstractMatrix;
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.MatrixEntry;
+import no.uib.cipr.matrix.Vector;
+import no.uib.cipr.matrix.sparse.SparseVector;
+
+/**
+ * Shared guts of {@link CSRMatrix} and {@link CSCMatrix}: compressed storage along a
+ * "major" axis (rows for CSR, columns for CSC). The entries of major line m are
+ * [ptr[m], ptr[m+1]), with their minor index in idx (sorted) and value in vals.
+ * <p>
+ * The sparsity pattern is fixed: set() can edit existing entries, but not add new ones
+ * -- use a {@link SparseMatrixBuilder} for that.
+ * <p>
+ * Thread-safety: reads (including mat-vec) are safe; edits are not.
+ */
+abstract class CompressedMatrix extends AbstractMatrix {
+
+	/**
+	 * Use parallel mat-vec above this many non-zeroes.
+	 */
+	static int PARALLEL_NNZ = 1 << 17;
+
+	final int[] ptr;
+	final int[] idx;
+	final double[] vals;
+
+	CompressedMatrix(int numRows, int numColumns, int[] ptr, int[] idx, double[] vals) {
+		super(numRows, numColumns);
+		assert ptr.length == numMajor() + 1 : ptr.length;
+		assert idx.length >= ptr[ptr.length - 1] && vals.length >= ptr[ptr.length - 1];
+		this.ptr = ptr;
+		this.idx = idx;
+		this.vals = vals;
+	}
+
+	abstract int numMajor();
+
+	abstract int numMinor();
+
+	/**
+	 * @return number of stored entries
+	 */
+	public int nnz() {
+		return ptr[ptr.length - 1];
+	}
+
+	/**
+	 * @return index into vals, or -1
+	 */
+	final int find(int major, int minor) {
+		int k = Arrays.binarySearch(idx, ptr[major], ptr[major + 1], minor);
+		return k < 0 ? -1 : k;
+	}
+
+	final double get2(int major, int minor) {
+		int k = find(major, minor);
+		return k == -1 ? 0 : vals[k];
+	}
+
+	final void set2(int major, int minor, double value) {
+		int k = find(major, minor);
+		if (k == -1) {
+			if (value == 0) return;
+			throw new IndexOutOfBoundsException("Entry not in sparsity pattern - use a SparseMatrixBuilder");
+		}
+		vals[k] = value;
+	}
+
+	final void add2(int major, int minor, double value) {
+		int k = find(major, minor);
+		if (k == -1) {
+			if (value == 0) return;
+			throw new IndexOutOfBoundsException("Entry not in sparsity pattern - use a SparseMatrixBuilder");
+		}
+		vals[k] += value;
+	}
+
+	/**
+	 * Zeroes the values, but keeps the sparsity pattern.
+	 */
+	@Override
+	public CompressedMatrix zero() {
+		Arrays.fill(vals, 0, nnz(), 0);
+		return this;
+	}
+
+	/**
+	 * @return a major line (a row for CSR, a column for CSC) as a fresh vector
+	 */
+	final SparseVector getMajor(int major) {
+		int a = ptr[major], b = ptr[major + 1];
+		return new SparseVector(numMinor(), Arrays.copyOfRange(idx, a, b), Arrays.copyOfRange(vals, a, b));
+	}
+
+	/**
+	 * @return a minor line (a column for CSR, a row for CSC) as a fresh vector. This needs a
+	 * binary search in every major line.
+	 */
+	final SparseVector getMinor(int minor) {
+		SparseVector vec = new SparseVector(numMajor());
+		for (int m = 0, n = numMajor(); m < n; m++) {
+			int k = find(m, minor);
+			if (k != -1) vec.set(m, vals[k]);
+		}
+		return vec;
+	}
+
+	/**
+	 * @return [ptr, idx, vals] for major lines [from, to)
+	 */
+	final Object[] sliceMajor(int from, int to) {
+		if (from < 0 || to > numMajor() || from > to) {
+			throw new IndexOutOfBoundsException(from + " to " + to + " of " + numMajor());
+		}
+		int a = ptr[from], b = ptr[to];
+		int[] p = new int[to - from + 1];
+		for (int m = from; m <= to; m++) {
+			p[m - from] = ptr[m] - a;
+		}
+		return new Object[] { p, Arrays.copyOfRange(idx, a, b), Arrays.copyOfRange(vals, a, b) };
+	}
+
+	/**
+	 * Re-compress along the other axis (a counting sort, so O(nnz + dims)).
+	 * @return [ptr, idx, vals]
+	 */
+	final Object[] swapAxes() {
+		int nnz = nnz();
+		int[] p = new int[numMinor() + 1];
+		for (int k = 0; k < nnz; k++) {
+			p[idx[k] + 1]++;
+		}
+		for (int i = 0; i < numMinor(); i++) {
+			p[i + 1] += p[i];
+		}
+		int[] next = Arrays.copyOf(p, numMinor());
+		int[] i2 = new int[nnz];
+		double[] v2 = new double[nnz];
+		// majors in order => the new minor indices come out sorted
+		for (int m = 0, n = numMajor(); m < n; m++) {
+			for (int k = ptr[m], e = ptr[m + 1]; k < e; k++) {
+				int dst = next[idx[k]]++;
+				i2[dst] = m;
+				v2[dst] = vals[k];
+			}
+		}
+		return new Object[] { p, i2, v2 };
+	}
+
+	/**
+	 * y[m] += alpha * (line m . x). Each m is independent, so this goes parallel for big
+	 * matrices.
+	 */
+	final void gather(double alpha, double[] x, double[] y) {
+		int n = numMajor();
+		if (nnz() < PARALLEL_NNZ) {
+			for (int m = 0; m < n; m++) {
+				y[m] += alpha * dot(m, x);
+			}
+			return;
+		}
+		IntStream.range(0, n).parallel().forEach(m -> y[m] += alpha * dot(m, x));
+	}
+
+	private double dot(int m, double[] x) {
+		double sum = 0;
+		for (int k = ptr[m], e = ptr[m + 1]; k < e; k++) {
+			sum += vals[k] * x[idx[k]];
+		}
+		return sum;
+	}
+
+	/**
+	 * y[idx] += alpha * x[m] * line m. Writes can collide, so this is sequential.
+	 */
+	final void scatter(double alpha, double[] x, double[] y) {
+		for (int m = 0, n = numMajor(); m < n; m++) {
+			double xm = alpha * x[m];
+			if (xm == 0) continue;
+			for (int k = ptr[m], e = ptr[m + 1]; k < e; k++) {
+				y[idx[k]] += vals[k] * xm;
+			}
+		}
+	}
+
+	/**
+	 * @return the data of x -- no copy if it's dense
+	 */
+	static double[] data(Vector x) {
+		if (x instanceof DenseVector) return ((DenseVector) x).getData();
+		double[] data = new double[x.size()];
+		if (x instanceof SparseVector) {
+			SparseVector sx = (SparseVector) x;
+			int[] xi = sx.getIndex();
+			double[] xd = sx.getData();
+			for (int k = 0, n = sx.getUsed(); k < n; k++) {
+				data[xi[k]] = xd[k];
+			}
+			return data;
+		}
+		for (int i = 0; i < data.length; i++) {
+			data[i] = x.get(i);
+		}
+		return data;
+	}
+
+	/**
+	 * Run a kernel which adds into y -- directly if y is dense, else via a temp array.
+	 */
+	static Vector addInto(Vector y, double[] x, Kernel kernel) {
+		if (y instanceof DenseVector) {
+			kernel.run(x, ((DenseVector) y).getData());
+			return y;
+		}
+		double[] yd = new double[y.size()];
+		kernel.run(x, yd);
+		for (int i = 0; i < yd.length; i++) {
+			if (yd[i] != 0) y.add(i, yd[i]);
+		}
+		return y;
+	}
+
+	interface Kernel {
+		void run(double[] x, double[] y);
+	}
+
+	/**
+	 * Non-zero entries, in storage order.
+	 * Warning: the MatrixEntry is recycled.
+	 */
+	@Override
+	public Iterator<MatrixEntry> iterator() {
+		return new Iterator<MatrixEntry>() {
+			int k;
+			int m;
+			final Entry entry = new Entry();
+
+			@Override
+			public boolean hasNext() {
+				return k < nnz();
+			}
+
+			@Override
+			public MatrixEntry next() {
+				if (k >= nnz()) throw new NoSuchElementException();
+				while (ptr[m + 1] <= k) m++;
+				entry.k = k;
+				entry.major = m;
+				k++;
+				return entry;
+			}
+		};
+	}
+
+	/**
+	 * @return true if the major index is the row
+	 */
+	abstract boolean isRowMajor();
+
+	private final class Entry implements MatrixEntry {
+		int k;
+		int major;
+
+		@Override
+		public int row() {
+			return isRowMajor() ? major : idx[k];
+		}
+
+		@Override
+		public int column() {
+			return isRowMajor() ? idx[k] : major;
+		}
+
+		@Override
+		public double get() {
+			return vals[k];
+		}
+
+		@Override
+		public void set(double value) {
+			vals[k] = value;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + row() + ", " + column() + "] = " + get();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[" + numRows + "x" + numColumns + ", nnz=" + nnz() + "]";
+	}
+
+}
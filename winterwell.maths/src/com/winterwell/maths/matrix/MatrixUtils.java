@@ -111,6 +111,8 @@ public class MatrixUtils {
 
 	public static Vector getColumnVector(Matrix a, int col) {
 		assert a != null;
+		if (a instanceof CSCMatrix) return ((CSCMatrix) a).getColumn(col);
+		if (a instanceof CSRMatrix) return ((CSRMatrix) a).getColumn(col);
 		Vector v = DataUtils.newVector(a.numRows());
 		for (int i = 0, n = a.numRows(); i < n; i++) {
 			v.set(i, a.get(i, col));
@@ -120,6 +122,7 @@ public class MatrixUtils {
 	
 	public static double[] getColumn(Matrix a, int col) {
 		assert a != null;
+		if (a instanceof CSCMatrix) return DataUtils.toArray(((CSCMatrix) a).getColumn(col));
 		double[] v = new double[a.numRows()];
 		for (int i = 0, n = a.numRows(); i < n; i++) {
 			v[i] = a.get(i, col);
@@ -153,6 +156,7 @@ public class MatrixUtils {
 	
 	public static double[] getRow(Matrix data, int ri) {
 		assert data != null;
+		if (data instanceof CSRMatrix) return DataUtils.toArray(((CSRMatrix) data).getRow(ri));
 		double[] v = new double[data.numColumns()];
 		for (int ci = 0, n = data.numColumns(); ci < n; ci++) {
 			v[ci] = data.get(ri, ci);
@@ -409,11 +413,63 @@ public class MatrixUtils {
 		if (A.numColumns() != B.numRows()) {
 			throw new MatrixShapeException(A,B);
 		}
+		if (A instanceof CSRMatrix) {
+			return multiply2_csr((CSRMatrix) A, B);
+		}
 		Matrix C = newMatrix(A.numRows(), B.numColumns());
 		A.mult(B, C);
 		return C;
 	}
 
+	/**
+	 * Row by row: C[i,:] = sum over A[i,k] of A[i,k] B[k,:]. Only touches A's non-zeroes.
+	 * Sparse B => sparse C (built as CSR), dense B => dense C.
+	 */
+	private static Matrix multiply2_csr(CSRMatrix A, Matrix B) {
+		int m = A.numRows(), p = B.numColumns();
+		if (B instanceof CSRMatrix || B instanceof CSCMatrix || B instanceof SparseMatrix) {
+			CSRMatrix b = CSRMatrix.valueOf(B);
+			SparseMatrixBuilder C = new SparseMatrixBuilder(m, p);
+			// dense accumulator for one row of C
+			double[] acc = new double[p];
+			int[] used = new int[p];
+			boolean[] seen = new boolean[p];
+			for (int i = 0; i < m; i++) {
+				int nu = 0;
+				for (int ka = A.ptr[i]; ka < A.ptr[i + 1]; ka++) {
+					int k = A.idx[ka];
+					double aik = A.vals[ka];
+					for (int kb = b.ptr[k]; kb < b.ptr[k + 1]; kb++) {
+						int j = b.idx[kb];
+						if ( ! seen[j]) {
+							seen[j] = true;
+							used[nu++] = j;
+						}
+						acc[j] += aik * b.vals[kb];
+					}
+				}
+				for (int u = 0; u < nu; u++) {
+					int j = used[u];
+					C.add(i, j, acc[j]);
+					acc[j] = 0;
+					seen[j] = false;
+				}
+			}
+			return C.buildCSR();
+		}
+		DenseMatrix C = new DenseMatrix(m, p);
+		for (int i = 0; i < m; i++) {
+			for (int ka = A.ptr[i]; ka < A.ptr[i + 1]; ka++) {
+				int k = A.idx[ka];
+				double aik = A.vals[ka];
+				for (int j = 0; j < p; j++) {
+					C.add(i, j, aik * B.get(k, j));
+				}
+			}
+		}
+		return C;
+	}
+
 	/**
 	 * Use a wrapper class to lazily transpose.
 	 * @param A
@@ -424,6 +480,9 @@ public class MatrixUtils {
 			// A^T^T = A
 			return ((TransposeMatrix)A).base;
 		}
+		// no copy needed
+		if (A instanceof CSRMatrix) return ((CSRMatrix) A).getTranspose();
+		if (A instanceof CSCMatrix) return ((CSCMatrix) A).getTranspose();
 		return new TransposeMatrix(A);
 	}
 
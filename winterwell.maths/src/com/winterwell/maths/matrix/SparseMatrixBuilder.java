@@ -0,0 +1,156 @@
+package com.winterwell.maths.matrix;
+
+import java.util.Arrays;
+
+import no.uib.cipr.matrix.Matrix;
+import no.uib.cipr.matrix.MatrixEntry;
+import no.uib.cipr.matrix.Vector;
+import no.uib.cipr.matrix.VectorEntry;
+
+/**
+ * Coordinate-format (row, column, value) builder for {@link CSRMatrix} and {@link CSCMatrix}.
+ * Add entries in any order; duplicates are summed, and zeroes are dropped.
+ * <p>
+ * Not thread-safe.
+ *
+ * @testedby {@link CSRMatrixTest}
+ */
+public final class SparseMatrixBuilder {
+
+	private final int numRows;
+	private final int numColumns;
+
+	private int[] rows = new int[16];
+	private int[] cols = new int[16];
+	private double[] vals = new double[16];
+	private int n;
+
+	public SparseMatrixBuilder(int numRows, int numColumns) {
+		assert numRows >= 0 && numColumns >= 0;
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+	}
+
+	/**
+	 * Add value to (row, column)
+	 */
+	public SparseMatrixBuilder add(int row, int column, double value) {
+		if (row < 0 || row >= numRows || column < 0 || column >= numColumns) {
+			throw new IndexOutOfBoundsException("(" + row + ", " + column + ") in " + numRows + "x" + numColumns);
+		}
+		if (value == 0) return this;
+		if (n == rows.length) {
+			int cap = n * 2;
+			rows = Arrays.copyOf(rows, cap);
+			cols = Arrays.copyOf(cols, cap);
+			vals = Arrays.copyOf(vals, cap);
+		}
+		rows[n] = row;
+		cols[n] = column;
+		vals[n] = value;
+		n++;
+		return this;
+	}
+
+	/**
+	 * Add the non-zero entries of m
+	 */
+	public SparseMatrixBuilder addAll(Matrix m) {
+		if (m.numRows() > numRows || m.numColumns() > numColumns) {
+			throw new MatrixShapeException(m, null);
+		}
+		for (MatrixEntry me : m) {
+			add(me.row(), me.column(), me.get());
+		}
+		return this;
+	}
+
+	/**
+	 * Add the non-zero entries of vector as a row
+	 */
+	public SparseMatrixBuilder addRow(int row, Vector vector) {
+		for (VectorEntry ve : vector) {
+			add(row, ve.index(), ve.get());
+		}
+		return this;
+	}
+
+	/**
+	 * @return number of entries added so far (before summing duplicates)
+	 */
+	public int size() {
+		return n;
+	}
+
+	public CSRMatrix buildCSR() {
+		Object[] s = compress(rows, cols, numRows, numColumns);
+		return new CSRMatrix(numRows, numColumns, (int[]) s[0], (int[]) s[1], (double[]) s[2]);
+	}
+
+	public CSCMatrix buildCSC() {
+		Object[] s = compress(cols, rows, numColumns, numRows);
+		return new CSCMatrix(numRows, numColumns, (int[]) s[0], (int[]) s[1], (double[]) s[2]);
+	}
+
+	/**
+	 * Two stable counting sorts (minor, then major), then merge duplicates. O(n + dims).
+	 * @return [ptr, idx, vals]
+	 */
+	private Object[] compress(int[] major, int[] minor, int numMajor, int numMinor) {
+		// sort by minor
+		int[] byMinor = countingSort(minor, numMinor, null);
+		// then (stable) by major => sorted by (major, minor)
+		int[] order = countingSort(major, numMajor, byMinor);
+		int[] ptr = new int[numMajor + 1];
+		int[] idx = new int[n];
+		double[] v = new double[n];
+		int nnz = 0;
+		for (int m = 0, k = 0; m < numMajor; m++) {
+			int start = nnz;
+			for (; k < n && major[order[k]] == m; k++) {
+				int e = order[k];
+				if (nnz > start && idx[nnz - 1] == minor[e]) {
+					v[nnz - 1] += vals[e];
+				} else {
+					idx[nnz] = minor[e];
+					v[nnz] = vals[e];
+					nnz++;
+				}
+			}
+			// drop entries which summed to zero
+			int w = start;
+			for (int r = start; r < nnz; r++) {
+				if (v[r] == 0) continue;
+				idx[w] = idx[r];
+				v[w] = v[r];
+				w++;
+			}
+			nnz = w;
+			ptr[m + 1] = nnz;
+		}
+		return new Object[] { ptr, Arrays.copyOf(idx, nnz), Arrays.copyOf(v, nnz) };
+	}
+
+	/**
+	 * @param keys
+	 * @param numKeys
+	 * @param in order to sort, or null for 0..n-1
+	 * @return the entries of in, stably sorted by keys
+	 */
+	private int[] countingSort(int[] keys, int numKeys, int[] in) {
+		int[] start = new int[numKeys + 1];
+		for (int i = 0; i < n; i++) {
+			start[keys[i] + 1]++;
+		}
+		for (int i = 0; i < numKeys; i++) {
+			start[i + 1] += start[i];
+		}
+		int[] out = new int[n];
+		for (int i = 0; i < n; i++) {
+			int e = in == null ? i : in[i];
+			out[start[keys[e]]++] = e;
+		}
+		return out;
+	}
+
+}
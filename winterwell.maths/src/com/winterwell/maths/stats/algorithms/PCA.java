@@ -3,6 +3,7 @@ package com.winterwell.maths.stats.algorithms;
 import java.util.List;
 
 import com.winterwell.maths.datastorage.IDataSet;
+import com.winterwell.maths.matrix.CSRMatrix;
 import com.winterwell.maths.matrix.EVDAdapter;
 import com.winterwell.maths.matrix.Eigenpair;
 import com.winterwell.maths.matrix.IEigenVectorFinder;
@@ -12,7 +13,10 @@ import com.winterwell.maths.timeseries.DataUtils;
 import com.winterwell.maths.timeseries.ExtraDimensionsDataStream.KMatchPolicy;
 import com.winterwell.maths.timeseries.IDataStream;
 
+import no.uib.cipr.matrix.DenseMatrix;
 import no.uib.cipr.matrix.Matrix;
+import no.uib.cipr.matrix.MatrixEntry;
+import no.uib.cipr.matrix.sparse.SparseVector;
 
 /**
  * PCA: simple but useful. This is a convenience class for building a PCA
@@ -25,6 +29,10 @@ import no.uib.cipr.matrix.Matrix;
 public class PCA {
 
 	private IDataSet dataset;
+	/**
+	 * Alternative to dataset: one row per data point
+	 */
+	private Matrix data;
 	IEigenVectorFinder ef = new EVDAdapter();
 	private RowPackedMatrix eigenTransform;
 
@@ -35,14 +43,24 @@ public class PCA {
 		this.maxDims = maxDims;
 	}
 
+	/**
+	 * @param data One row per data point. Sparse data (e.g. a term-document matrix) is
+	 * best as a {@link CSRMatrix}: the covariance then only touches the non-zeroes.
+	 * @param maxDims
+	 */
+	public PCA(Matrix data, int maxDims) {
+		this.data = data;
+		this.maxDims = maxDims;
+	}
+
 	public IDataStream apply(IDataStream d) {
 		IDataStream eigenData = DataUtils.applyMatrix(eigenTransform, d);
 		return eigenData;
 	}
 
 	public void run() {
-		Matrix covar = StatsUtils.covar(dataset,
-				KMatchPolicy.DISCARD_ON_MISMATCH, null);
+		Matrix covar = data != null ? covar(CSRMatrix.valueOf(data)) 
+				: StatsUtils.covar(dataset, KMatchPolicy.DISCARD_ON_MISMATCH, null);
 
 		ef.setMaxEigenvectors(maxDims);
 
@@ -54,6 +72,46 @@ public class PCA {
 
 		// clean out
 		dataset = null;
+		data = null;
+	}
+
+	/**
+	 * Covariance (divide-by-n, as {@link StatsUtils#covar(double[], double[])}) from the
+	 * non-zeroes: C = X^T.X/n - mean.mean^T
+	 * @param X one row per data point
+	 */
+	static DenseMatrix covar(CSRMatrix X) {
+		int n = X.numRows(), d = X.numColumns();
+		DenseMatrix covar = new DenseMatrix(d, d);
+		// column-major
+		double[] c = covar.getData();
+		double[] mean = new double[d];
+		for (MatrixEntry me : X) {
+			mean[me.column()] += me.get();
+		}
+		for (int i = 0; i < n; i++) {
+			SparseVector row = X.getRow(i);
+			int[] idx = row.getIndex();
+			double[] vals = row.getData();
+			int nnz = row.getUsed();
+			// upper triangle only (idx is sorted)
+			for (int a = 0; a < nnz; a++) {
+				for (int b = a; b < nnz; b++) {
+					c[idx[b] * d + idx[a]] += vals[a] * vals[b];
+				}
+			}
+		}
+		for (int j = 0; j < d; j++) {
+			mean[j] /= n;
+		}
+		for (int col = 0; col < d; col++) {
+			for (int row = 0; row <= col; row++) {
+				double cv = c[col * d + row] / n - mean[row] * mean[col];
+				c[col * d + row] = cv;
+				c[row * d + col] = cv;
+			}
+		}
+		return covar;
 	}
 
 }
@@ -102,6 +102,19 @@ public final class AxisAlignedGaussian extends ADistribution implements
 		super.finishTraining();
 	}
 
+	/**
+	 * Set the parameters directly (e.g. from {@link ParallelEM}). Marks this as trained.
+	 */
+	void set(double[] mean, double[] var) {
+		assert mean.length == getDim() && var.length == getDim();
+		for (int i = 0; i < mean.length; i++) {
+			assert var[i] >= 0 : var[i];
+			this.mean.set(i, mean[i]);
+			this.var.set(i, var[i]);
+		}
+		pleaseTrainFlag = false;
+	}
+
 	@Override
 	public Matrix getCovar() {
 		return new DiagonalMatrix(var);
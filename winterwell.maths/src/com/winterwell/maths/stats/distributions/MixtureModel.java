@@ -1,6 +1,8 @@
 package com.winterwell.maths.stats.distributions;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import com.winterwell.maths.ITrainable;
 import com.winterwell.maths.stats.StatsUtils;
@@ -75,10 +77,73 @@ public class MixtureModel<D extends IDistribution> extends
 
 	private Vector window;
 
+	/**
+	 * null by default (use the generic EM)
+	 */
+	private ParallelEM parallelEM;
+
 	public MixtureModel(int dim) {
 		this.dim = dim;
 	}
 
+	/**
+	 * Use a parallel EM for training. This only applies when every component is an
+	 * {@link AxisAlignedGaussian} -- otherwise the generic EM is used.
+	 * Components which start with zero variance (e.g. new AxisAlignedGaussian(dim))
+	 * get a random initialisation from the data, using the ParallelEM's seed.
+	 * The others start from where they are.
+	 * @param em Its settings (threads, mini-batch, convergence) are used. null = off.
+	 */
+	public void setParallelEM(ParallelEM em) {
+		this.parallelEM = em;
+	}
+
+	@Override
+	protected boolean finishTraining2_parallel() {
+		if (parallelEM == null) return false;
+		Set<D> ds = gaussians.asMap().keySet();
+		for (D d : ds) {
+			if ( ! (d instanceof AxisAlignedGaussian)) return false;
+		}
+		distributions = ds.toArray(new IDistributionBase[0]);
+		assert distributions.length != 0 : this;
+		globalVariance = StatsUtils.var(trainingData);
+		window = globalVariance.scale(0.0001);
+		// pack the data
+		double[][] data = new double[trainingData.size()][];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = DataUtils.toArray(trainingData.get(i));
+		}
+		// start from the components, if they've been set up
+		int k = distributions.length;
+		double[][] means = new double[k][];
+		double[][] vars = new double[k][];
+		double[] weights = new double[k];
+		// reseed any degenerate (zero variance) components from the data
+		boolean[] blank = new boolean[k];
+		for (int i = 0; i < k; i++) {
+			AxisAlignedGaussian g = (AxisAlignedGaussian) distributions[i];
+			means[i] = DataUtils.toArray(g.getMean());
+			vars[i] = DataUtils.toArray(g.getVariance());
+			weights[i] = gaussians.prob((D) g);
+			blank[i] = DataUtils.max(g.getVariance()) == 0;
+		}
+		parallelEM.init(means, vars, weights, blank, data);
+		parallelEM.fit(data);
+		// copy back
+		List<IDistributionBase> live = new ArrayList();
+		for (int i = 0; i < k; i++) {
+			AxisAlignedGaussian g = (AxisAlignedGaussian) distributions[i];
+			double w = parallelEM.getWeights()[i];
+			gaussians.setProb((D) g, w);
+			if (w == 0) continue; // dead
+			g.set(parallelEM.getMeans()[i], parallelEM.getVars()[i]);
+			live.add(g);
+		}
+		distributions = live.toArray(new IDistributionBase[0]);
+		return true;
+	}
+
 	@Override
 	public double density(Vector x) {
 		assert DataUtils.isFinite(x) : x;
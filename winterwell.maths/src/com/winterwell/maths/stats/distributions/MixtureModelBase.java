@@ -64,6 +64,12 @@ public abstract class MixtureModelBase<X, D extends IDistributionBase<X>>
 
 	@Override
 	public void finishTraining() {
+		// a faster specialised EM?
+		if (finishTraining2_parallel()) {
+			gaussians.normalise();
+			super.finishTraining();
+			return;
+		}
 		// assign randomly at first
 		finishTraining2_init();
 
@@ -109,6 +115,15 @@ public abstract class MixtureModelBase<X, D extends IDistributionBase<X>>
 		}
 	}
 
+	/**
+	 * Hook for a specialised EM (e.g. {@link ParallelEM}), which replaces the
+	 * init + {@link #trainOneIteration()} loop.
+	 * @return true if it did the training. false by default.
+	 */
+	protected boolean finishTraining2_parallel() {
+		return false;
+	}
+
 	/**
 	 * @return The underlying distributions, with their weights
 	 */
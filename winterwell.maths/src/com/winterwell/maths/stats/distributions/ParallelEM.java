@@ -0,0 +1,529 @@
+package com.winterwell.maths.stats.distributions;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.winterwell.utils.log.Log;
+
+/**
+ * EM for a mixture of axis-aligned Gaussians, over a packed double[][] copy of the data.
+ * This is the parallel mode for {@link MixtureModel} -- see
+ * {@link MixtureModel#setParallelEM(ParallelEM)} -- but can be used directly.
+ * <p>
+ * Responsibilities are computed in log space (so high-dimensional data doesn't underflow
+ * to "unclaimed"). The E-step runs on a {@link ForkJoinPool}: each chunk of points
+ * produces its own sufficient statistics (sum of weights, weighted sum of x and of x^2),
+ * which are merged, and the M-step is read off those.
+ * <p>
+ * Deterministic: chunks and the merge order depend only on the data size, never on the
+ * thread count -- so 1 thread and 16 threads give identical results for the same seed.
+ * <p>
+ * Mini-batch mode ({@link #setBatchSize(int)}) is stepwise online EM: the running
+ * statistics are blended with each batch's, with step size (t+2)^-0.7.
+ *
+ * @testedby {@link ParallelEMTest}
+ */
+public final class ParallelEM {
+
+	/**
+	 * Points per E-step leaf task
+	 */
+	static final int CHUNK = 2048;
+
+	private int maxIterations = 50;
+	private double tolerance = 1e-6;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int batchSize;
+	private long seed = 42;
+	/**
+	 * Variance floor, to stop components collapsing onto a point.
+	 */
+	private double minVar = 1e-9;
+
+	double[][] means;
+	double[][] vars;
+	double[] weights;
+	private double logLikelihood = Double.NaN;
+	private int iterations;
+
+	/**
+	 * @param maxIterations Max passes over the data (epochs, in mini-batch mode). 50 by default.
+	 */
+	public ParallelEM setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+		return this;
+	}
+
+	/**
+	 * @param tolerance Stop when the mean log-likelihood per point changes by less than this
+	 * (relative). 1e-6 by default. 0 = always do maxIterations.
+	 */
+	public ParallelEM setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+		return this;
+	}
+
+	/**
+	 * @param threads 1 = run in the calling thread. Defaults to the number of cores.
+	 */
+	public ParallelEM setThreads(int threads) {
+		assert threads > 0;
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * @param batchSize 0 (the default) = full-batch EM. Otherwise, stepwise online EM
+	 * on mini-batches of this size.
+	 */
+	public ParallelEM setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * @param seed For the random initialisation and the mini-batch shuffle
+	 */
+	public ParallelEM setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	public ParallelEM setMinVar(double minVar) {
+		this.minVar = minVar;
+		return this;
+	}
+
+	/**
+	 * @return mean log-likelihood per point, as of the last E-step
+	 */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	/**
+	 * @return iterations (epochs, in mini-batch mode) actually run
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	public double[][] getMeans() {
+		return means;
+	}
+
+	public double[][] getVars() {
+		return vars;
+	}
+
+	/**
+	 * @return mixture weights (normalised). 0 = a dead component
+	 */
+	public double[] getWeights() {
+		return weights;
+	}
+
+	/**
+	 * Start from k-means++ seeding: the means are data points, each picked with probability
+	 * proportional to its squared distance from the nearest mean so far. Each component
+	 * starts with the global variance and equal weight.
+	 */
+	public ParallelEM init(double[][] data, int k) {
+		assert data.length > 0 && k > 0;
+		means = new double[k][];
+		vars = new double[k][];
+		weights = new double[k];
+		boolean[] all = new boolean[k];
+		Arrays.fill(all, true);
+		init2_seed(data, all);
+		double[] gvar = init2_globalVar(data);
+		for (int i = 0; i < k; i++) {
+			vars[i] = gvar.clone();
+			weights[i] = 1.0 / k;
+		}
+		return this;
+	}
+
+	/**
+	 * Start from these parameters -- except for the reseed components (e.g. ones with
+	 * zero variance), which get k-means++ seeding away from the kept means, the global
+	 * variance, and weight 1/k.
+	 * @param reseed Which components to reseed
+	 * @param data For the reseeding
+	 */
+	public ParallelEM init(double[][] means, double[][] vars, double[] weights, boolean[] reseed, double[][] data) {
+		assert reseed.length == means.length && data.length > 0;
+		int k = means.length, nReseed = 0;
+		for (boolean b : reseed) {
+			if (b) nReseed++;
+		}
+		if (nReseed == k) return init(data, k);
+		init(means, vars, weights);
+		if (nReseed == 0) return this;
+		init2_seed(data, reseed);
+		double[] gvar = init2_globalVar(data);
+		// the kept components share what is left
+		double keep = 1.0 * (k - nReseed) / k;
+		for (int i = 0; i < k; i++) {
+			if (reseed[i]) {
+				this.vars[i] = gvar.clone();
+				this.weights[i] = 1.0 / k;
+			} else {
+				this.weights[i] *= keep;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * k-means++: each reseed mean is a data point, picked with probability proportional
+	 * to its squared distance from the nearest mean so far (the first, if there are no
+	 * kept means, uniformly).
+	 */
+	private void init2_seed(double[][] data, boolean[] reseed) {
+		int n = data.length;
+		Random r = new Random(seed);
+		double[] dist2 = new double[n];
+		Arrays.fill(dist2, Double.POSITIVE_INFINITY);
+		boolean any = false;
+		for (int i = 0; i < means.length; i++) {
+			if (reseed[i]) continue;
+			init3_dist2(data, means[i], dist2);
+			any = true;
+		}
+		for (int i = 0; i < means.length; i++) {
+			if ( ! reseed[i]) continue;
+			if ( ! any) {
+				means[i] = data[r.nextInt(n)].clone();
+				any = true;
+			} else {
+				double total = 0;
+				for (double d2 : dist2) {
+					total += d2;
+				}
+				double pick = r.nextDouble() * total;
+				int xi = 0;
+				for (; xi < n - 1; xi++) {
+					pick -= dist2[xi];
+					if (pick < 0) break;
+				}
+				means[i] = data[xi].clone();
+			}
+			init3_dist2(data, means[i], dist2);
+		}
+	}
+
+	/**
+	 * dist2[xi] = min(dist2[xi], |data[xi] - mean|^2)
+	 */
+	private static void init3_dist2(double[][] data, double[] mean, double[] dist2) {
+		for (int xi = 0; xi < data.length; xi++) {
+			double d2 = 0;
+			for (int d = 0; d < mean.length; d++) {
+				double dx = data[xi][d] - mean[d];
+				d2 += dx * dx;
+			}
+			if (d2 < dist2[xi]) dist2[xi] = d2;
+		}
+	}
+
+	private double[] init2_globalVar(double[][] data) {
+		int n = data.length, dim = data[0].length;
+		Stats s = new Stats(1, dim);
+		for (double[] x : data) {
+			s.add(0, 1, x);
+		}
+		double[] gvar = new double[dim];
+		for (int d = 0; d < dim; d++) {
+			double m = s.sx[0][d] / n;
+			gvar[d] = Math.max(s.sxx[0][d] / n - m * m, minVar);
+		}
+		return gvar;
+	}
+
+	/**
+	 * Start from these parameters. They are copied.
+	 */
+	public ParallelEM init(double[][] means, double[][] vars, double[] weights) {
+		assert means.length == vars.length && means.length == weights.length;
+		this.means = new double[means.length][];
+		this.vars = new double[vars.length][];
+		for (int i = 0; i < means.length; i++) {
+			this.means[i] = means[i].clone();
+			this.vars[i] = vars[i].clone();
+			for (int d = 0; d < this.vars[i].length; d++) {
+				this.vars[i][d] = Math.max(this.vars[i][d], minVar);
+			}
+		}
+		double sum = 0;
+		for (double w : weights) {
+			sum += w;
+		}
+		this.weights = new double[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			this.weights[i] = weights[i] / sum;
+		}
+		return this;
+	}
+
+	/**
+	 * Run EM. Call an init() method first.
+	 * @param data One row per point. Not edited.
+	 */
+	public ParallelEM fit(double[][] data) {
+		assert means != null : "call init() first";
+		ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		try {
+			if (batchSize > 0 && batchSize < data.length) {
+				fit2_online(data, pool);
+			} else {
+				fit2_batch(data, pool);
+			}
+		} finally {
+			if (pool != null) pool.shutdown();
+		}
+		return this;
+	}
+
+	private void fit2_batch(double[][] data, ForkJoinPool pool) {
+		double prevLL = Double.NaN;
+		for (iterations = 0; iterations < maxIterations;) {
+			Stats s = estep(data, 0, data.length, pool);
+			iterations++;
+			mstep(s);
+			logLikelihood = s.ll / data.length;
+			if (converged(prevLL, logLikelihood)) break;
+			prevLL = logLikelihood;
+		}
+	}
+
+	private void fit2_online(double[][] data, ForkJoinPool pool) {
+		// shuffle once, then take contiguous batches
+		double[][] shuffled = data.clone();
+		Random r = new Random(seed);
+		for (int i = shuffled.length - 1; i > 0; i--) {
+			int j = r.nextInt(i + 1);
+			double[] tmp = shuffled[i];
+			shuffled[i] = shuffled[j];
+			shuffled[j] = tmp;
+		}
+		// running stats, as per-point averages
+		Stats running = null;
+		int t = 0;
+		double prevLL = Double.NaN;
+		for (iterations = 0; iterations < maxIterations;) {
+			double ll = 0;
+			for (int lo = 0; lo < shuffled.length; lo += batchSize) {
+				int hi = Math.min(lo + batchSize, shuffled.length);
+				Stats s = estep(shuffled, lo, hi, pool);
+				ll += s.ll;
+				s.scale(1.0 / (hi - lo));
+				if (running == null) {
+					running = s;
+				} else {
+					double eta = Math.pow(t + 2, -0.7);
+					running.scale(1 - eta);
+					s.scale(eta);
+					running.merge(s);
+				}
+				t++;
+				mstep(running);
+			}
+			iterations++;
+			// NB: this is measured as the parameters move, so it's a little optimistic
+			logLikelihood = ll / shuffled.length;
+			if (converged(prevLL, logLikelihood)) break;
+			prevLL = logLikelihood;
+		}
+	}
+
+	private boolean converged(double prevLL, double ll) {
+		if (tolerance <= 0 || Double.isNaN(prevLL)) return false;
+		return Math.abs(ll - prevLL) <= tolerance * Math.abs(prevLL);
+	}
+
+	Stats estep(double[][] data, int lo, int hi, ForkJoinPool pool) {
+		Params p = new Params();
+		EStep task = new EStep(data, lo, hi, p);
+		return pool == null ? task.compute() : pool.invoke(task);
+	}
+
+	void mstep(Stats s) {
+		int k = means.length, dim = means[0].length;
+		double total = 0;
+		for (int i = 0; i < k; i++) {
+			total += s.n[i];
+		}
+		for (int i = 0; i < k; i++) {
+			double ni = s.n[i];
+			if (ni <= 0) {
+				// dead
+				weights[i] = 0;
+				continue;
+			}
+			weights[i] = ni / total;
+			for (int d = 0; d < dim; d++) {
+				double m = s.sx[i][d] / ni;
+				means[i][d] = m;
+				vars[i][d] = Math.max(s.sxx[i][d] / ni - m * m, minVar);
+			}
+		}
+		if (total == 0) {
+			Log.w("ParallelEM", "No component claimed any data");
+		}
+	}
+
+	/**
+	 * The per-iteration constants: log weight + normalisation, and 1/var
+	 */
+	final class Params {
+		final double[] logConst;
+		final double[][] invVar;
+
+		Params() {
+			int k = means.length, dim = means[0].length;
+			logConst = new double[k];
+			invVar = new double[k][dim];
+			for (int i = 0; i < k; i++) {
+				if (weights[i] <= 0) {
+					logConst[i] = Double.NEGATIVE_INFINITY;
+					continue;
+				}
+				double c = Math.log(weights[i]) - 0.5 * dim * Math.log(2 * Math.PI);
+				for (int d = 0; d < dim; d++) {
+					c -= 0.5 * Math.log(vars[i][d]);
+					invVar[i][d] = 1 / vars[i][d];
+				}
+				logConst[i] = c;
+			}
+		}
+	}
+
+	/**
+	 * Sufficient statistics for a set of points
+	 */
+	static final class Stats {
+		final double[] n;
+		final double[][] sx;
+		final double[][] sxx;
+		double ll;
+
+		Stats(int k, int dim) {
+			n = new double[k];
+			sx = new double[k][dim];
+			sxx = new double[k][dim];
+		}
+
+		void add(int i, double w, double[] x) {
+			n[i] += w;
+			double[] sxi = sx[i], sxxi = sxx[i];
+			for (int d = 0; d < x.length; d++) {
+				double wx = w * x[d];
+				sxi[d] += wx;
+				sxxi[d] += wx * x[d];
+			}
+		}
+
+		void merge(Stats b) {
+			for (int i = 0; i < n.length; i++) {
+				n[i] += b.n[i];
+				for (int d = 0; d < sx[i].length; d++) {
+					sx[i][d] += b.sx[i][d];
+					sxx[i][d] += b.sxx[i][d];
+				}
+			}
+			ll += b.ll;
+		}
+
+		void scale(double a) {
+			for (int i = 0; i < n.length; i++) {
+				n[i] *= a;
+				for (int d = 0; d < sx[i].length; d++) {
+					sx[i][d] *= a;
+					sxx[i][d] *= a;
+				}
+			}
+			ll *= a;
+		}
+	}
+
+	/**
+	 * Splits on CHUNK boundaries, and merges left-then-right, so the arithmetic is
+	 * the same however many threads run it.
+	 */
+	final class EStep extends RecursiveTask<Stats> {
+		private static final long serialVersionUID = 1L;
+		final double[][] data;
+		final int lo, hi;
+		final Params p;
+
+		EStep(double[][] data, int lo, int hi, Params p) {
+			this.data = data;
+			this.lo = lo;
+			this.hi = hi;
+			this.p = p;
+		}
+
+		@Override
+		protected Stats compute() {
+			int chunks = (hi - lo + CHUNK - 1) / CHUNK;
+			if (chunks <= 1) return leaf();
+			int mid = lo + (chunks / 2) * CHUNK;
+			EStep left = new EStep(data, lo, mid, p);
+			EStep right = new EStep(data, mid, hi, p);
+			Stats rs;
+			Stats ls;
+			if (getPool() == null) {
+				// not in a pool: just recurse
+				ls = left.compute();
+				rs = right.compute();
+			} else {
+				left.fork();
+				rs = right.compute();
+				ls = left.join();
+			}
+			ls.merge(rs);
+			return ls;
+		}
+
+		private Stats leaf() {
+			int k = means.length, dim = means[0].length;
+			Stats s = new Stats(k, dim);
+			double[] logp = new double[k];
+			for (int xi = lo; xi < hi; xi++) {
+				double[] x = data[xi];
+				double max = Double.NEGATIVE_INFINITY;
+				for (int i = 0; i < k; i++) {
+					double lp = p.logConst[i];
+					if (lp != Double.NEGATIVE_INFINITY) {
+						double[] mi = means[i], ivi = p.invVar[i];
+						double q = 0;
+						for (int d = 0; d < dim; d++) {
+							double dx = x[d] - mi[d];
+							q += dx * dx * ivi[d];
+						}
+						lp -= 0.5 * q;
+					}
+					logp[i] = lp;
+					if (lp > max) max = lp;
+				}
+				if (max == Double.NEGATIVE_INFINITY) continue; // all dead?!
+				// log-sum-exp
+				double sum = 0;
+				for (int i = 0; i < k; i++) {
+					sum += Math.exp(logp[i] - max);
+				}
+				double lse = max + Math.log(sum);
+				s.ll += lse;
+				for (int i = 0; i < k; i++) {
+					double r = Math.exp(logp[i] - lse);
+					if (r != 0) s.add(i, r, x);
+				}
+			}
+			return s;
+		}
+	}
+
+}
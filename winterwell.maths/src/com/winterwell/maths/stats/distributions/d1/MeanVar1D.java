@@ -155,6 +155,34 @@ public class MeanVar1D extends ADistribution1D implements
 	}
 
 
+	/**
+	 * Fold another mean-var into this one, as if this had been trained on
+	 * both sets of data. Useful for combining per-thread accumulators.
+	 * Only valid for the true-mean (i.e. lossFactor=0).
+	 *
+	 * @param other Will not be modified.
+	 */
+	public synchronized void merge(MeanVar1D other) {
+		assert lossFactor == 0 && other.lossFactor == 0;
+		int n2;
+		double m, m2, mn, mx;
+		synchronized (other) {
+			n2 = other.count;
+			m = other.mean;
+			m2 = other.mean2;
+			mn = other.min;
+			mx = other.max;
+		}
+		if (n2 == 0) return;
+		double total = (double) count + n2;
+		double a = count / total;
+		mean = a * mean + (1 - a) * m;
+		mean2 = a * mean2 + (1 - a) * m2;
+		min = Math.min(min, mn);
+		max = Math.max(max, mx);
+		count = (int) Math.min(total, Integer.MAX_VALUE / 2);
+	}
+
 	/**
 	 * Called before incrementing count. Pure functional - does not modify
 	 * anything!
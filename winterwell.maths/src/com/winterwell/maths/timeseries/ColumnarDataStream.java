@@ -0,0 +1,381 @@
+package com.winterwell.maths.timeseries;
+
+import java.util.Arrays;
+
+import com.winterwell.utils.containers.AbstractIterator;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Time;
+
+/**
+ * A time series stored column-wise: a long[] of timestamps, and a double[] per
+ * dimension. So n points cost two or so arrays -- rather than the 3+ objects per point
+ * of a {@link ListDataStream} of {@link Datum}s.
+ * <p>
+ * Slicing by time ({@link #slice(Time, Time)}) and by dimension ({@link #getColumnStream(int)})
+ * is zero-copy: the result is a read-only view sharing the arrays. The operators
+ * {@link #bucket(Dt, boolean)}, {@link #movingMean(Dt, boolean)} and {@link #resample(Dt)}
+ * work directly on the arrays.
+ * <p>
+ * {@link #iterator()} makes Datums on the fly, for interop with the rest of the
+ * IDataStream world. Labels are not stored (they are null). {@link DataUtils} has fast
+ * paths for this class.
+ * <p>
+ * Like {@link ListDataStream}, data must be added in time order. Not thread-safe for add().
+ *
+ * @testedby {@link ColumnarDataStreamTest}
+ */
+public final class ColumnarDataStream extends ADataStream {
+	private static final long serialVersionUID = 1L;
+
+	private long[] times;
+	/**
+	 * [dimension][index]
+	 */
+	private double[][] cols;
+	/**
+	 * The view is [from, to) of the arrays
+	 */
+	private final int from;
+	private int to;
+	/**
+	 * true for slices, which share arrays with another stream
+	 */
+	private final boolean view;
+
+	/**
+	 * An empty stream, for use with {@link #add(long, double...)}
+	 */
+	public ColumnarDataStream(int dim) {
+		this(dim, 16);
+	}
+
+	public ColumnarDataStream(int dim, int initialCapacity) {
+		super(dim);
+		times = new long[initialCapacity];
+		cols = new double[dim][initialCapacity];
+		from = 0;
+		to = 0;
+		view = false;
+	}
+
+	/**
+	 * Wrap arrays -- which are used directly, NOT copied.
+	 * @param times Must be in (non-strictly) increasing order.
+	 * @param cols One array per dimension, each the same length as times
+	 */
+	public ColumnarDataStream(long[] times, double[]... cols) {
+		this(times, cols, 0, times.length, false);
+		for (double[] col : cols) {
+			assert col.length == times.length : col.length + " vs " + times.length;
+		}
+		assert isSorted(times) : "out-of-order times";
+	}
+
+	private ColumnarDataStream(long[] times, double[][] cols, int from, int to, boolean view) {
+		super(cols.length);
+		this.times = times;
+		this.cols = cols;
+		this.from = from;
+		this.to = to;
+		this.view = view;
+	}
+
+	/**
+	 * @return a columnar copy of stream (or stream itself if it already is one).
+	 * Labels are dropped. Can only be called once on a one-shot stream.
+	 */
+	public static ColumnarDataStream valueOf(IDataStream stream) {
+		if (stream instanceof ColumnarDataStream) return (ColumnarDataStream) stream;
+		int n = stream.size();
+		ColumnarDataStream cds = new ColumnarDataStream(stream.getDim(), n > 0 ? n : 16);
+		for (Datum d : stream) {
+			cds.add(d);
+		}
+		return cds;
+	}
+
+	/**
+	 * @param d Must not be dated before the previous data. Its label is ignored.
+	 */
+	public void add(Datum d) {
+		add(d.getTime().getTime(), d.getData());
+	}
+
+	/**
+	 * @param time epoch milliseconds. Must not be before the previous data.
+	 * @param values One per dimension. Copied.
+	 */
+	public void add(long time, double... values) {
+		if (view) throw new UnsupportedOperationException("read-only view");
+		assert values.length == getDim() : values.length + " vs " + getDim();
+		if (to != 0 && times[to - 1] > time) {
+			throw new IllegalArgumentException("Data sort order! " + new Time(times[to - 1]) + " to " + new Time(time));
+		}
+		if (to == times.length) {
+			int cap = Math.max(16, to * 2);
+			times = Arrays.copyOf(times, cap);
+			for (int d = 0; d < cols.length; d++) {
+				cols[d] = Arrays.copyOf(cols[d], cap);
+			}
+		}
+		times[to] = time;
+		for (int d = 0; d < cols.length; d++) {
+			cols[d][to] = values[d];
+		}
+		to++;
+	}
+
+	@Override
+	public int size() {
+		return to - from;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return to == from;
+	}
+
+	/**
+	 * @return epoch milliseconds of the i-th point
+	 */
+	public long getTime(int i) {
+		return times[from + i];
+	}
+
+	/**
+	 * @return the value of the i-th point in dimension dim
+	 */
+	public double get(int i, int dim) {
+		return cols[dim][from + i];
+	}
+
+	public Time getStart() {
+		return new Time(times[from]);
+	}
+
+	public Time getEnd() {
+		return new Time(times[to - 1]);
+	}
+
+	/**
+	 * @return a copy of the timestamps
+	 */
+	public long[] getTimes() {
+		return Arrays.copyOfRange(times, from, to);
+	}
+
+	/**
+	 * @return a copy of one dimension's values
+	 */
+	public double[] getColumn(int dim) {
+		return Arrays.copyOfRange(cols[dim], from, to);
+	}
+
+	/**
+	 * Zero-copy. Same semantics as {@link DataUtils#subStream(IDataStream, Time, Time)}.
+	 * @param start inclusive. Can be null
+	 * @param end exclusive. Can be null
+	 * @return a read-only view of the points in [start, end)
+	 */
+	public ColumnarDataStream slice(Time start, Time end) {
+		int a = start == null ? from : lowerBound(start.getTime());
+		int b = end == null ? to : lowerBound(end.getTime());
+		return new ColumnarDataStream(times, cols, a, Math.max(a, b), true);
+	}
+
+	/**
+	 * Zero-copy.
+	 * @return a read-only 1D view of dimension dim
+	 */
+	public ColumnarDataStream getColumnStream(int dim) {
+		return new ColumnarDataStream(times, new double[][] { cols[dim] }, from, to, true);
+	}
+
+	/**
+	 * @return first index in [from, to) with time >= t
+	 */
+	private int lowerBound(long t) {
+		int a = from, b = to;
+		while (a < b) {
+			int m = (a + b) >>> 1;
+			if (times[m] < t) a = m + 1;
+			else b = m;
+		}
+		return a;
+	}
+
+	/**
+	 * Sum (or average) into buckets of [start, start+size). Same as a
+	 * {@link BucketedDataStream} with default settings: the first bucket starts at the
+	 * first point, empty buckets are included (as 0), and the timestamps are bucket starts.
+	 * @param bucketSize
+	 * @param average If true, output the bucket means
+	 */
+	public ColumnarDataStream bucket(Dt bucketSize, boolean average) {
+		long step = bucketSize.getMillisecs();
+		assert step > 0 : bucketSize;
+		int dim = getDim();
+		if (isEmpty()) return new ColumnarDataStream(dim, 0);
+		long t0 = times[from];
+		int nb = (int) ((times[to - 1] - t0) / step) + 1;
+		long[] bt = new long[nb];
+		double[][] bv = new double[dim][nb];
+		int[] counts = average ? new int[nb] : null;
+		for (int b = 0; b < nb; b++) {
+			bt[b] = t0 + b * step;
+		}
+		for (int i = from; i < to; i++) {
+			int b = (int) ((times[i] - t0) / step);
+			for (int d = 0; d < dim; d++) {
+				bv[d][b] += cols[d][i];
+			}
+			if (average) counts[b]++;
+		}
+		if (average) {
+			for (int b = 0; b < nb; b++) {
+				if (counts[b] < 2) continue;
+				for (int d = 0; d < dim; d++) {
+					bv[d][b] /= counts[b];
+				}
+			}
+		}
+		return new ColumnarDataStream(bt, bv);
+	}
+
+	/**
+	 * Boxcar moving mean over time, as {@link MovingMeanDataStream}: one output per point,
+	 * with the same timestamp. O(n) via running sums.
+	 * @param window Total width of the window
+	 * @param trailing If true, the window is [t - window, t]. Else it is centred on t:
+	 * [t - window/2, t + window/2).
+	 */
+	public ColumnarDataStream movingMean(Dt window, boolean trailing) {
+		long w = window.getMillisecs();
+		int dim = getDim(), n = size();
+		long[] mt = getTimes();
+		double[][] mv = new double[dim][n];
+		double[] sum = new double[dim];
+		// the window is points [lo, hi)
+		int lo = from, hi = from;
+		for (int i = from; i < to; i++) {
+			long t = times[i];
+			long start = trailing ? t - w : t - w / 2;
+			long end = trailing ? t + 1 : t + w / 2;
+			while (hi < to && times[hi] < end) {
+				for (int d = 0; d < dim; d++) {
+					sum[d] += cols[d][hi];
+				}
+				hi++;
+			}
+			while (times[lo] < start) {
+				for (int d = 0; d < dim; d++) {
+					sum[d] -= cols[d][lo];
+				}
+				lo++;
+			}
+			int cnt = hi - lo;
+			for (int d = 0; d < dim; d++) {
+				mv[d][i - from] = sum[d] / cnt;
+			}
+		}
+		return new ColumnarDataStream(mt, mv);
+	}
+
+	/**
+	 * Resample onto a regular grid, from the first point, every step, up to the last
+	 * point. Values are linearly interpolated.
+	 * @param step
+	 */
+	public ColumnarDataStream resample(Dt step) {
+		long s = step.getMillisecs();
+		assert s > 0 : step;
+		int dim = getDim();
+		if (isEmpty()) return new ColumnarDataStream(dim, 0);
+		long t0 = times[from];
+		int n = (int) ((times[to - 1] - t0) / s) + 1;
+		long[] rt = new long[n];
+		double[][] rv = new double[dim][n];
+		// i = the last point at or before t
+		int i = from;
+		for (int k = 0; k < n; k++) {
+			long t = t0 + k * s;
+			rt[k] = t;
+			while (i + 1 < to && times[i + 1] <= t) i++;
+			if (i + 1 == to || times[i] == t) {
+				for (int d = 0; d < dim; d++) {
+					rv[d][k] = cols[d][i];
+				}
+				continue;
+			}
+			double f = (double) (t - times[i]) / (times[i + 1] - times[i]);
+			for (int d = 0; d < dim; d++) {
+				double a = cols[d][i];
+				rv[d][k] = a + f * (cols[d][i + 1] - a);
+			}
+		}
+		return new ColumnarDataStream(rt, rv);
+	}
+
+	/**
+	 * @return the sum of each dimension
+	 */
+	public double[] sum() {
+		double[] sum = new double[getDim()];
+		for (int d = 0; d < sum.length; d++) {
+			double[] col = cols[d];
+			double s = 0;
+			for (int i = from; i < to; i++) {
+				s += col[i];
+			}
+			sum[d] = s;
+		}
+		return sum;
+	}
+
+	/**
+	 * Makes a fresh Datum per point -- so prefer the array methods where you can.
+	 */
+	@Override
+	public AbstractIterator<Datum> iterator() {
+		return new AbstractIterator<Datum>() {
+			int i = from;
+			// fix the end, in case of add()s
+			final int end = to;
+
+			@Override
+			public double[] getProgress() {
+				return new double[] { i - from, end - from };
+			}
+
+			@Override
+			protected Datum next2() {
+				if (i >= end) return null;
+				double[] v = new double[cols.length];
+				for (int d = 0; d < v.length; d++) {
+					v[d] = cols[d][i];
+				}
+				Datum datum = new Datum(new Time(times[i]), v, null);
+				i++;
+				return datum;
+			}
+		};
+	}
+
+	@Override
+	public IDataStream factory(Object sourceSpecifier) throws ClassCastException {
+		return valueOf((IDataStream) sourceSpecifier);
+	}
+
+	private static boolean isSorted(long[] times) {
+		for (int i = 1; i < times.length; i++) {
+			if (times[i - 1] > times[i]) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + size() + " dim=" + getDim() + "]";
+	}
+
+}
@@ -154,6 +154,21 @@ public class DataUtils extends StatsUtils {
 	 */
 	public static String toJson(IDataStream data) {
 		JSONArray highchartsData = new JSONArray();
+		if (data instanceof ColumnarDataStream) {
+			// no Datum objects needed
+			ColumnarDataStream cds = (ColumnarDataStream) data;
+			assert cds.getDim() == 1 : cds;
+			long ancient = TimeUtils.ANCIENT.getTime();
+			for (int i = 0, n = cds.size(); i < n; i++) {
+				JSONObject point = new JSONObject();
+				if (cds.getTime(i) != ancient) {
+					point.put("x", cds.getTime(i));
+				}
+				point.put("y", cds.get(i, 0));
+				highchartsData.put(point);
+			}
+			return highchartsData.toString();
+		}
 		
 		for (Datum datum : data) {
 			JSONObject point = new JSONObject();
@@ -216,6 +231,10 @@ public class DataUtils extends StatsUtils {
 		assert baseData != null;
 		assert dimIndex < baseData.getDim()
 			: String.format("Request for dimension %d of %dD stream", dimIndex,baseData.getDim());
+		if (baseData instanceof ColumnarDataStream) {
+			// zero-copy
+			return ((ColumnarDataStream) baseData).getColumnStream(dimIndex);
+		}
 		return new ADataStream(1) {
 			private static final long serialVersionUID = 1L;
 
@@ -504,6 +523,10 @@ public class DataUtils extends StatsUtils {
 		if (start == null && end == null)
 			return stream;
 		assert !Utils.equals(start, end) : start;
+		if (stream instanceof ColumnarDataStream) {
+			// zero-copy
+			return ((ColumnarDataStream) stream).slice(start, end);
+		}
 		return new SubStream(stream, start, end);
 	}
 
@@ -515,6 +538,9 @@ public class DataUtils extends StatsUtils {
 	 */
 	public static Vector sum(IDataStream data) {
 		assert data.getDim() != 0 : data;
+		if (data instanceof ColumnarDataStream) {
+			return newVector(((ColumnarDataStream) data).sum());
+		}
 		Vector sum = DataUtils.newVector(data.getDim());
 		for (Datum datum : data) {
 //			if ( ! datum.isZero()) { // HACK debugging
@@ -535,6 +561,9 @@ public class DataUtils extends StatsUtils {
 	 * @see #toList(IDataStream, int)
 	 */
 	public static double[] toArray(Iterable<Datum> stream, int dim) {		
+		if (stream instanceof ColumnarDataStream) {
+			return ((ColumnarDataStream) stream).getColumn(dim);
+		}
 		ArrayList<Double> list = new ArrayList();
 		for (Datum datum : stream) {
 			list.add(datum.get(dim));
@@ -0,0 +1,110 @@
+package com.winterwell.maths.vector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.winterwell.utils.containers.Pair2;
+
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.Vector;
+import no.uib.cipr.matrix.VectorEntry;
+
+/**
+ * Point storage for {@link INearestNeighbourIndex}s: points are held as double[]s and
+ * referred to by int id (the order they were added).
+ */
+public abstract class ANearestNeighbourIndex<T> implements INearestNeighbourIndex<T> {
+
+	protected final int dim;
+
+	double[][] points = new double[16][];
+	Object[] items = new Object[16];
+	int n;
+
+	protected ANearestNeighbourIndex(int dim) {
+		assert dim > 0 : dim;
+		this.dim = dim;
+	}
+
+	@Override
+	public final int getDim() {
+		return dim;
+	}
+
+	@Override
+	public int size() {
+		return n;
+	}
+
+	@Override
+	public void clear() {
+		points = new double[16][];
+		items = new Object[16];
+		n = 0;
+	}
+
+	/**
+	 * @return the id of the new point
+	 */
+	final int addPoint(Vector point, T item) {
+		if (point.size() != dim) {
+			throw new IllegalArgumentException("dim " + point.size() + " != " + dim);
+		}
+		if (n == points.length) {
+			points = Arrays.copyOf(points, n * 2);
+			items = Arrays.copyOf(items, n * 2);
+		}
+		points[n] = toArray(point);
+		items[n] = item;
+		return n++;
+	}
+
+	final double dist2(double[] a, double[] b) {
+		double s = 0;
+		for (int i = 0; i < a.length; i++) {
+			double d = a[i] - b[i];
+			s += d * d;
+		}
+		return s;
+	}
+
+	/**
+	 * @param heap A max-heap of squared distances
+	 * @return the k nearest, nearest first, with Euclidean distances. Empties the heap.
+	 */
+	final List<Pair2<T, Double>> results(NNHeap heap, int k) {
+		while (heap.size() > k) heap.pop();
+		Pair2[] out = new Pair2[heap.size()];
+		for (int i = out.length - 1; i >= 0; i--) {
+			out[i] = new Pair2(items[heap.top()], Math.sqrt(heap.topKey()));
+			heap.pop();
+		}
+		return new ArrayList(Arrays.asList(out));
+	}
+
+	final double[] toQuery(Vector query) {
+		if (query.size() != dim) {
+			throw new IllegalArgumentException("dim " + query.size() + " != " + dim);
+		}
+		if (query instanceof DenseVector) return ((DenseVector) query).getData();
+		return toArray(query);
+	}
+
+	/**
+	 * @return a copy of v
+	 */
+	static double[] toArray(Vector v) {
+		if (v instanceof DenseVector) return ((DenseVector) v).getData().clone();
+		double[] a = new double[v.size()];
+		for (VectorEntry ve : v) {
+			a[ve.index()] = ve.get();
+		}
+		return a;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[dim=" + dim + " size=" + n + "]";
+	}
+}
@@ -0,0 +1,271 @@
+package com.winterwell.maths.vector;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.winterwell.utils.containers.Pair2;
+
+import no.uib.cipr.matrix.Vector;
+
+/**
+ * Approximate nearest-neighbour search with a Hierarchical Navigable Small World graph
+ * (Malkov &amp; Yashunin 2016). Good for high-dimensional data, e.g. word vectors, where
+ * a {@link KDTree} is no better than a scan. Queries are roughly O(log n).
+ * <p>
+ * Trade speed for recall with {@link #setEf(int)} (at query time), or M and efConstruction
+ * (at build time). The defaults (16, 200, 50) give ~95%+ recall@10 on typical embeddings.
+ * <p>
+ * add() is synchronized. getNearest() can run concurrently with other getNearest() calls,
+ * but NOT with add().
+ *
+ * @testedby {@link NearestNeighbourIndexTest}
+ */
+public final class HNSWIndex<T> extends ANearestNeighbourIndex<T> {
+
+	private static final int MAX_LEVEL = 16;
+
+	/**
+	 * Max links per node on the upper levels (level 0 allows 2M)
+	 */
+	private final int m;
+	private final int efConstruction;
+	private final double mL;
+	private int ef = 50;
+	private final Random random;
+
+	/**
+	 * links[id][level] = {count, neighbour ids...}
+	 */
+	private int[][][] links = new int[16][][];
+	private int entry = -1;
+	private int maxLevel = -1;
+
+	private final ThreadLocal<Visited> visited = ThreadLocal.withInitial(Visited::new);
+
+	public HNSWIndex(int dim) {
+		this(dim, 16, 200);
+	}
+
+	/**
+	 * @param dim
+	 * @param m Links per node. Higher = better recall, more memory, slower build.
+	 * @param efConstruction Search breadth when inserting. Higher = better graph, slower build.
+	 */
+	public HNSWIndex(int dim, int m, int efConstruction) {
+		super(dim);
+		assert m > 1 && efConstruction > 0;
+		this.m = m;
+		this.efConstruction = efConstruction;
+		this.mL = 1 / Math.log(m);
+		this.random = new Random(42);
+	}
+
+	/**
+	 * @param ef Search breadth for queries (at least k is used). Default 50.
+	 */
+	public HNSWIndex<T> setEf(int ef) {
+		this.ef = ef;
+		return this;
+	}
+
+	@Override
+	public synchronized void add(Vector point, T item) {
+		int id = addPoint(point, item);
+		int level = Math.min(MAX_LEVEL, (int) (-Math.log(1 - random.nextDouble()) * mL));
+		if (id == links.length) {
+			links = Arrays.copyOf(links, id * 2);
+		}
+		links[id] = new int[level + 1][];
+		for (int l = 0; l <= level; l++) {
+			links[id][l] = new int[maxLinks(l) + 1];
+		}
+		if (entry == -1) {
+			entry = id;
+			maxLevel = level;
+			return;
+		}
+		double[] q = points[id];
+		int ep = greedy(q, entry, maxLevel, level);
+		for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+			NNHeap w = searchLayer(q, ep, efConstruction, l);
+			int[] ids = new int[w.size()];
+			double[] ds = new double[w.size()];
+			drain(w, ids, ds);
+			ep = ids[0];
+			int[] chosen = selectNeighbours(ids, ds, ids.length, m);
+			int[] mine = links[id][l];
+			System.arraycopy(chosen, 0, mine, 1, chosen.length);
+			mine[0] = chosen.length;
+			for (int nb : chosen) {
+				connect(nb, id, l);
+			}
+		}
+		if (level > maxLevel) {
+			maxLevel = level;
+			entry = id;
+		}
+	}
+
+	private int maxLinks(int level) {
+		return level == 0 ? 2 * m : m;
+	}
+
+	/**
+	 * Add a link from -> to, pruning from's links if over capacity.
+	 */
+	private void connect(int from, int to, int level) {
+		int[] fl = links[from][level];
+		int cnt = fl[0];
+		if (cnt < fl.length - 1) {
+			fl[cnt + 1] = to;
+			fl[0] = cnt + 1;
+			return;
+		}
+		// full: re-select from the old links + the new one
+		double[] x = points[from];
+		NNHeap h = new NNHeap(cnt + 1, true);
+		for (int i = 1; i <= cnt; i++) {
+			h.push(dist2(x, points[fl[i]]), fl[i]);
+		}
+		h.push(dist2(x, points[to]), to);
+		int[] ids = new int[cnt + 1];
+		double[] ds = new double[cnt + 1];
+		drain(h, ids, ds);
+		int[] chosen = selectNeighbours(ids, ds, ids.length, cnt);
+		System.arraycopy(chosen, 0, fl, 1, chosen.length);
+		fl[0] = chosen.length;
+	}
+
+	/**
+	 * The neighbour-selection heuristic: skip a candidate if it is closer to an
+	 * already-chosen neighbour than to the base point (it is reachable via that one).
+	 * Then top up with the skipped ones. This keeps links pointing in diverse directions.
+	 * @param ids Candidates, nearest first
+	 * @param ds Their squared distances to the base point
+	 */
+	private int[] selectNeighbours(int[] ids, double[] ds, int len, int max) {
+		int[] out = new int[Math.min(max, len)];
+		boolean[] used = new boolean[len];
+		int k = 0;
+		for (int i = 0; i < len && k < out.length; i++) {
+			double[] c = points[ids[i]];
+			boolean keep = true;
+			for (int j = 0; j < k; j++) {
+				if (dist2(c, points[out[j]]) < ds[i]) {
+					keep = false;
+					break;
+				}
+			}
+			if (keep) {
+				out[k++] = ids[i];
+				used[i] = true;
+			}
+		}
+		for (int i = 0; i < len && k < out.length; i++) {
+			if ( ! used[i]) out[k++] = ids[i];
+		}
+		return out;
+	}
+
+	/**
+	 * Pop a max-heap into arrays, nearest first
+	 */
+	private static void drain(NNHeap heap, int[] ids, double[] ds) {
+		for (int i = heap.size() - 1; i >= 0; i--) {
+			ids[i] = heap.top();
+			ds[i] = heap.topKey();
+			heap.pop();
+		}
+	}
+
+	/**
+	 * Greedy descent through the levels above stopLevel
+	 */
+	private int greedy(double[] q, int ep, int fromLevel, int stopLevel) {
+		for (int l = fromLevel; l > stopLevel; l--) {
+			NNHeap w = searchLayer(q, ep, 1, l);
+			ep = w.top();
+		}
+		return ep;
+	}
+
+	/**
+	 * Best-first search of one level.
+	 * @return a max-heap of up to ef nearest (squared distance, id)
+	 */
+	private NNHeap searchLayer(double[] q, int ep, int ef, int level) {
+		Visited vis = visited.get().reset(n);
+		NNHeap candidates = new NNHeap(ef * 2, false);
+		NNHeap found = new NNHeap(ef + 1, true);
+		double d = dist2(q, points[ep]);
+		candidates.push(d, ep);
+		found.push(d, ep);
+		vis.visit(ep);
+		while (candidates.size() != 0) {
+			if (candidates.topKey() > found.topKey() && found.size() >= ef) break;
+			int c = candidates.top();
+			candidates.pop();
+			int[] nbs = links[c][level];
+			for (int i = 1, cnt = nbs[0]; i <= cnt; i++) {
+				int e = nbs[i];
+				if ( ! vis.visit(e)) continue;
+				double de = dist2(q, points[e]);
+				if (found.size() < ef || de < found.topKey()) {
+					candidates.push(de, e);
+					found.push(de, e);
+					if (found.size() > ef) found.pop();
+				}
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public List<Pair2<T, Double>> getNearest(Vector query, int k) {
+		double[] q = toQuery(query);
+		if (entry == -1 || k < 1) return results(new NNHeap(0, true), 0);
+		int ep = greedy(q, entry, maxLevel, 0);
+		NNHeap w = searchLayer(q, ep, Math.max(ef, k), 0);
+		return results(w, k);
+	}
+
+	@Override
+	public synchronized void clear() {
+		super.clear();
+		links = new int[16][][];
+		entry = -1;
+		maxLevel = -1;
+	}
+
+	/**
+	 * Visited-set with generation stamps, so a search does not need an O(n) reset.
+	 */
+	private static final class Visited {
+		int[] marks = new int[0];
+		int stamp;
+
+		Visited reset(int n) {
+			if (marks.length < n) {
+				marks = new int[Math.max(n, marks.length * 2)];
+				stamp = 0;
+			}
+			stamp++;
+			if (stamp == Integer.MAX_VALUE) {
+				Arrays.fill(marks, 0);
+				stamp = 1;
+			}
+			return this;
+		}
+
+		/**
+		 * @return true if this is the first visit
+		 */
+		boolean visit(int id) {
+			if (marks[id] == stamp) return false;
+			marks[id] = stamp;
+			return true;
+		}
+	}
+
+}
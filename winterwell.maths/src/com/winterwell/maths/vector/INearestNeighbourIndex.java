@@ -0,0 +1,50 @@
+package com.winterwell.maths.vector;
+
+import java.util.List;
+
+import com.winterwell.utils.containers.Pair2;
+
+import no.uib.cipr.matrix.Vector;
+
+/**
+ * An index of vectors (each with an attached item) for fast top-k nearest-neighbour
+ * queries under Euclidean distance. For cosine similarity, add unit vectors.
+ *
+ * @see KDTree exact, good for low dimensions
+ * @see HNSWIndex approximate, good for high-dimensional embeddings
+ * @see VectorDB which picks one for you
+ * @param <T> The item type
+ */
+public interface INearestNeighbourIndex<T> {
+
+	/**
+	 * Add a point. The vector is copied.
+	 */
+	void add(Vector point, T item);
+
+	/**
+	 * Batch add. Implementations may build more efficiently than via repeated add().
+	 * @param points
+	 * @param items Same length as points
+	 */
+	default void addAll(List<? extends Vector> points, List<? extends T> items) {
+		assert points.size() == items.size() : points.size() + " vs " + items.size();
+		for (int i = 0; i < points.size(); i++) {
+			add(points.get(i), items.get(i));
+		}
+	}
+
+	/**
+	 * @param query
+	 * @param k
+	 * @return up to k (item, distance) pairs, nearest first
+	 */
+	List<Pair2<T, Double>> getNearest(Vector query, int k);
+
+	int size();
+
+	int getDim();
+
+	void clear();
+
+}
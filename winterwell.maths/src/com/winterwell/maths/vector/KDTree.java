@@ -0,0 +1,195 @@
+package com.winterwell.maths.vector;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.winterwell.utils.containers.Pair2;
+
+import no.uib.cipr.matrix.Vector;
+
+/**
+ * Exact nearest-neighbour search with a k-d tree. Good for low dimensions (say &lt; 20);
+ * beyond that it degrades towards a linear scan -- use {@link HNSWIndex}.
+ * <p>
+ * {@link #addAll(List, List)} builds a balanced tree (median splits on the widest
+ * dimension). {@link #add(Vector, Object)} inserts into a leaf, splitting it when full,
+ * which can unbalance the tree -- call {@link #rebuild()} after lots of inserts.
+ * <p>
+ * Not thread-safe for add(). Concurrent getNearest() calls are fine.
+ *
+ * @testedby {@link NearestNeighbourIndexTest}
+ */
+public final class KDTree<T> extends ANearestNeighbourIndex<T> {
+
+	static final int LEAF_SIZE = 16;
+
+	private static final class Node {
+		/**
+		 * -1 for a leaf
+		 */
+		int splitDim = -1;
+		double split;
+		/**
+		 * left has coordinates &lt;= split, right &gt;= split
+		 */
+		Node left, right;
+		int[] bucket;
+		int count;
+	}
+
+	private Node root;
+
+	public KDTree(int dim) {
+		super(dim);
+	}
+
+	/**
+	 * Batch build
+	 */
+	public KDTree(List<? extends Vector> points, List<? extends T> items) {
+		super(points.get(0).size());
+		addAll(points, items);
+	}
+
+	@Override
+	public void add(Vector point, T item) {
+		int id = addPoint(point, item);
+		if (root == null) {
+			root = new Node();
+			root.bucket = new int[LEAF_SIZE];
+		}
+		double[] x = points[id];
+		Node node = root;
+		while (node.splitDim != -1) {
+			node = x[node.splitDim] < node.split ? node.left : node.right;
+		}
+		if (node.count == node.bucket.length) {
+			node.bucket = Arrays.copyOf(node.bucket, node.count * 2);
+		}
+		node.bucket[node.count++] = id;
+		if (node.count > 2 * LEAF_SIZE) {
+			Node b = build(Arrays.copyOf(node.bucket, node.count), 0, node.count);
+			node.splitDim = b.splitDim;
+			node.split = b.split;
+			node.left = b.left;
+			node.right = b.right;
+			node.bucket = b.bucket;
+			node.count = b.count;
+		}
+	}
+
+	/**
+	 * Adds the points, then rebuilds a balanced tree.
+	 */
+	@Override
+	public void addAll(List<? extends Vector> points, List<? extends T> items) {
+		assert points.size() == items.size() : points.size() + " vs " + items.size();
+		for (int i = 0; i < points.size(); i++) {
+			addPoint(points.get(i), items.get(i));
+		}
+		rebuild();
+	}
+
+	/**
+	 * Rebuild a balanced tree. O(n log n)
+	 */
+	public void rebuild() {
+		int[] ids = new int[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = i;
+		}
+		root = n == 0 ? null : build(ids, 0, n);
+	}
+
+	private Node build(int[] ids, int lo, int hi) {
+		Node node = new Node();
+		int splitDim = hi - lo <= LEAF_SIZE ? -1 : widestDim(ids, lo, hi);
+		if (splitDim == -1) {
+			node.bucket = Arrays.copyOfRange(ids, lo, Math.max(hi, lo + LEAF_SIZE));
+			node.count = hi - lo;
+			return node;
+		}
+		int mid = (lo + hi) >>> 1;
+		select(ids, lo, hi - 1, mid, splitDim);
+		node.splitDim = splitDim;
+		node.split = points[ids[mid]][splitDim];
+		node.left = build(ids, lo, mid);
+		node.right = build(ids, mid, hi);
+		return node;
+	}
+
+	/**
+	 * @return the dimension with the biggest spread, or -1 if all the points are the same
+	 */
+	private int widestDim(int[] ids, int lo, int hi) {
+		int best = -1;
+		double bestSpread = 0;
+		for (int d = 0; d < dim; d++) {
+			double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+			for (int i = lo; i < hi; i++) {
+				double v = points[ids[i]][d];
+				if (v < min) min = v;
+				if (v > max) max = v;
+			}
+			if (max - min > bestSpread) {
+				bestSpread = max - min;
+				best = d;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Quickselect: partially sort ids[lo..hi] (inclusive) so ids[k] is in place by coordinate d.
+	 */
+	private void select(int[] ids, int lo, int hi, int k, int d) {
+		while (lo < hi) {
+			double pivot = points[ids[(lo + hi) >>> 1]][d];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (points[ids[i]][d] < pivot) i++;
+				while (points[ids[j]][d] > pivot) j--;
+				if (i <= j) {
+					int t = ids[i];
+					ids[i] = ids[j];
+					ids[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return;
+		}
+	}
+
+	@Override
+	public List<Pair2<T, Double>> getNearest(Vector query, int k) {
+		double[] q = toQuery(query);
+		NNHeap heap = new NNHeap(k, true);
+		if (root != null && k > 0) search(root, q, heap, k);
+		return results(heap, k);
+	}
+
+	private void search(Node node, double[] q, NNHeap heap, int k) {
+		if (node.splitDim == -1) {
+			for (int i = 0; i < node.count; i++) {
+				int id = node.bucket[i];
+				heap.offer(dist2(q, points[id]), id, k);
+			}
+			return;
+		}
+		double diff = q[node.splitDim] - node.split;
+		search(diff < 0 ? node.left : node.right, q, heap, k);
+		if (heap.size() < k || diff * diff < heap.topKey()) {
+			search(diff < 0 ? node.right : node.left, q, heap, k);
+		}
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		root = null;
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.winterwell.maths.vector;
+
+import java.util.Arrays;
+
+/**
+ * A binary heap of (distance, point-id) pairs, without boxing.
+ * Used by the nearest-neighbour indexes.
+ */
+final class NNHeap {
+
+	private double[] keys;
+	private int[] ids;
+	private int size;
+	/**
+	 * true: largest key on top. false: smallest on top
+	 */
+	private final boolean max;
+
+	NNHeap(int capacity, boolean max) {
+		keys = new double[Math.max(capacity, 4)];
+		ids = new int[keys.length];
+		this.max = max;
+	}
+
+	int size() {
+		return size;
+	}
+
+	double topKey() {
+		return keys[0];
+	}
+
+	int top() {
+		return ids[0];
+	}
+
+	void push(double key, int id) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		int i = size++;
+		while (i > 0) {
+			int p = (i - 1) >>> 1;
+			if ( ! above(key, keys[p])) break;
+			keys[i] = keys[p];
+			ids[i] = ids[p];
+			i = p;
+		}
+		keys[i] = key;
+		ids[i] = id;
+	}
+
+	void pop() {
+		size--;
+		if (size == 0) return;
+		double key = keys[size];
+		int id = ids[size];
+		int i = 0;
+		while (true) {
+			int c = 2 * i + 1;
+			if (c >= size) break;
+			if (c + 1 < size && above(keys[c + 1], keys[c])) c++;
+			if ( ! above(keys[c], key)) break;
+			keys[i] = keys[c];
+			ids[i] = ids[c];
+			i = c;
+		}
+		keys[i] = key;
+		ids[i] = id;
+	}
+
+	/**
+	 * Keep the k best (i.e. smallest) keys. Only for max-heaps.
+	 */
+	void offer(double key, int id, int k) {
+		assert max;
+		if (size < k) {
+			push(key, id);
+		} else if (key < keys[0]) {
+			pop();
+			push(key, id);
+		}
+	}
+
+	private boolean above(double a, double b) {
+		return max ? a > b : a < b;
+	}
+
+}
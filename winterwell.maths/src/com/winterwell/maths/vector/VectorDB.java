@@ -1,18 +1,75 @@
 package com.winterwell.maths.vector;
 
+import java.util.List;
+
+import com.winterwell.utils.containers.Pair2;
+
+import no.uib.cipr.matrix.Vector;
+
 /**
- * TODO Problem: how to perform nearest-neighbours search against a store of
- * high-dimensional vectors?
- * 
- * Solutions: - index a random subspace - index the high eigenvectors - cluster,
- * then use clusters?? - hash buckets? or ordering? (hash buckets seem to be
- * more popular) Parameter Sensitive Hashing (PSH) The trick: Estimate
- * performance of different hash functions on examples
- * 
- * 
+ * A store of vectors with nearest-neighbours search. Picks the index by dimension:
+ * an exact {@link KDTree} for low dimensions, an approximate {@link HNSWIndex} for high ones
+ * (where space-partitioning trees degrade to a linear scan).
+ * <p>
+ * Old notes on other approaches: index a random subspace; index the high eigenvectors;
+ * cluster, then use clusters; hash buckets, e.g. Parameter Sensitive Hashing (PSH).
+ *
+ * @testedby {@link NearestNeighbourIndexTest}
  * @author daniel
- * 
  */
-public class VectorDB {
+public class VectorDB<T> implements INearestNeighbourIndex<T> {
+
+	/**
+	 * Above this, use HNSW
+	 */
+	static final int MAX_KDTREE_DIM = 16;
+
+	private final INearestNeighbourIndex<T> index;
+
+	public VectorDB(int dim) {
+		this(dim <= MAX_KDTREE_DIM ? new KDTree<T>(dim) : new HNSWIndex<T>(dim));
+	}
+
+	public VectorDB(INearestNeighbourIndex<T> index) {
+		this.index = index;
+	}
+
+	public INearestNeighbourIndex<T> getIndex() {
+		return index;
+	}
+
+	@Override
+	public void add(Vector point, T item) {
+		index.add(point, item);
+	}
+
+	@Override
+	public void addAll(List<? extends Vector> points, List<? extends T> items) {
+		index.addAll(points, items);
+	}
+
+	@Override
+	public List<Pair2<T, Double>> getNearest(Vector query, int k) {
+		return index.getNearest(query, k);
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public int getDim() {
+		return index.getDim();
+	}
+
+	@Override
+	public void clear() {
+		index.clear();
+	}
 
+	@Override
+	public String toString() {
+		return "VectorDB[" + index + "]";
+	}
 }
@@ -0,0 +1,69 @@
+package com.winterwell.maths.datastorage;
+
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.junit.Test;
+
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Containers;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.StopWatch;
+
+/**
+ * Multi-threaded word-counting throughput: {@link HalfLifeMap} v {@link ConcurrentHalfLifeMap}.
+ */
+public class ConcurrentHalfLifeMapPerfTest {
+
+	static final int OPS_PER_THREAD = 200000;
+
+	@Test
+	public void testThroughput() throws InterruptedException {
+		Log.setMinLevel(Level.OFF);
+		Utils.PowerLawDistribution dist = new Utils.PowerLawDistribution(0.1);
+		// pre-generate the words, so we time the map, not the random numbers
+		String[] words = new String[OPS_PER_THREAD];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = dist.getRandomString(4);
+		}
+		for (int threads : new int[] {1, 2, 4, 8}) {
+			// HalfLifeMap is not a ConcurrentMap, so counting has to lock the map
+			double a = throughput(new HalfLifeMap<String, Double>(25000), words, threads, true);
+			double b = throughput(new ConcurrentHalfLifeMap<String, Double>(25000), words, threads, false);
+			System.out.println(threads + " threads: HalfLifeMap " + StrUtils.toNSigFigs(a, 3)
+				+ " v ConcurrentHalfLifeMap " + StrUtils.toNSigFigs(b, 3) + " ops/ms\t"
+				+ StrUtils.toNSigFigs(b / a, 2) + "x");
+		}
+	}
+
+	/**
+	 * @return ops per millisecond
+	 */
+	private double throughput(Map<String, Double> map, String[] words, int nThreads, boolean lock)
+			throws InterruptedException
+	{
+		Thread[] threads = new Thread[nThreads];
+		for (int t = 0; t < nThreads; t++) {
+			final int offset = t * 7919;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < words.length; i++) {
+					String w = words[(i + offset) % words.length];
+					if (lock) {
+						synchronized (map) {
+							Containers.plus(map, w, 1);
+						}
+					} else {
+						Containers.plus(map, w, 1);
+					}
+				}
+			});
+		}
+		StopWatch sw = new StopWatch();
+		for (Thread t : threads) t.start();
+		for (Thread t : threads) t.join();
+		long ms = Math.max(1, sw.getTime());
+		return 1.0 * nThreads * words.length / ms;
+	}
+
+}
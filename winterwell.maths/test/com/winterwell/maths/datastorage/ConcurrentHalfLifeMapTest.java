@@ -0,0 +1,161 @@
+package com.winterwell.maths.datastorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Containers;
+
+/**
+ * @tested {@link ConcurrentHalfLifeMap}
+ */
+public class ConcurrentHalfLifeMapTest {
+
+	@Test
+	public void testForgetting() {
+		String[] sa = "1 2 3 4 5 6 7 8 9 10".split(" ");
+		String[] sb = "6 7 8 9 10 11 12 13 14 15".split(" ");
+		ConcurrentHalfLifeMap<String,String> index = new ConcurrentHalfLifeMap<String,String>(10);
+		// see LOTS of sa
+		for (int i = 0; i < 1000; i++) {
+			for (String x : sa) {
+				index.put(x, x);
+				index.get(x);
+			}
+		}
+		// see some of sb
+		for (int i = 0; i < 5; i++) {
+			for (String x : sb) {
+				index.put(x, x);
+				index.get(x);
+			}
+		}
+		assert index.size() == 15 : index;
+		assert index.containsKey("2");
+		assert index.containsKey("11");
+		// prune: keep sa
+		index.prune();
+		assert index.size() == 10 : index.size();
+		for (String x : sa) {
+			assert index.containsKey(x) : x;
+		}
+		assert index.getPrunedCount() == 5;
+	}
+
+	@Test
+	public void testInflationaryDecay() {
+		// devalue every 10 gets
+		ConcurrentHalfLifeMap<String,String> map = new ConcurrentHalfLifeMap<String,String>(1);
+		map.put("a", "A");
+		map.put("b", "B");
+		for (int i = 0; i < 10; i++) {
+			map.get("a");
+		}
+		assert Math.abs(map.getCount("b") - 0.9) < 1e-9 : map.getCount("b");
+		assert Math.abs(map.getCount("a") - 9.9) < 1e-9 : map.getCount("a");
+		// a put is a boost too
+		map.put("b", "B2");
+		assert Math.abs(map.getCount("b") - 1.9) < 1e-9 : map.getCount("b");
+		assert map.get("b").equals("B2");
+	}
+
+	@Test
+	public void testRebase() {
+		ConcurrentHalfLifeMap<String,String> map = new ConcurrentHalfLifeMap<String,String>(10);
+		map.put("a", "A");
+		map.put("b", "B");
+		map.get("b");
+		// enough to overflow the unit (1/0.9 ^ 2200 ~ 10^100)
+		for (int i = 0; i < 2500; i++) {
+			map.devalue();
+		}
+		double a = map.getCount("a");
+		double b = map.getCount("b");
+		assert a > 0 && a < 1e-100 : a;
+		assert Math.abs(b / a - 2) < 1e-9 : b / a;
+		map.get("a");
+		assert Math.abs(map.getCount("a") - 1) < 1e-9 : map.getCount("a");
+	}
+
+	@Test
+	public void testBackgroundPrune() {
+		ConcurrentHalfLifeMap<String, Double> map = new ConcurrentHalfLifeMap<String, Double>(10);
+		map.setTrackPrunedValue(true);
+		List<String> heard = new ArrayList();
+		map.addListener(new IPruneListener<String, Double>() {
+			@Override
+			public void pruneEvent(List<Map.Entry<String, Double>> pruned) {
+				synchronized (heard) {
+					for (Map.Entry<String, Double> e : pruned) {
+						heard.add(e.getKey());
+					}
+				}
+			}
+		});
+		for (int i = 0; i < 21; i++) {
+			map.put("k" + i, 2.0);
+		}
+		for (int i = 0; i < 50 && map.getPrunedCount() == 0; i++) {
+			Utils.sleep(10);
+		}
+		Utils.sleep(10);
+		assert map.getPrunedCount() == 11 : map.getPrunedCount();
+		assert map.size() == 10 : map;
+		synchronized (heard) {
+			assert heard.size() == 11 : heard;
+			for (String k : heard) {
+				assert ! map.containsKey(k) : k;
+			}
+		}
+		assert map.getPrunedValue() == 22 : map.getPrunedValue();
+	}
+
+	@Test
+	public void testConcurrentCounting() throws InterruptedException {
+		ConcurrentHalfLifeMap<String, Double> map = new ConcurrentHalfLifeMap<String, Double>(100);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					Containers.plus(map, "w" + (i % 50), 1);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		double total = 0;
+		for (Double v : map.values()) {
+			total += v;
+		}
+		assert map.size() == 50 : map;
+		assert total == 80000 : total;
+	}
+
+	@Test
+	public void testSizeBounded() throws InterruptedException {
+		ConcurrentHalfLifeMap<String, Integer> map = new ConcurrentHalfLifeMap<String, Integer>(1000);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int tt = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 50000; i++) {
+					map.put("t" + tt + "_" + i, i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		Utils.sleep(100); // let any background prune finish
+		assert map.size() <= 4 * map.getIdealSize() + threads.length : map.size();
+		assert map.size() == map.keySet().size() : map.size() + " vs " + map.keySet().size();
+		assert map.getPrunedCount() + map.size() == 8 * 50000;
+	}
+
+}
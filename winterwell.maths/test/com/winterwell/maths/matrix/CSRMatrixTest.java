@@ -0,0 +1,162 @@
+package com.winterwell.maths.matrix;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import no.uib.cipr.matrix.DenseMatrix;
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.MatrixEntry;
+import no.uib.cipr.matrix.Vector;
+import no.uib.cipr.matrix.sparse.SparseVector;
+
+/**
+ * @tested {@link CSRMatrix}, {@link CSCMatrix}, {@link SparseMatrixBuilder}
+ */
+public class CSRMatrixTest {
+
+	@Test
+	public void testBuild() {
+		SparseMatrixBuilder b = new SparseMatrixBuilder(3, 4);
+		b.add(2, 3, 1).add(0, 1, 2).add(2, 0, 3).add(0, 1, 5) // duplicate: summed
+			.add(1, 2, 4).add(1, 2, -4); // sums to zero: dropped
+		CSRMatrix csr = b.buildCSR();
+		assert csr.nnz() == 3 : csr.nnz();
+		assert csr.get(0, 1) == 7;
+		assert csr.get(2, 0) == 3;
+		assert csr.get(2, 3) == 1;
+		assert csr.get(1, 2) == 0;
+		assert csr.get(0, 0) == 0;
+		CSCMatrix csc = b.buildCSC();
+		assert csc.nnz() == 3;
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 4; j++) {
+				assert csc.get(i, j) == csr.get(i, j);
+			}
+		}
+		// edit an existing entry ok
+		csr.set(2, 0, 10);
+		assert csr.get(2, 0) == 10;
+		csr.add(2, 0, 1);
+		assert csr.get(2, 0) == 11;
+		// a new entry is not
+		try {
+			csr.set(1, 1, 5);
+			assert false;
+		} catch (IndexOutOfBoundsException ex) {
+			// good
+		}
+	}
+
+	@Test
+	public void testIterator() {
+		CSRMatrix csr = new SparseMatrixBuilder(3, 3).add(2, 2, 9).add(0, 1, 1).add(0, 0, 2).buildCSR();
+		StringBuilder sb = new StringBuilder();
+		for (MatrixEntry me : csr) {
+			sb.append(me.row() + "," + me.column() + "=" + me.get() + " ");
+		}
+		assert sb.toString().equals("0,0=2.0 0,1=1.0 2,2=9.0 ") : sb;
+		sb = new StringBuilder();
+		for (MatrixEntry me : csr.toCSC()) {
+			sb.append(me.row() + "," + me.column() + " ");
+		}
+		assert sb.toString().equals("0,0 0,1 2,2 ") : sb;
+	}
+
+	@Test
+	public void testMultAdd() {
+		Random r = new Random(1);
+		int m = 40, n = 30;
+		DenseMatrix dense = new DenseMatrix(m, n);
+		SparseMatrixBuilder b = new SparseMatrixBuilder(m, n);
+		for (int k = 0; k < 150; k++) {
+			int i = r.nextInt(m), j = r.nextInt(n);
+			double v = r.nextGaussian();
+			dense.add(i, j, v);
+			b.add(i, j, v);
+		}
+		CSRMatrix csr = b.buildCSR();
+		CSCMatrix csc = b.buildCSC();
+		DenseVector x = randomVector(r, n);
+		DenseVector xt = randomVector(r, m);
+		Vector expected = dense.multAdd(2, x, new DenseVector(m));
+		Vector expectedT = dense.transMultAdd(2, xt, new DenseVector(n));
+		for (CompressedMatrix a : new CompressedMatrix[] { csr, csc }) {
+			assertClose(expected, a.multAdd(2, x, new DenseVector(m)));
+			assertClose(expectedT, a.transMultAdd(2, xt, new DenseVector(n)));
+			// sparse in, sparse out
+			assertClose(expected, a.multAdd(2, new SparseVector(x), new SparseVector(m)));
+		}
+		// the transpose view
+		assertClose(expectedT, csr.getTranspose().multAdd(2, xt, new DenseVector(n)));
+	}
+
+	@Test
+	public void testParallelMultAdd() {
+		int old = CompressedMatrix.PARALLEL_NNZ;
+		try {
+			CompressedMatrix.PARALLEL_NNZ = 10;
+			Random r = new Random(2);
+			int m = 500, n = 200;
+			DenseMatrix dense = new DenseMatrix(m, n);
+			SparseMatrixBuilder b = new SparseMatrixBuilder(m, n);
+			for (int k = 0; k < 5000; k++) {
+				int i = r.nextInt(m), j = r.nextInt(n);
+				double v = r.nextGaussian();
+				dense.add(i, j, v);
+				b.add(i, j, v);
+			}
+			DenseVector x = randomVector(r, n);
+			assertClose(dense.multAdd(1, x, new DenseVector(m)), b.buildCSR().multAdd(1, x, new DenseVector(m)));
+			DenseVector xt = randomVector(r, m);
+			assertClose(dense.transMultAdd(1, xt, new DenseVector(n)),
+					b.buildCSC().transMultAdd(1, xt, new DenseVector(n)));
+		} finally {
+			CompressedMatrix.PARALLEL_NNZ = old;
+		}
+	}
+
+	@Test
+	public void testSlicing() {
+		SparseMatrixBuilder b = new SparseMatrixBuilder(4, 3);
+		b.add(0, 0, 1).add(1, 2, 2).add(2, 1, 3).add(3, 2, 4).add(3, 0, 5);
+		CSRMatrix csr = b.buildCSR();
+		CSCMatrix csc = csr.toCSC();
+		SparseVector row3 = csr.getRow(3);
+		assert row3.size() == 3 && row3.get(0) == 5 && row3.get(2) == 4 && row3.getUsed() == 2;
+		SparseVector col2 = csc.getColumn(2);
+		assert col2.size() == 4 && col2.get(1) == 2 && col2.get(3) == 4 && col2.getUsed() == 2;
+		assert csr.getColumn(2).get(3) == 4;
+		assert csc.getRow(3).get(0) == 5;
+
+		CSRMatrix rows = csr.getRows(1, 3);
+		assert rows.numRows() == 2 && rows.nnz() == 2;
+		assert rows.get(0, 2) == 2 && rows.get(1, 1) == 3;
+		CSCMatrix cols = csc.getColumns(2, 3);
+		assert cols.numColumns() == 1 && cols.nnz() == 2;
+		assert cols.get(3, 0) == 4;
+
+		CSRMatrix back = csc.toCSR();
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 3; j++) {
+				assert back.get(i, j) == csr.get(i, j);
+				assert csr.getTranspose().get(j, i) == csr.get(i, j);
+			}
+		}
+	}
+
+	private static DenseVector randomVector(Random r, int n) {
+		DenseVector x = new DenseVector(n);
+		for (int i = 0; i < n; i++) {
+			x.set(i, r.nextGaussian());
+		}
+		return x;
+	}
+
+	private static void assertClose(Vector expected, Vector actual) {
+		assert expected.size() == actual.size();
+		for (int i = 0; i < expected.size(); i++) {
+			assert Math.abs(expected.get(i) - actual.get(i)) < 1e-9 : i + " " + expected.get(i) + " vs " + actual.get(i);
+		}
+	}
+}
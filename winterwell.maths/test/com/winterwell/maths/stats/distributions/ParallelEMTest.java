@@ -0,0 +1,109 @@
+package com.winterwell.maths.stats.distributions;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @tested {@link ParallelEM}
+ */
+public class ParallelEMTest {
+
+	static final double[][] CENTRES = { { 0, 0 }, { 10, 0 }, { 0, 10 } };
+
+	static double[][] data(int n, int dim, long seed) {
+		Random r = new Random(seed);
+		double[][] data = new double[n][dim];
+		for (int i = 0; i < n; i++) {
+			double[] c = CENTRES[i % CENTRES.length];
+			for (int d = 0; d < dim; d++) {
+				data[i][d] = (d < c.length ? c[d] : 0) + r.nextGaussian();
+			}
+		}
+		return data;
+	}
+
+	@Test
+	public void testRecoversClusters() {
+		double[][] data = data(30000, 2, 1);
+		ParallelEM em = new ParallelEM().setThreads(4).init(data, 3).fit(data);
+		assertFound(em);
+		// converged before the limit
+		assert em.getIterations() < 50 : em.getIterations();
+	}
+
+	@Test
+	public void testThreadsMatchSerial() {
+		double[][] data = data(20000, 3, 2);
+		ParallelEM serial = new ParallelEM().setThreads(1).setTolerance(0).setMaxIterations(10).init(data, 3).fit(data);
+		ParallelEM par = new ParallelEM().setThreads(8).setTolerance(0).setMaxIterations(10).init(data, 3).fit(data);
+		assert Arrays.deepEquals(serial.getMeans(), par.getMeans());
+		assert Arrays.deepEquals(serial.getVars(), par.getVars());
+		assert Arrays.equals(serial.getWeights(), par.getWeights());
+		assert serial.getLogLikelihood() == par.getLogLikelihood();
+		// and mini-batch too
+		serial = new ParallelEM().setThreads(1).setBatchSize(5000).setMaxIterations(3).init(data, 3).fit(data);
+		par = new ParallelEM().setThreads(8).setBatchSize(5000).setMaxIterations(3).init(data, 3).fit(data);
+		assert Arrays.deepEquals(serial.getMeans(), par.getMeans());
+	}
+
+	@Test
+	public void testMiniBatch() {
+		double[][] data = data(30000, 2, 3);
+		ParallelEM em = new ParallelEM().setBatchSize(1000).init(data, 3).fit(data);
+		assertFound(em);
+	}
+
+	@Test
+	public void testHighDimensionsNoUnderflow() {
+		// densities here are ~e^-280: too small for the non-log approach
+		Random r = new Random(4);
+		double[][] data = new double[3000][200];
+		for (int i = 0; i < data.length; i++) {
+			for (int d = 0; d < 200; d++) {
+				data[i][d] = 2 * (i % 3) + r.nextGaussian();
+			}
+		}
+		ParallelEM em = new ParallelEM().init(data, 3).fit(data);
+		assert Double.isFinite(em.getLogLikelihood()) : em.getLogLikelihood();
+		for (double w : em.getWeights()) {
+			assert w > 0.2 : Arrays.toString(em.getWeights());
+		}
+	}
+
+	@Test
+	public void testReseedOnlyBlankComponents() {
+		double[][] data = data(3000, 2, 5);
+		double[][] means = { { 10, 0 }, { 0, 0 }, { 0, 0 } };
+		double[][] vars = { { 1, 1 }, { 0, 0 }, { 0, 0 } };
+		double[] weights = { 1, 1, 1 };
+		ParallelEM em = new ParallelEM().init(means, vars, weights, new boolean[] { false, true, true }, data);
+		// the good component is kept
+		assert Arrays.equals(em.getMeans()[0], means[0]);
+		assert Arrays.equals(em.getVars()[0], vars[0]);
+		// the blank ones are seeded from the data
+		for (int i = 1; i < 3; i++) {
+			assert em.getVars()[i][0] > 1 : Arrays.toString(em.getVars()[i]);
+			assert ! Arrays.equals(em.getMeans()[i], means[i]);
+			assert Math.abs(em.getWeights()[i] - 1.0 / 3) < 0.0001;
+		}
+		em.fit(data);
+		assertFound(em);
+	}
+
+	private void assertFound(ParallelEM em) {
+		for (double[] c : CENTRES) {
+			boolean found = false;
+			for (int i = 0; i < em.getMeans().length; i++) {
+				double[] m = em.getMeans()[i];
+				if (Math.abs(m[0] - c[0]) < 0.2 && Math.abs(m[1] - c[1]) < 0.2) {
+					found = true;
+					assert Math.abs(em.getWeights()[i] - 1.0 / 3) < 0.02 : Arrays.toString(em.getWeights());
+					assert Math.abs(em.getVars()[i][0] - 1) < 0.2 : Arrays.toString(em.getVars()[i]);
+				}
+			}
+			assert found : Arrays.toString(c) + " " + Arrays.deepToString(em.getMeans());
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.winterwell.maths.timeseries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.AbstractIterator;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+/**
+ * @tested {@link ColumnarDataStream}
+ */
+public class ColumnarDataStreamTest {
+
+	private ColumnarDataStream example() {
+		ColumnarDataStream cds = new ColumnarDataStream(2, 2);
+		// times in seconds
+		long[] ts = { 0, 1, 2, 3, 4, 7, 12, 21, 22 };
+		for (int i = 0; i < ts.length; i++) {
+			cds.add(ts[i] * 1000, i, 10 * i);
+		}
+		return cds;
+	}
+
+	@Test
+	public void testAddAndIterate() {
+		ColumnarDataStream cds = example();
+		assert cds.size() == 9;
+		assert cds.getDim() == 2;
+		assert cds.getTime(5) == 7000;
+		assert cds.get(5, 1) == 50;
+		List<Datum> list = new ArrayList();
+		AbstractIterator<Datum> it = cds.iterator();
+		while (it.hasNext()) {
+			list.add(it.next());
+		}
+		assert list.size() == 9;
+		assert list.get(3).getTime().getTime() == 3000;
+		assert list.get(3).getData()[1] == 30;
+		// out of order
+		try {
+			cds.add(1000, 1, 2);
+			assert false;
+		} catch (IllegalArgumentException ex) {
+			// good
+		}
+	}
+
+	@Test
+	public void testSlice() {
+		ColumnarDataStream cds = example();
+		ColumnarDataStream s = cds.slice(new Time(2000), new Time(12000));
+		// [2, 12)
+		assert s.size() == 4 : s.size();
+		assert s.getTime(0) == 2000;
+		assert s.get(3, 0) == 5;
+		// open ends
+		assert cds.slice(null, new Time(3000)).size() == 3;
+		assert cds.slice(new Time(21500), null).size() == 1;
+		assert cds.slice(new Time(100000), null).isEmpty();
+		// slice of a slice
+		ColumnarDataStream s2 = s.slice(new Time(3000), null);
+		assert s2.size() == 3 && s2.get(0, 0) == 3;
+		// views are read-only
+		try {
+			s.add(50000, 1, 1);
+			assert false;
+		} catch (UnsupportedOperationException ex) {
+			// good
+		}
+		// column view
+		ColumnarDataStream c1 = s.getColumnStream(1);
+		assert c1.getDim() == 1 && c1.size() == 4 && c1.get(1, 0) == 30;
+		assert s.sum()[1] == 20 + 30 + 40 + 50;
+	}
+
+	@Test
+	public void testBucket() {
+		ColumnarDataStream b = example().bucket(new Dt(5, TUnit.SECOND), false);
+		// buckets from 0: [0,5) [5,10) [10,15) [15,20) [20,25)
+		assert b.size() == 5 : b.size();
+		assert b.getTime(1) == 5000;
+		assert b.get(0, 0) == 0 + 1 + 2 + 3 + 4;
+		assert b.get(1, 0) == 5;
+		assert b.get(3, 0) == 0; // empty
+		assert b.get(4, 0) == 7 + 8;
+		ColumnarDataStream avg = example().bucket(new Dt(5, TUnit.SECOND), true);
+		assert avg.get(0, 0) == 2;
+		assert avg.get(4, 1) == 75;
+	}
+
+	@Test
+	public void testMovingMean() {
+		ColumnarDataStream cds = example();
+		ColumnarDataStream mm = cds.movingMean(new Dt(4, TUnit.SECOND), false);
+		assert mm.size() == cds.size();
+		// t=2: [0, 4) = 0,1,2,3
+		assert mm.get(2, 0) == 1.5 : mm.get(2, 0);
+		// t=12: [10, 14) = just 12
+		assert mm.get(6, 0) == 6;
+		// t=21: [19, 23) = 21, 22
+		assert mm.get(7, 0) == 7.5;
+		ColumnarDataStream trail = cds.movingMean(new Dt(2, TUnit.SECOND), true);
+		// t=4: [2, 4] = 2,3,4
+		assert trail.get(4, 0) == 3 : trail.get(4, 0);
+		assert trail.get(0, 0) == 0;
+	}
+
+	@Test
+	public void testResample() {
+		ColumnarDataStream r = example().resample(new Dt(3, TUnit.SECOND));
+		// 0, 3, ..., 21
+		assert r.size() == 8 : r.size();
+		assert r.get(1, 0) == 3; // exact
+		// t=6: between 4 (x=4) and 7 (x=5)
+		assert Math.abs(r.get(2, 0) - (4 + 2.0 / 3)) < 1e-12 : r.get(2, 0);
+		// t=21: exact
+		assert r.get(7, 1) == 70;
+	}
+
+	@Test
+	public void testValueOf() {
+		ColumnarDataStream cds = example();
+		assert ColumnarDataStream.valueOf(cds) == cds;
+		ColumnarDataStream copy = ColumnarDataStream.valueOf(cds.slice(null, null).getColumnStream(0));
+		assert copy.size() == 9 && copy.get(8, 0) == 8;
+	}
+}
@@ -0,0 +1,67 @@
+package com.winterwell.maths.vector;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.time.StopWatch;
+
+import no.uib.cipr.matrix.Vector;
+
+/**
+ * Recall vs latency for the nearest-neighbour indexes, against a linear scan.
+ */
+public class NearestNeighbourIndexPerfTest {
+
+	@Test
+	public void testLowDim() {
+		benchmark(3, 100000, new KDTree<Integer>(3));
+	}
+
+	@Test
+	public void testHighDim() {
+		// embedding-like: 100d, clustered
+		benchmark(100, 20000, new HNSWIndex<Integer>(100));
+		benchmark(100, 20000, new HNSWIndex<Integer>(100).setEf(200));
+	}
+
+	private void benchmark(int dim, int n, INearestNeighbourIndex<Integer> index) {
+		Random r = new Random(1);
+		List<Vector> centres = NearestNeighbourIndexTest.randomPoints(r, 50, dim);
+		List<Vector> pts = NearestNeighbourIndexTest.randomPoints(r, n, dim);
+		for (int i = 0; i < n; i++) {
+			pts.get(i).scale(0.3).add(centres.get(i % centres.size()));
+		}
+		StopWatch build = new StopWatch();
+		index.addAll(pts, NearestNeighbourIndexTest.range(n));
+		build.pause();
+
+		int queries = 200, k = 10, hits = 0;
+		List<Vector> qs = NearestNeighbourIndexTest.randomPoints(r, queries, dim);
+		for (int i = 0; i < queries; i++) {
+			qs.get(i).scale(0.3).add(centres.get(i % centres.size()));
+		}
+		StopWatch scan = new StopWatch();
+		List[] exact = new List[queries];
+		for (int i = 0; i < queries; i++) {
+			exact[i] = NearestNeighbourIndexTest.bruteForce(pts, qs.get(i), k);
+		}
+		scan.pause();
+		StopWatch indexed = new StopWatch();
+		for (int i = 0; i < queries; i++) {
+			Set<Integer> ex = new HashSet<Integer>(exact[i]);
+			for (Pair2<Integer, Double> p : index.getNearest(qs.get(i), k)) {
+				if (ex.contains(p.first)) hits++;
+			}
+		}
+		indexed.pause();
+		System.out.println(index + " build: " + build.getTime() + "ms"
+				+ "  query: " + (indexed.getTime() * 1000 / queries) + "us"
+				+ "  scan: " + (scan.getTime() * 1000 / queries) + "us"
+				+ "  recall@" + k + ": " + (hits / (double) (queries * k)));
+	}
+}
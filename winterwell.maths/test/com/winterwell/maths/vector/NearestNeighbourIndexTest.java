@@ -0,0 +1,149 @@
+package com.winterwell.maths.vector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.Pair2;
+
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.Vector;
+
+/**
+ * @tested {@link KDTree}, {@link HNSWIndex}, {@link VectorDB}
+ */
+public class NearestNeighbourIndexTest {
+
+	@Test
+	public void testKDTreeExact() {
+		Random r = new Random(1);
+		List<Vector> pts = randomPoints(r, 2000, 3);
+		List<Integer> items = range(pts.size());
+		// batch build
+		KDTree<Integer> batch = new KDTree<Integer>(pts, items);
+		// incremental
+		KDTree<Integer> inc = new KDTree<Integer>(3);
+		for (int i = 0; i < pts.size(); i++) {
+			inc.add(pts.get(i), i);
+		}
+		assert batch.size() == 2000 && inc.size() == 2000;
+		for (int q = 0; q < 50; q++) {
+			Vector query = randomPoints(r, 1, 3).get(0);
+			List<Integer> exact = bruteForce(pts, query, 7);
+			assert firsts(batch.getNearest(query, 7)).equals(exact);
+			assert firsts(inc.getNearest(query, 7)).equals(exact);
+		}
+		// distances are Euclidean, nearest first
+		List<Pair2<Integer, Double>> nn = batch.getNearest(pts.get(5), 2);
+		assert nn.get(0).first == 5 && nn.get(0).second == 0 : nn;
+		assert nn.get(1).second > 0;
+	}
+
+	@Test
+	public void testKDTreeDuplicates() {
+		KDTree<String> kd = new KDTree<String>(2);
+		for (int i = 0; i < 100; i++) {
+			kd.add(new DenseVector(new double[] { 1, 1 }), "a" + i);
+		}
+		kd.add(new DenseVector(new double[] { 5, 5 }), "b");
+		assert kd.getNearest(new DenseVector(new double[] { 4, 4 }), 1).get(0).first.equals("b");
+		assert kd.getNearest(new DenseVector(new double[] { 0, 0 }), 200).size() == 101;
+		kd.clear();
+		assert kd.getNearest(new DenseVector(new double[] { 0, 0 }), 3).isEmpty();
+	}
+
+	@Test
+	public void testHNSWRecall() {
+		Random r = new Random(2);
+		int dim = 50;
+		List<Vector> pts = randomPoints(r, 3000, dim);
+		HNSWIndex<Integer> hnsw = new HNSWIndex<Integer>(dim);
+		hnsw.addAll(pts, range(pts.size()));
+		int hits = 0, total = 0;
+		for (int q = 0; q < 50; q++) {
+			Vector query = randomPoints(r, 1, dim).get(0);
+			Set<Integer> exact = new HashSet<Integer>(bruteForce(pts, query, 10));
+			List<Pair2<Integer, Double>> approx = hnsw.getNearest(query, 10);
+			assert approx.size() == 10;
+			for (Pair2<Integer, Double> p : approx) {
+				if (exact.contains(p.first)) hits++;
+			}
+			total += 10;
+			// sorted
+			for (int i = 1; i < approx.size(); i++) {
+				assert approx.get(i - 1).second <= approx.get(i).second;
+			}
+		}
+		double recall = hits / (double) total;
+		assert recall > 0.9 : recall;
+		// a point finds itself
+		assert hnsw.getNearest(pts.get(123), 1).get(0).first == 123;
+	}
+
+	@Test
+	public void testVectorDB() {
+		VectorDB<String> low = new VectorDB<String>(2);
+		assert low.getIndex() instanceof KDTree;
+		VectorDB<String> high = new VectorDB<String>(100);
+		assert high.getIndex() instanceof HNSWIndex;
+		low.add(new DenseVector(new double[] { 0, 0 }), "origin");
+		low.add(new DenseVector(new double[] { 3, 4 }), "far");
+		List<Pair2<String, Double>> nn = low.getNearest(new DenseVector(new double[] { 3, 3 }), 2);
+		assert nn.get(0).first.equals("far") && nn.get(0).second == 1 : nn;
+		assert nn.get(1).second == Math.sqrt(18);
+		try {
+			low.add(new DenseVector(3), "bad");
+			assert false;
+		} catch (IllegalArgumentException ex) {
+			// good
+		}
+	}
+
+	static List<Vector> randomPoints(Random r, int n, int dim) {
+		List<Vector> pts = new ArrayList<Vector>(n);
+		for (int i = 0; i < n; i++) {
+			double[] x = new double[dim];
+			for (int d = 0; d < dim; d++) {
+				x[d] = r.nextGaussian();
+			}
+			pts.add(new DenseVector(x));
+		}
+		return pts;
+	}
+
+	static List<Integer> range(int n) {
+		List<Integer> items = new ArrayList<Integer>(n);
+		for (int i = 0; i < n; i++) {
+			items.add(i);
+		}
+		return items;
+	}
+
+	static List<Integer> bruteForce(List<Vector> pts, Vector query, int k) {
+		Integer[] ids = range(pts.size()).toArray(new Integer[0]);
+		double[] d = new double[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			double s = 0;
+			for (int j = 0; j < query.size(); j++) {
+				double dj = pts.get(i).get(j) - query.get(j);
+				s += dj * dj;
+			}
+			d[i] = s;
+		}
+		Arrays.sort(ids, (a, b) -> Double.compare(d[a], d[b]));
+		return Arrays.asList(ids).subList(0, k);
+	}
+
+	static <X> List<X> firsts(List<Pair2<X, Double>> pairs) {
+		List<X> xs = new ArrayList<X>();
+		for (Pair2<X, Double> p : pairs) {
+			xs.add(p.first);
+		}
+		return xs;
+	}
+}
@@ -0,0 +1,337 @@
+package com.winterwell.nlp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.winterwell.utils.containers.AbstractMap2;
+
+/**
+ * A compact, immutable trie. Use {@link Builder} to make one.
+ * <p>
+ * Nodes are stored breadth-first in flat arrays: the chars, the first-child index,
+ * and the word-id. So a node costs 10 bytes, versus hundreds for {@link Trie}'s
+ * HashMap-per-node. The children of node i are nodes firstChild[i] to firstChild[i+1]-1,
+ * sorted by char (so lookup is a binary search). Word-ids are the keys' rank in
+ * sorted order, and index the values.
+ * <p>
+ * Thread-safe (it's immutable). Case sensitive.
+ *
+ * @param <V> Value-type which can be stored with keys
+ * @testedby {@link CompactTrieTest}
+ */
+public final class CompactTrie<V> extends AbstractMap2<String, V> {
+
+	/**
+	 * Mutable builder for {@link CompactTrie}. Not thread-safe.
+	 */
+	public static final class Builder<V> {
+		private final HashMap<String, V> map = new HashMap();
+
+		/**
+		 * Add a key (with null value, if it isn't already there)
+		 */
+		public Builder<V> add(String key) {
+			if ( ! map.containsKey(key)) map.put(key, null);
+			return this;
+		}
+
+		public Builder<V> put(String key, V value) {
+			assert key != null;
+			map.put(key, value);
+			return this;
+		}
+
+		public Builder<V> addAll(Iterable<String> keys) {
+			for (String k : keys) {
+				add(k);
+			}
+			return this;
+		}
+
+		public int size() {
+			return map.size();
+		}
+
+		public CompactTrie<V> build() {
+			String[] keys = map.keySet().toArray(new String[0]);
+			Arrays.sort(keys);
+			Object[] vals = new Object[keys.length];
+			boolean anyValues = false;
+			for (int i = 0; i < keys.length; i++) {
+				vals[i] = map.get(keys[i]);
+				if (vals[i] != null) anyValues = true;
+			}
+			return new CompactTrie<>(keys, anyValues ? vals : null);
+		}
+	}
+
+	/**
+	 * The char leading to each node (unused for the root, node 0)
+	 */
+	private final char[] label;
+	/**
+	 * Children of node i are [firstChild[i], firstChild[i+1]). Length = nodes + 1.
+	 */
+	private final int[] firstChild;
+	/**
+	 * Sorted-rank of the key which ends here, or -1
+	 */
+	private final int[] wordId;
+	/**
+	 * By word-id. null if there are no values.
+	 */
+	private final Object[] values;
+	private final int size;
+	private final int maxDepth;
+
+	/**
+	 * @param keys Sorted, no duplicates
+	 */
+	private CompactTrie(String[] keys, Object[] values) {
+		this.values = values;
+		this.size = keys.length;
+		// breadth-first build: each node covers a range of the sorted keys
+		int cap = 16;
+		char[] lbl = new char[cap];
+		int[] fc = new int[cap + 1];
+		int[] wid = new int[cap];
+		int[] lo = new int[cap];
+		int[] hi = new int[cap];
+		int[] depth = new int[cap];
+		int n = 1;
+		lo[0] = 0;
+		hi[0] = keys.length;
+		int md = 0;
+		for (int u = 0; u < n; u++) {
+			int a = lo[u], b = hi[u], d = depth[u];
+			if (d > md) md = d;
+			if (a < b && keys[a].length() == d) {
+				wid[u] = a;
+				a++;
+			} else {
+				wid[u] = -1;
+			}
+			fc[u] = n;
+			while (a < b) {
+				char c = keys[a].charAt(d);
+				int e = a + 1;
+				while (e < b && keys[e].charAt(d) == c) {
+					e++;
+				}
+				if (n == cap) {
+					cap *= 2;
+					lbl = Arrays.copyOf(lbl, cap);
+					fc = Arrays.copyOf(fc, cap + 1);
+					wid = Arrays.copyOf(wid, cap);
+					lo = Arrays.copyOf(lo, cap);
+					hi = Arrays.copyOf(hi, cap);
+					depth = Arrays.copyOf(depth, cap);
+				}
+				lbl[n] = c;
+				lo[n] = a;
+				hi[n] = e;
+				depth[n] = d + 1;
+				n++;
+				a = e;
+			}
+		}
+		fc[n] = n;
+		label = Arrays.copyOf(lbl, n);
+		firstChild = Arrays.copyOf(fc, n + 1);
+		wordId = Arrays.copyOf(wid, n);
+		maxDepth = md;
+	}
+
+	/**
+	 * @return child node of node for c, or -1
+	 */
+	private int child(int node, char c) {
+		int a = firstChild[node];
+		int b = firstChild[node + 1] - 1;
+		while (a <= b) {
+			int m = (a + b) >>> 1;
+			char mc = label[m];
+			if (mc < c) a = m + 1;
+			else if (mc > c) b = m - 1;
+			else return m;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the node for str, or -1
+	 */
+	private int getNode(String str) {
+		int node = 0;
+		for (int i = 0, n = str.length(); i < n && node != -1; i++) {
+			node = child(node, str.charAt(i));
+		}
+		return node;
+	}
+
+	public boolean exists(String str) {
+		int node = getNode(str);
+		return node != -1 && wordId[node] != -1;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && exists((String) key);
+	}
+
+	@Override
+	public V get(Object key) {
+		if (values == null || ! (key instanceof String)) return null;
+		int node = getNode((String) key);
+		if (node == -1 || wordId[node] == -1) return null;
+		return (V) values[wordId[node]];
+	}
+
+	/**
+	 * @throws UnsupportedOperationException This is immutable -- use a {@link Builder}
+	 */
+	@Override
+	public V put(String key, V value) throws UnsupportedOperationException {
+		throw new UnsupportedOperationException("immutable - use CompactTrie.Builder");
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of nodes (a measure of memory use)
+	 */
+	public int getNodeCount() {
+		return label.length;
+	}
+
+	/**
+	 * @return the keys, in sorted order. This is a fresh copy.
+	 */
+	@Override
+	public Set<String> keySet() {
+		Set<String> keys = new LinkedHashSet(size);
+		collect(0, new StringBuilder(), keys);
+		return Collections.unmodifiableSet(keys);
+	}
+
+	/**
+	 * All the keys below node, depth first (hence sorted)
+	 */
+	private void collect(int node, StringBuilder prefix, Collection<String> out) {
+		if (wordId[node] != -1) out.add(prefix.toString());
+		int len = prefix.length();
+		for (int c = firstChild[node], e = firstChild[node + 1]; c < e; c++) {
+			prefix.append(label[c]);
+			collect(c, prefix, out);
+			prefix.setLength(len);
+		}
+	}
+
+	/**
+	 * @param prefix
+	 * @return all the keys starting with prefix, sorted. Can be empty, never null.
+	 */
+	public List<String> getKeysWithPrefix(String prefix) {
+		int node = getNode(prefix);
+		if (node == -1) return Collections.EMPTY_LIST;
+		List<String> keys = new ArrayList();
+		collect(node, new StringBuilder(prefix), keys);
+		return keys;
+	}
+
+	/**
+	 * Same behaviour as {@link Trie#prefixMatch(String)}: match as much of key as possible
+	 * (at least 3 chars), then return all the keys which share that prefix.
+	 * @param key
+	 * @return the keys which matched for the longest period. Can be empty, never null.
+	 */
+	public Collection<String> prefixMatch(String key) {
+		int node = 0;
+		int posn = 0;
+		for (int n = key.length(); posn < n; posn++) {
+			int c = child(node, key.charAt(posn));
+			if (c == -1) break;
+			node = c;
+		}
+		if (posn < 3) return Collections.EMPTY_LIST;
+		List<String> keys = new ArrayList();
+		collect(node, new StringBuilder(key.substring(0, posn)), keys);
+		return keys;
+	}
+
+	/**
+	 * Bounded edit-distance search: Damerau-Levenshtein (the optimal-string-alignment
+	 * version, as in LevenshteinEditDistance) with unit costs. Walks the trie with one
+	 * row of the edit-distance table per depth, and prunes branches which cannot get
+	 * within maxEdits -- so it does not scan the whole vocabulary.
+	 *
+	 * @param word
+	 * @param maxEdits
+	 * @return keys within maxEdits of word, with their edit distance. 0 = perfect match.
+	 */
+	public Map<String, Double> getCloseWords(String word, int maxEdits) {
+		int m = word.length();
+		// rows[d] = distances from the depth-d prefix to each prefix of word
+		int[][] rows = new int[maxDepth + 1][m + 1];
+		for (int j = 0; j <= m; j++) {
+			rows[0][j] = j;
+		}
+		Map<String, Double> found = new HashMap();
+		if (wordId[0] != -1 && m <= maxEdits) found.put("", (double) m);
+		char[] path = new char[maxDepth + 1];
+		for (int c = firstChild[0], e = firstChild[1]; c < e; c++) {
+			getCloseWords2(c, 1, word, maxEdits, rows, path, found);
+		}
+		return found;
+	}
+
+	private void getCloseWords2(int node, int depth, String word, int maxEdits, int[][] rows, char[] path,
+			Map<String, Double> found) {
+		char ch = label[node];
+		path[depth] = ch;
+		int m = word.length();
+		int[] prev = rows[depth - 1];
+		int[] row = rows[depth];
+		row[0] = depth;
+		int rowMin = row[0];
+		for (int j = 1; j <= m; j++) {
+			char wj = word.charAt(j - 1);
+			int dij = Math.min(prev[j] + 1, row[j - 1] + 1);
+			dij = Math.min(dij, prev[j - 1] + (ch == wj ? 0 : 1));
+			// transposition
+			if (depth > 1 && j > 1 && ch == word.charAt(j - 2) && path[depth - 1] == wj) {
+				dij = Math.min(dij, rows[depth - 2][j - 2] + 1);
+			}
+			row[j] = dij;
+			if (dij < rowMin) rowMin = dij;
+		}
+		if (wordId[node] != -1 && row[m] <= maxEdits) {
+			found.put(new String(path, 1, depth), (double) row[m]);
+		}
+		// prune: nothing below can do better than this row's minimum
+		// -- except the next row's transpositions, which use the row before + 1
+		if (rowMin > maxEdits && minRow(prev) + 1 > maxEdits) return;
+		for (int c = firstChild[node], e = firstChild[node + 1]; c < e; c++) {
+			getCloseWords2(c, depth + 1, word, maxEdits, rows, path, found);
+		}
+	}
+
+	private static int minRow(int[] row) {
+		int min = Integer.MAX_VALUE;
+		for (int x : row) {
+			if (x < min) min = x;
+		}
+		return min;
+	}
+
+}
@@ -127,6 +127,14 @@ public final class PorterStemmer {
 		this.modifyStem2word = shouldModify;
 	}
 
+	/**
+	 * @return true if a stem dictionary is set -- in which case stem() depends on what
+	 * it has seen before, so its output should not be cached.
+	 */
+	public boolean hasStemDictionary() {
+		return stem2word != null;
+	}
+
 	/**
 	 * Stem this word
 	 * 
@@ -20,9 +20,11 @@ import com.winterwell.utils.containers.AbstractMap2;
  * numbers to Strings is very inefficient). Note that comparison is case
  * sensitive.
  * 
- * TODO Should we have a lower-case latin version that uses arrays instead of
- * HashMaps? ?? Is having the tree carry arbitrary data (thus acting as a map) a
- * useful idea? Does it make the index property irrelevant? TODO speed trials
+ * For a read-mostly vocabulary, {@link CompactTrie} uses arrays instead of HashMaps
+ * (far less memory), and adds prefix and fuzzy search. See TriePerfTest.
+ * <p>
+ * ?? Is having the tree carry arbitrary data (thus acting as a map) a
+ * useful idea? Does it make the index property irrelevant?
  * 
  * @param <V> Value-type which can be stored at nodes
  *  
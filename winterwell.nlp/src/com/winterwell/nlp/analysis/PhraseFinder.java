@@ -13,8 +13,10 @@ import com.winterwell.maths.stats.distributions.ATrainableBase;
 import com.winterwell.maths.stats.distributions.discrete.ObjectDistribution;
 import com.winterwell.nlp.NLPWorkshop;
 import com.winterwell.nlp.corpus.IDocument;
+import com.winterwell.nlp.io.ATokenStream;
 import com.winterwell.nlp.io.ITokenStream;
 import com.winterwell.nlp.io.Tkn;
+import com.winterwell.nlp.io.TokenSpans;
 import com.winterwell.utils.StrUtils;
 import com.winterwell.utils.containers.ArrayMap;
 
@@ -69,11 +71,20 @@ public class PhraseFinder extends ATrainableBase<IDocument, Object> implements
 		}
 		// tokenise
 		List<List<String>> tokenised = new ArrayList<List<String>>();
+		// fast path? (no Tkn objects)
+		TokenSpans spans = tokeniser instanceof ATokenStream && ((ATokenStream) tokeniser).supportsSpans()?
+				new TokenSpans() : null;
 		for (IDocument x : trainingData) {
-			ITokenStream tokens = tokeniser.factory(x.getContents());
-			ArrayList<String> words = new ArrayList<String>();
-			for (Tkn token : tokens) {
-				words.add(token.getText());
+			List<String> words;
+			if (spans != null) {
+				((ATokenStream) tokeniser).tokenise(x.getContents(), spans);
+				words = spans.toTexts();
+			} else {
+				ITokenStream tokens = tokeniser.factory(x.getContents());
+				words = new ArrayList<String>();
+				for (Tkn token : tokens) {
+					words.add(token.getText());
+				}
 			}
 			tokenised.add(words);
 			if (trend2words != null) {
@@ -3,14 +3,14 @@ package com.winterwell.nlp.analysis;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.winterwell.maths.ITrainable;
-import com.winterwell.maths.datastorage.HalfLifeMap;
+import com.winterwell.maths.datastorage.ConcurrentHalfLifeMap;
 import com.winterwell.maths.datastorage.IPruneListener;
 import com.winterwell.maths.stats.distributions.ATrainableBase;
 import com.winterwell.maths.stats.distributions.discrete.ObjectDistribution;
@@ -250,9 +250,10 @@ ITrainable.Unsupervised.Weighted<IDocument>, IPhraseFinder {
 	@Override
 	public void resetup() {
 		noTrainingDataCollection();
-		HalfLifeMap<String, Double> map1 = new HalfLifeMap(10*n);
-		HalfLifeMap<List<String>, Double> map2 = new HalfLifeMap(100*n);
-		HalfLifeMap<List<String>, Double> map3 = new HalfLifeMap(1000*n);
+		// NB: these prune in the background, so the listeners below run on the pruner thread
+		ConcurrentHalfLifeMap<String, Double> map1 = new ConcurrentHalfLifeMap(10*n);
+		ConcurrentHalfLifeMap<List<String>, Double> map2 = new ConcurrentHalfLifeMap(100*n);
+		ConcurrentHalfLifeMap<List<String>, Double> map3 = new ConcurrentHalfLifeMap(1000*n);
 
 		common1 = new ObjectDistribution<String>(map1, false);
 		common2 = new ObjectDistribution<List<String>>(map2, false);
@@ -263,8 +264,8 @@ ITrainable.Unsupervised.Weighted<IDocument>, IPhraseFinder {
 			return;
 		}
 
-		raw2eg = new HashMap();
-		words2raw = new HashMap();
+		raw2eg = new ConcurrentHashMap();
+		words2raw = new ConcurrentHashMap();
 		// wire up pruners
 		map1.addListener(new IPruneListener<String, Double>() {
 			@Override
@@ -272,7 +273,7 @@ ITrainable.Unsupervised.Weighted<IDocument>, IPhraseFinder {
 				for (Entry<String, Double> entry : pruned) {
 					List<String> p1 = Arrays.asList(entry.getKey());
 					String raw = words2raw.remove(p1);
-					raw2eg.remove(raw);
+					if (raw!=null) raw2eg.remove(raw);
 				}
 			}
 		});
@@ -281,7 +282,7 @@ ITrainable.Unsupervised.Weighted<IDocument>, IPhraseFinder {
 			public void pruneEvent(List<Entry<List<String>, Double>> pruned) {
 				for (Entry<List<String>, Double> entry : pruned) {
 					String raw = words2raw.remove(entry.getKey());
-					raw2eg.remove(raw);
+					if (raw!=null) raw2eg.remove(raw);
 				}
 			}
 		};
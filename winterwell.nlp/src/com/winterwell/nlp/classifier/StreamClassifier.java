@@ -4,9 +4,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import com.winterwell.maths.ITrainable;
 import com.winterwell.maths.stats.StatsUtils;
+import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
 import com.winterwell.maths.stats.distributions.cond.Cntxt;
 import com.winterwell.maths.stats.distributions.cond.ExplnOfDist;
 import com.winterwell.maths.stats.distributions.cond.ICondDistribution;
@@ -48,8 +50,67 @@ public class StreamClassifier<Tok> implements ITextClassifier<String>, IStreamCl
 	 */
 	public StreamClassifier<Tok> setPrior(IFiniteDistribution<String> prior) {
 		this.prior = prior;
+		compiled = null;
 		return this;
 	}
+
+	/**
+	 * If true, {@link #finishTraining()} freezes the models into a token -to-> per-tag log-prob table,
+	 * and scoring becomes lookup + summation. Any further training drops the table
+	 * (until the next finishTraining()).
+	 * Explanations always use the un-compiled path.
+	 */
+	private boolean compiledScoring;
+
+	private volatile StreamScoringTable<Tok> compiled;
+
+	/**
+	 * milliseconds per document, for {@link #pClassify(IDocument, ExplnOfDist)}.
+	 * Striped by thread, so that pClassifyAll's workers rarely contend on one lock --
+	 * and a fixed number of accumulators however many threads come and go.
+	 * Merged by {@link #getLatency()}.
+	 */
+	private final MeanVar1D[] latencies = newLatencies();
+
+	private static MeanVar1D[] newLatencies() {
+		MeanVar1D[] mvs = new MeanVar1D[2 * Runtime.getRuntime().availableProcessors()];
+		for (int i = 0; i < mvs.length; i++) {
+			mvs[i] = new MeanVar1D();
+		}
+		return mvs;
+	}
+
+	private MeanVar1D latency() {
+		return latencies[(int) (Thread.currentThread().getId() % latencies.length)];
+	}
+
+	/**
+	 * @param compiledScoring See {@link #compiledScoring}
+	 * @return this
+	 */
+	public StreamClassifier<Tok> setCompiledScoring(boolean compiledScoring) {
+		this.compiledScoring = compiledScoring;
+		if ( ! compiledScoring) compiled = null;
+		else if (isReady()) compile();
+		return this;
+	}
+
+	private void compile() {
+		String[] tags = Containers.getList(prior).toArray(new String[0]);
+		compiled = new StreamScoringTable<Tok>(tags, models);
+	}
+
+	/**
+	 * @return per-document classification time in milliseconds. Never null. Thread-safe.
+	 * This is a snapshot (merged from the striped stats).
+	 */
+	public MeanVar1D getLatency() {
+		MeanVar1D all = new MeanVar1D();
+		for (MeanVar1D mv : latencies) {
+			all.merge(mv);
+		}
+		return all;
+	}
 	
 	public StreamClassifier(Map<String, ? extends ICondDistribution<Tok, Cntxt>> models) 
 	{
@@ -122,6 +183,7 @@ public class StreamClassifier<Tok> implements ITextClassifier<String>, IStreamCl
 				tm.finishTraining();
 			}
 		}
+		if (compiledScoring) compile();
 	}
 
 	// public so I can get at it in ClassifierTests.
@@ -202,10 +264,24 @@ public class StreamClassifier<Tok> implements ITextClassifier<String>, IStreamCl
 	public final IFiniteDistribution<String> pClassify(IDocument text, ExplnOfDist tokenProbs) 
 	{
 		assert text != null;
+		long start = System.nanoTime();
 		// break the document up into a stream of Situations
 		ISitnStream<Tok> stream = tokenise(text);	
 		
-		return pClassify2(stream, tokenProbs);
+		IFiniteDistribution<String> dist = pClassify2(stream, tokenProbs);
+		latency().train1((System.nanoTime() - start) / 1000000.0);
+		return dist;
+	}
+
+	/**
+	 * Classify a batch of documents in parallel.
+	 * @param docs
+	 * @return the {@link #pClassify(IDocument)} results, in the same order as docs
+	 */
+	public List<IFiniteDistribution<String>> pClassifyAll(List<? extends IDocument> docs) {
+		return docs.parallelStream()
+				.map(doc -> pClassify(doc, null))
+				.collect(Collectors.toList());
 	}
 
 	/**
@@ -220,6 +296,10 @@ public class StreamClassifier<Tok> implements ITextClassifier<String>, IStreamCl
 	@Override
 	public IFiniteDistribution<String> pClassify2(ISitnStream<Tok> stream, ExplnOfDist expln) {
 		assert prior!=null && prior.size() != 0 : this+" "+prior; assert stream!=null : this+" null stream";
+		StreamScoringTable<Tok> table = compiled;
+		if (table != null && expln == null) {
+			return pClassify2_compiled(stream, table);
+		}
 		// Allow explanations to collect from several classifiers
 //		assert expln == null || expln.tokenProbs==null || expln.tokenProbs.isEmpty() : expln;
 
@@ -325,7 +405,7 @@ public class StreamClassifier<Tok> implements ITextClassifier<String>, IStreamCl
 				// impossible token! skip it
 				continue;
 			}			
-			explainOneSitn.skipped = false;
+			if (explainOneSitn!=null) explainOneSitn.skipped = false;
 			// Set P for the next token to be consumed
 			p = p2;
 		} // all tokens consumed
@@ -356,7 +436,145 @@ public class StreamClassifier<Tok> implements ITextClassifier<String>, IStreamCl
 		return new ObjectDistribution(tags, ptop);
 	}
 
-	
+
+	/**
+	 * The compiled version of {@link #pClassify2(ISitnStream, ExplnOfDist)}: the same NaN-as-pass,
+	 * skipThreshold and top-tokens logic, but with P(sitn|tag) looked up from the table,
+	 * and the posterior kept as log-probs.
+	 */
+	private IFiniteDistribution<String> pClassify2_compiled(ISitnStream<Tok> stream, StreamScoringTable<Tok> table) {
+		final String[] tags = table.tags;
+		final int n = tags.length;
+		double[] p0 = new double[n];
+		double[] logp = new double[n];
+		for (int i=0; i<n; i++) {
+			p0[i] = prior.prob(tags[i]);
+			logp[i] = Math.log(p0[i]);
+		}
+		double[] logp2 = new double[n];
+		boolean changed = false;
+		// P(sitn|tag), with known zeroes masked out
+		double[] tag2pSitn = new double[n];
+		boolean[] nanMask = new boolean[n];
+		int tagi = topTokensTag==null? -1 : Containers.indexOf(topTokensTag, tags);
+		TopNList<Pair2<Sitn,double[]>> top_tokens = null;
+		if (topTokensFocus>0) top_tokens = new TopNList<>(topTokensFocus);
+		for (Sitn<Tok> sitn : stream) {
+			double[] row = table.row(sitn);
+			int nans = 0;
+			for(int i=0; i<n; i++) {
+				double ps = logp[i]==Double.NEGATIVE_INFINITY? 0 : row[i];
+				tag2pSitn[i] = ps;
+				nanMask[i] = Double.isNaN(ps);
+				if (nanMask[i]) nans++;
+			}
+			// all passed?
+			if (nans==n || nans==n-1) {
+				continue;
+			}
+			// Skip un-interesting tokens
+			double distFromUniform = Double.NaN;
+			if (skipThreshold!=0) {
+				distFromUniform = distanceFromUniform(tag2pSitn, nanMask, nans);
+				if (distFromUniform < skipThreshold) {
+					continue;
+				}
+			}
+			if (top_tokens!=null) {
+				double top_token_score;
+				if (tagi == -1) {
+					if (Double.isNaN(distFromUniform)) distFromUniform = distanceFromUniform(tag2pSitn, nanMask, nans);
+					top_token_score = distFromUniform;
+				} else {
+					double ptagi = tag2pSitn[tagi];
+					if (Double.isNaN(ptagi)) {
+						continue;
+					}
+					double total = 0;
+					for(int i=0; i<n; i++) {
+						if (nanMask[i]) continue;
+						total += tag2pSitn[i];
+					}
+					top_token_score = ptagi / total;
+				}
+				top_tokens.maybeAdd(new Pair2(sitn, row), top_token_score);
+				continue;
+			}
+			// incorporate
+			if ( ! pClassify3_log(logp, logp, row, logp2)) {
+				continue; // impossible token! skip it
+			}
+			double[] swap = logp; logp = logp2; logp2 = swap;
+			changed = true;
+		}
+		if (top_tokens!=null) {
+			// NB: logp is still the prior here, and masking stays with the prior's zeroes
+			final double[] mask = logp.clone();
+			for (Pair2<Sitn, double[]> sitn_row : top_tokens) {
+				if ( ! pClassify3_log(logp, mask, sitn_row.second, logp2)) {
+					continue;
+				}
+				double[] swap = logp; logp = logp2; logp2 = swap;
+				changed = true;
+			}
+		}
+		if ( ! changed) {
+			return new ObjectDistribution(tags, p0);
+		}
+		double[] p = new double[n];
+		for(int i=0; i<n; i++) {
+			p[i] = Math.exp(logp[i]);
+		}
+		StatsUtils.normalise(p);
+		return new ObjectDistribution(tags, p);
+	}
+
+	/**
+	 * Log-space {@link #pClassify3(double[], double[])}: logp2[tag] = logp[tag] + log P(sitn|tag),
+	 * shifted so the max is 0. 
+	 * @param mask -infinity marks the tags which were known zeroes when the Sitn was scored
+	 * @param row from {@link StreamScoringTable#row(Sitn)}
+	 * @return false if all probs are zero (logp2 is then junk)
+	 */
+	private boolean pClassify3_log(double[] logp, double[] mask, double[] row, double[] logp2) {
+		final int n = logp.length;
+		double totalNonNanP=0; int nonNan=0;
+		for (int i=0; i<n; i++) {
+			if (mask[i]==Double.NEGATIVE_INFINITY) {
+				// a known zero (which counts as a 0 vote)
+				logp2[i] = Double.NEGATIVE_INFINITY;
+				nonNan++;
+				continue;
+			}
+			double pSitn_tag = row[i];
+			if (Double.isNaN(pSitn_tag)) {
+				continue;
+			}
+			nonNan++;
+			totalNonNanP += pSitn_tag;
+			logp2[i] = logp[i] + row[n+i];
+		}
+		if (nonNan==0) return false;
+		// If a tag-model says "Pass" (NaN), then P(a and b) = P(a) * average-other-models-P(b)
+		if (nonNan!=n) {
+			double logppass = Math.log(totalNonNanP/nonNan);
+			for (int i=0; i<n; i++) {
+				if (mask[i]!=Double.NEGATIVE_INFINITY && Double.isNaN(row[i])) {
+					logp2[i] = logp[i] + logppass;
+				}
+			}
+		}
+		// "normalise"
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i=0; i<n; i++) {
+			if (logp2[i] > max) max = logp2[i];
+		}
+		if (max==Double.NEGATIVE_INFINITY) return false;
+		for (int i=0; i<n; i++) {
+			logp2[i] -= max;
+		}
+		return true;
+	}
 
 	/**
 	 * Do posterior[tag] = p[tag] . tag2pSitn[tag], and normalise. Handles NaNs as pass (which gets an average score)
@@ -519,6 +737,7 @@ public class StreamClassifier<Tok> implements ITextClassifier<String>, IStreamCl
 	 */
 	@Override
 	public void resetup() {
+		compiled = null;
 		// setup prior
 		if (prior instanceof ITrainable) ((ITrainable) prior).resetup();
 		double p = 1.0 / models.size();
@@ -542,6 +761,7 @@ public class StreamClassifier<Tok> implements ITextClassifier<String>, IStreamCl
 	 */
 	protected void setModel(String tag, ICondDistribution.WithExplanation<Tok, Cntxt> model) {
 		assert tag != null;
+		compiled = null;
 		if (model == null) {
 			models.remove(tag);
 		} else {
@@ -562,6 +782,7 @@ public class StreamClassifier<Tok> implements ITextClassifier<String>, IStreamCl
 	 */
 	@Override
 	public void train1(IDocument x, String tag, double weight) {
+		compiled = null;
 		if (prior instanceof ITrainable) {
 			((ITrainable.Unsupervised<String>)prior).train1(tag);	
 		}		
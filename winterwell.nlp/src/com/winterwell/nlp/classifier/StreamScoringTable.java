@@ -0,0 +1,120 @@
+package com.winterwell.nlp.classifier;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.winterwell.maths.stats.distributions.cond.Cntxt;
+import com.winterwell.maths.stats.distributions.cond.ICondDistribution;
+import com.winterwell.maths.stats.distributions.cond.Sitn;
+import com.winterwell.maths.stats.distributions.cond.UnConditional;
+import com.winterwell.maths.stats.distributions.discrete.IDiscreteDistribution;
+import com.winterwell.maths.stats.distributions.discrete.IFiniteDistribution;
+import com.winterwell.utils.MathUtils;
+import com.winterwell.utils.log.Log;
+
+/**
+ * The frozen models of a {@link StreamClassifier}: token -to-> a row of
+ * P(token|tag) followed by log P(token|tag), one entry per tag.
+ * <p>
+ * If every model is {@link UnConditional}, rows are keyed on the outcome alone, and the
+ * vocabularies of finite models are tabulated up front. Otherwise rows are keyed on
+ * the whole {@link Sitn}. Either way, unseen keys are computed on demand and cached
+ * (up to {@link #MAX_LAZY_ROWS}).
+ * <p>
+ * Thread-safe. Only valid whilst the models are not re-trained.
+ *
+ * @testedby {@link StreamClassifierTest}
+ */
+final class StreamScoringTable<Tok> {
+
+	static final int MAX_LAZY_ROWS = 100000;
+
+	/**
+	 * In prior order
+	 */
+	final String[] tags;
+
+	private final ICondDistribution.WithExplanation<Tok, Cntxt>[] modls;
+
+	/**
+	 * true => key rows on the outcome alone
+	 */
+	private final boolean contextFree;
+
+	/**
+	 * Built once, then read-only.
+	 */
+	private final HashMap<Object, double[]> rows = new HashMap<>();
+
+	private final ConcurrentHashMap<Object, double[]> lazyRows = new ConcurrentHashMap<>();
+
+	StreamScoringTable(String[] tags, Map<String, ICondDistribution.WithExplanation<Tok, Cntxt>> models) {
+		this.tags = tags;
+		modls = new ICondDistribution.WithExplanation[tags.length];
+		boolean cf = true;
+		for (int i = 0; i < tags.length; i++) {
+			modls[i] = models.get(tags[i]);
+			if (modls[i] != null && ! (modls[i] instanceof UnConditional)) cf = false;
+		}
+		contextFree = cf;
+		if ( ! contextFree) return;
+		// tabulate the known vocabulary
+		for (ICondDistribution.WithExplanation<Tok, Cntxt> m : modls) {
+			if (m==null) continue;
+			IDiscreteDistribution<Tok> dist = ((UnConditional<Tok>) m).dist;
+			if ( ! (dist instanceof IFiniteDistribution)) continue;
+			Iterator<Tok> it;
+			try {
+				it = ((IFiniteDistribution<Tok>) dist).iterator();
+			} catch (UnsupportedOperationException ex) {
+				continue;
+			}
+			while (it.hasNext()) {
+				Tok tok = it.next();
+				if (rows.containsKey(tok)) continue;
+				rows.put(tok, computeRow(tok, Cntxt.EMPTY));
+			}
+		}
+	}
+
+	/**
+	 * @return [P(sitn|tag_0) ... P(sitn|tag_n-1), log P(sitn|tag_0) ... ].
+	 * NaN for "pass", 0 for a missing model. Do not modify.
+	 */
+	double[] row(Sitn<Tok> sitn) {
+		Object key = contextFree? sitn.outcome : sitn;
+		double[] row = rows.get(key);
+		if (row != null) return row;
+		row = lazyRows.get(key);
+		if (row != null) return row;
+		row = computeRow(sitn.outcome, sitn.context);
+		if (lazyRows.size() < MAX_LAZY_ROWS) lazyRows.put(key, row);
+		return row;
+	}
+
+	int size() {
+		return rows.size() + lazyRows.size();
+	}
+
+	private double[] computeRow(Tok outcome, Cntxt context) {
+		int n = tags.length;
+		double[] row = new double[2*n];
+		for (int i = 0; i < n; i++) {
+			ICondDistribution.WithExplanation<Tok, Cntxt> model = modls[i];
+			double p = model==null? 0 : model.probWithExplanation(outcome, context, null);
+			assert ! Double.isInfinite(p) : outcome+" "+model;
+			// clamp small errors, as StreamClassifier does
+			if ( ! Double.isNaN(p) && ! MathUtils.isProb(p)) {
+				Log.e("maths", "not a prob! "+p+" model:"+model);
+				if (p < 0 && p > -0.0000001) p = 0;
+				else if (p > 1 && p < 1.0000001) p = 1;
+			}
+			row[i] = p;
+			row[n + i] = Math.log(p);
+		}
+		return row;
+	}
+
+}
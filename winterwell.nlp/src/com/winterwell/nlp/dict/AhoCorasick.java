@@ -0,0 +1,228 @@
+package com.winterwell.nlp.dict;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Aho-Corasick automaton over chars -- the matcher behind {@link Dictionary#match(String, int)}
+ * and {@link Dictionary#matchAll(String)}.
+ * <p>
+ * Words can be added at any time: adding is O(word length), and just marks the
+ * failure links as stale. These are rebuilt (one pass over the trie) on the next
+ * {@link #matchAll(CharSequence)}. {@link #match(CharSequence, int)} does not need them.
+ * <p>
+ * Case folding follows {@link Pattern} flags, so this is a drop-in for the old
+ * big-regex: {@link Pattern#CASE_INSENSITIVE} folds ASCII only, unless
+ * {@link Pattern#UNICODE_CASE} is also set.
+ * <p>
+ * Not thread-safe for add() (like Dictionary itself). Matching is thread-safe.
+ *
+ * @testedby {@link DictionaryTest}
+ */
+final class AhoCorasick {
+
+	private final boolean foldCase;
+	private final boolean unicodeCase;
+
+	/**
+	 * Number of nodes. Node 0 is the root.
+	 */
+	private int size = 1;
+	/**
+	 * Length of the word which ends at this node, or 0
+	 */
+	private int[] wordLen = new int[64];
+	private int[] fail = new int[64];
+	/**
+	 * The next node down the fail chain which ends a word, or 0
+	 */
+	private int[] outLink = new int[64];
+	/**
+	 * Children as linked lists (for the breadth-first link building)
+	 */
+	private int[] firstChild = new int[64];
+	private int[] nextSibling = new int[64];
+	private char[] edgeChar = new char[64];
+
+	/**
+	 * Edges (node, char) -> child, in an open-addressing hash table. Key 0 = empty.
+	 */
+	private long[] edgeKeys = new long[128];
+	private int[] edgeVals = new int[128];
+	private int edges;
+
+	/**
+	 * true if the fail links are up to date
+	 */
+	private volatile boolean linked = true;
+
+	/**
+	 * @param flags {@link Pattern} flags
+	 */
+	AhoCorasick(int flags) {
+		foldCase = (flags & Pattern.CASE_INSENSITIVE) != 0;
+		unicodeCase = (flags & Pattern.UNICODE_CASE) != 0;
+	}
+
+	private char fold(char c) {
+		if ( ! foldCase) return c;
+		if (unicodeCase) return Character.toLowerCase(Character.toUpperCase(c));
+		return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+	}
+
+	void add(String word) {
+		if (word.isEmpty()) return;
+		int s = 0;
+		for (int i = 0, n = word.length(); i < n; i++) {
+			char c = fold(word.charAt(i));
+			int t = child(s, c);
+			if (t < 0) {
+				t = newNode(s, c);
+			}
+			s = t;
+		}
+		wordLen[s] = word.length();
+		linked = false;
+	}
+
+	/**
+	 * Longest word starting at start. Walks the trie, so O(longest word).
+	 * @return end offset (exclusive) or -1
+	 */
+	int match(CharSequence text, int start) {
+		int s = 0;
+		int best = -1;
+		for (int i = start, n = text.length(); i < n; i++) {
+			s = child(s, fold(text.charAt(i)));
+			if (s < 0) break;
+			if (wordLen[s] != 0) best = i + 1;
+		}
+		return best;
+	}
+
+	/**
+	 * All matches, in one pass over text.
+	 * @return ends, where ends[i] is the end offset (exclusive) of the longest word
+	 * starting at i, or -1
+	 */
+	int[] matchAll(CharSequence text) {
+		if ( ! linked) link();
+		int n = text.length();
+		int[] ends = new int[n];
+		Arrays.fill(ends, -1);
+		int s = 0;
+		for (int i = 0; i < n; i++) {
+			char c = fold(text.charAt(i));
+			int t;
+			while ((t = child(s, c)) < 0 && s != 0) {
+				s = fail[s];
+			}
+			s = t < 0 ? 0 : t;
+			// every word ending here
+			for (int w = wordLen[s] != 0 ? s : outLink[s]; w != 0; w = outLink[w]) {
+				// NB: i only increases, so this end is the longest for that start so far
+				ends[i + 1 - wordLen[w]] = i + 1;
+			}
+		}
+		return ends;
+	}
+
+	/**
+	 * Build the fail & output links, breadth first.
+	 */
+	private synchronized void link() {
+		if (linked) return;
+		int[] queue = new int[size];
+		int head = 0, tail = 0;
+		for (int c = firstChild[0]; c != 0; c = nextSibling[c]) {
+			fail[c] = 0;
+			outLink[c] = 0;
+			queue[tail++] = c;
+		}
+		while (head < tail) {
+			int u = queue[head++];
+			for (int v = firstChild[u]; v != 0; v = nextSibling[v]) {
+				char ch = edgeChar[v];
+				int f = fail[u];
+				int fv;
+				while ((fv = child(f, ch)) < 0 && f != 0) {
+					f = fail[f];
+				}
+				if (fv < 0) fv = 0;
+				fail[v] = fv;
+				outLink[v] = wordLen[fv] != 0 ? fv : outLink[fv];
+				queue[tail++] = v;
+			}
+		}
+		linked = true;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private int newNode(int parent, char c) {
+		if (size == wordLen.length) {
+			int n = size * 2;
+			wordLen = Arrays.copyOf(wordLen, n);
+			fail = Arrays.copyOf(fail, n);
+			outLink = Arrays.copyOf(outLink, n);
+			firstChild = Arrays.copyOf(firstChild, n);
+			nextSibling = Arrays.copyOf(nextSibling, n);
+			edgeChar = Arrays.copyOf(edgeChar, n);
+		}
+		int t = size++;
+		edgeChar[t] = c;
+		nextSibling[t] = firstChild[parent];
+		firstChild[parent] = t;
+		putEdge(parent, c, t);
+		return t;
+	}
+
+	private static long key(int node, char c) {
+		return ((long) (node + 1) << 16) | c;
+	}
+
+	private static int hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32));
+	}
+
+	/**
+	 * @return child node or -1
+	 */
+	private int child(int node, char c) {
+		long k = key(node, c);
+		int mask = edgeKeys.length - 1;
+		for (int i = hash(k) & mask;; i = (i + 1) & mask) {
+			long ki = edgeKeys[i];
+			if (ki == k) return edgeVals[i];
+			if (ki == 0) return -1;
+		}
+	}
+
+	private void putEdge(int node, char c, int child) {
+		if ((edges + 1) * 2 > edgeKeys.length) {
+			// grow
+			long[] oldKeys = edgeKeys;
+			int[] oldVals = edgeVals;
+			edgeKeys = new long[oldKeys.length * 2];
+			edgeVals = new int[oldKeys.length * 2];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) putEdge2(oldKeys[i], oldVals[i]);
+			}
+		}
+		putEdge2(key(node, c), child);
+		edges++;
+	}
+
+	private void putEdge2(long k, int v) {
+		int mask = edgeKeys.length - 1;
+		int i = hash(k) & mask;
+		while (edgeKeys[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		edgeKeys[i] = k;
+		edgeVals[i] = v;
+	}
+}
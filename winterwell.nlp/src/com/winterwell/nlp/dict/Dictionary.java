@@ -6,18 +6,13 @@ package com.winterwell.nlp.dict;
 import java.io.File;
 import java.io.Reader;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.winterwell.nlp.CompactTrie;
 import com.winterwell.nlp.similarity.LevenshteinEditDistance;
 import com.winterwell.utils.StrUtils;
 import com.winterwell.utils.Utils;
@@ -72,25 +67,24 @@ public class Dictionary implements IDictionary {
 	protected final HashMap<String, String> dict = new HashMap<String, String>();
 
 	/**
-	 * match dictionary words - anchored to the start char.
-	 * This regex is only made if asked for via {@link #match(String, int)}.
-	 * 
-	 * TODO this could be quite large -- can we remove it altogether?
+	 * match dictionary words. Made on the first {@link #match(String, int)}
+	 * (so that sub-classes can set {@link #FLAGS} first), then kept up to date by add().
+	 * volatile: it is read without a lock.
 	 */
-	private transient Pattern dictRegex;
+	private transient volatile AhoCorasick matcher;
 
 	private File file;
 
 	/**
-	 * What flags to use in the regex -- {@link Pattern#CASE_INSENSITIVE} by
-	 * default
+	 * What case-folding to use in {@link #match(String, int)}, as {@link Pattern} flags --
+	 * {@link Pattern#CASE_INSENSITIVE} by default. Set this in the constructor.
 	 */
 	protected int FLAGS = Pattern.CASE_INSENSITIVE;
 
 	/**
-	 * All the characters this dictionary uses. Created lazily, so can be null.
+	 * The words, for {@link #getCloseWords(String)}. Created lazily, so can be null.
 	 */
-	private transient HashSet<Character> alphabet;
+	private transient volatile CompactTrie<?> trie;
 
 	/**
 	 * Format: one word per line. One or two columns, with the first column
@@ -153,8 +147,10 @@ public class Dictionary implements IDictionary {
 		String old = dict.put(word, meaning);
 		// Multiple meanings?
 		if (old==null || old == "" || old.equals(meaning)) {
-			dictRegex=null;
-			alphabet=null;
+			if (old==null) {
+				if (matcher!=null) matcher.add(word);
+				trie=null;
+			}
 			return;
 		}
 		if (Containers.contains(meaning, old.split(DUPE_SEPARATOR))) {
@@ -243,47 +239,40 @@ public class Dictionary implements IDictionary {
 		return dict.keySet().iterator();
 	}
 
+	/**
+	 * Longest-match, in time linear in the match length (no regex).
+	 */
 	@Override
 	public String match(String input, int start) {
-		
-		if (dictRegex == null) {
-			match2_compileRegex();
-		}
-		Matcher m = dictRegex.matcher(input);
-		m.region(start, m.regionEnd());
-		boolean fnd = m.find();
-		if (!fnd)
+		int end = getMatcher().match(input, start);
+		if (end == -1)
 			return null;
-		String word = input.substring(start, m.end());
+		String word = input.substring(start, end);
 		word = toCanonical(word);
 		return word;
 	}
 
-	protected void match2_compileRegex() {
-		// order by length: longest first
-		List<String> words = Containers.getList(this);
-		Collections.sort(words, new Comparator<String>() {
-			@Override
-			public int compare(String o1, String o2) {
-				if (o1.length() == o2.length())
-					return o1.compareTo(o2);
-				return o1.length() < o2.length() ? 1 : -1;
+	/**
+	 * All the dictionary hits in input, in one pass (Aho-Corasick).
+	 */
+	@Override
+	public int[] matchAll(String input) {
+		return getMatcher().matchAll(input);
+	}
+
+	private AhoCorasick getMatcher() {
+		AhoCorasick m = matcher;
+		if (m != null) return m;
+		synchronized (this) {
+			m = matcher;
+			if (m != null) return m;
+			m = new AhoCorasick(FLAGS);
+			for (String w : dict.keySet()) {
+				m.add(w);
 			}
-		});
-		// build a big regex
-		if (words.isEmpty()) {
-			// hack: bogus -- should always fail
-			dictRegex = Pattern.compile("^Fail2Fail1Fail3Fail");
-			return;
+			matcher = m;
+			return m;
 		}
-		StringBuilder regex = new StringBuilder("^(");
-		for (String w : words) {
-			regex.append(Pattern.quote(w));
-			regex.append('|');
-		}
-		StrUtils.pop(regex, 1); // note: assumes dict is not empty
-		regex.append(')');
-		dictRegex = Pattern.compile(regex.toString(), FLAGS);
 	}
 
 	public int size() {
@@ -320,100 +309,20 @@ public class Dictionary implements IDictionary {
         Map<String, Double> cached = cacheCloseWords.get(word);
         if (cached != null) return cached;
 
-		// Small map? Then check each entry
-		if (size() < 10000) {
-			// threshold what we consider
-			int max = 3;
-			// TODO pluggable, so you can use e.g. metafone
-			LevenshteinEditDistance dist = new LevenshteinEditDistance();
-			Map<String, Double> map = new HashMap();
-			for(String w : this) {
-				double d = dist.editDistance(word, w);
-				if (d>max) continue;
-				map.put(w, d);
-			}
-            cacheCloseWords.put(word, map);
-			return map;		
-		}
-		
-		// Large map? Then its faster to check each possible 1-or-2-step edit
-		if (alphabet==null) {
-			// Build the alphabet of characters this dictionary uses.
+		// Bounded search down a trie of the words -- prunes, rather than checking every word.
+		// Small map? Then we can afford to look further.
+		int max = size() < 10000? 3 : 2;
+		CompactTrie<?> _trie = trie;
+		if (_trie==null) {
 			// NB: race-condition: not thread-safe wrt add()
-			alphabet = new HashSet<Character>();
-			for (String w : this) {
-				for(int i=0,n=w.length(); i<n; i++) {
-					alphabet.add(w.charAt(i));
-				}
-			}
-		}
-		// All 1 step and 2 step edits
-		Set<String> step1 = oneEditAway(word, false);
-		Set<String> step2 = new HashSet();
-		for(String w1 : step1) step2.addAll(oneEditAway(w1, true));
-		
-		Map<String, Double> map = new HashMap();
-		for(String w : step2) {
-			map.put(w, 2.0);			
-		}
-		// NB: do step1 last, so it will overwrite overlaps with step2
-		for(String w : step1) {
-			if (dict.containsKey(w)) {
-				map.put(w, 1.0);
-			}
+			_trie = new CompactTrie.Builder().addAll(dict.keySet()).build();
+			trie = _trie;
 		}
-		
+		// TODO pluggable, so you can use e.g. metafone
+		LevenshteinEditDistance dist = new LevenshteinEditDistance();
+		Map<String, Double> map = dist.getCloseWords(word, _trie, max);
         cacheCloseWords.put(word, map);
 		return map;
 	}
 
-	/**
-	* All strings one-edit-step away from the input word.
-	* @param filterNow filter here and return dictionary-only words.  
-	*/
-	private Set<String> oneEditAway(CharSequence word, boolean filterNow) {
-		assert alphabet != null;
-		// NB: Use String'cos StringBuilder doesnt define equals()
-		Set<String> oneEdits = new HashSet();
-		// deletes
-		for(int i=0; i<word.length(); i++) {
-			StringBuilder sb = new StringBuilder(word);
-			sb.deleteCharAt(i);
-			oneEdits.add(sb.toString());
-		}
-		// transposes
-		for(int i=0; i<word.length()-1; i++) {
-			StringBuilder sb = new StringBuilder(word);
-			char c0 = word.charAt(i);
-			char c1 = word.charAt(i+1);
-			sb.setCharAt(i, c1);
-			sb.setCharAt(i+1, c0);
-			oneEdits.add(sb.toString());
-		}
-		// replaces and inserts
-		for(char c : alphabet) {
-			for(int i=0; i<word.length(); i++) {
-				// replace
-				StringBuilder sb = new StringBuilder(word);
-				sb.setCharAt(i, c);
-				oneEdits.add(sb.toString());
-				// insert
-				sb = new StringBuilder(word);
-				sb.insert(i, c);
-				oneEdits.add(sb.toString());
-			}
-		}
-		// appends
-		for(char c : alphabet) {
-			StringBuilder sb = new StringBuilder(word);
-			sb.append(c);
-			oneEdits.add(sb.toString());
-		}
-		// filter non-words?
-		if (filterNow) {
-			oneEdits.retainAll(dict.keySet());
-		}
-		return oneEdits;
-	}
-
 }
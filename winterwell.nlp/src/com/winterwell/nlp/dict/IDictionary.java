@@ -37,8 +37,7 @@ public interface IDictionary extends Iterable<String> {
 	String[] getMeanings(String word);
 
 	/**
-	 * Does *the start of input* match a word in the dictionary? Uses a big
-	 * regex.
+	 * Does *the start of input* match a word in the dictionary? Longest match wins.
 	 * 
 	 * @param input
 	 * @param start
@@ -51,4 +50,21 @@ public interface IDictionary extends Iterable<String> {
 	 */
 	String match(String input, int start);
 
+	/**
+	 * Bulk version of {@link #match(String, int)}: find all the dictionary hits in input.
+	 * 
+	 * @param input
+	 * @return ends, where ends[i] is the end offset (exclusive) of the longest
+	 * dictionary word starting at i, or -1 if no word starts there. Same length as input.
+	 */
+	default int[] matchAll(String input) {
+		// Implementations with an automaton should over-ride this
+		int[] ends = new int[input.length()];
+		for (int i = 0; i < ends.length; i++) {
+			String word = match(input, i);
+			ends[i] = word == null ? -1 : i + word.length();
+		}
+		return ends;
+	}
+
 }
@@ -19,6 +19,9 @@ import com.winterwell.utils.containers.AbstractIterator;
  * chained streams.
  * <p>
  * To implement: Over-ride one of {@link #iterator()} or {@link #processFromBase(Tkn, AbstractIterator)}.
+ * <p>
+ * Some streams also offer an allocation-light fast path, {@link #tokenise(CharSequence, TokenSpans)},
+ * which works on spans rather than Tkn objects. See {@link #supportsSpans()}.
  * 
  * @author daniel
  * @see ADataStream which uses a similar design
@@ -113,6 +116,36 @@ public abstract class ATokenStream implements ITokenStream {
 	}
 		
 
+	/**
+	 * @return true if {@link #tokenise(CharSequence, TokenSpans)} is supported, by this
+	 * stream and all the streams it is based on. false by default.
+	 */
+	public boolean supportsSpans() {
+		return false;
+	}
+
+	/**
+	 * The fast path: use this stream-as-a-factory to tokenise input into a reusable buffer
+	 * of spans -- with no Tkn (or usually String) objects made. Should give the same tokens
+	 * as <code>factory(input)</code>.
+	 * <p>
+	 * Filters implement this by calling their base's tokenise(), then editing the spans.
+	 * @param input
+	 * @param out Will be reset
+	 * @throws UnsupportedOperationException if !{@link #supportsSpans()}
+	 */
+	public void tokenise(CharSequence input, TokenSpans out) throws UnsupportedOperationException {
+		throw new UnsupportedOperationException(getClass().getName());
+	}
+
+	/**
+	 * For filters
+	 * @return true if base supports {@link #tokenise(CharSequence, TokenSpans)}
+	 */
+	protected final boolean baseSupportsSpans() {
+		return base instanceof ATokenStream && ((ATokenStream) base).supportsSpans();
+	}
+
 	@Override
 	public List<Tkn> toList() {
 		List<Tkn> list = new ArrayList<Tkn>();
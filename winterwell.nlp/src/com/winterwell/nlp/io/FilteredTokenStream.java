@@ -28,6 +28,10 @@ public class FilteredTokenStream extends ATokenStream {
 	private final KInOut inOut;
 	private final Collection<String> words;
 	private Object filter;
+	/**
+	 * words, for the spans fast path. Made lazily.
+	 */
+	private transient volatile SpanInterner interner;
 
 	/**
 	 * Pipe the stopwords through the tokeniser, thereby applying any processing that the pipeline does
@@ -108,6 +112,34 @@ public class FilteredTokenStream extends ATokenStream {
 	}
 	
 
+	@Override
+	public boolean supportsSpans() {
+		return (getClass() == FilteredTokenStream.class || getClass() == StopWordFilter.class)
+				&& baseSupportsSpans();
+	}
+
+	/**
+	 * Note: this takes a snapshot of the filter words on first use.
+	 */
+	@Override
+	public void tokenise(CharSequence input, TokenSpans out) {
+		((ATokenStream) base).tokenise(input, out);
+		SpanInterner dict = getInterner();
+		boolean keepIfIn = inOut == KInOut.ONLY_THESE;
+		out.retain(i -> (out.lookup(i, dict) != -1) == keepIfIn);
+	}
+
+	private SpanInterner getInterner() {
+		SpanInterner dict = interner;
+		if (dict != null) return dict;
+		synchronized (this) {
+			if (interner == null) {
+				interner = new SpanInterner(words);
+			}
+			return interner;
+		}
+	}
+
 	@Override
 	public String toString() {
 		return getClass().getSimpleName() + " <- " + base;
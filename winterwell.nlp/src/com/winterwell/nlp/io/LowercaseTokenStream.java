@@ -37,6 +37,19 @@ public class LowercaseTokenStream extends ATokenStream {
 		return next;
 	}
 
+	@Override
+	public boolean supportsSpans() {
+		return getClass() == LowercaseTokenStream.class && baseSupportsSpans();
+	}
+
+	@Override
+	public void tokenise(CharSequence input, TokenSpans out) {
+		((ATokenStream) base).tokenise(input, out);
+		for (int i = 0, n = out.size(); i < n; i++) {
+			out.lowerCase(i);
+		}
+	}
+
 	@Override
 	public String toString() {
 		return getClass().getSimpleName() + " <- " + base;
@@ -0,0 +1,142 @@
+package com.winterwell.nlp.io;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * String to int-id interning, where lookups can be done against a span of a
+ * CharSequence (optionally lower-casing on the fly) -- so without making a String.
+ * Used by the {@link TokenSpans} fast path for stopwords and stemming.
+ * <p>
+ * Lookups are thread-safe if there are no concurrent {@link #intern(String)}s.
+ *
+ * @testedby {@link TokenSpansTest}
+ */
+public final class SpanInterner {
+
+	private String[] words;
+	private int[] hashes;
+	/**
+	 * open addressing: id+1, or 0 for empty
+	 */
+	private int[] slots;
+	private int size;
+
+	public SpanInterner() {
+		this(16);
+	}
+
+	public SpanInterner(int capacity) {
+		int cap = Math.max(4, capacity);
+		words = new String[cap];
+		hashes = new int[cap];
+		slots = new int[Integer.highestOneBit(cap * 2 - 1) * 2];
+	}
+
+	public SpanInterner(Collection<String> words) {
+		this(words.size());
+		for (String w : words) {
+			intern(w);
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the word with this id
+	 */
+	public String get(int id) {
+		return words[id];
+	}
+
+	/**
+	 * @return the id of word (adding it if need be)
+	 */
+	public int intern(String word) {
+		int h = hash(word, 0, word.length(), false);
+		int id = find(word, 0, word.length(), false, h);
+		if (id != -1) return id;
+		if (size == words.length) {
+			words = Arrays.copyOf(words, size * 2);
+			hashes = Arrays.copyOf(hashes, size * 2);
+		}
+		id = size++;
+		words[id] = word;
+		hashes[id] = h;
+		if (size * 2 > slots.length) {
+			rehash();
+		} else {
+			put(id, h);
+		}
+		return id;
+	}
+
+	/**
+	 * @return the id of chars[start, end), or -1
+	 */
+	public int lookup(CharSequence chars, int start, int end) {
+		return lookup(chars, start, end, false);
+	}
+
+	/**
+	 * @param lowerCase If true, look up the lower-cased form of the span (via
+	 * {@link Character#toLowerCase(char)}, char by char)
+	 * @return the id of chars[start, end), or -1
+	 */
+	public int lookup(CharSequence chars, int start, int end, boolean lowerCase) {
+		return find(chars, start, end, lowerCase, hash(chars, start, end, lowerCase));
+	}
+
+	private int find(CharSequence chars, int start, int end, boolean lowerCase, int h) {
+		int mask = slots.length - 1;
+		for (int s = h & mask;; s = (s + 1) & mask) {
+			int id = slots[s] - 1;
+			if (id == -1) return -1;
+			if (hashes[id] == h && equals(words[id], chars, start, end, lowerCase)) return id;
+		}
+	}
+
+	private static boolean equals(String word, CharSequence chars, int start, int end, boolean lowerCase) {
+		if (word.length() != end - start) return false;
+		for (int i = start; i < end; i++) {
+			char c = chars.charAt(i);
+			if (lowerCase) c = Character.toLowerCase(c);
+			if (c != word.charAt(i - start)) return false;
+		}
+		return true;
+	}
+
+	private static int hash(CharSequence chars, int start, int end, boolean lowerCase) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			char c = chars.charAt(i);
+			if (lowerCase) c = Character.toLowerCase(c);
+			h = 31 * h + c;
+		}
+		// spread the bits, as HashMap does
+		return h ^ (h >>> 16);
+	}
+
+	private void put(int id, int h) {
+		int mask = slots.length - 1;
+		int s = h & mask;
+		while (slots[s] != 0) {
+			s = (s + 1) & mask;
+		}
+		slots[s] = id + 1;
+	}
+
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		for (int id = 0; id < size; id++) {
+			put(id, hashes[id]);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SpanInterner[size=" + size + "]";
+	}
+}
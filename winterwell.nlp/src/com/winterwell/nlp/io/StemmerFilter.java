@@ -1,5 +1,7 @@
 package com.winterwell.nlp.io;
 
+import java.util.Arrays;
+
 import com.winterwell.nlp.PorterStemmer;
 import com.winterwell.utils.StrUtils;
 import com.winterwell.utils.containers.AbstractIterator;
@@ -14,8 +16,39 @@ import com.winterwell.utils.containers.AbstractIterator;
  */
 public class StemmerFilter extends ATokenStream {
 
+	/**
+	 * {@link StrUtils#ASCII_PUNCTUATION} as a lookup table, for the spans fast path
+	 */
+	private static final boolean[] PUNCTUATION = new boolean[256];
+	static {
+		for (char c = 0; c < PUNCTUATION.length; c++) {
+			PUNCTUATION[c] = StrUtils.ASCII_PUNCTUATION.matcher(String.valueOf(c)).find();
+		}
+	}
+
+	/**
+	 * Max words in each per-thread stem cache
+	 */
+	static final int MAX_CACHE = 100000;
+
 	private final PorterStemmer stemmer;
 
+	/**
+	 * word -> stem, for the spans fast path. Per-thread, so no locking.
+	 */
+	private transient volatile ThreadLocal<StemCache> stemCache;
+
+	private static final class StemCache {
+		final SpanInterner words = new SpanInterner(1024);
+		String[] stems = new String[1024];
+
+		void add(String word, String stem) {
+			int id = words.intern(word);
+			if (id == stems.length) stems = Arrays.copyOf(stems, id * 2);
+			stems[id] = stem;
+		}
+	}
+
 	public StemmerFilter(ITokenStream base) {
 		this(base, new PorterStemmer());
 //		TODO desc.put("lang", stemmer.getLanguage());
@@ -68,6 +101,64 @@ public class StemmerFilter extends ATokenStream {
 		return token;
 	}
 
+	@Override
+	public boolean supportsSpans() {
+		// a sub-class might override doNotStem()
+		return getClass() == StemmerFilter.class && baseSupportsSpans();
+	}
+
+	/**
+	 * Stems are cached per thread (unless the stemmer has a stem dictionary, which makes
+	 * it stateful), so a repeated word costs one hash lookup and no allocation.
+	 */
+	@Override
+	public void tokenise(CharSequence input, TokenSpans out) {
+		((ATokenStream) base).tokenise(input, out);
+		StemCache cache = stemmer.hasStemDictionary() ? null : getStemCache();
+		for (int i = 0, n = out.size(); i < n; i++) {
+			if (doNotStem(out, i)) continue;
+			if (cache != null) {
+				int id = out.lookup(i, cache.words);
+				if (id != -1) {
+					out.setText(i, cache.stems[id]);
+					continue;
+				}
+			}
+			String word = out.getText(i);
+			String stemmed = stemmer.stem(word);
+			out.setText(i, stemmed);
+			if (cache != null && cache.words.size() < MAX_CACHE) {
+				cache.add(word, stemmed);
+			}
+		}
+	}
+
+	private StemCache getStemCache() {
+		ThreadLocal<StemCache> tl = stemCache;
+		if (tl == null) {
+			synchronized (this) {
+				if (stemCache == null) stemCache = ThreadLocal.withInitial(StemCache::new);
+				tl = stemCache;
+			}
+		}
+		return tl.get();
+	}
+
+	/**
+	 * Same as {@link #doNotStem(Tkn)}, without making a String
+	 */
+	private boolean doNotStem(TokenSpans spans, int i) {
+		if ( ! spans.isRawSpan(i)) {
+			return StrUtils.ASCII_PUNCTUATION.matcher(spans.getText(i)).find();
+		}
+		CharSequence input = spans.getInput();
+		for (int j = spans.start(i), end = spans.end(i); j < end; j++) {
+			char c = input.charAt(j);
+			if (c < PUNCTUATION.length && PUNCTUATION[c]) return true;
+		}
+		return false;
+	}
+
 	@Override
 	public String toString() {
 		return getClass().getSimpleName() + " <- " + base;
@@ -0,0 +1,213 @@
+package com.winterwell.nlp.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.IntPredicate;
+
+/**
+ * A reusable buffer of tokens as (start, end, flags) spans over an input CharSequence
+ * -- the allocation-light alternative to a stream of {@link Tkn}s. Made by
+ * {@link ATokenStream#tokenise(CharSequence, TokenSpans)}.
+ * <p>
+ * Text is only made when you ask for it ({@link #getText(int)}, {@link #getTkn(int)}).
+ * Filters edit spans in place: lower-casing is a flag, applied lazily; stemming sets a
+ * (shared, cached) replacement text; stopword removal drops spans.
+ * <p>
+ * Lower-casing is per-char via {@link Character#toLowerCase(char)}, which differs
+ * from String.toLowerCase() for a few exotic characters (e.g. dotted capital I).
+ * <p>
+ * Not thread-safe: use one per thread.
+ *
+ * @testedby {@link TokenSpansTest}
+ */
+public final class TokenSpans {
+
+	/** Type flags */
+	public static final int WORD = 1, NUMBER = 2, PUNCTUATION = 4, URL = 8;
+	/**
+	 * Processing flag: the text is lower-cased
+	 */
+	public static final int LOWER = 16;
+	/**
+	 * Processing flag: the text drops any punctuation after the first char, e.g. "can't" = "cant"
+	 */
+	public static final int SQUEEZE = 32;
+
+	private CharSequence input;
+	/**
+	 * [start, end, flags] per token
+	 */
+	private int[] spans = new int[3 * 64];
+	/**
+	 * Replacement text per token, usually null
+	 */
+	private String[] texts = new String[64];
+	private int size;
+
+	/**
+	 * Clear, ready for a new input
+	 */
+	public TokenSpans reset(CharSequence input) {
+		this.input = input;
+		if (size != 0) Arrays.fill(texts, 0, size, null);
+		size = 0;
+		return this;
+	}
+
+	public CharSequence getInput() {
+		return input;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int start(int i) {
+		return spans[3 * i];
+	}
+
+	public int end(int i) {
+		return spans[3 * i + 1];
+	}
+
+	public int flags(int i) {
+		return spans[3 * i + 2];
+	}
+
+	public boolean is(int i, int flag) {
+		return (spans[3 * i + 2] & flag) != 0;
+	}
+
+	public void add(int start, int end, int flags) {
+		if (size == texts.length) {
+			spans = Arrays.copyOf(spans, spans.length * 2);
+			texts = Arrays.copyOf(texts, texts.length * 2);
+		}
+		spans[3 * size] = start;
+		spans[3 * size + 1] = end;
+		spans[3 * size + 2] = flags;
+		size++;
+	}
+
+	public void setFlags(int i, int flags) {
+		spans[3 * i + 2] = flags;
+	}
+
+	/**
+	 * Replace the text of token i (offsets are kept). E.g. for stemming.
+	 */
+	public void setText(int i, String text) {
+		texts[i] = text;
+	}
+
+	/**
+	 * Lower-case token i -- lazily if possible.
+	 */
+	public void lowerCase(int i) {
+		if (texts[i] != null) {
+			texts[i] = texts[i].toLowerCase(Locale.ENGLISH);
+		} else {
+			spans[3 * i + 2] |= LOWER;
+		}
+	}
+
+	/**
+	 * Keep only the tokens which pass, preserving order.
+	 * @param keep tests a token index
+	 * @return the number removed
+	 */
+	public int retain(IntPredicate keep) {
+		int w = 0;
+		for (int i = 0; i < size; i++) {
+			if ( ! keep.test(i)) continue;
+			if (w != i) {
+				System.arraycopy(spans, 3 * i, spans, 3 * w, 3);
+				texts[w] = texts[i];
+			}
+			w++;
+		}
+		int removed = size - w;
+		Arrays.fill(texts, w, size, null);
+		size = w;
+		return removed;
+	}
+
+	/**
+	 * @return true if token i's text is the raw span (maybe lower-cased), so it can be
+	 * scanned in place.
+	 */
+	boolean isRawSpan(int i) {
+		return texts[i] == null && ! is(i, SQUEEZE);
+	}
+
+	/**
+	 * @return the id of token i's text in dict, or -1. Does not allocate (unless SQUEEZE'd).
+	 */
+	public int lookup(int i, SpanInterner dict) {
+		String text = texts[i];
+		if (text != null) return dict.lookup(text, 0, text.length());
+		if (is(i, SQUEEZE)) {
+			text = getText(i);
+			return dict.lookup(text, 0, text.length());
+		}
+		return dict.lookup(input, start(i), end(i), is(i, LOWER));
+	}
+
+	/**
+	 * @return the (processed) text of token i. Makes a String, unless a filter has already set one.
+	 */
+	public String getText(int i) {
+		String text = texts[i];
+		if (text != null) return text;
+		int start = start(i), end = end(i), flags = flags(i);
+		if ((flags & (LOWER | SQUEEZE)) == 0) {
+			return input.subSequence(start, end).toString();
+		}
+		boolean lower = (flags & LOWER) != 0, squeeze = (flags & SQUEEZE) != 0;
+		StringBuilder sb = new StringBuilder(end - start);
+		for (int j = start; j < end; j++) {
+			char c = input.charAt(j);
+			if (squeeze && j != start && ! Character.isLetterOrDigit(c)) continue;
+			sb.append(lower ? Character.toLowerCase(c) : c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return a fresh Tkn for token i, as the equivalent {@link ITokenStream} would make
+	 */
+	public Tkn getTkn(int i) {
+		Tkn tkn = new Tkn(getText(i), start(i), end(i));
+		if (is(i, URL)) {
+			tkn.setPOS(WordAndPunctuationTokeniser.POS_URL);
+		}
+		return tkn;
+	}
+
+	public List<Tkn> toTkns() {
+		List<Tkn> tkns = new ArrayList<Tkn>(size);
+		for (int i = 0; i < size; i++) {
+			tkns.add(getTkn(i));
+		}
+		return tkns;
+	}
+
+	public List<String> toTexts() {
+		List<String> words = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			words.add(getText(i));
+		}
+		return words;
+	}
+
+	@Override
+	public String toString() {
+		return "TokenSpans" + toTexts();
+	}
+}
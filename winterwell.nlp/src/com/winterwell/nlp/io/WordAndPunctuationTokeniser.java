@@ -6,6 +6,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.winterwell.nlp.corpus.brown.BrownCorpusTags;
+import com.winterwell.nlp.dict.Dictionary;
 import com.winterwell.nlp.dict.IDictionary;
 import com.winterwell.utils.Key;
 import com.winterwell.utils.Mutable;
@@ -98,6 +99,11 @@ public class WordAndPunctuationTokeniser extends ATokenStream {
 
 	IDictionary[] dicts;
 	boolean[] dictsTranslate;
+	/**
+	 * Per-dictionary hits in input (see {@link IDictionary#matchAll(String)}). Made lazily, per input.
+	 * null entries for dictionaries without an automaton (for which matchAll would be slow).
+	 */
+	private transient int[][] dictHits;
 
 	private String input;
 	boolean lowerCase;
@@ -144,6 +150,7 @@ public class WordAndPunctuationTokeniser extends ATokenStream {
 		
 		dicts[dicts.length - 1] = dict;
 		dictsTranslate[dicts.length - 1] = translate;
+		dictHits = null;
 		
 		assert dicts.length == dictsTranslate.length;
 		// imperfect but probably OK handling of dicts
@@ -259,19 +266,19 @@ public class WordAndPunctuationTokeniser extends ATokenStream {
 		if (isWordStart(c)) {
 			// is it a url?
 			if (urlsAsWords) {
-				end = next3_possibleUrl(start);
+				end = next3_possibleUrl(input, start);
 				if (end != -1) {
 					isUrl = true;
 				}
 			}
 			// no - it's a word
 			if (!isUrl) {
-				end = next3_wordOrCode(start);
+				end = next3_wordOrCode(input, start);
 			}
 		} else if (Character.isDigit(c)) {
-			end = next3_numberOrCode(start);
+			end = next3_numberOrCode(input, start);
 		} else {
-			end = next3_punctuation(start);
+			end = next3_punctuation(input, start);
 			// ignore this token?
 			// TODO more fine grained or over-ridable control?
 			if (swallowPunctuation) {
@@ -323,13 +330,28 @@ public class WordAndPunctuationTokeniser extends ATokenStream {
 	 */
 	private Tkn next3_dict(int start, Mutable.Int i) {
 		assert dicts.length == dictsTranslate.length : Printer.toString(this.dicts);
+		// find all the dictionary hits in one pass (if the dictionary has an Aho-Corasick index)
+		if (dictHits == null) {
+			int[][] hits = new int[dicts.length][];
+			for (int di=0; di<dicts.length; di++) {
+				if (dicts[di] instanceof Dictionary) {
+					hits[di] = dicts[di].matchAll(input);
+				}
+			}
+			dictHits = hits;
+		}
 		for (int di=0; di<dicts.length; di++) {
 			IDictionary dict = dicts[di];
+			int[] hits = dictHits[di];
+			if (hits != null && hits[start] == -1) {
+				continue;
+			}
+			// the dictionary's form of the word (e.g. lower-cased)
 			String word = dict.match(input, start);
 			if (word == null) {
 				continue;
 			}
-			i.value = start + word.length();
+			i.value = hits == null? start + word.length() : hits[start];
 			// Translate?
 			if (dictsTranslate[di]) {
 				String mword = dict.getMeaning(word);
@@ -344,7 +366,7 @@ public class WordAndPunctuationTokeniser extends ATokenStream {
 		return null;
 	}
 
-	private int next3_numberOrCode(int ci) {
+	private int next3_numberOrCode(CharSequence input, int ci) {
 		while (ci < input.length()) {
 			char c = input.charAt(ci);
 			ci++;
@@ -368,8 +390,10 @@ public class WordAndPunctuationTokeniser extends ATokenStream {
 	 * @param start
 	 * @return end offset for the url, if we are at the start of one, or -1
 	 */
-	private int next3_possibleUrl(int start) {
+	private int next3_possibleUrl(CharSequence input, int start) {
 		assert isWordStart(input.charAt(start));
+		// cheap check first: a url must start [a-z]{3,6}://
+		if ( ! isUrlStart(input, start)) return -1;
 		Matcher m = URL_REGEX2.matcher(input);
 		// local search only please
 		m.region(start, input.length());
@@ -385,7 +409,7 @@ public class WordAndPunctuationTokeniser extends ATokenStream {
 	 * @param ci
 	 * @return
 	 */
-	private int next3_punctuation(int ci) {
+	private int next3_punctuation(CharSequence input, int ci) {
 		while (ci < input.length()) {
 			char c = input.charAt(ci);
 			if (Character.isLetterOrDigit(c) || Character.isWhitespace(c))
@@ -395,7 +419,7 @@ public class WordAndPunctuationTokeniser extends ATokenStream {
 		return ci;
 	}
 
-	private int next3_wordOrCode(int ci) {
+	private int next3_wordOrCode(CharSequence input, int ci) {
 		// Take the first letter as OK without testing
 		assert isWordStart(input.charAt(ci)) : ci + ": " + input.charAt(ci);
 		ci++;
@@ -413,8 +437,94 @@ public class WordAndPunctuationTokeniser extends ATokenStream {
 		return ci;
 	}
 
+	/**
+	 * @return true if input has "://" after 3 to 6 chars from start. A necessary
+	 * condition for {@link WebUtils#URL_REGEX}, and much cheaper to test.
+	 */
+	static boolean isUrlStart(CharSequence input, int start) {
+		int max = Math.min(start + 6, input.length() - 3);
+		for (int j = start + 3; j <= max; j++) {
+			if (input.charAt(j) == ':') {
+				return input.charAt(j + 1) == '/' && input.charAt(j + 2) == '/';
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Supported unless there are dictionaries or ascii-normalisation (use the
+	 * iterator for those).
+	 */
+	@Override
+	public boolean supportsSpans() {
+		return dicts == null && normaliseToAscii == null;
+	}
+
+	/**
+	 * The fast path: same tokens as {@link #iterator()}, with no per-token objects.
+	 */
+	@Override
+	public void tokenise(CharSequence text, TokenSpans out) {
+		if ( ! supportsSpans()) {
+			throw new UnsupportedOperationException("dictionaries or ascii-normalisation: use iterator() "+this);
+		}
+		out.reset(text);
+		int len = text.length();
+		int i = 0;
+		while (true) {
+			// skip through whitespace
+			while (i < len && Character.isWhitespace(text.charAt(i))) {
+				i++;
+			}
+			if (i == len) return;
+			char c = text.charAt(i);
+			int start = i;
+			int end = -1;
+			int flags;
+			if (isWordStart(c)) {
+				if (urlsAsWords) {
+					end = next3_possibleUrl(text, start);
+				}
+				if (end != -1) {
+					flags = TokenSpans.URL;
+				} else {
+					end = next3_wordOrCode(text, start);
+					flags = TokenSpans.WORD;
+				}
+			} else if (Character.isDigit(c)) {
+				end = next3_numberOrCode(text, start);
+				flags = TokenSpans.NUMBER;
+			} else {
+				end = next3_punctuation(text, start);
+				flags = TokenSpans.PUNCTUATION;
+				if (swallowPunctuation) {
+					i = end;
+					continue;
+				}
+			}
+			i = end;
+			if (flags != TokenSpans.URL) {
+				if (swallowPunctuation && ! isLettersOrDigits(text, start + 1, end)) {
+					flags |= TokenSpans.SQUEEZE;
+				}
+				if (lowerCase) {
+					flags |= TokenSpans.LOWER;
+				}
+			}
+			out.add(start, end, flags);
+		}
+	}
+
+	private static boolean isLettersOrDigits(CharSequence text, int start, int end) {
+		for (int j = start; j < end; j++) {
+			if ( ! Character.isLetterOrDigit(text.charAt(j))) return false;
+		}
+		return true;
+	}
+
 	public void setInput(String input) {
 		this.input = input;
+		dictHits = null;
 	}
 
 	/**
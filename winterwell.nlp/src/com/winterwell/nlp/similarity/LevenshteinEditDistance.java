@@ -1,7 +1,11 @@
 package com.winterwell.nlp.similarity;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import com.winterwell.nlp.CompactTrie;
 
 /**
  * Damerau-Levenshtein edit distance, as copied from Wikipedia
@@ -90,6 +94,32 @@ public class LevenshteinEditDistance implements ICompareWords {
 		return list;
 	}
 
+	/**
+	 * Find the words in vocab within maxDist of word.
+	 * <p>
+	 * With the default costs, this uses {@link CompactTrie#getCloseWords(String, int)}, which
+	 * prunes the search -- rather than scanning the whole vocabulary. Sub-classes with custom 
+	 * costs get a scan.
+	 * @param word
+	 * @param vocab
+	 * @param maxDist
+	 * @return close words, with their edit distance. 0=perfect match
+	 */
+	public Map<String, Double> getCloseWords(String word, CompactTrie<?> vocab, double maxDist) {
+		if (getClass() == LevenshteinEditDistance.class 
+				&& UNIT==1 && DELETE_COST==1 && INSERT_COST==1 && TRANSPOSE_COST==1) 
+		{
+			return vocab.getCloseWords(word, (int) Math.floor(maxDist));
+		}
+		Map<String, Double> map = new HashMap();
+		for(String w : vocab.keySet()) {
+			double d = editDistance(word, w);
+			if (d > maxDist) continue;
+			map.put(w, d);
+		}
+		return map;
+	}
+
 	@Override
 	public double similarity(String a, String b) {
 		List la = list(a);
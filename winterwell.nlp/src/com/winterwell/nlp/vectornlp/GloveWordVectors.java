@@ -4,15 +4,20 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+import com.winterwell.maths.vector.HNSWIndex;
 import com.winterwell.nlp.NLPWorkshop;
+import com.winterwell.nlp.vectornlp.WordVectorFile.KQuantisation;
 import com.winterwell.utils.StrUtils;
 import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Pair2;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.io.LineReader;
 import com.winterwell.utils.log.Log;
@@ -24,6 +29,10 @@ import no.uib.cipr.matrix.Vector;
 /**
  * Use the GLOVE pre-computed word vectors.
  * Warning: Make ONE instance and cache it globally! This is a big object and slow to load.
+ * <p>
+ * Unless: convert once with {@link #saveBinary(File, KQuantisation)} to a ".wvec" file, which
+ * then loads instantly via memory-mapping (see {@link WordVectorFile}), sharing one copy
+ * between all the JVMs on a machine.
  * @author daniel
  * @testedby {@link GloveWordVectorsTest}
  */
@@ -64,6 +73,10 @@ public class GloveWordVectors {
 	}
 	
 	private static File getFile(KGloveSource src) {
+		// converted binary?
+		File wvec = NLPWorkshop.get("en").getFile(src.entry+".wvec");
+		if (wvec!=null && wvec.exists()) return wvec;
+		
 		// gzip entry? (this will probably fail, with a failed scp)
 		File gzipd = NLPWorkshop.get("en").getFile(src.entry+".gz");
 		if (gzipd!=null && gzipd.exists()) return gzipd;
@@ -80,6 +93,16 @@ public class GloveWordVectors {
 	
 	final Map<String,Vector> word2vec = new HashMap();
 	
+	/**
+	 * Unit vectors, so Euclidean nearest = cosine nearest. Built on first use.
+	 */
+	private volatile HNSWIndex<String> index;
+	
+	/**
+	 * non-null if loaded from a binary .wvec file
+	 */
+	private volatile WordVectorFile wvf;
+	
 	/**
 	 * Download a fresh version of Wikipedia! This may be slow.
 	 * @param file2 
@@ -97,11 +120,16 @@ public class GloveWordVectors {
 
 	
 	public GloveWordVectors init() {
-		if ( ! word2vec.isEmpty()) return this;
+		if (wvf!=null || ! word2vec.isEmpty()) return this;
 		synchronized (this) {
 			ZipFile zipf = null;
 			try {
-				if ( ! word2vec.isEmpty()) return this;
+				if (wvf!=null || ! word2vec.isEmpty()) return this;
+				if (file!=null && file.getName().endsWith(".wvec")) {
+					wvf = WordVectorFile.open(file);
+					Log.d("glove", "Mapped "+wvf);
+					return this;
+				}
 				Log.d("glove", "Loading word vectors from "+file+" ...");
 				if (file==null || ! file.exists()) {
 					// download it
@@ -164,14 +192,86 @@ public class GloveWordVectors {
 	 */
 	public Vector getVector(String string) {
 		init();
+		if (wvf!=null) {
+			// decoded from the mapped file, so always a fresh copy
+			return wvf.getVector(canon(string));
+		}
 		Vector v = word2vec.get(canon(string));
 		// safety copy - protect the store from edits
 		return v==null? null : new DenseVector(v);
 	}
 
+	/**
+	 * Nearest words by cosine similarity. In-memory: approximate, via an HNSW index which
+	 * is built on first call (which takes a while for a big vocabulary). Binary file: exact,
+	 * via {@link WordVectorFile#getMostSimilar(Vector, int)}.
+	 * @param vector
+	 * @param k
+	 * @return (word, cosine similarity), most similar first
+	 */
+	public List<Pair2<String,Double>> getNearestWords(Vector vector, int k) {
+		init();
+		if (wvf!=null) {
+			// exact parallel scan of the mapped vectors
+			return wvf.getMostSimilar(vector, k);
+		}
+		HNSWIndex<String> idx = getIndex();
+		// no vocabulary, no index
+		if (idx == null) return new ArrayList();
+		double norm = vector.norm(Vector.Norm.Two);
+		if (norm == 0) return new ArrayList();
+		Vector q = new DenseVector(vector).scale(1/norm);
+		List<Pair2<String,Double>> nearest = idx.getNearest(q, k);
+		List<Pair2<String,Double>> sims = new ArrayList(nearest.size());
+		for (Pair2<String, Double> wd : nearest) {
+			// for unit vectors, |a-b|^2 = 2 - 2cos
+			sims.add(new Pair2(wd.first, 1 - wd.second*wd.second/2));
+		}
+		return sims;
+	}
+
+	/**
+	 * @return null if there are no word vectors
+	 */
+	private HNSWIndex<String> getIndex() {
+		if (index!=null) return index;
+		init();
+		synchronized (this) {
+			if (index!=null) return index;
+			Log.d(LOGTAG, "Indexing "+word2vec.size()+" word vectors...");
+			HNSWIndex<String> idx = null;
+			for (Map.Entry<String, Vector> e : word2vec.entrySet()) {
+				Vector v = e.getValue();
+				if (idx==null) idx = new HNSWIndex(v.size());
+				double norm = v.norm(Vector.Norm.Two);
+				if (norm == 0) continue;
+				idx.add(new DenseVector(v).scale(1/norm), e.getKey());
+			}
+			Log.d(LOGTAG, "...indexed "+word2vec.size()+" word vectors.");
+			index = idx;
+			return idx;
+		}
+	}
+
 	public Set<String> getWords() {
 		init();
+		if (wvf!=null) return wvf.getWords();
 		return word2vec.keySet();
 	}
+
+	/**
+	 * One-off conversion to a binary memory-mappable file. Load it with
+	 * {@link #GloveWordVectors(File)}, or name it [source entry].wvec (e.g. glove.6B.300d.txt.wvec)
+	 * to have {@link #GloveWordVectors(KGloveSource)} pick it up.
+	 * @param out
+	 * @param quant FLOAT16 is a good default: half the size, and no noticeable loss.
+	 */
+	public void saveBinary(File out, KQuantisation quant) {
+		init();
+		if (wvf!=null) throw new IllegalStateException("Already binary: "+wvf);
+		Log.d(LOGTAG, "Writing "+word2vec.size()+" word vectors to "+out+" as "+quant+"...");
+		WordVectorFile.write(out, word2vec, quant);
+		Log.d(LOGTAG, "...wrote "+out);
+	}
 	
 }
@@ -0,0 +1,495 @@
+package com.winterwell.nlp.vectornlp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.AbstractIterator;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.io.FileUtils;
+
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.Vector;
+
+/**
+ * A binary, memory-mapped word-vector store. Convert once with
+ * {@link #write(File, Map, KQuantisation)} (or {@link GloveWordVectors#saveBinary(File, KQuantisation)}),
+ * then {@link #open(File)} is near-instant and uses almost no heap: the vectors stay in the
+ * OS page cache, shared by every JVM on the box.
+ * <p>
+ * The vocabulary is sorted by UTF-8 bytes, so lookup is a binary search. Vectors can be
+ * stored as float32, float16 (half the size, ~3 significant figures) or int8 (a quarter,
+ * with a per-vector scale -- fine for cosine similarity).
+ * <p>
+ * File layout (little-endian):
+ * <pre>
+ * int magic, int version, int n, int dim, int quantisation, int 0, long vocab-bytes
+ * float[n] norms, float[n] scales, int[n+1] vocab offsets, byte[] vocab (UTF-8), padding to 8
+ * n * dim values
+ * </pre>
+ * Thread-safe.
+ *
+ * @testedby {@link WordVectorFileTest}
+ */
+public final class WordVectorFile {
+
+	public static enum KQuantisation {
+		FLOAT32(4), FLOAT16(2), INT8(1);
+
+		final int bytes;
+
+		private KQuantisation(int bytes) {
+			this.bytes = bytes;
+		}
+	}
+
+	static final int MAGIC = 0x57564543; // "WVEC"
+	private static final int VERSION = 1;
+	private static final int HEADER = 32;
+	/**
+	 * Max bytes per mapped chunk of vectors (a MappedByteBuffer is limited to 2gb)
+	 */
+	static int CHUNK_BYTES = 1 << 30;
+
+	private final File file;
+	private final int n;
+	private final int dim;
+	private final KQuantisation quant;
+	/**
+	 * norms, scales, vocab
+	 */
+	private final ByteBuffer header;
+	private final int scalesAt;
+	private final int offsetsAt;
+	private final int vocabAt;
+	private final ByteBuffer[] chunks;
+	private final int vectorsPerChunk;
+
+	private WordVectorFile(File file, ByteBuffer header, ByteBuffer[] chunks, int vectorsPerChunk) {
+		this.file = file;
+		this.header = header;
+		this.n = header.getInt(8);
+		this.dim = header.getInt(12);
+		this.quant = KQuantisation.values()[header.getInt(16)];
+		this.scalesAt = HEADER + 4 * n;
+		this.offsetsAt = scalesAt + 4 * n;
+		this.vocabAt = offsetsAt + 4 * (n + 1);
+		this.chunks = chunks;
+		this.vectorsPerChunk = vectorsPerChunk;
+	}
+
+	/**
+	 * Memory-map a file made by {@link #write(File, Map, KQuantisation)}.
+	 */
+	public static WordVectorFile open(File file) {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+				FileChannel ch = raf.getChannel()) {
+			ByteBuffer top = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			if (top.getInt(0) != MAGIC) throw new IOException("Not a word-vector file: " + file);
+			if (top.getInt(4) != VERSION) throw new IOException("Unsupported version " + top.getInt(4) + " in " + file);
+			int n = top.getInt(8);
+			int dim = top.getInt(12);
+			KQuantisation q = KQuantisation.values()[top.getInt(16)];
+			long vectorsAt = vectorsAt(n, top.getLong(24));
+			MappedByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, vectorsAt);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			long vecBytes = Math.max(1, (long) dim * q.bytes);
+			int perChunk = (int) Math.max(1, CHUNK_BYTES / vecBytes);
+			int numChunks = (int) ((n + (long) perChunk - 1) / perChunk);
+			ByteBuffer[] chunks = new ByteBuffer[numChunks];
+			for (int c = 0; c < numChunks; c++) {
+				long start = vectorsAt + c * perChunk * vecBytes;
+				long size = Math.min(perChunk, n - (long) c * perChunk) * vecBytes;
+				chunks[c] = ch.map(FileChannel.MapMode.READ_ONLY, start, size).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			// the mappings stay valid after the channel is closed
+			return new WordVectorFile(file, header, chunks, perChunk);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	private static long vectorsAt(int n, long vocabBytes) {
+		long end = HEADER + 8L * n + 4L * (n + 1) + vocabBytes;
+		return (end + 7) & ~7L;
+	}
+
+	/**
+	 * One-off conversion to the binary format.
+	 * @param out
+	 * @param word2vec All vectors must have the same dimension.
+	 * @param quant
+	 */
+	public static void write(File out, Map<String, ? extends Vector> word2vec, KQuantisation quant) {
+		int n = word2vec.size();
+		byte[][] words = new byte[n][];
+		Vector[] vecs = new Vector[n];
+		Integer[] order = new Integer[n];
+		int i = 0;
+		for (Map.Entry<String, ? extends Vector> e : word2vec.entrySet()) {
+			words[i] = e.getKey().getBytes(StandardCharsets.UTF_8);
+			vecs[i] = e.getValue();
+			order[i] = i;
+			i++;
+		}
+		Arrays.sort(order, (a, b) -> compare(words[a], words[b]));
+		int dim = n == 0 ? 0 : vecs[0].size();
+		long vocabBytes = 0;
+		for (byte[] w : words) {
+			vocabBytes += w.length;
+		}
+		long vectorsAt = vectorsAt(n, vocabBytes);
+		if (vectorsAt > Integer.MAX_VALUE) throw new IllegalArgumentException("Vocabulary too big: " + vocabBytes + " bytes");
+
+		ByteBuffer header = ByteBuffer.allocate((int) vectorsAt).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(dim).putInt(quant.ordinal()).putInt(0).putLong(vocabBytes);
+		float[] scales = new float[n];
+		for (int k = 0; k < n; k++) {
+			Vector v = vecs[order[k]];
+			if (v.size() != dim) throw new IllegalArgumentException("dim " + v.size() + " != " + dim + " for " + new String(words[order[k]], StandardCharsets.UTF_8));
+			double sumSq = 0, max = 0;
+			for (int d = 0; d < dim; d++) {
+				double x = v.get(d);
+				sumSq += x * x;
+				max = Math.max(max, Math.abs(x));
+			}
+			header.putFloat((float) Math.sqrt(sumSq));
+			scales[k] = quant == KQuantisation.INT8 ? (float) (max / 127) : 1;
+		}
+		for (float s : scales) {
+			header.putFloat(s);
+		}
+		int off = 0;
+		for (int k = 0; k < n; k++) {
+			header.putInt(off);
+			off += words[order[k]].length;
+		}
+		header.putInt(off);
+		for (int k = 0; k < n; k++) {
+			header.put(words[order[k]]);
+		}
+		header.position(0);
+
+		try (RandomAccessFile raf = new RandomAccessFile(out, "rw");
+				FileChannel ch = raf.getChannel()) {
+			raf.setLength(0);
+			while (header.hasRemaining()) ch.write(header);
+			ByteBuffer buf = ByteBuffer.allocate(Math.max(dim * quant.bytes, 1 << 16)).order(ByteOrder.LITTLE_ENDIAN);
+			for (int k = 0; k < n; k++) {
+				if (buf.remaining() < dim * quant.bytes) {
+					buf.flip();
+					while (buf.hasRemaining()) ch.write(buf);
+					buf.clear();
+				}
+				Vector v = vecs[order[k]];
+				for (int d = 0; d < dim; d++) {
+					double x = v.get(d);
+					switch (quant) {
+					case FLOAT32:
+						buf.putFloat((float) x);
+						break;
+					case FLOAT16:
+						buf.putShort(toHalf((float) x));
+						break;
+					case INT8:
+						buf.put(scales[k] == 0 ? 0 : (byte) Math.round(x / scales[k]));
+						break;
+					}
+				}
+			}
+			buf.flip();
+			while (buf.hasRemaining()) ch.write(buf);
+		} catch (IOException ex) {
+			FileUtils.delete(out);
+			throw Utils.runtime(ex);
+		}
+	}
+
+	/**
+	 * Unsigned byte comparison -- which for UTF-8 is code-point order.
+	 */
+	private static int compare(byte[] a, byte[] b) {
+		int len = Math.min(a.length, b.length);
+		for (int i = 0; i < len; i++) {
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if (c != 0) return c;
+		}
+		return a.length - b.length;
+	}
+
+	public int size() {
+		return n;
+	}
+
+	public int getDim() {
+		return dim;
+	}
+
+	public KQuantisation getQuantisation() {
+		return quant;
+	}
+
+	/**
+	 * @return the id of word, or -1
+	 */
+	public int indexOf(String word) {
+		byte[] w = word.getBytes(StandardCharsets.UTF_8);
+		int lo = 0, hi = n - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compareWord(mid, w);
+			if (c < 0) lo = mid + 1;
+			else if (c > 0) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	private int compareWord(int id, byte[] w) {
+		int start = header.getInt(offsetsAt + 4 * id);
+		int len = header.getInt(offsetsAt + 4 * id + 4) - start;
+		int p = vocabAt + start;
+		int m = Math.min(len, w.length);
+		for (int i = 0; i < m; i++) {
+			int c = (header.get(p + i) & 0xff) - (w[i] & 0xff);
+			if (c != 0) return c;
+		}
+		return len - w.length;
+	}
+
+	public String getWord(int id) {
+		int start = header.getInt(offsetsAt + 4 * id);
+		int len = header.getInt(offsetsAt + 4 * id + 4) - start;
+		byte[] w = new byte[len];
+		for (int i = 0; i < len; i++) {
+			w[i] = header.get(vocabAt + start + i);
+		}
+		return new String(w, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the L2 norm of the original (unquantised) vector
+	 */
+	public float getNorm(int id) {
+		return header.getFloat(HEADER + 4 * id);
+	}
+
+	/**
+	 * @return a fresh vector for word, or null if unknown
+	 */
+	public DenseVector getVector(String word) {
+		int id = indexOf(word);
+		if (id == -1) return null;
+		float[] v = getVector(id, null);
+		double[] dv = new double[dim];
+		for (int d = 0; d < dim; d++) {
+			dv[d] = v[d];
+		}
+		return new DenseVector(dv, false);
+	}
+
+	/**
+	 * Decode straight from the mapped file.
+	 * @param id
+	 * @param out Can be null
+	 * @return out
+	 */
+	public float[] getVector(int id, float[] out) {
+		if (out == null) out = new float[dim];
+		ByteBuffer chunk = chunks[id / vectorsPerChunk];
+		int p = (id % vectorsPerChunk) * dim * quant.bytes;
+		switch (quant) {
+		case FLOAT32:
+			for (int d = 0; d < dim; d++, p += 4) {
+				out[d] = chunk.getFloat(p);
+			}
+			break;
+		case FLOAT16:
+			for (int d = 0; d < dim; d++, p += 2) {
+				out[d] = halfToFloat(chunk.getShort(p));
+			}
+			break;
+		case INT8:
+			float scale = header.getFloat(scalesAt + 4 * id);
+			for (int d = 0; d < dim; d++, p++) {
+				out[d] = chunk.get(p) * scale;
+			}
+			break;
+		}
+		return out;
+	}
+
+	/**
+	 * Batched cosine similarity against the whole vocabulary, in parallel.
+	 * @param query
+	 * @return similarity per word id. 0 for zero vectors.
+	 */
+	public float[] cosineAll(Vector query) {
+		if (query.size() != dim) throw new IllegalArgumentException("dim " + query.size() + " != " + dim);
+		float[] q = new float[dim];
+		double qn = 0;
+		for (int d = 0; d < dim; d++) {
+			double x = query.get(d);
+			q[d] = (float) x;
+			qn += x * x;
+		}
+		float[] sims = new float[n];
+		if (qn == 0) return sims;
+		double qnorm = Math.sqrt(qn);
+		int block = 4096;
+		IntStream.range(0, (n + block - 1) / block).parallel().forEach(b -> {
+			int end = Math.min(n, (b + 1) * block);
+			for (int id = b * block; id < end; id++) {
+				float norm = getNorm(id);
+				if (norm == 0) continue;
+				sims[id] = (float) (dot(id, q) / (norm * qnorm));
+			}
+		});
+		return sims;
+	}
+
+	/**
+	 * dot product, decoding on the fly
+	 */
+	private double dot(int id, float[] q) {
+		ByteBuffer chunk = chunks[id / vectorsPerChunk];
+		int p = (id % vectorsPerChunk) * dim * quant.bytes;
+		double s = 0;
+		switch (quant) {
+		case FLOAT32:
+			for (int d = 0; d < dim; d++, p += 4) {
+				s += chunk.getFloat(p) * q[d];
+			}
+			return s;
+		case FLOAT16:
+			for (int d = 0; d < dim; d++, p += 2) {
+				s += halfToFloat(chunk.getShort(p)) * q[d];
+			}
+			return s;
+		case INT8:
+			for (int d = 0; d < dim; d++, p++) {
+				s += chunk.get(p) * q[d];
+			}
+			return s * header.getFloat(scalesAt + 4 * id);
+		}
+		throw new IllegalStateException(quant.toString());
+	}
+
+	/**
+	 * Exact top-k by cosine similarity -- a parallel scan of the whole vocabulary.
+	 * @return (word, similarity), most similar first
+	 */
+	public List<Pair2<String, Double>> getMostSimilar(Vector query, int k) {
+		if (k <= 0) return new ArrayList();
+		float[] sims = cosineAll(query);
+		// min-heap of the best k
+		PriorityQueue<Integer> best = new PriorityQueue<Integer>(k + 1, (a, b) -> Float.compare(sims[a], sims[b]));
+		for (int id = 0; id < n; id++) {
+			if (best.size() == k && sims[id] <= sims[best.peek()]) continue;
+			best.add(id);
+			if (best.size() > k) best.poll();
+		}
+		Pair2[] out = new Pair2[best.size()];
+		for (int i = out.length - 1; i >= 0; i--) {
+			int id = best.poll();
+			out[i] = new Pair2<String, Double>(getWord(id), (double) sims[id]);
+		}
+		return new ArrayList(Arrays.asList(out));
+	}
+
+	/**
+	 * @return the vocabulary, as a read-only view (in UTF-8 byte order)
+	 */
+	public Set<String> getWords() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new AbstractIterator<String>() {
+					int id;
+
+					@Override
+					protected String next2() {
+						return id < n ? getWord(id++) : null;
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return o instanceof String && indexOf((String) o) != -1;
+			}
+
+			@Override
+			public int size() {
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * float -> IEEE 754 half-precision, rounding to nearest.
+	 */
+	static short toHalf(float f) {
+		int bits = Float.floatToIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		int val = (bits & 0x7fffffff) + 0x1000;
+		if (val >= 0x47800000) {
+			int abs = bits & 0x7fffffff;
+			if (abs == 0x7f800000) return (short) (sign | 0x7c00); // inf
+			if (abs > 0x7f800000) return (short) (sign | 0x7e00); // NaN
+			// too big: clamp to max
+			return (short) (sign | 0x7bff);
+		}
+		if (val >= 0x38800000) {
+			return (short) (sign | ((val - 0x38000000) >>> 13));
+		}
+		if (val < 0x33000000) {
+			// too small
+			return (short) sign;
+		}
+		// subnormal
+		val = (bits & 0x7fffffff) >>> 23;
+		return (short) (sign | ((((bits & 0x7fffff) | 0x800000) + (0x800000 >>> (val - 102))) >>> (126 - val)));
+	}
+
+	static float halfToFloat(short h) {
+		int hb = h & 0xffff;
+		int mant = hb & 0x03ff;
+		int exp = hb & 0x7c00;
+		if (exp == 0x7c00) {
+			exp = 0x3fc00;
+		} else if (exp != 0) {
+			exp += 0x1c000;
+		} else if (mant != 0) {
+			// subnormal: normalise
+			exp = 0x1c400;
+			do {
+				mant <<= 1;
+				exp -= 0x400;
+			} while ((mant & 0x400) == 0);
+			mant &= 0x3ff;
+		}
+		return Float.intBitsToFloat((hb & 0x8000) << 16 | (exp | mant) << 13);
+	}
+
+	@Override
+	public String toString() {
+		return "WordVectorFile[" + file + " n=" + n + " dim=" + dim + " " + quant + "]";
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.winterwell.nlp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.winterwell.nlp.similarity.LevenshteinEditDistance;
+
+/**
+ * @tested {@link CompactTrie}
+ */
+public class CompactTrieTest {
+
+	@Test
+	public void testExists() {
+		CompactTrie<String> trie = new CompactTrie.Builder<String>()
+				.add("abc").add("ab").add("abcd").add("Foo Bar").build();
+		assert trie.exists("abc");
+		assert trie.exists("ab");
+		assert trie.exists("abcd");
+		assert trie.exists("Foo Bar");
+		assert ! trie.exists("a");
+		assert ! trie.exists("abcde");
+		assert ! trie.exists("foo bar");
+		assert ! trie.exists("");
+		assert trie.size() == 4;
+
+		CompactTrie<String> trie2 = new CompactTrie.Builder<String>().add("").add("x").build();
+		assert trie2.exists("");
+		assert trie2.exists("x");
+
+		CompactTrie<String> empty = new CompactTrie.Builder<String>().build();
+		assert ! empty.exists("");
+		assert empty.isEmpty();
+		assert empty.getCloseWords("foo", 2).isEmpty();
+	}
+
+	@Test
+	public void testGetAndKeySet() {
+		CompactTrie<Integer> trie = new CompactTrie.Builder<Integer>()
+				.put("car", 1).put("cart", 2).put("cat", 3).add("dog").build();
+		assert trie.get("cart") == 2;
+		assert trie.get("cat") == 3;
+		assert trie.get("dog") == null;
+		assert trie.get("ca") == null;
+		assert trie.containsKey("dog");
+		assert new ArrayList(trie.keySet()).equals(Arrays.asList("car", "cart", "cat", "dog")) : trie.keySet();
+		try {
+			trie.put("cow", 4);
+			assert false;
+		} catch (UnsupportedOperationException ex) {
+			// good
+		}
+	}
+
+	@Test
+	public void testPrefix() {
+		CompactTrie<String> trie = new CompactTrie.Builder<String>()
+				.addAll(Arrays.asList("car", "cart", "carton", "cat", "dog")).build();
+		assert trie.getKeysWithPrefix("car").equals(Arrays.asList("car", "cart", "carton"));
+		assert trie.getKeysWithPrefix("ca").size() == 4;
+		assert trie.getKeysWithPrefix("x").isEmpty();
+		assert trie.getKeysWithPrefix("").size() == 5;
+		// same as Trie
+		assert new ArrayList(trie.prefixMatch("cartwheel")).equals(Arrays.asList("cart", "carton"));
+		assert trie.prefixMatch("cab").isEmpty();
+	}
+
+	@Test
+	public void testCloseWords() {
+		CompactTrie<String> trie = new CompactTrie.Builder<String>()
+				.addAll(Arrays.asList("the", "then", "than", "hte", "cat", "at", "theme")).build();
+		Map<String, Double> close = trie.getCloseWords("teh", 1);
+		assert close.get("the") == 1 : close; // transposition
+		assert ! close.containsKey("then") : close;
+		close = trie.getCloseWords("the", 0);
+		assert close.size() == 1 && close.get("the") == 0;
+	}
+
+	@Test
+	public void testCloseWordsVsBruteForce() {
+		Random r = new Random(7);
+		List<String> words = new ArrayList();
+		for (int i = 0; i < 2000; i++) {
+			words.add(randomWord(r));
+		}
+		CompactTrie<String> trie = new CompactTrie.Builder<String>().addAll(words).build();
+		LevenshteinEditDistance led = new LevenshteinEditDistance();
+		for (int q = 0; q < 100; q++) {
+			String query = q % 2 == 0 ? randomWord(r) : words.get(q);
+			for (int max = 0; max <= 3; max++) {
+				Map<String, Double> expected = new HashMap();
+				for (String w : trie.keySet()) {
+					double d = led.editDistance(query, w);
+					if (d <= max) expected.put(w, d);
+				}
+				Map<String, Double> got = trie.getCloseWords(query, max);
+				assert got.equals(expected) : query + " " + max + " " + got + " vs " + expected;
+			}
+		}
+	}
+
+	private static String randomWord(Random r) {
+		int len = 1 + r.nextInt(7);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < len; i++) {
+			sb.append((char) ('a' + r.nextInt(5)));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,89 @@
+package com.winterwell.nlp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.winterwell.nlp.similarity.LevenshteinEditDistance;
+import com.winterwell.utils.time.StopWatch;
+
+/**
+ * Memory & speed: {@link Trie} vs {@link CompactTrie}, on a 200k word vocabulary.
+ * And fuzzy search: trie search vs scan-every-word.
+ */
+public class TriePerfTest {
+
+	@Test
+	public void testCompare() {
+		Random r = new Random(42);
+		List<String> words = new ArrayList();
+		for (int i = 0; i < 200000; i++) {
+			words.add(randomWord(r));
+		}
+		long m0 = usedMemory();
+		Trie<Object> trie = new Trie();
+		for (String w : words) {
+			trie.add(w);
+		}
+		long m1 = usedMemory();
+		CompactTrie<Object> ctrie = new CompactTrie.Builder().addAll(words).build();
+		long m2 = usedMemory();
+		System.out.println("Trie	" + (m1 - m0) / 1024 + "k");
+		System.out.println("CompactTrie	" + (m2 - m1) / 1024 + "k	" + ctrie.getNodeCount() + " nodes");
+
+		for (int rep = 0; rep < 2; rep++) { // 1st round is a warm-up
+			StopWatch sw = new StopWatch();
+			int hits = 0;
+			for (String w : words) {
+				if (trie.exists(w)) hits++;
+			}
+			long t1 = sw.getTime();
+			sw = new StopWatch();
+			int chits = 0;
+			for (String w : words) {
+				if (ctrie.exists(w)) chits++;
+			}
+			long t2 = sw.getTime();
+			assert hits == chits;
+			if (rep == 1) {
+				System.out.println("exists	Trie " + t1 + "ms	CompactTrie " + t2 + "ms");
+			}
+		}
+
+		LevenshteinEditDistance led = new LevenshteinEditDistance();
+		StopWatch sw = new StopWatch();
+		for (int q = 0; q < 100; q++) {
+			ctrie.getCloseWords(words.get(q), 2);
+		}
+		long tTrie = sw.getTime();
+		sw = new StopWatch();
+		for (int q = 0; q < 5; q++) {
+			for (String w : words) {
+				led.editDistance(words.get(q), w);
+			}
+		}
+		long tScan = sw.getTime() * 20;
+		System.out.println("getCloseWords x100	trie " + tTrie + "ms	scan ~" + tScan + "ms");
+		// keep them reachable for the memory measurement
+		assert trie.exists(words.get(0)) && ctrie.exists(words.get(0));
+	}
+
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static String randomWord(Random r) {
+		int len = 3 + r.nextInt(9);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < len; i++) {
+			sb.append((char) ('a' + r.nextInt(26)));
+		}
+		return sb.toString();
+	}
+}
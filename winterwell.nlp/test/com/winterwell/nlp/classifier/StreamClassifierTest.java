@@ -0,0 +1,177 @@
+package com.winterwell.nlp.classifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.winterwell.maths.ITrainable;
+import com.winterwell.maths.stats.distributions.IDistributionBase;
+import com.winterwell.maths.stats.distributions.cond.Cntxt;
+import com.winterwell.maths.stats.distributions.cond.ExplnOfDist;
+import com.winterwell.maths.stats.distributions.cond.ICondDistribution;
+import com.winterwell.maths.stats.distributions.cond.UnConditional;
+import com.winterwell.maths.stats.distributions.discrete.IFiniteDistribution;
+import com.winterwell.maths.stats.distributions.discrete.ObjectDistribution;
+import com.winterwell.nlp.corpus.IDocument;
+import com.winterwell.nlp.corpus.SimpleDocument;
+import com.winterwell.nlp.io.Tkn;
+import com.winterwell.nlp.io.Token2UnConditionalSitnStream;
+import com.winterwell.nlp.io.WordAndPunctuationTokeniser;
+import com.winterwell.utils.containers.ArrayMap;
+
+/**
+ * @tested {@link StreamClassifier}
+ */
+public class StreamClassifierTest {
+
+	static final String[] TRAIN_CATS = {"cat being cute", "the cat sat on the mat", "kittens purr and cats meow"};
+	static final String[] TRAIN_DOGS = {"dog being loud", "the dog chased the ball", "puppies bark and dogs fetch"};
+	static final String[] TRAIN_BIRDS = {"bird being loud", "the bird sat on the branch", "parrots talk and birds sing"};
+	static final String[] TEST = {
+		"cat is cute", "the dog sat on the cat", "loud birds and quiet cats",
+		"nothing known here", "", "the the the", "a puppy and a kitten and a parrot",
+		"cats dogs birds sat chased sing purr bark fetch talk meow"
+	};
+
+	/**
+	 * Returns NaN ("pass") for short words
+	 */
+	static class PassModel implements ICondDistribution.WithExplanation<Tkn, Cntxt>, ITrainable.Supervised<Cntxt, Tkn> {
+		final UnConditional<Tkn> base;
+		PassModel(UnConditional<Tkn> base) {
+			this.base = base;
+		}
+		@Override
+		public double probWithExplanation(Tkn outcome, Cntxt context, ExplnOfDist explain) {
+			if (outcome.getText().length() < 4) return Double.NaN;
+			return base.prob(outcome, context);
+		}
+		@Override
+		public IDistributionBase<Tkn> getMarginal(Cntxt context) {
+			return base.getMarginal(context);
+		}
+		@Override
+		public Tkn sample(Cntxt context) {
+			return base.sample(context);
+		}
+		@Override
+		public void finishTraining() {
+			base.finishTraining();
+		}
+		@Override
+		public boolean isReady() {
+			return base.isReady();
+		}
+		@Override
+		public void resetup() {
+			base.resetup();
+		}
+		@Override
+		public void train1(Cntxt x, Tkn tag, double weight) {
+			base.train1(x, tag, weight);
+		}
+	}
+
+	static UnConditional<Tkn> newModel() {
+		ObjectDistribution<Tkn> d = new ObjectDistribution<Tkn>();
+		d.setPseudoCount(1);
+		return new UnConditional<Tkn>(d);
+	}
+
+	static StreamClassifier<Tkn> newClassifier(boolean withPass) {
+		WordAndPunctuationTokeniser tok = new WordAndPunctuationTokeniser();
+		tok.setLowerCase(true);
+		Map<String, ICondDistribution<Tkn, Cntxt>> models = new ArrayMap(
+				"cats", newModel(),
+				"dogs", newModel(),
+				"birds", withPass? new PassModel(newModel()) : newModel());
+		StreamClassifier<Tkn> c = new StreamClassifier<Tkn>(new Token2UnConditionalSitnStream(tok), models);
+		c.resetup();
+		for(int i=0; i<TRAIN_CATS.length; i++) {
+			c.train1(new SimpleDocument(TRAIN_CATS[i]), "cats");
+			c.train1(new SimpleDocument(TRAIN_DOGS[i]), "dogs");
+			c.train1(new SimpleDocument(TRAIN_BIRDS[i]), "birds");
+		}
+		c.finishTraining();
+		return c;
+	}
+
+	static void assertSameDist(IFiniteDistribution<String> expected, IFiniteDistribution<String> actual, String msg) {
+		for (String tag : expected) {
+			assertEquals(msg+" "+tag, expected.prob(tag), actual.prob(tag), 1e-9);
+		}
+		assertEquals(msg, expected.getMostLikely(), actual.getMostLikely());
+	}
+
+	void checkCompiledMatches(StreamClassifier<Tkn> c, String config) {
+		c.setCompiledScoring(false);
+		List<IFiniteDistribution<String>> expected = new ArrayList();
+		for (String t : TEST) {
+			expected.add(c.pClassify(new SimpleDocument(t)));
+		}
+		c.setCompiledScoring(true);
+		for (int i=0; i<TEST.length; i++) {
+			assertSameDist(expected.get(i), c.pClassify(new SimpleDocument(TEST[i])), config+" "+TEST[i]);
+		}
+	}
+
+	@Test
+	public void testCompiledMatchesUncompiled() {
+		for (boolean withPass : new boolean[]{false, true}) {
+			StreamClassifier<Tkn> c = newClassifier(withPass);
+			c.setTopTokensFocus(0);
+			checkCompiledMatches(c, "all-tokens pass:"+withPass);
+			c.setTopTokensFocus(2);
+			checkCompiledMatches(c, "top-2 pass:"+withPass);
+			c.setTopTokensTag("dogs");
+			checkCompiledMatches(c, "top-2 dogs pass:"+withPass);
+			c.setTopTokensTag(null);
+			c.setSkipThreshold(0.1);
+			checkCompiledMatches(c, "top-2 skip pass:"+withPass);
+			c.setTopTokensFocus(0);
+			checkCompiledMatches(c, "all-tokens skip pass:"+withPass);
+		}
+	}
+
+	@Test
+	public void testTrainingDropsTable() {
+		StreamClassifier<Tkn> c = newClassifier(false);
+		c.setCompiledScoring(true);
+		SimpleDocument doc = new SimpleDocument("the mat");
+		c.pClassify(doc);
+		// more training => the compiled table must not be stale
+		for(int i=0; i<5; i++) {
+			c.train1(new SimpleDocument("mat mat mat"), "dogs");
+		}
+		c.finishTraining();
+		IFiniteDistribution<String> compiled = c.pClassify(doc);
+		c.setCompiledScoring(false);
+		assertSameDist(c.pClassify(doc), compiled, "retrained");
+		assertEquals("dogs", compiled.getMostLikely());
+	}
+
+	@Test
+	public void testBatch() {
+		StreamClassifier<Tkn> c = newClassifier(true);
+		c.setCompiledScoring(true);
+		List<IDocument> docs = new ArrayList();
+		for(int i=0; i<200; i++) {
+			docs.add(new SimpleDocument(TEST[i % TEST.length]+" "+TRAIN_CATS[i % TRAIN_CATS.length]));
+		}
+		int cnt = c.getLatency().getCount();
+		List<IFiniteDistribution<String>> batch = c.pClassifyAll(docs);
+		assertEquals(docs.size(), batch.size());
+		assertEquals(cnt + docs.size(), c.getLatency().getCount());
+		assertTrue(c.getLatency().getMean() >= 0);
+		c.setCompiledScoring(false);
+		for (int i=0; i<docs.size(); i++) {
+			assertSameDist(c.pClassify(docs.get(i)), batch.get(i), "doc "+i);
+		}
+	}
+
+}
@@ -3,6 +3,7 @@ package com.winterwell.nlp.dict;
 import static org.junit.Assert.assertEquals;
 
 import java.io.File;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -96,4 +97,105 @@ public class DictionaryTest {
 		}
 	}
 
+	@Test
+	public void testMatchAll() {
+		Dictionary dict = new Dictionary(new ArrayMap<String, String>(
+				"he", "", "she", "", "his", "", "hers", "", "ushers", ""));
+		String text = "Ushers his shell";
+		int[] ends = dict.matchAll(text);
+		assert ends.length == text.length();
+		for (int i = 0; i < text.length(); i++) {
+			// agrees with match()
+			String w = dict.match(text, i);
+			assertEquals("at "+i, w == null ? -1 : i + w.length(), ends[i]);
+		}
+		assertEquals(6, ends[0]); // ushers (longest, case-insensitive)
+		assertEquals(6, ends[2]); // hers, not he
+		assertEquals(10, ends[7]); // his
+		assertEquals(14, ends[11]); // she
+		assertEquals(4, ends[1]); // she (inside ushers)
+		assertEquals(-1, ends[3]);
+	}
+
+	@Test
+	public void testIncrementalAdd() {
+		Dictionary dict = new Dictionary();
+		assert dict.match("foobar", 0) == null;
+		dict.add("foo", "");
+		assertEquals("foo", dict.match("foobar", 0));
+		// added after the matcher was made
+		dict.add("foobar", "");
+		dict.add("bar", "");
+		assertEquals("foobar", dict.match("foobar", 0));
+		int[] ends = dict.matchAll("xfoobar");
+		assertEquals(7, ends[1]);
+		assertEquals(7, ends[4]);
+		dict.add("oob", "");
+		ends = dict.matchAll("xfoobar");
+		assertEquals(5, ends[2]);
+	}
+
+	@Test
+	public void testCaseSensitive() {
+		Dictionary dict = new Dictionary() {
+			{
+				FLAGS = 0;
+			}
+			@Override
+			protected String toCanonical(String word) {
+				return word.trim();
+			}
+		};
+		dict.add(":D", "");
+		dict.add(":d", "");
+		dict.add("XD", "");
+		assertEquals(":D", dict.match("ha :D", 3));
+		assert dict.match("xd", 0) == null;
+		assertEquals(2, dict.matchAll("XD")[0]);
+	}
+
+	@Test
+	public void testBigDictionary() {
+		Dictionary dict = new Dictionary();
+		for (int i = 0; i < 50000; i++) {
+			dict.add("brand" + i, "");
+		}
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			text.append("we love brand" + (i * 37) + " and Brand" + (i * 11) + "x ");
+		}
+		long t = System.currentTimeMillis();
+		int[] ends = dict.matchAll(text.toString());
+		int hits = 0;
+		for (int e : ends) if (e != -1) hits++;
+		long dt = System.currentTimeMillis() - t;
+		// one hit per brand (the longest: brand370 not brand37)
+		assertEquals(2000, hits);
+		assertEquals("brand370", dict.match("brand370", 0));
+		assert dt < 2000 : dt;
+	}
+
+	@Test
+	public void testGetCloseWords() {
+		Dictionary dict = new Dictionary();
+		for (String w : "the then than cat hat apple".split(" ")) {
+			dict.add(w, "");
+		}
+		Map<String, Double> close = dict.getCloseWords("Teh");
+		assertEquals(1.0, close.get("the"), 0);
+		assertEquals(3.0, close.get("hat"), 0);
+		assert ! close.containsKey("apple") : close;
+		// add() resets the trie
+		dict.add("tech", "");
+		assert dict.getCloseWords("tehc").containsKey("tech");
+		// large: max 2 edits
+		for (int i = 0; i < 20000; i++) {
+			dict.add("brand" + i, "");
+		}
+		close = dict.getCloseWords("brnad77");
+		assertEquals(1.0, close.get("brand77"), 0);
+		assertEquals(2.0, close.get("brand7"), 0);
+		assert ! close.containsKey("brand") : close;
+	}
+
 }
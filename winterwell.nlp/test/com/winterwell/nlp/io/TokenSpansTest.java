@@ -0,0 +1,131 @@
+package com.winterwell.nlp.io;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.winterwell.nlp.io.FilteredTokenStream.KInOut;
+
+/**
+ * Checks the spans fast path gives the same tokens as the Tkn iterators.
+ * @tested {@link TokenSpans}, {@link SpanInterner}
+ */
+public class TokenSpansTest {
+
+	static final String[] TEXTS = {
+		"",
+		"   ",
+		"Hello World!! How's it going? I can't say -- it's 1,000.5 vs 100.Hello",
+		"Visit http://www.stuff.com/things/index.html today, or HTTPS://X.com?a=b. Dogs' DOGS dogs",
+		"#hashtag @Someone: monkey-business_x U.K. 3PM ftp:/nope ab://x",
+		"Ünïcödé ÉCOLE straße naïve café's résumés",
+	};
+
+	@Test
+	public void testTokeniserSameAsIterator() {
+		WordAndPunctuationTokeniser[] tokenisers = {
+			new WordAndPunctuationTokeniser(),
+			new WordAndPunctuationTokeniser().setLowerCase(true),
+			new WordAndPunctuationTokeniser().setSwallowPunctuation(true),
+			new WordAndPunctuationTokeniser().setUrlsAsWords(false).setLowerCase(true),
+			new WordAndPunctuationTokeniser.TweetSpeak(),
+			new WordAndPunctuationTokeniser.TweetSpeak().setSwallowPunctuation(true).setLowerCase(true),
+		};
+		for (WordAndPunctuationTokeniser t : tokenisers) {
+			assert t.supportsSpans() : t;
+			assertSame(t);
+		}
+	}
+
+	@Test
+	public void testFilterChainsSameAsIterator() {
+		List<String> stopwords = Arrays.asList("the", "it", "i", "or", "dog", "'", "!!");
+		WordAndPunctuationTokeniser wpt = new WordAndPunctuationTokeniser.TweetSpeak();
+		ATokenStream lower = new LowercaseTokenStream(wpt);
+		ATokenStream stem = new StemmerFilter(lower);
+		ATokenStream chain = new FilteredTokenStream(stopwords, KInOut.EXCLUDE_THESE, stem);
+		ATokenStream only = new FilteredTokenStream(stopwords, KInOut.ONLY_THESE, new LowercaseTokenStream(wpt));
+		ATokenStream stemFirst = new LowercaseTokenStream(new StemmerFilter(wpt));
+		for (ATokenStream ts : new ATokenStream[] { lower, stem, chain, only, stemFirst }) {
+			assert ts.supportsSpans() : ts;
+			// twice, to exercise the stem cache
+			assertSame(ts);
+			assertSame(ts);
+		}
+	}
+
+	@Test
+	public void testUnsupported() {
+		ListTokenStream lts = new ListTokenStream("a b c");
+		assert ! lts.supportsSpans();
+		assert ! new StemmerFilter(lts).supportsSpans();
+		// sub-classes might override processing
+		assert ! new StemmerFilter(new WordAndPunctuationTokeniser()) {
+			@Override
+			protected boolean doNotStem(Tkn token) {
+				return true;
+			}
+		}.supportsSpans();
+		try {
+			new StemmerFilter(lts).tokenise("a b", new TokenSpans());
+			assert false;
+		} catch (UnsupportedOperationException ex) {
+			// good
+		}
+	}
+
+	@Test
+	public void testSpans() {
+		TokenSpans spans = new TokenSpans();
+		new WordAndPunctuationTokeniser.TweetSpeak().setLowerCase(true)
+			.tokenise("See http://a.com NOW!", spans);
+		assert spans.size() == 4 : spans;
+		assert spans.is(1, TokenSpans.URL);
+		assert spans.is(2, TokenSpans.WORD) && spans.is(2, TokenSpans.LOWER);
+		assert spans.is(3, TokenSpans.PUNCTUATION);
+		assert spans.getText(2).equals("now");
+		assert spans.start(2) == 17 && spans.end(2) == 20;
+		Tkn url = spans.getTkn(1);
+		assert url.getText().equals("http://a.com");
+		assert WordAndPunctuationTokeniser.POS_URL.equals(url.getPOS());
+		spans.retain(i -> ! spans.is(i, TokenSpans.PUNCTUATION));
+		assert spans.toTexts().equals(Arrays.asList("see", "http://a.com", "now")) : spans;
+		// reuse
+		new WordAndPunctuationTokeniser().tokenise("x", spans);
+		assert spans.size() == 1 && spans.getText(0).equals("x");
+	}
+
+	@Test
+	public void testSpanInterner() {
+		SpanInterner si = new SpanInterner(Arrays.asList("the", "cat", "sat"));
+		assert si.size() == 3;
+		String text = "The cat SAT on the mat";
+		assert si.lookup(text, 0, 3) == -1;
+		assert si.lookup(text, 0, 3, true) == si.lookup("the", 0, 3);
+		assert si.get(si.lookup(text, 4, 7)).equals("cat");
+		assert si.lookup(text, 8, 11, true) == 2;
+		assert si.lookup(text, 19, 22) == -1;
+		for (int i = 0; i < 1000; i++) {
+			assert si.intern("w" + i) == i + 3;
+		}
+		assert si.intern("cat") == 1;
+		assert si.lookup("xw999x", 1, 5) == 1002;
+	}
+
+	private void assertSame(ATokenStream ts) {
+		TokenSpans spans = new TokenSpans();
+		for (String text : TEXTS) {
+			List<Tkn> expected = ts.factory(text).toList();
+			ts.tokenise(text, spans);
+			List<Tkn> actual = spans.toTkns();
+			assert expected.size() == actual.size() : ts + " " + text + "\n" + expected + "\nvs\n" + actual;
+			for (int i = 0; i < expected.size(); i++) {
+				Tkn e = expected.get(i), a = actual.get(i);
+				assert e.getText().equals(a.getText()) : ts + " " + e + " vs " + a;
+				assert e.start == a.start && e.end == a.end : ts + " " + e + " vs " + a;
+				assert e.equals(a) : ts + " " + e + " vs " + a;
+			}
+		}
+	}
+}
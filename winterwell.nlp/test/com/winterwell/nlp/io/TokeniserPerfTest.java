@@ -0,0 +1,59 @@
+package com.winterwell.nlp.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.winterwell.nlp.io.FilteredTokenStream.KInOut;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.StopWatch;
+
+/**
+ * Throughput of the Tkn iterators vs the {@link TokenSpans} fast path, on the Lear corpus
+ * (cut into tweet-sized lines).
+ */
+public class TokeniserPerfTest {
+
+	@Test
+	public void testThroughput() {
+		List<String> lines = new ArrayList<String>();
+		long chars = 0;
+		for (File f : new File("data/corpora/gutenberg/lear").listFiles()) {
+			if ( ! f.getName().endsWith(".txt")) continue;
+			for (String line : FileUtils.read(f).split("\n")) {
+				if (line.trim().isEmpty()) continue;
+				lines.add(line);
+				chars += line.length();
+			}
+		}
+		assert ! lines.isEmpty();
+		List<String> stopwords = Arrays.asList("the", "a", "and", "of", "to", "in", "i", "it", "was", "he");
+		ATokenStream chain = new FilteredTokenStream(stopwords, KInOut.EXCLUDE_THESE,
+				new StemmerFilter(new LowercaseTokenStream(new WordAndPunctuationTokeniser.TweetSpeak())));
+		for (int rep = 0; rep < 3; rep++) {
+			StopWatch sw = new StopWatch();
+			long n1 = 0;
+			for (String line : lines) {
+				for (Tkn tkn : chain.factory(line)) {
+					n1++;
+				}
+			}
+			long t1 = sw.getTime();
+			sw = new StopWatch();
+			long n2 = 0;
+			TokenSpans spans = new TokenSpans();
+			for (String line : lines) {
+				chain.tokenise(line, spans);
+				n2 += spans.size();
+			}
+			long t2 = sw.getTime();
+			assert n1 == n2 : n1 + " vs " + n2;
+			System.out.println(lines.size() + " lines, " + chars / 1000 + "k chars, " + n1 + " tokens."
+					+ " Tkn iterator: " + t1 + "ms (" + chars / Math.max(1, t1) + " chars/ms)."
+					+ " Spans: " + t2 + "ms (" + chars / Math.max(1, t2) + " chars/ms).");
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.winterwell.nlp.vectornlp;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.winterwell.nlp.vectornlp.WordVectorFile.KQuantisation;
+import com.winterwell.utils.containers.Pair2;
+import com.winterwell.utils.io.FileUtils;
+
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.Vector;
+
+/**
+ * @tested {@link WordVectorFile}
+ */
+public class WordVectorFileTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Map<String, Vector> w2v = example(500, 20);
+		for (KQuantisation q : KQuantisation.values()) {
+			File f = File.createTempFile("test", ".wvec");
+			try {
+				WordVectorFile.write(f, w2v, q);
+				WordVectorFile wvf = WordVectorFile.open(f);
+				assert wvf.size() == 500 && wvf.getDim() == 20;
+				assert wvf.getQuantisation() == q;
+				double tol = q == KQuantisation.FLOAT32 ? 1e-6 : q == KQuantisation.FLOAT16 ? 2e-3 : 2e-2;
+				for (String w : w2v.keySet()) {
+					Vector expected = w2v.get(w);
+					DenseVector got = wvf.getVector(w);
+					assert got != null : w;
+					for (int d = 0; d < 20; d++) {
+						assert Math.abs(expected.get(d) - got.get(d)) < tol : q + " " + w + " " + expected.get(d) + " vs " + got.get(d);
+					}
+				}
+				assert wvf.getVector("nope") == null;
+				assert wvf.getVector("") == null;
+				Set<String> words = wvf.getWords();
+				assert words.size() == 500;
+				assert words.contains("w123") && ! words.contains("x");
+				int cnt = 0;
+				for (String w : words) {
+					assert w2v.containsKey(w);
+					cnt++;
+				}
+				assert cnt == 500;
+			} finally {
+				FileUtils.delete(f);
+			}
+		}
+	}
+
+	@Test
+	public void testUnicodeAndChunks() throws Exception {
+		Map<String, Vector> w2v = new HashMap();
+		String[] words = { "café", "cafe", "caf", "日本", "z", "Zebra", "😀" };
+		for (int i = 0; i < words.length; i++) {
+			w2v.put(words[i], new DenseVector(new double[] { i, -i, 0.5 }));
+		}
+		int old = WordVectorFile.CHUNK_BYTES;
+		File f = File.createTempFile("test", ".wvec");
+		try {
+			// force lots of mapped chunks
+			WordVectorFile.CHUNK_BYTES = 30;
+			WordVectorFile.write(f, w2v, KQuantisation.FLOAT32);
+			WordVectorFile wvf = WordVectorFile.open(f);
+			for (int i = 0; i < words.length; i++) {
+				DenseVector v = wvf.getVector(words[i]);
+				assert v.get(0) == i && v.get(1) == -i : words[i];
+			}
+		} finally {
+			WordVectorFile.CHUNK_BYTES = old;
+			FileUtils.delete(f);
+		}
+	}
+
+	@Test
+	public void testMostSimilar() throws Exception {
+		Map<String, Vector> w2v = example(2000, 30);
+		File f = File.createTempFile("test", ".wvec");
+		try {
+			WordVectorFile.write(f, w2v, KQuantisation.INT8);
+			WordVectorFile wvf = WordVectorFile.open(f);
+			Vector q = w2v.get("w42");
+			float[] sims = wvf.cosineAll(q);
+			assert sims.length == 2000;
+			assert Math.abs(sims[wvf.indexOf("w42")] - 1) < 1e-3;
+			List<Pair2<String, Double>> top = wvf.getMostSimilar(q, 5);
+			assert top.size() == 5;
+			assert top.get(0).first.equals("w42") : top;
+			for (int i = 1; i < top.size(); i++) {
+				assert top.get(i - 1).second >= top.get(i).second;
+			}
+			// scaling the query makes no difference
+			assert wvf.getMostSimilar(new DenseVector(q).scale(3), 5).get(0).first.equals("w42");
+			// nothing asked for
+			assert wvf.getMostSimilar(q, 0).isEmpty();
+		} finally {
+			FileUtils.delete(f);
+		}
+	}
+
+	@Test
+	public void testHalf() {
+		float[] xs = { 0, 1, -1, 0.5f, 65504, 1e-5f, -3.14159f, 1e6f };
+		for (float x : xs) {
+			float y = WordVectorFile.halfToFloat(WordVectorFile.toHalf(x));
+			if (x > 65504) {
+				assert y == 65504 : y;
+				continue;
+			}
+			assert Math.abs(x - y) <= Math.abs(x) * 1e-3 + 1e-7 : x + " vs " + y;
+		}
+	}
+
+	private Map<String, Vector> example(int n, int dim) {
+		Random r = new Random(1);
+		Map<String, Vector> w2v = new HashMap();
+		for (int i = 0; i < n; i++) {
+			double[] x = new double[dim];
+			for (int d = 0; d < dim; d++) {
+				x[d] = r.nextGaussian();
+			}
+			w2v.put("w" + i, new DenseVector(x));
+		}
+		return w2v;
+	}
+}
@@ -1,6 +1,7 @@
 package com.winterwell.datalog;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -72,7 +73,19 @@ public class DataLogConfig extends DBOptions implements IInit, ISiteConfig {
 	public List<String> namespaceConfigs = Arrays.asList("default", "gl");
 
 	public Dt filePeriod = TUnit.DAY.dt;
-	
+
+	@Option(description="Where ColumnarStorage keeps its segment files. One sub-dir per namespace.")
+	public File segmentDir = new File(FileUtils.getWorkingDirectory(), "datalog-segments");
+
+	@Option(description="If set, DataLogImpl keeps a write-ahead log here (one sub-dir per namespace), so a crash doesn't lose the current bucket.")
+	public File walDir;
+
+	@Option(description="Size of each memory-mapped WAL segment")
+	public int walSegmentSize = 16*1024*1024;
+
+	@Option(description="How often the WAL is fsynced. A power cut can lose this much; a killed process loses no counts (but can lose this much of ES events, which are batched).")
+	public Dt walSyncInterval = new Dt(1, TUnit.SECOND);
+
 	@Option
 	public Class storageClass;
 	
@@ -107,6 +120,28 @@ public class DataLogConfig extends DBOptions implements IInit, ISiteConfig {
 	
 	@Option(description="Switch off logging of system stats such as mem_free, cpu_java, etc")
 	public boolean noSystemStats;
+
+	@Option(description="Pre-aggregate events into minute/hour/day cubes with these breakdowns, e.g. evt,pub,evt/pub,tag. "
+			+ "Use tag to answer getTotal/getData. Empty (the default) means off. Only valid if all of a dataspace's events go through this JVM.")
+	public List<String> rollupBreakdowns = new ArrayList();
+
+	@Option(description="Numeric properties to sum/min/max in the rollup cubes")
+	public List<String> rollupFields = Arrays.asList("count");
+
+	@Option(description="ESStorage: batch events into bulk requests (instead of one request per event)")
+	public boolean esBulk = true;
+
+	@Option(description="ESStorage bulk: max events per bulk request")
+	public int esBulkMaxEvents = 1000;
+
+	@Option(description="ESStorage bulk: max (approx) bytes per bulk request")
+	public long esBulkMaxBytes = 5*1024*1024;
+
+	@Option(description="ESStorage bulk: max time an event waits before being sent")
+	public Dt esBulkMaxLatency = new Dt(1, TUnit.SECOND);
+
+	@Option(description="ESStorage bulk: max events held in memory. When full, loggers wait (up to 1 second), then events are dropped.")
+	public int esBulkQueueCapacity = 100000;
 	
 	public void setTagHandler(String tag, Supplier supplier) {
 		tagHandlers.put(tag, supplier);
@@ -162,7 +162,13 @@ public final class Desc<X> implements IProperties, Serializable, Comparable<Desc
 	@Deprecated // When we simplify Desc, this will likely go.
 	public static enum KSerialiser {
 		JAVA, 
-		/** The default, ie null = XStream */ XSTREAM
+		/** The default, ie null = XStream */ XSTREAM,
+		/**
+		 * {@link com.winterwell.utils.io.BinarySerialiser} -- much smaller and faster than XStream
+		 * for large artifacts. With gzip set, this uses LZ4 compression instead.
+		 * Not for {@link IHasDesc} modular artifacts.
+		 */
+		BINARY
 	}
 
 	/**
@@ -428,7 +434,9 @@ public final class Desc<X> implements IProperties, Serializable, Comparable<Desc
 		// save format
 		if (ser == KSerialiser.JAVA)
 			sb.append(".ser");
-		if (gzip)
+		if (ser == KSerialiser.BINARY) {
+			sb.append(gzip? ".bin.lz4" : ".bin");
+		} else if (gzip)
 			sb.append(".gz");
 		id = sb.toString();		
 		return id;
@@ -909,6 +917,26 @@ public final class Desc<X> implements IProperties, Serializable, Comparable<Desc
 		this.symlink = symlink;
 	}
 
+	/**
+	 * @deprecated When we simplify Desc, this will likely go.
+	 * 
+	 * Set the save format. This is part of the id, so set it before using the Desc.
+	 * @param ser null for XStream (the default)
+	 * @param compress gzip -- or LZ4 for {@link KSerialiser#BINARY}
+	 */
+	public void setSerialiser(KSerialiser ser, boolean compress) {
+		checkUnset();
+		this.ser = ser;
+		this.gzip = compress;
+	}
+
+	/**
+	 * @return the save format (null = XStream)
+	 */
+	public KSerialiser getSerialiser() {
+		return ser;
+	}
+
 	/**
 	 * @deprecated When we simplify Desc, this will likely go.
 	 * 
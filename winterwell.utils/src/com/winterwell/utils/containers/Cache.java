@@ -22,7 +22,8 @@ import com.winterwell.utils.IFn;
  * values may be large).
  * <p>
  * Note: This is mostly a convenience wrapper for using {@link LinkedHashMap}
- * with synchronized + Stat counters.
+ * with synchronized + Stat counters. Every get takes a global lock -- if that
+ * is a hot-spot, use {@link ConcurrentCache}.
  * 
  * TODO remove persistence?? Add a remove listener framework instead. TODO use
  * reference queues to clean out those nulls
@@ -63,6 +64,7 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	public Cache(final int capacity) {
 		assert capacity > 0;
 		// Hm: could we use ConcurrentHashMap somehow -- wouldn't it be faster?
+		// Yes: see ConcurrentCache
 		// 0.75 is the default load factor
 		LinkedHashMap<Key, SoftReference<Value>> map = new LinkedHashMap<Key, SoftReference<Value>>(
 				capacity + 1, .75F, true) {
@@ -0,0 +1,484 @@
+package com.winterwell.utils.containers;
+
+import java.lang.ref.SoftReference;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.winterwell.datalog.DataLog;
+import com.winterwell.utils.time.Dt;
+
+/**
+ * A thread-safe in-memory cache, which does not take a global lock. Same API
+ * as {@link Cache}, so it can be swapped in where Cache is a hot-spot.
+ * <p>
+ * How it works:
+ * <ul>
+ * <li>Backed by a {@link ConcurrentHashMap}, so gets do not block each other.
+ * <li>Access frequencies are tracked (approximately) in a small count-min
+ * sketch, which is periodically halved so that old popularity fades (ala
+ * TinyLFU).
+ * <li>When over capacity, we sample a few entries and evict the least
+ * frequently used. A new arrival only gets in if it is at least as popular as
+ * the victim -- so a one-off scan does not flush out the hot set.
+ * <li>Optional soft values and expire-after-write.
+ * <li>Hit, miss & eviction counters.
+ * </ul>
+ * Capacity is approximate: concurrent puts can briefly overshoot (by a few %).
+ *
+ * @testedby {@link ConcurrentCacheTest}
+ * @param <Key>
+ * @param <Value>
+ */
+public class ConcurrentCache<Key, Value> extends AbstractMap2<Key, Value> {
+
+	/**
+	 * How many entries to look at when picking an eviction victim
+	 */
+	private static final int SAMPLE = 8;
+
+	private final int capacity;
+
+	private final ConcurrentHashMap<Key, Node<Value>> backing;
+
+	private final FrequencySketch sketch;
+
+	/**
+	 * Only one thread evicts at a time. The others just carry on -- unless the
+	 * cache has overshot by more than {@link #slack}, in which case they wait.
+	 */
+	private final ReentrantLock evicting = new ReentrantLock();
+
+	private final int slack;
+
+	/**
+	 * A sweeping iterator, used to sample entries. Guarded by {@link #evicting}
+	 */
+	private Iterator<Map.Entry<Key, Node<Value>>> sweep;
+
+	private boolean softValues = true;
+
+	/**
+	 * 0 for never expire
+	 */
+	private long ttlMillis;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * null for no stats. If not null, acts as the tracking name.
+	 */
+	private String stats;
+
+	/**
+	 * Create a cache with the given capacity
+	 *
+	 * @param capacity
+	 */
+	public ConcurrentCache(int capacity) {
+		assert capacity > 0;
+		this.capacity = capacity;
+		slack = Math.max(16, capacity / 16);
+		backing = new ConcurrentHashMap<Key, Node<Value>>(capacity + 1);
+		sketch = new FrequencySketch(capacity);
+	}
+
+	/**
+	 * @param softValues If true (the default, as per {@link Cache}), values can
+	 * be dropped by the garbage collector when memory is squeezed. If false,
+	 * values are held by hard references, which is faster & more predictable.
+	 * Set this before use.
+	 * @return this
+	 */
+	public ConcurrentCache<Key, Value> setSoftValues(boolean softValues) {
+		this.softValues = softValues;
+		return this;
+	}
+
+	/**
+	 * @param ttl Entries expire this long after they were put. null for never.
+	 * @return this
+	 */
+	public ConcurrentCache<Key, Value> setExpireAfterWrite(Dt ttl) {
+		this.ttlMillis = ttl == null ? 0 : ttl.getMillisecs();
+		return this;
+	}
+
+	/**
+	 * Switch on (or off) Stat logging.
+	 *
+	 * @param statTag Stats will be logged under "Cache_hit/statTag", "Cache_miss/statTag" and "Cache_size/statTag"
+	 * @return this
+	 */
+	public ConcurrentCache<Key, Value> setStats(String statTag) {
+		this.stats = statTag;
+		// check that we have datalog on the classpath
+		if (stats != null)
+			DataLog.get("Cache_hit", stats);
+		return this;
+	}
+
+	/**
+	 * Over-ride to implement any resource cleanup required.
+	 * @param key
+	 * @param value Could be null
+	 */
+	protected void onRemove(Key key, Value value) {
+
+	}
+
+	/**
+	 * Invoked when removing an entry due to capacity issues. See
+	 * {@link Cache#preRemovalCheck(Object, Object)}.
+	 *
+	 * @return true if the removal should go ahead.
+	 */
+	protected boolean preRemovalCheck(Key key, Value value) {
+		return true;
+	}
+
+	/**
+	 * Convert the key into a canonical form. See {@link Cache#canonical(Object)}
+	 */
+	public Key canonical(Key key) {
+		return key;
+	}
+
+	/**
+	 * @param key
+	 * @return cached value or null
+	 */
+	@Override
+	public Value get(Object key) {
+		Key k = canonical((Key) key);
+		sketch.increment(k);
+		Node<Value> node = backing.get(k);
+		Value v = null;
+		if (node != null) {
+			v = node.get();
+			if (v == null) {
+				// garbage collected
+				backing.remove(k, node);
+			} else if (ttlMillis != 0 && System.currentTimeMillis() - node.written > ttlMillis) {
+				// expired
+				if (backing.remove(k, node)) {
+					evictions.increment();
+					onRemove(k, v);
+				}
+				v = null;
+			}
+		}
+		if (v == null) {
+			misses.increment();
+			if (stats != null) {
+				DataLog.count(1, "Cache_miss", stats);
+			}
+			return null;
+		}
+		hits.increment();
+		if (stats != null) {
+			DataLog.count(1, "Cache_hit", stats);
+		}
+		return v;
+	}
+
+	@Override
+	public final Value put(Key k, Value v) {
+		Key ck = canonical(k);
+		Node<Value> old = backing.put(ck, new Node<Value>(v, softValues, System.currentTimeMillis()));
+		if (old == null && backing.size() > capacity) {
+			evict(ck);
+		}
+		if (stats != null) {
+			DataLog.mean(size(), "Cache_size", stats);
+		}
+		return old == null ? null : old.get();
+	}
+
+	/**
+	 * Sampled eviction, with TinyLFU-style admission for the new arrival.
+	 * @param arrival The key which has just been added.
+	 */
+	private void evict(Key arrival) {
+		if ( ! evicting.tryLock()) {
+			if (backing.size() <= capacity + slack) {
+				return; // someone else is on it
+			}
+			// back-pressure: the evicting thread can't keep up
+			evicting.lock();
+		}
+		try {
+			// guard against preRemovalCheck() refusing everything
+			int guard = 0;
+			while (backing.size() > capacity && guard < capacity) {
+				Map.Entry<Key, Node<Value>> victim = null;
+				int vf = Integer.MAX_VALUE;
+				for (int i = 0; i < SAMPLE; i++) {
+					Map.Entry<Key, Node<Value>> e = nextSample();
+					if (e == null) break;
+					if (e.getValue().get() == null) {
+						// garbage collected -- an easy win
+						victim = e;
+						break;
+					}
+					int f = sketch.frequency(e.getKey());
+					if (f < vf) {
+						victim = e;
+						vf = f;
+					}
+				}
+				if (victim == null) break;
+				// admission: is the newcomer less popular than the victim?
+				if (arrival != null && ! arrival.equals(victim.getKey())) {
+					Node<Value> an = backing.get(arrival);
+					if (an != null && sketch.frequency(arrival) < vf) {
+						victim = new MapEntry<Key, Node<Value>>(arrival, an);
+					}
+				}
+				arrival = null;
+				if ( ! evict2(victim.getKey(), victim.getValue())) {
+					guard++;
+				}
+			}
+		} finally {
+			evicting.unlock();
+		}
+	}
+
+	/**
+	 * @return true if removed
+	 */
+	private boolean evict2(Key key, Node<Value> node) {
+		Value v = node.get();
+		if (v != null && ! preRemovalCheck(key, v)) {
+			return false;
+		}
+		if ( ! backing.remove(key, node)) {
+			return false;
+		}
+		evictions.increment();
+		onRemove(key, v);
+		return true;
+	}
+
+	private Map.Entry<Key, Node<Value>> nextSample() {
+		if (sweep == null || ! sweep.hasNext()) {
+			sweep = backing.entrySet().iterator();
+			if ( ! sweep.hasNext()) return null;
+		}
+		return sweep.next();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @param key of type Key
+	 */
+	@Override
+	public final Value remove(Object key) {
+		Key k = canonical((Key) key);
+		Node<Value> old = backing.remove(k);
+		Value v = old == null ? null : old.get();
+		onRemove(k, v);
+		return v;
+	}
+
+	/**
+	 * Drop everything from the cache.
+	 */
+	@Override
+	public final void clear() {
+		backing.clear();
+	}
+
+	/**
+	 * @return the current number of cached objects
+	 */
+	@Override
+	public final int size() {
+		return backing.size();
+	}
+
+	/**
+	 * @return the currently cached keys.
+	 */
+	@Override
+	public Set<Key> keySet() {
+		return backing.keySet();
+	}
+
+	/**
+	 * @return the currently cached key => value mappings.
+	 */
+	@Override
+	public Set<Map.Entry<Key, Value>> entrySet() {
+		final Set<Entry<Key, Node<Value>>> es = backing.entrySet();
+		return new AbstractSet<Map.Entry<Key, Value>>() {
+			@Override
+			public Iterator<Map.Entry<Key, Value>> iterator() {
+				final Iterator<Entry<Key, Node<Value>>> it = es.iterator();
+				return new Iterator<Map.Entry<Key, Value>>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Map.Entry<Key, Value> next() {
+						Entry<Key, Node<Value>> n = it.next();
+						return new MapEntry(n.getKey(), n.getValue().get());
+					}
+
+					@Override
+					public void remove() {
+						it.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return es.size();
+			}
+		};
+	}
+
+	/**
+	 * @return the currently cached values
+	 */
+	@Override
+	public Collection<Value> values() {
+		List<Value> vals = new ArrayList<Value>(backing.size());
+		for (Node<Value> node : backing.values()) {
+			Value v = node.get();
+			if (v != null) vals.add(v);
+		}
+		return vals;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of entries dropped for capacity or expiry (not including
+	 *         explicit removes, or values lost to the garbage collector)
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return hits / (hits + misses), or 0 if there have been no gets
+	 */
+	public double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : ((double) h) / total;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + size() + " capacity=" + capacity + " hits=" + getHits()
+				+ " misses=" + getMisses() + " evictions=" + getEvictions() + "]";
+	}
+
+
+	/**
+	 * An immutable cache entry.
+	 */
+	private static final class Node<V> {
+		/**
+		 * V or SoftReference<V>
+		 */
+		private final Object value;
+		final long written;
+
+		Node(V value, boolean soft, long written) {
+			this.value = soft ? new SoftReference<V>(value) : value;
+			this.written = written;
+		}
+
+		V get() {
+			if (value instanceof SoftReference) {
+				return ((SoftReference<V>) value).get();
+			}
+			return (V) value;
+		}
+	}
+
+
+	/**
+	 * A count-min sketch of 4-bit-ish counters, halved every 10 x capacity
+	 * increments so that old popularity fades.
+	 * <p>
+	 * Thread-safety: Updates can race, and then a count may be lost. This is
+	 * fine -- it's an estimate anyway.
+	 */
+	static final class FrequencySketch {
+		private static final int MAX = 15;
+		private static final int[] SEEDS = { 0x97cb3127, 0xb7c2c7ab, 0x4d2b9e83, 0x8f43e2f5 };
+
+		private final byte[] table;
+		private final int mask;
+		private final int resetAt;
+		private int additions;
+
+		FrequencySketch(int capacity) {
+			int n = 64;
+			while (n < capacity * 16L && n < (1 << 28)) n *= 2;
+			table = new byte[n];
+			mask = n - 1;
+			resetAt = (int) Math.min(Integer.MAX_VALUE, 10L * capacity);
+		}
+
+		private int index(Object key, int row) {
+			int h = key.hashCode() * SEEDS[row];
+			h ^= h >>> 16;
+			return h & mask;
+		}
+
+		void increment(Object key) {
+			if (key == null) return;
+			boolean added = false;
+			for (int row = 0; row < SEEDS.length; row++) {
+				int i = index(key, row);
+				if (table[i] < MAX) {
+					table[i]++;
+					added = true;
+				}
+			}
+			if (added && ++additions >= resetAt) {
+				reset();
+			}
+		}
+
+		int frequency(Object key) {
+			int f = MAX;
+			for (int row = 0; row < SEEDS.length; row++) {
+				f = Math.min(f, table[index(key, row)]);
+			}
+			return f;
+		}
+
+		private void reset() {
+			additions = 0;
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (byte) (table[i] >>> 1);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.winterwell.utils.io;
+
+import java.io.IOException;
+
+/**
+ * A hand-written encoding for one class, for {@link BinarySerialiser}.
+ * Register with {@link BinarySerialiser#register(Class, BinaryCodec)}.
+ * <p>
+ * The codec must read exactly what it wrote. It can use
+ * {@link BinarySerialiser.Out#writeObject(Object)} for child objects.
+ *
+ * @param <X>
+ */
+public interface BinaryCodec<X> {
+
+	void write(X x, BinarySerialiser.Out out) throws IOException;
+
+	X read(BinarySerialiser.In in) throws IOException;
+
+}
@@ -0,0 +1,1196 @@
+package com.winterwell.utils.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.winterwell.depot.INotSerializable;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.io.XStreamBinaryConverter.BinaryXML;
+import com.winterwell.utils.log.Log;
+
+/**
+ * A compact binary alternative to XStream, for large artifacts. Reads and writes
+ * straight to a channel (e.g. a FileChannel), with optional {@link LZ4} block compression.
+ * <p>
+ * Like XStream, it needs no annotations: objects are written field-by-field by reflection
+ * (non-static, non-transient fields, including private and final ones), and shared or
+ * cyclic references are preserved. Classes can have a hand-written {@link BinaryCodec}
+ * instead -- see {@link #register(Class, BinaryCodec)}.
+ * <p>
+ * Schema tolerance: the field names of each class are written once per stream, and
+ * fields are matched by name on reading. So added fields keep their default (objects
+ * are made with the no-arg constructor, which can be private), removed fields are skipped,
+ * and numeric fields can change type (e.g. int to long). Objects of classes which no
+ * longer exist are read as null.
+ * <p>
+ * JDK types: the common value classes and collections are built in. Other Serializable
+ * JDK classes, classes marked {@link BinaryXML}, and Serializable classes without a
+ * no-arg constructor, use Java serialisation. Other classes without a no-arg constructor
+ * need a codec.
+ * JDK collections without a public no-arg constructor (e.g. Collections.singletonList,
+ * unmodifiable views) come back as ArrayList / LinkedHashSet / LinkedHashMap.
+ * <p>
+ * Format: "WWB", version, flags (bit 0 = compressed). Then one tagged value.
+ * If compressed, the bytes are in blocks: int raw-length, int compressed-length, data
+ * (a block which LZ4 can't shrink is stored raw, with compressed-length = raw-length).
+ *
+ * @testedby {@link BinarySerialiserTest}
+ */
+public final class BinarySerialiser {
+
+	private static final byte[] MAGIC = { 'W', 'W', 'B' };
+	private static final byte VERSION = 1;
+	private static final int FLAG_COMPRESSED = 1;
+
+	static final int BLOCK = 64 * 1024;
+
+	// Value tags
+	static final byte NULL = 0, TRUE = 1, FALSE = 2, INT = 3, LONG = 4, DOUBLE = 5, FLOAT = 6, SHORT = 7,
+			BYTE = 8, CHAR = 9, STRING = 10, REF = 11, ARRAY = 12, COLLECTION = 13, MAP = 14, ENUM = 15,
+			OBJECT = 16, CODEC = 17, CLASS = 18, SERIAL = 19;
+
+	private static final Map<Class, BinaryCodec> codecs = new ConcurrentHashMap<>();
+
+	private static final Map<Class, ClassInfo> classInfos = new ConcurrentHashMap<>();
+
+	private static final Map<String, Class> PRIMITIVES = new HashMap<>();
+
+	static {
+		for (Class k : new Class[] { int.class, long.class, double.class, float.class, short.class, byte.class,
+				char.class, boolean.class, void.class }) {
+			PRIMITIVES.put(k.getName(), k);
+		}
+		initCodecs();
+	}
+
+	private BinarySerialiser() {
+	}
+
+	/**
+	 * Use a hand-written codec for this exact class (not its subclasses).
+	 * Register before reading or writing. Replaces any existing codec.
+	 */
+	public static <X> void register(Class<X> klass, BinaryCodec<X> codec) {
+		codecs.put(klass, codec);
+	}
+
+	/**
+	 * Serialise to the channel. Does NOT close it.
+	 * @param compress If true, use LZ4 block compression
+	 */
+	public static void write(Object x, WritableByteChannel channel, boolean compress) throws IOException {
+		Out out = new Out(channel, compress);
+		// Same thread-safety hack as XStreamUtils: lock the top-level object
+		if (x == null) {
+			out.writeObject(null);
+		} else {
+			synchronized (x) {
+				out.writeObject(x);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Deserialise from the channel. Does NOT close it.
+	 */
+	public static <X> X read(ReadableByteChannel channel) throws IOException {
+		In in = new In(channel);
+		return (X) in.readObject();
+	}
+
+	public static byte[] toBytes(Object x, boolean compress) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			write(x, Channels.newChannel(bytes), compress);
+			return bytes.toByteArray();
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	public static <X> X fromBytes(byte[] bytes) {
+		try {
+			return read(Channels.newChannel(new ByteArrayInputStream(bytes)));
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+	}
+
+	/**
+	 * Reflection info for a class
+	 */
+	static final class ClassInfo {
+		final Class cls;
+		final Field[] fields;
+		final String[] names;
+		/**
+		 * The no-arg constructor, or null
+		 */
+		final Constructor cons;
+
+		ClassInfo(Class cls) {
+			this.cls = cls;
+			// super-class fields first
+			List<Class> chain = new ArrayList<>();
+			for (Class k = cls; k != null && k != Object.class; k = k.getSuperclass()) {
+				chain.add(0, k);
+			}
+			List<Field> fs = new ArrayList<>();
+			Set<String> seen = new HashSet<>();
+			for (Class k : chain) {
+				for (Field f : k.getDeclaredFields()) {
+					int mod = f.getModifiers();
+					if (Modifier.isStatic(mod) || Modifier.isTransient(mod)) continue;
+					f.setAccessible(true);
+					fs.add(f);
+				}
+			}
+			fields = fs.toArray(new Field[0]);
+			names = new String[fields.length];
+			// A shadowed field is named SuperClass.field
+			for (int i = fields.length - 1; i >= 0; i--) {
+				String n = fields[i].getName();
+				if ( ! seen.add(n)) n = fields[i].getDeclaringClass().getSimpleName() + "." + n;
+				names[i] = n;
+			}
+			Constructor c = null;
+			try {
+				c = cls.getDeclaredConstructor();
+				c.setAccessible(true);
+			} catch (Exception ex) {
+				// no no-arg constructor -- see writeObject()
+			}
+			cons = c;
+		}
+
+		Object newInstance() throws IOException {
+			try {
+				if (cons == null) throw new IOException(cls + " has no no-arg constructor");
+				return cons.newInstance();
+			} catch (IOException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new IOException("Cannot create " + cls, ex);
+			}
+		}
+
+		Field getField(String name) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) return fields[i];
+			}
+			return null;
+		}
+	}
+
+	static ClassInfo classInfo(Class k) {
+		ClassInfo ci = classInfos.get(k);
+		if (ci == null) {
+			ci = new ClassInfo(k);
+			classInfos.put(k, ci);
+		}
+		return ci;
+	}
+
+	/**
+	 * @return true if the class is encoded as a plain collection/map: a JDK class, or a
+	 * subclass with no state of its own beyond what the JDK class holds.
+	 */
+	static boolean isPlainContainer(Class k) {
+		for (; k != null; k = k.getSuperclass()) {
+			if (k.getName().startsWith("java.")) return true;
+			for (Field f : k.getDeclaredFields()) {
+				int mod = f.getModifiers();
+				if ( ! Modifier.isStatic(mod) && ! Modifier.isTransient(mod)) return false;
+			}
+		}
+		return false;
+	}
+
+	static boolean isJDK(Class k) {
+		String n = k.getName();
+		return n.startsWith("java.") || n.startsWith("javax.") || n.startsWith("sun.") || n.startsWith("jdk.");
+	}
+
+	/**
+	 * Writes to a channel, via a 64k buffer (LZ4-compressing each block if asked).
+	 */
+	public static final class Out {
+		private final WritableByteChannel channel;
+		private final boolean compress;
+		private final ByteBuffer buf = ByteBuffer.allocate(BLOCK);
+		private byte[] cbuf;
+
+		private final IdentityHashMap<Object, Integer> handles = new IdentityHashMap<>();
+		private final Map<Class, Integer> classIds = new HashMap<>();
+		private final Map<Class, Integer> schemaIds = new HashMap<>();
+
+		Out(WritableByteChannel channel, boolean compress) throws IOException {
+			this.channel = channel;
+			this.compress = compress;
+			ByteBuffer head = ByteBuffer.allocate(5);
+			head.put(MAGIC).put(VERSION).put((byte) (compress ? FLAG_COMPRESSED : 0));
+			head.flip();
+			writeFully(head);
+		}
+
+		private void writeFully(ByteBuffer bb) throws IOException {
+			while (bb.hasRemaining()) {
+				channel.write(bb);
+			}
+		}
+
+		private void ensure(int n) throws IOException {
+			if (buf.remaining() < n) flushBlock();
+		}
+
+		private void flushBlock() throws IOException {
+			buf.flip();
+			if ( ! buf.hasRemaining()) {
+				buf.clear();
+				return;
+			}
+			if (compress) {
+				int len = buf.remaining();
+				if (cbuf == null) cbuf = new byte[8 + LZ4.maxCompressedLength(BLOCK)];
+				int clen = LZ4.compress(buf.array(), 0, len, cbuf, 8);
+				if (clen >= len) {
+					// incompressible (e.g. random doubles) -- store raw, marked by clen == len
+					System.arraycopy(buf.array(), 0, cbuf, 8, len);
+					clen = len;
+				}
+				ByteBuffer cb = ByteBuffer.wrap(cbuf, 0, 8 + clen);
+				cb.putInt(0, len);
+				cb.putInt(4, clen);
+				writeFully(cb);
+			} else {
+				writeFully(buf);
+			}
+			buf.clear();
+		}
+
+		void flush() throws IOException {
+			flushBlock();
+		}
+
+		public void writeByte(int b) throws IOException {
+			ensure(1);
+			buf.put((byte) b);
+		}
+
+		public void writeBytes(byte[] bytes, int off, int len) throws IOException {
+			while (len > 0) {
+				if ( ! buf.hasRemaining()) flushBlock();
+				int n = Math.min(len, buf.remaining());
+				buf.put(bytes, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		public void writeVarLong(long v) throws IOException {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buf.put((byte) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			buf.put((byte) v);
+		}
+
+		/**
+		 * zig-zag varint, so small negative numbers are small too
+		 */
+		public void writeSignedVarLong(long v) throws IOException {
+			writeVarLong((v << 1) ^ (v >> 63));
+		}
+
+		public void writeDouble(double v) throws IOException {
+			ensure(8);
+			buf.putDouble(v);
+		}
+
+		public void writeFloat(float v) throws IOException {
+			ensure(4);
+			buf.putFloat(v);
+		}
+
+		public void writeString(String s) throws IOException {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(bytes.length);
+			writeBytes(bytes, 0, bytes.length);
+		}
+
+		void writeClass(Class k) throws IOException {
+			Integer id = classIds.get(k);
+			if (id != null) {
+				writeVarLong(id);
+				return;
+			}
+			id = classIds.size();
+			classIds.put(k, id);
+			writeVarLong(id);
+			writeString(k.getName());
+		}
+
+		/**
+		 * Write any object (or null)
+		 */
+		public void writeObject(Object x) throws IOException {
+			if (x == null) {
+				writeByte(NULL);
+				return;
+			}
+			Class k = x.getClass();
+			// simple values
+			if (k == String.class) {
+				writeByte(STRING);
+				writeString((String) x);
+				return;
+			}
+			if (k == Integer.class) {
+				writeByte(INT);
+				writeSignedVarLong((Integer) x);
+				return;
+			}
+			if (k == Long.class) {
+				writeByte(LONG);
+				writeSignedVarLong((Long) x);
+				return;
+			}
+			if (k == Double.class) {
+				writeByte(DOUBLE);
+				writeDouble((Double) x);
+				return;
+			}
+			if (k == Boolean.class) {
+				writeByte((Boolean) x ? TRUE : FALSE);
+				return;
+			}
+			if (k == Float.class) {
+				writeByte(FLOAT);
+				writeFloat((Float) x);
+				return;
+			}
+			if (k == Short.class) {
+				writeByte(SHORT);
+				writeSignedVarLong((Short) x);
+				return;
+			}
+			if (k == Byte.class) {
+				writeByte(BYTE);
+				writeByte((Byte) x);
+				return;
+			}
+			if (k == Character.class) {
+				writeByte(CHAR);
+				writeVarLong((Character) x);
+				return;
+			}
+			if (x instanceof Enum) {
+				writeByte(ENUM);
+				writeClass(((Enum) x).getDeclaringClass());
+				writeString(((Enum) x).name());
+				return;
+			}
+			if (x instanceof Class) {
+				writeByte(CLASS);
+				writeClass((Class) x);
+				return;
+			}
+			if (x instanceof INotSerializable) {
+				throw new IOException("Not for serialising: " + k + ": " + x);
+			}
+			// Seen before?
+			Integer h = handles.get(x);
+			if (h != null) {
+				writeByte(REF);
+				writeVarLong(h);
+				return;
+			}
+			handles.put(x, handles.size());
+			BinaryCodec codec = codecs.get(k);
+			if (codec != null) {
+				writeByte(CODEC);
+				writeClass(k);
+				codec.write(x, this);
+				return;
+			}
+			if (k.isArray()) {
+				writeArray(x, k.getComponentType());
+				return;
+			}
+			if (k.getAnnotation(BinaryXML.class) != null) {
+				writeSerial(x);
+				return;
+			}
+			if (x instanceof Collection && isPlainContainer(k)) {
+				writeCollection((Collection) x, k);
+				return;
+			}
+			if (x instanceof Map && isPlainContainer(k)) {
+				writeMap((Map) x, k);
+				return;
+			}
+			if (isJDK(k)) {
+				if (x instanceof Serializable) {
+					writeSerial(x);
+					return;
+				}
+				throw new IOException("No codec for " + k + " (register one with BinarySerialiser.register())");
+			}
+			if (classInfo(k).cons == null) {
+				// can't make one on reading -- but Java serialisation can
+				if (x instanceof Serializable) {
+					writeSerial(x);
+					return;
+				}
+				throw new IOException(k + " needs a no-arg constructor (it can be private), or a codec (see BinarySerialiser.register())");
+			}
+			writeFields(x, k);
+		}
+
+		private void writeSerial(Object x) throws IOException {
+			writeByte(SERIAL);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+				oos.writeObject(x);
+			}
+			writeVarLong(bytes.size());
+			writeBytes(bytes.toByteArray(), 0, bytes.size());
+		}
+
+		private void writeFields(Object x, Class k) throws IOException {
+			writeByte(OBJECT);
+			ClassInfo ci = classInfo(k);
+			Integer sid = schemaIds.get(k);
+			if (sid != null) {
+				writeVarLong(sid);
+			} else {
+				// first time: the schema
+				sid = schemaIds.size();
+				schemaIds.put(k, sid);
+				writeVarLong(sid);
+				writeClass(k);
+				writeVarLong(ci.names.length);
+				for (String n : ci.names) {
+					writeString(n);
+				}
+			}
+			try {
+				for (Field f : ci.fields) {
+					Class t = f.getType();
+					if (t.isPrimitive()) {
+						writePrimitive(f, x, t);
+					} else {
+						writeObject(f.get(x));
+					}
+				}
+			} catch (IllegalAccessException ex) {
+				throw new IOException(ex);
+			}
+		}
+
+		private void writePrimitive(Field f, Object x, Class t) throws IOException, IllegalAccessException {
+			if (t == int.class) {
+				writeByte(INT);
+				writeSignedVarLong(f.getInt(x));
+			} else if (t == long.class) {
+				writeByte(LONG);
+				writeSignedVarLong(f.getLong(x));
+			} else if (t == double.class) {
+				writeByte(DOUBLE);
+				writeDouble(f.getDouble(x));
+			} else if (t == boolean.class) {
+				writeByte(f.getBoolean(x) ? TRUE : FALSE);
+			} else if (t == float.class) {
+				writeByte(FLOAT);
+				writeFloat(f.getFloat(x));
+			} else if (t == short.class) {
+				writeByte(SHORT);
+				writeSignedVarLong(f.getShort(x));
+			} else if (t == byte.class) {
+				writeByte(BYTE);
+				writeByte(f.getByte(x));
+			} else {
+				writeByte(CHAR);
+				writeVarLong(f.getChar(x));
+			}
+		}
+
+		private void writeArray(Object x, Class ct) throws IOException {
+			writeByte(ARRAY);
+			writeClass(ct);
+			int n = Array.getLength(x);
+			writeVarLong(n);
+			if ( ! ct.isPrimitive()) {
+				Object[] xs = (Object[]) x;
+				for (Object xi : xs) {
+					writeObject(xi);
+				}
+			} else if (ct == double.class) {
+				for (double v : (double[]) x) {
+					writeDouble(v);
+				}
+			} else if (ct == int.class) {
+				for (int v : (int[]) x) {
+					writeSignedVarLong(v);
+				}
+			} else if (ct == long.class) {
+				for (long v : (long[]) x) {
+					writeSignedVarLong(v);
+				}
+			} else if (ct == byte.class) {
+				writeBytes((byte[]) x, 0, n);
+			} else if (ct == float.class) {
+				for (float v : (float[]) x) {
+					writeFloat(v);
+				}
+			} else if (ct == boolean.class) {
+				for (boolean v : (boolean[]) x) {
+					writeByte(v ? 1 : 0);
+				}
+			} else if (ct == short.class) {
+				for (short v : (short[]) x) {
+					writeSignedVarLong(v);
+				}
+			} else {
+				for (char v : (char[]) x) {
+					writeVarLong(v);
+				}
+			}
+		}
+
+		private void writeCollection(Collection xs, Class k) throws IOException {
+			writeByte(COLLECTION);
+			writeClass(k);
+			if (xs instanceof SortedSet) {
+				writeObject(((SortedSet) xs).comparator());
+			}
+			// copy first, in case of concurrent edits
+			Object[] items = xs.toArray();
+			writeVarLong(items.length);
+			for (Object xi : items) {
+				writeObject(xi);
+			}
+		}
+
+		private void writeMap(Map map, Class k) throws IOException {
+			writeByte(MAP);
+			writeClass(k);
+			if (map instanceof SortedMap) {
+				writeObject(((SortedMap) map).comparator());
+			}
+			Object[] entries = map.entrySet().toArray();
+			writeVarLong(entries.length);
+			for (Object e : entries) {
+				Map.Entry me = (Map.Entry) e;
+				writeObject(me.getKey());
+				writeObject(me.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Reads from a channel, via a buffer (decompressing blocks if need be).
+	 */
+	public static final class In {
+		private final ReadableByteChannel channel;
+		private final boolean compressed;
+		/**
+		 * Room for a whole block + the tail of the previous one
+		 */
+		private final ByteBuffer buf = ByteBuffer.allocate(2 * BLOCK);
+		private byte[] cbuf;
+		private boolean eof;
+
+		private final List<Object> handles = new ArrayList<>();
+		private final List<Class> classes = new ArrayList<>();
+		private final List<Schema> schemas = new ArrayList<>();
+
+		/**
+		 * Field layout of a class as it was when written
+		 */
+		static final class Schema {
+			/**
+			 * null if the class no longer exists
+			 */
+			final ClassInfo ci;
+			/**
+			 * Written field i goes into fields[i] (null if the field no longer exists)
+			 */
+			final Field[] fields;
+
+			Schema(ClassInfo ci, Field[] fields) {
+				this.ci = ci;
+				this.fields = fields;
+			}
+		}
+
+		In(ReadableByteChannel channel) throws IOException {
+			this.channel = channel;
+			buf.limit(0);
+			// read the header exactly, as what follows may be compressed
+			ByteBuffer head = ByteBuffer.allocate(5);
+			if ( ! readFully(head)) throw new IOException("No data");
+			head.flip();
+			for (byte m : MAGIC) {
+				if (head.get() != m) throw new IOException("Not BinarySerialiser data");
+			}
+			byte v = head.get();
+			if (v != VERSION) throw new IOException("Unknown BinarySerialiser version " + v);
+			compressed = (head.get() & FLAG_COMPRESSED) != 0;
+		}
+
+		private void ensure(int n) throws IOException {
+			while (buf.remaining() < n) {
+				if (eof) throw new IOException("Unexpected end of data");
+				// keep the unread tail (< n bytes), then top up
+				buf.compact();
+				fill();
+				buf.flip();
+			}
+		}
+
+		/**
+		 * Read more bytes into buf (which is in write mode)
+		 */
+		private void fill() throws IOException {
+			if ( ! compressed) {
+				int r = channel.read(buf);
+				if (r < 0) eof = true;
+				return;
+			}
+			ByteBuffer head = ByteBuffer.allocate(8);
+			if ( ! readFully(head)) {
+				eof = true;
+				return;
+			}
+			head.flip();
+			int len = head.getInt();
+			int clen = head.getInt();
+			if (len < 0 || len > BLOCK || clen < 0 || clen > LZ4.maxCompressedLength(BLOCK)) {
+				throw new IOException("Corrupt block header " + len + " " + clen);
+			}
+			if (cbuf == null) cbuf = new byte[LZ4.maxCompressedLength(BLOCK)];
+			if ( ! readFully(ByteBuffer.wrap(cbuf, 0, clen))) throw new IOException("Truncated block");
+			if (clen == len) {
+				// stored raw
+				buf.put(cbuf, 0, len);
+				return;
+			}
+			int n = LZ4.decompress(cbuf, 0, clen, buf.array(), buf.position(), buf.remaining());
+			if (n != len) throw new IOException("Corrupt block: " + n + " vs " + len);
+			buf.position(buf.position() + n);
+		}
+
+		/**
+		 * @return false if at the end (before reading anything)
+		 */
+		private boolean readFully(ByteBuffer bb) throws IOException {
+			boolean any = false;
+			while (bb.hasRemaining()) {
+				int r = channel.read(bb);
+				if (r < 0) {
+					if (any) throw new IOException("Truncated data");
+					return false;
+				}
+				if (r > 0) any = true;
+			}
+			return true;
+		}
+
+		public int readByte() throws IOException {
+			ensure(1);
+			return buf.get();
+		}
+
+		public void readBytes(byte[] bytes, int off, int len) throws IOException {
+			while (len > 0) {
+				if ( ! buf.hasRemaining()) ensure(1);
+				int n = Math.min(len, buf.remaining());
+				buf.get(bytes, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		public long readVarLong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				ensure(1);
+				byte b = buf.get();
+				v |= (long) (b & 0x7F) << shift;
+				if (b >= 0) return v;
+			}
+			throw new IOException("Bad varint");
+		}
+
+		public long readSignedVarLong() throws IOException {
+			long v = readVarLong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		public double readDouble() throws IOException {
+			ensure(8);
+			return buf.getDouble();
+		}
+
+		public float readFloat() throws IOException {
+			ensure(4);
+			return buf.getFloat();
+		}
+
+		public String readString() throws IOException {
+			int n = readLength();
+			if (buf.remaining() >= n) {
+				String s = new String(buf.array(), buf.arrayOffset() + buf.position(), n, StandardCharsets.UTF_8);
+				buf.position(buf.position() + n);
+				return s;
+			}
+			byte[] bytes = new byte[n];
+			readBytes(bytes, 0, n);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private int readLength() throws IOException {
+			long n = readVarLong();
+			if (n < 0 || n > Integer.MAX_VALUE) throw new IOException("Bad length " + n);
+			return (int) n;
+		}
+
+		/**
+		 * @return the class, or null if it no longer exists
+		 */
+		Class readClass() throws IOException {
+			int id = readLength();
+			if (id < classes.size()) return classes.get(id);
+			if (id != classes.size()) throw new IOException("Bad class id " + id);
+			String name = readString();
+			Class k = PRIMITIVES.get(name);
+			if (k == null) {
+				try {
+					k = Class.forName(name, false, Thread.currentThread().getContextClassLoader());
+				} catch (ClassNotFoundException ex) {
+					Log.w("BinarySerialiser", "Class not found (will read as null): " + name);
+				}
+			}
+			classes.add(k);
+			return k;
+		}
+
+		/**
+		 * Read any object (or null)
+		 */
+		public Object readObject() throws IOException {
+			byte tag = (byte) readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				return (int) readSignedVarLong();
+			case LONG:
+				return readSignedVarLong();
+			case DOUBLE:
+				return readDouble();
+			case FLOAT:
+				return readFloat();
+			case SHORT:
+				return (short) readSignedVarLong();
+			case BYTE:
+				return (byte) readByte();
+			case CHAR:
+				return (char) readVarLong();
+			case STRING:
+				return readString();
+			case ENUM:
+				Class ek = readClass();
+				String name = readString();
+				if (ek == null) return null;
+				try {
+					return Enum.valueOf(ek, name);
+				} catch (IllegalArgumentException ex) {
+					Log.w("BinarySerialiser", "Unknown enum value (will read as null): " + ek.getName() + "." + name);
+					return null;
+				}
+			case CLASS:
+				return readClass();
+			case REF:
+				int h = readLength();
+				if (h >= handles.size()) throw new IOException("Bad reference " + h);
+				return handles.get(h);
+			}
+			// reference-able things
+			int h = handles.size();
+			handles.add(null);
+			Object x;
+			switch (tag) {
+			case CODEC:
+				Class k = readClass();
+				BinaryCodec codec = k == null ? null : codecs.get(k);
+				if (codec == null) throw new IOException("No codec for " + k);
+				x = codec.read(this);
+				break;
+			case ARRAY:
+				x = readArray(h);
+				break;
+			case COLLECTION:
+				x = readCollection(h);
+				break;
+			case MAP:
+				x = readMap(h);
+				break;
+			case OBJECT:
+				x = readFields(h);
+				break;
+			case SERIAL:
+				x = readSerial();
+				break;
+			default:
+				throw new IOException("Bad tag " + tag);
+			}
+			handles.set(h, x);
+			return x;
+		}
+
+		private Object readSerial() throws IOException {
+			byte[] bytes = new byte[readLength()];
+			readBytes(bytes, 0, bytes.length);
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+				return ois.readObject();
+			} catch (ClassNotFoundException ex) {
+				Log.w("BinarySerialiser", "Class not found (will read as null): " + ex.getMessage());
+				return null;
+			}
+		}
+
+		private Object readFields(int h) throws IOException {
+			int sid = readLength();
+			Schema schema;
+			if (sid < schemas.size()) {
+				schema = schemas.get(sid);
+			} else if (sid == schemas.size()) {
+				Class k = readClass();
+				ClassInfo ci = k == null ? null : classInfo(k);
+				Field[] fs = new Field[readLength()];
+				for (int i = 0; i < fs.length; i++) {
+					String n = readString();
+					fs[i] = ci == null ? null : ci.getField(n);
+				}
+				schema = new Schema(ci, fs);
+				schemas.add(schema);
+			} else {
+				throw new IOException("Bad schema id " + sid);
+			}
+			Object x = schema.ci == null ? null : schema.ci.newInstance();
+			handles.set(h, x);
+			for (Field f : schema.fields) {
+				Object v = readObject();
+				if (f == null || x == null) continue; // skip
+				try {
+					f.set(x, coerce(v, f.getType()));
+				} catch (IllegalArgumentException | IllegalAccessException ex) {
+					Log.w("BinarySerialiser", "Skipping " + f + ": " + ex);
+				}
+			}
+			return x;
+		}
+
+		/**
+		 * Allow numeric fields to change type
+		 */
+		private static Object coerce(Object v, Class t) {
+			if ( ! (v instanceof Number) || t.isInstance(v)) return v;
+			Number n = (Number) v;
+			if (t == long.class || t == Long.class) return n.longValue();
+			if (t == int.class || t == Integer.class) return n.intValue();
+			if (t == double.class || t == Double.class) return n.doubleValue();
+			if (t == float.class || t == Float.class) return n.floatValue();
+			if (t == short.class || t == Short.class) return n.shortValue();
+			if (t == byte.class || t == Byte.class) return n.byteValue();
+			return v;
+		}
+
+		private Object readArray(int h) throws IOException {
+			Class ct = readClass();
+			int n = readLength();
+			if (ct == null) ct = Object.class;
+			Object x = Array.newInstance(ct, n);
+			handles.set(h, x);
+			if ( ! ct.isPrimitive()) {
+				Object[] xs = (Object[]) x;
+				for (int i = 0; i < n; i++) {
+					Object v = readObject();
+					try {
+						xs[i] = v;
+					} catch (ArrayStoreException ex) {
+						Log.w("BinarySerialiser", "Skipping " + v + " in " + ct + "[]");
+					}
+				}
+			} else if (ct == double.class) {
+				double[] xs = (double[]) x;
+				for (int i = 0; i < n; i++) xs[i] = readDouble();
+			} else if (ct == int.class) {
+				int[] xs = (int[]) x;
+				for (int i = 0; i < n; i++) xs[i] = (int) readSignedVarLong();
+			} else if (ct == long.class) {
+				long[] xs = (long[]) x;
+				for (int i = 0; i < n; i++) xs[i] = readSignedVarLong();
+			} else if (ct == byte.class) {
+				readBytes((byte[]) x, 0, n);
+			} else if (ct == float.class) {
+				float[] xs = (float[]) x;
+				for (int i = 0; i < n; i++) xs[i] = readFloat();
+			} else if (ct == boolean.class) {
+				boolean[] xs = (boolean[]) x;
+				for (int i = 0; i < n; i++) xs[i] = readByte() != 0;
+			} else if (ct == short.class) {
+				short[] xs = (short[]) x;
+				for (int i = 0; i < n; i++) xs[i] = (short) readSignedVarLong();
+			} else {
+				char[] xs = (char[]) x;
+				for (int i = 0; i < n; i++) xs[i] = (char) readVarLong();
+			}
+			return x;
+		}
+
+		private Collection readCollection(int h) throws IOException {
+			Class k = readClass();
+			Comparator comp = null;
+			boolean sorted = k != null && SortedSet.class.isAssignableFrom(k);
+			if (sorted) comp = (Comparator) readObject();
+			Collection xs = (Collection) newContainer(k, comp, sorted ? TreeSet.class
+					: k != null && Set.class.isAssignableFrom(k) ? LinkedHashSet.class : ArrayList.class);
+			handles.set(h, xs);
+			int n = readLength();
+			for (int i = 0; i < n; i++) {
+				xs.add(readObject());
+			}
+			return xs;
+		}
+
+		private Map readMap(int h) throws IOException {
+			Class k = readClass();
+			Comparator comp = null;
+			boolean sorted = k != null && SortedMap.class.isAssignableFrom(k);
+			if (sorted) comp = (Comparator) readObject();
+			Map map = (Map) newContainer(k, comp, sorted ? TreeMap.class : LinkedHashMap.class);
+			handles.set(h, map);
+			int n = readLength();
+			for (int i = 0; i < n; i++) {
+				Object key = readObject();
+				map.put(key, readObject());
+			}
+			return map;
+		}
+
+		/**
+		 * Make an empty collection/map of class k -- or of the substitute class if k can't be made.
+		 */
+		private static Object newContainer(Class k, Comparator comp, Class substitute) {
+			if (k != null && ! Modifier.isAbstract(k.getModifiers())) {
+				try {
+					if (comp != null) return k.getConstructor(Comparator.class).newInstance(comp);
+					return k.getConstructor().newInstance();
+				} catch (Exception ex) {
+					// e.g. Collections.singletonList -- fall through
+				}
+			}
+			try {
+				if (comp != null) return substitute.getConstructor(Comparator.class).newInstance(comp);
+				return substitute.getConstructor().newInstance();
+			} catch (Exception ex) {
+				throw Utils.runtime(ex);
+			}
+		}
+	}
+
+	/**
+	 * Built-in codecs for JDK value classes (which can't be reflected into under Java 9+ modules)
+	 */
+	private static void initCodecs() {
+		register(Date.class, new BinaryCodec<Date>() {
+			@Override
+			public void write(Date x, Out out) throws IOException {
+				out.writeSignedVarLong(x.getTime());
+			}
+			@Override
+			public Date read(In in) throws IOException {
+				return new Date(in.readSignedVarLong());
+			}
+		});
+		register(java.sql.Timestamp.class, new BinaryCodec<java.sql.Timestamp>() {
+			@Override
+			public void write(java.sql.Timestamp x, Out out) throws IOException {
+				out.writeSignedVarLong(x.getTime());
+				out.writeVarLong(x.getNanos());
+			}
+			@Override
+			public java.sql.Timestamp read(In in) throws IOException {
+				java.sql.Timestamp ts = new java.sql.Timestamp(in.readSignedVarLong());
+				ts.setNanos((int) in.readVarLong());
+				return ts;
+			}
+		});
+		register(URI.class, new BinaryCodec<URI>() {
+			@Override
+			public void write(URI x, Out out) throws IOException {
+				out.writeString(x.toString());
+			}
+			@Override
+			public URI read(In in) throws IOException {
+				return URI.create(in.readString());
+			}
+		});
+		register(URL.class, new BinaryCodec<URL>() {
+			@Override
+			public void write(URL x, Out out) throws IOException {
+				out.writeString(x.toString());
+			}
+			@Override
+			public URL read(In in) throws IOException {
+				return new URL(in.readString());
+			}
+		});
+		register(File.class, new BinaryCodec<File>() {
+			@Override
+			public void write(File x, Out out) throws IOException {
+				out.writeString(x.getPath());
+			}
+			@Override
+			public File read(In in) throws IOException {
+				return new File(in.readString());
+			}
+		});
+		register(BigInteger.class, new BinaryCodec<BigInteger>() {
+			@Override
+			public void write(BigInteger x, Out out) throws IOException {
+				byte[] bytes = x.toByteArray();
+				out.writeVarLong(bytes.length);
+				out.writeBytes(bytes, 0, bytes.length);
+			}
+			@Override
+			public BigInteger read(In in) throws IOException {
+				byte[] bytes = new byte[in.readLength()];
+				in.readBytes(bytes, 0, bytes.length);
+				return new BigInteger(bytes);
+			}
+		});
+		register(BigDecimal.class, new BinaryCodec<BigDecimal>() {
+			@Override
+			public void write(BigDecimal x, Out out) throws IOException {
+				out.writeString(x.toString());
+			}
+			@Override
+			public BigDecimal read(In in) throws IOException {
+				return new BigDecimal(in.readString());
+			}
+		});
+		register(UUID.class, new BinaryCodec<UUID>() {
+			@Override
+			public void write(UUID x, Out out) throws IOException {
+				out.writeSignedVarLong(x.getMostSignificantBits());
+				out.writeSignedVarLong(x.getLeastSignificantBits());
+			}
+			@Override
+			public UUID read(In in) throws IOException {
+				return new UUID(in.readSignedVarLong(), in.readSignedVarLong());
+			}
+		});
+		register(Locale.class, new BinaryCodec<Locale>() {
+			@Override
+			public void write(Locale x, Out out) throws IOException {
+				out.writeString(x.toLanguageTag());
+			}
+			@Override
+			public Locale read(In in) throws IOException {
+				return Locale.forLanguageTag(in.readString());
+			}
+		});
+		register(Pattern.class, new BinaryCodec<Pattern>() {
+			@Override
+			public void write(Pattern x, Out out) throws IOException {
+				out.writeString(x.pattern());
+				out.writeVarLong(x.flags());
+			}
+			@Override
+			public Pattern read(In in) throws IOException {
+				String p = in.readString();
+				return Pattern.compile(p, (int) in.readVarLong());
+			}
+		});
+		register(StringBuilder.class, new BinaryCodec<StringBuilder>() {
+			@Override
+			public void write(StringBuilder x, Out out) throws IOException {
+				out.writeString(x.toString());
+			}
+			@Override
+			public StringBuilder read(In in) throws IOException {
+				return new StringBuilder(in.readString());
+			}
+		});
+		register(AtomicInteger.class, new BinaryCodec<AtomicInteger>() {
+			@Override
+			public void write(AtomicInteger x, Out out) throws IOException {
+				out.writeSignedVarLong(x.get());
+			}
+			@Override
+			public AtomicInteger read(In in) throws IOException {
+				return new AtomicInteger((int) in.readSignedVarLong());
+			}
+		});
+		register(AtomicLong.class, new BinaryCodec<AtomicLong>() {
+			@Override
+			public void write(AtomicLong x, Out out) throws IOException {
+				out.writeSignedVarLong(x.get());
+			}
+			@Override
+			public AtomicLong read(In in) throws IOException {
+				return new AtomicLong(in.readSignedVarLong());
+			}
+		});
+	}
+}
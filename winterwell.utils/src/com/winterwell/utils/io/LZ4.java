@@ -0,0 +1,170 @@
+package com.winterwell.utils.io;
+
+import java.io.IOException;
+
+/**
+ * A small, dependency-free LZ4 block codec (the LZ4 block format: token, literals,
+ * 2-byte offset, match length). Greedy single-probe matching -- much faster than GZIP,
+ * at some cost in ratio. Used by {@link BinarySerialiser} for its compressed blocks.
+ *
+ * @testedby {@link BinarySerialiserTest}
+ */
+final class LZ4 {
+
+	private static final int MIN_MATCH = 4;
+	/**
+	 * The last match must start at least this far from the end
+	 */
+	private static final int MFLIMIT = 12;
+	/**
+	 * The last bytes are always literals
+	 */
+	private static final int LAST_LITERALS = 5;
+	private static final int HASH_LOG = 14;
+	private static final int MAX_OFFSET = 65535;
+	/**
+	 * Skip faster through incompressible data
+	 */
+	private static final int SKIP_TRIGGER = 6;
+
+	private LZ4() {
+	}
+
+	/**
+	 * @return worst-case compressed size for len bytes
+	 */
+	static int maxCompressedLength(int len) {
+		return len + len / 255 + 16;
+	}
+
+	/**
+	 * @param dst Must have room for {@link #maxCompressedLength(int)} bytes from dstOff
+	 * @return compressed length
+	 */
+	static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		final int end = srcOff + srcLen;
+		int dp = dstOff;
+		int anchor = srcOff;
+		if (srcLen >= MFLIMIT + 1) {
+			final int matchLimit = end - LAST_LITERALS;
+			final int mflimit = end - MFLIMIT;
+			// position + 1 (0 = empty)
+			int[] table = new int[1 << HASH_LOG];
+			int ip = srcOff;
+			int misses = 1 << SKIP_TRIGGER;
+			while (ip < mflimit) {
+				int seq = readInt(src, ip);
+				int h = hash(seq);
+				int ref = table[h] - 1;
+				table[h] = ip + 1;
+				if (ref < srcOff || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+					ip += misses++ >>> SKIP_TRIGGER;
+					continue;
+				}
+				misses = 1 << SKIP_TRIGGER;
+				// extend backwards
+				while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+					ip--;
+					ref--;
+				}
+				// extend forwards
+				int mlen = MIN_MATCH;
+				while (ip + mlen < matchLimit && src[ref + mlen] == src[ip + mlen]) {
+					mlen++;
+				}
+				dp = writeSequence(src, anchor, ip - anchor, ip - ref, mlen, dst, dp);
+				ip += mlen;
+				anchor = ip;
+			}
+		}
+		// last literals
+		int lit = end - anchor;
+		int token = Math.min(lit, 15) << 4;
+		dst[dp++] = (byte) token;
+		dp = writeLength(lit, dst, dp);
+		System.arraycopy(src, anchor, dst, dp, lit);
+		return dp + lit - dstOff;
+	}
+
+	private static int writeSequence(byte[] src, int anchor, int lit, int offset, int mlen, byte[] dst, int dp) {
+		int ml = mlen - MIN_MATCH;
+		dst[dp++] = (byte) ((Math.min(lit, 15) << 4) | Math.min(ml, 15));
+		dp = writeLength(lit, dst, dp);
+		System.arraycopy(src, anchor, dst, dp, lit);
+		dp += lit;
+		dst[dp++] = (byte) offset;
+		dst[dp++] = (byte) (offset >>> 8);
+		return writeLength(ml, dst, dp);
+	}
+
+	/**
+	 * The 255,255,...,rest extension for a length which didn't fit in its 4-bit nibble
+	 */
+	private static int writeLength(int len, byte[] dst, int dp) {
+		if (len < 15) return dp;
+		len -= 15;
+		while (len >= 255) {
+			dst[dp++] = (byte) 255;
+			len -= 255;
+		}
+		dst[dp++] = (byte) len;
+		return dp;
+	}
+
+	/**
+	 * @return decompressed length
+	 * @throws IOException if the input is corrupt (or dst is too small)
+	 */
+	static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws IOException {
+		int ip = srcOff;
+		final int end = srcOff + srcLen;
+		int op = dstOff;
+		final int opEnd = dstOff + dstLen;
+		try {
+			while (ip < end) {
+				int token = src[ip++] & 0xFF;
+				int lit = token >>> 4;
+				if (lit == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						lit += b;
+					} while (b == 255);
+				}
+				if (op + lit > opEnd || ip + lit > end) throw new IOException("Corrupt LZ4 block (literals)");
+				System.arraycopy(src, ip, dst, op, lit);
+				ip += lit;
+				op += lit;
+				if (ip >= end) break;
+				int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+				ip += 2;
+				int mlen = token & 15;
+				if (mlen == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						mlen += b;
+					} while (b == 255);
+				}
+				mlen += MIN_MATCH;
+				int ref = op - offset;
+				if (offset == 0 || ref < dstOff || op + mlen > opEnd) throw new IOException("Corrupt LZ4 block (match)");
+				// byte-by-byte, as the match can overlap the output
+				for (int i = 0; i < mlen; i++) {
+					dst[op++] = dst[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			throw new IOException("Corrupt LZ4 block", ex);
+		}
+		return op - dstOff;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int seq) {
+		return (seq * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
@@ -0,0 +1,323 @@
+package com.winterwell.utils.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import com.winterwell.utils.WrappedException;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Time;
+
+/**
+ * The background half of an asynchronous {@link LogFile}.
+ * <p>
+ * Logging threads put lines onto a bounded lock-free ring buffer (a Vyukov
+ * style array queue). A single writer thread takes them off, and appends them
+ * through one long-lived FileChannel. Writes are group-committed: the channel
+ * is only written to when {@link #commitBytes} have built up, or
+ * {@link #commitMillis} have passed.
+ * <p>
+ * Rotation and max-size are still handled by LogFile -- the writer thread calls
+ * {@link LogFile#listen3_write(String, Time)} for each line.
+ *
+ * @testedby {@link LogFileTest}
+ */
+final class AsyncLogWriter {
+
+	/**
+	 * For {@link KBufferFull#SAMPLE}: 1 in this many overflowing lines are kept.
+	 */
+	static final int SAMPLE_EVERY = 10;
+
+	final long commitBytes = 64 * 1024;
+
+	final long commitMillis = 200;
+
+	private final LogFile logFile;
+
+	private final KBufferFull policy;
+
+	// The ring buffer
+	private final int mask;
+	private final String[] lines;
+	private final Time[] times;
+	private final AtomicLongArray seqs;
+	private final AtomicLong tail = new AtomicLong();
+	/**
+	 * Only touched by the writer thread
+	 */
+	private long head;
+
+	/**
+	 * How many lines have been handed to the LogFile? For flush().
+	 */
+	private volatile long done;
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+
+	// guarded by logFile
+	private FileChannel channel;
+	private final ByteBuffer buf;
+	/**
+	 * bytes written to the file
+	 */
+	private long committed;
+	private long firstPending;
+
+	private volatile boolean stopped;
+
+	private final Thread thread;
+
+	/**
+	 * Drains the buffer at JVM exit, so the last lines are not lost with the daemon thread.
+	 */
+	private final Thread shutdownHook;
+
+	/**
+	 * @param capacity Will be rounded up to a power of 2.
+	 */
+	AsyncLogWriter(LogFile logFile, int capacity, KBufferFull policy) {
+		this.logFile = logFile;
+		this.policy = policy == null ? KBufferFull.BLOCK : policy;
+		int cap = 2;
+		while (cap < capacity) cap *= 2;
+		mask = cap - 1;
+		lines = new String[cap];
+		times = new Time[cap];
+		seqs = new AtomicLongArray(cap);
+		for (int i = 0; i < cap; i++) {
+			seqs.set(i, i);
+		}
+		buf = ByteBuffer.allocateDirect((int) commitBytes);
+		thread = new Thread(this::run, "LogFile.writer " + logFile.getFile().getName());
+		thread.setDaemon(true);
+		thread.start();
+		shutdownHook = new Thread(this::close, "LogFile.writer-shutdown " + logFile.getFile().getName());
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Called by logging threads. Never blocks, unless the policy says so.
+	 */
+	void offer(String line, Time time) {
+		if (stopped) {
+			// closed -- fall back to a direct (slow) write
+			logFile.listen3_write(line, time);
+			return;
+		}
+		if (offer2(line, time)) return;
+		switch (policy) {
+		case DROP:
+			dropped.incrementAndGet();
+			return;
+		case SAMPLE:
+			if (overflows.incrementAndGet() % SAMPLE_EVERY != 0) {
+				dropped.incrementAndGet();
+				return;
+			}
+			// fall through -- wait for space
+		case BLOCK:
+			while ( ! offer2(line, time)) {
+				if (stopped) {
+					logFile.listen3_write(line, time);
+					return;
+				}
+				LockSupport.parkNanos(50000);
+			}
+		}
+	}
+
+	private boolean offer2(String line, Time time) {
+		long pos = tail.get();
+		int idx;
+		while (true) {
+			idx = (int) (pos & mask);
+			long dif = seqs.get(idx) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) break;
+			} else if (dif < 0) {
+				return false; // full
+			} else {
+				pos = tail.get();
+			}
+		}
+		lines[idx] = line;
+		times[idx] = time;
+		seqs.set(idx, pos + 1); // publish
+		return true;
+	}
+
+	/**
+	 * Wait until everything offered so far has been written to the file.
+	 */
+	void flush() {
+		long target = tail.get();
+		while (done < target && thread.isAlive()) {
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(100000);
+		}
+		commit();
+	}
+
+	/**
+	 * Drain and stop the writer thread.
+	 */
+	void close() {
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException ex) {
+			// the JVM is shutting down (maybe we are the hook) -- fine
+		}
+		stopped = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(10000);
+		} catch (InterruptedException e) {
+			// oh well
+		}
+		closeChannel();
+	}
+
+	private void run() {
+		while (true) {
+			int idx = (int) (head & mask);
+			if (seqs.get(idx) != head + 1) {
+				// empty
+				if (stopped) break;
+				if (firstPending != 0 && System.currentTimeMillis() - firstPending >= commitMillis) {
+					commit();
+				}
+				LockSupport.parkNanos(commitMillis * 250000); // 1/4 of the commit interval
+				continue;
+			}
+			String line = lines[idx];
+			Time time = times[idx];
+			lines[idx] = null;
+			times[idx] = null;
+			seqs.set(idx, head + mask + 1); // free the slot
+			head++;
+			try {
+				logFile.listen3_write(line, time);
+				// report any dropped lines
+				long nd = dropped.get();
+				if (nd != 0 && dropped.compareAndSet(nd, 0)) {
+					Report report = new Report("log", "Log buffer full: dropped " + nd + " lines (policy: " + policy + ")",
+							Level.WARNING, null, null);
+					logFile.listen3_write(logFile.listen2_lineFromReport(report), time);
+				}
+			} catch (Throwable ex) {
+				// don't die! but don't log to Log either (infinite loop danger)
+				System.err.println(ex);
+			}
+			done = head;
+		}
+		commit();
+		done = head;
+	}
+
+	/**
+	 * Called (with the LogFile lock held) by LogFile for each line.
+	 */
+	void append(String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		synchronized (logFile) {
+			if (bytes.length > buf.remaining()) {
+				commit();
+			}
+			if (bytes.length > buf.capacity()) {
+				write(ByteBuffer.wrap(bytes));
+				return;
+			}
+			buf.put(bytes);
+			if (firstPending == 0) firstPending = System.currentTimeMillis();
+			if (stopped || buf.position() >= commitBytes) {
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * @return the size of the file, including not-yet-committed writes
+	 */
+	long size() {
+		synchronized (logFile) {
+			openChannel();
+			return committed + buf.position();
+		}
+	}
+
+	/**
+	 * Write out the buffer
+	 */
+	void commit() {
+		synchronized (logFile) {
+			firstPending = 0;
+			if (buf.position() == 0) return;
+			buf.flip();
+			write(buf);
+			buf.clear();
+		}
+	}
+
+	private void write(ByteBuffer bb) {
+		try {
+			FileChannel ch = openChannel();
+			while (bb.hasRemaining()) {
+				committed += ch.write(bb);
+			}
+		} catch (IOException e) {
+			System.err.println(e);
+			bb.position(bb.limit());
+		}
+	}
+
+	private FileChannel openChannel() {
+		if (channel != null && channel.isOpen()) return channel;
+		File file = logFile.getFile();
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+			committed = channel.size();
+			return channel;
+		} catch (IOException e) {
+			throw new WrappedException(e);
+		}
+	}
+
+	/**
+	 * Commit and close the channel, e.g. before the file is moved by rotation.
+	 * The channel is reopened on the next write.
+	 */
+	void closeChannel() {
+		synchronized (logFile) {
+			commit();
+			FileUtils.close(channel);
+			channel = null;
+		}
+	}
+
+	/**
+	 * Throw away anything buffered (for {@link LogFile#clear()}).
+	 */
+	void discard() {
+		synchronized (logFile) {
+			buf.clear();
+			firstPending = 0;
+			FileUtils.close(channel);
+			channel = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncLogWriter[" + logFile + " " + policy + "]";
+	}
+}
@@ -0,0 +1,16 @@
+package com.winterwell.utils.log;
+
+/**
+ * What should an asynchronous {@link LogFile} do when its buffer is full?
+ * 
+ * @see LogFile#setAsync(int, KBufferFull)
+ */
+public enum KBufferFull {
+	/** Wait for the writer to catch up. Nothing is lost, but logging threads can stall. */
+	BLOCK,
+	/** Skip the line. The number of dropped lines is written to the log once there is room. */
+	DROP,
+	/** Mostly drop, but let 1 in {@link AsyncLogWriter#SAMPLE_EVERY} lines wait for space, 
+	 * so the log keeps a thin record of what happened. */
+	SAMPLE
+}
@@ -48,4 +48,13 @@ public class LogConfig {
 	
 	@Option
 	Integer fileHistory;
+	
+	@Option(description="If true, log files are written by a background thread which batches writes. Much faster, but a crash can lose the last fraction of a second of logs.")
+	boolean fileAsync;
+	
+	@Option(description="Only used if fileAsync. How many lines can be waiting to be written?")
+	int fileBufferSize = 10000;
+	
+	@Option(description="Only used if fileAsync. What to do if the buffer is full: BLOCK, DROP or SAMPLE")
+	KBufferFull fileBufferFull = KBufferFull.BLOCK;
 }
@@ -22,6 +22,10 @@ import com.winterwell.utils.web.WebUtils;
  * thing, but it guarantees that the log will not lose the reports leading up to
  * a crash (ie. the important ones).
  * <p>
+ * For log-heavy servers, use {@link #setAsync(int, KBufferFull)}: lines then go
+ * onto a ring buffer, and a background thread group-commits them. Much faster,
+ * but a crash can lose the last fraction of a second. 
+ * <p>
  * LogFile's stay alive until they are closed! Use {@link #close()} to remove
  * this LogFile from the log listeners.
  * 
@@ -80,6 +84,38 @@ public class LogFile implements ILogListener, Closeable {
 		if (lc.fileMaxSize!=null) {
 			setFileMaxSize(ConfigBuilder.bytesFromString(lc.fileMaxSize));
 		}
+		if (lc.fileAsync) {
+			setAsync(lc.fileBufferSize, lc.fileBufferFull);
+		}
+	}
+	
+	/**
+	 * null unless async
+	 */
+	private volatile AsyncLogWriter async;
+	
+	/**
+	 * Switch to asynchronous writing: reports go onto a bounded ring buffer, and
+	 * a background thread writes them out in batches.
+	 * 
+	 * @param bufferSize Max number of lines waiting to be written, e.g. 10000
+	 * @param whenFull What to do if the writer can't keep up. null for {@link KBufferFull#BLOCK}.
+	 * @return this
+	 * @testedby {@link LogFileTest#testAsync()}
+	 */
+	public LogFile setAsync(int bufferSize, KBufferFull whenFull) {
+		if (async != null) async.close();
+		async = new AsyncLogWriter(this, bufferSize, whenFull);
+		return this;
+	}
+	
+	/**
+	 * Wait until all reports so far have been written to the file.
+	 * This is a no-op unless async.
+	 */
+	public void flush() {
+		AsyncLogWriter a = async;
+		if (a != null) a.flush();
 	}
 
 	private void setFileMaxSize(long maxSize) {
@@ -91,7 +127,9 @@ public class LogFile implements ILogListener, Closeable {
 	 * Delete all log entries from the file. The file will still exist but it
 	 * will be empty.
 	 */
-	public void clear() {
+	public synchronized void clear() {
+		AsyncLogWriter a = async;
+		if (a != null) a.discard();
 		FileUtils.write(file, "");
 	}
 
@@ -101,6 +139,11 @@ public class LogFile implements ILogListener, Closeable {
 	@Override
 	public void close() {
 		Log.removeListener(this);
+		AsyncLogWriter a = async;
+		if (a != null) {
+			a.close();
+			async = null;
+		}
 	}
 
 	public File getFile() {
@@ -126,7 +169,7 @@ public class LogFile implements ILogListener, Closeable {
 	}
 
 
-	private String listen2_lineFromReport(Report report) {
+	String listen2_lineFromReport(Report report) {
 //		String lines = report.toString();
 		// Use Java SimpleFormatter to make LogStash happy out of the box
 		LogRecord lr = new LogRecord(report.level, report.tag+" "+report.getMessage()
@@ -153,16 +196,33 @@ public class LogFile implements ILogListener, Closeable {
 	 * @param line
 	 * @param time
 	 */
-	public synchronized void listen2(String line, Time time) {
+	public void listen2(String line, Time time) {
+		AsyncLogWriter a = async;
+		if (a != null) {
+			// queue it for the writer thread
+			a.offer(line, time);
+			return;
+		}
+		listen3_write(line, time);
+	}
+
+	/**
+	 * Write a line, handling max-size and rotation. 
+	 * Called directly if sync, or from the writer thread if async.
+	 */
+	synchronized void listen3_write(String line, Time time) {
+		// read once: close() can null it from another thread
+		AsyncLogWriter a = async;
 		// too big?!
-		if (fileMaxSize > 0 && file.length() > fileMaxSize) {
+		long len = a==null? file.length() : a.size();
+		if (fileMaxSize > 0 && len > fileMaxSize) {
 			// one final log message
 			if ( ! criedForHelp) {
 				// ??minor: possibly refactor Log so this can use guaranteed the same Report construction
-				String tooBigLine = "Log file too big: "+file.length()+" > "+fileMaxSize+". Logging skipped!";
+				String tooBigLine = "Log file too big: "+len+" > "+fileMaxSize+". Logging skipped!";
 				Report report = new Report("log", tooBigLine, Level.SEVERE, line, null);
 				String cry = listen2_lineFromReport(report);
-				FileUtils.append(cry, file);
+				listen3_append(a, cry);
 				criedForHelp = true;
 			}
 			// done
@@ -170,11 +230,22 @@ public class LogFile implements ILogListener, Closeable {
 		}
 		// Rotate the logs?
 		if (nextRotation != null && nextRotation.isBefore(time)) {
+			// async: write out pending lines to the old file, and let go of it
+			if (a != null) a.closeChannel();
 			rotateLogFiles();
 		}
+		listen3_append(a, line);
+		criedForHelp = false;
+	}
+
+	private void listen3_append(AsyncLogWriter a, String line) {
+		if (a != null) {
+			// buffered, long-lived channel
+			a.append(line);
+			return;
+		}
 		// append to file (flushes immediately)
 		FileUtils.append(line, file);
-		criedForHelp = false;
 	}
 
 	/**
@@ -1,5 +1,6 @@
 package com.winterwell.utils.web;
 
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -11,6 +12,7 @@ import com.winterwell.utils.FailureException;
 import com.winterwell.utils.Mutable;
 import com.winterwell.utils.Printer.IPrinter;
 import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.Utils;
 import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.containers.Containers;
 
@@ -78,142 +80,166 @@ public class SimpleJson {
 	}
 
 	public void appendJson(StringBuilder sb, Object x) {
+		try {
+			writeJson(sb, x);
+		} catch (IOException e) {
+			// cannot happen with a StringBuilder
+			throw Utils.runtime(e);
+		}
+	}
+
+	/**
+	 * Like {@link #appendJson(StringBuilder, Object)}, but can stream straight to e.g. a Writer,
+	 * so a big object never exists as a single String.
+	 * @param out e.g. a StringBuilder or a Writer
+	 * @param x
+	 * @throws IOException
+	 */
+	public void writeJson(Appendable out, Object x) throws IOException {
 		if (x == null) {
-			sb.append("null");
+			out.append("null");
 			return;
 		}
 		// use a plugin?
 		IPrinter prntr = useMe.get(x.getClass());
 		if (prntr != null) {
+			StringBuilder sb = out instanceof StringBuilder? (StringBuilder) out : new StringBuilder();
 			prntr.append(x, sb);
+			if (sb != out) out.append(sb);
 			return;
 		}
 		if (x instanceof IHasJson) {
+			StringBuilder sb = out instanceof StringBuilder? (StringBuilder) out : new StringBuilder();
 			((IHasJson) x).appendJson(sb);
+			if (sb != out) out.append(sb);
 			return;
 		}
 		if (x instanceof CharSequence) {
 			// Escape "s
-			sb.append('"');
-			escape(sb, (CharSequence) x);
-			sb.append('"');
+			out.append('"');
+			escape(out, (CharSequence) x);
+			out.append('"');
 			return;
 		}
 		if (x instanceof Number) {
-			sb.append(x.toString());
+			out.append(x.toString());
 			return;
 		}
 		if (x instanceof Boolean) {
-			sb.append(x.toString());
+			out.append(x.toString());
 			return;
 		}
 		if (x instanceof Map) {
-			appendJson2_map((Map) x, sb);
+			writeJson2_map((Map) x, out);
 			return;
 		}
 		if (x.getClass().isArray()) {
 			x = Containers.asList(x);
 		}
 		if (x instanceof Collection) {
-			appendJson2_list((Collection) x, sb);
+			writeJson2_list((Collection) x, out);
 			return;
 		}
 		// fallback to toString()
 		// Escape "s
-		sb.append('"');
-		escape(sb, x.toString());
-		sb.append('"');
+		out.append('"');
+		escape(out, x.toString());
+		out.append('"');
 		// Log.report("SimpleJson: ...Unknown type: "+x.getClass());
 	}
 
-	private void appendJson2_list(Collection list, StringBuilder sb) {
-		sb.append("[");
+	private void writeJson2_list(Collection list, Appendable out) throws IOException {
+		out.append("[");
+		boolean first = true;
 		for (Object x : list) {
-			appendJson(sb, x);
-			sb.append(", ");
-		}
-		if (!list.isEmpty()) {
-			StrUtils.pop(sb, 2);
+			if ( ! first) out.append(", ");
+			first = false;
+			writeJson(out, x);
 		}
-		sb.append("]");
+		out.append("]");
 	}
 
-	private void appendJson2_map(Map map, StringBuilder sb) {
-		sb.append("{");
+	private void writeJson2_map(Map map, Appendable out) throws IOException {
+		out.append("{");
+		boolean first = true;
 		for (Object key : map.keySet()) {
+			if ( ! first) out.append(", ");
+			first = false;
 			// Ensure ""s on key
 			String jk = toJson(key);
 			if ( ! jk.startsWith("\"")) {
-				sb.append('"');
-				sb.append(jk);
-				sb.append('"');
+				out.append('"');
+				out.append(jk);
+				out.append('"');
 			} else {
-				sb.append(jk);
+				out.append(jk);
 			}
-			sb.append(":");
+			out.append(":");
 			Object v = map.get(key);
-			appendJson(sb, v);
-			sb.append(", ");
+			writeJson(out, v);
 		}
-		if (!map.isEmpty()) {
-			StrUtils.pop(sb, 2);
-		}
-		sb.append("}");
+		out.append("}");
 	}
 
 	/**
 	 * Escape "s, tabs, \r, \n
 	 * 
-	 * @param sb
+	 * @param out
 	 * @param x
+	 * @throws IOException 
 	 */
-	private void escape(StringBuilder sb, CharSequence x) {
+	private void escape(Appendable out, CharSequence x) throws IOException {
 		char b;
 		char c = 0;
 		String hhhh;
-		int len = x.length();
+		int run = 0; // start of the current run of plain chars
 
 		for (int i = 0, n = x.length(); i < n; i++) {
 			b = c;
 			c = x.charAt(i);
-
+			String esc;
 			switch (c) {
 			case '\\':
+				esc = "\\\\";
+				break;
 			case '"':
-				sb.append('\\');
-				sb.append(c);
+				esc = "\\\"";
 				break;
 			case '/':
-				if (b == '<') {
-					sb.append('\\');
+				if (b != '<') {
+					continue;
 				}
-				sb.append(c);
+				esc = "\\/";
 				break;
 			case '\b':
-				sb.append("\\b");
+				esc = "\\b";
 				break;
 			case '\t':
-				sb.append("\\t");
+				esc = "\\t";
 				break;
 			case '\n':
-				sb.append("\\n");
+				esc = "\\n";
 				break;
 			case '\f':
-				sb.append("\\f");
+				esc = "\\f";
 				break;
 			case '\r':
-				sb.append("\\r");
+				esc = "\\r";
 				break;
 			default:
 				if (c < ' ' || (c >= '\u0080' && c < '\u00a0')
 						|| (c >= '\u2000' && c < '\u2100')) {
 					hhhh = "000" + Integer.toHexString(c);
-					sb.append("\\u" + hhhh.substring(hhhh.length() - 4));
-				} else {
-					sb.append(c);
+					esc = "\\u" + hhhh.substring(hhhh.length() - 4);
+					break;
 				}
+				continue;
 			}
+			if (i > run) out.append(x, run, i);
+			out.append(esc);
+			run = i + 1;
 		}
+		if (x.length() > run) out.append(x, run, x.length());
 	}
 
 	/**
@@ -0,0 +1,68 @@
+package com.winterwell.utils.containers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Printer;
+import com.winterwell.utils.time.StopWatch;
+
+/**
+ * Benchmark: {@link Cache} vs {@link ConcurrentCache} at 1, 8 and 32 threads,
+ * with a skewed (mostly-gets) workload.
+ * 
+ * (JMH would be nicer, but it's not on our classpath -- so this follows the
+ * same pattern as {@link ArrayMapPerfTest}.)
+ */
+public class ConcurrentCachePerfTest {
+
+	static final int CAPACITY = 1000;
+	static final int KEYS = 5000;
+	static final int OPS = 1000000;
+
+	@Test
+	public void testThroughput() throws InterruptedException {
+		// warm up
+		run(new Cache<Integer, Integer>(CAPACITY), 8);
+		run(new ConcurrentCache<Integer, Integer>(CAPACITY), 8);
+		for (int threads : new int[] { 1, 8, 32 }) {
+			Cache<Integer, Integer> cache = new Cache<Integer, Integer>(CAPACITY);
+			long tc = run(cache, threads);
+			ConcurrentCache<Integer, Integer> ccache = new ConcurrentCache<Integer, Integer>(CAPACITY);
+			long tcc = run(ccache, threads);
+			Printer.out(threads + " threads:\tCache " + tc + "ms\tConcurrentCache " + tcc + "ms\t(hit rate "
+					+ Printer.prettyNumber(ccache.getHitRate()) + ")");
+		}
+	}
+
+	/**
+	 * @return millisecs to do OPS get-or-put over the given number of threads
+	 */
+	private long run(final Map<Integer, Integer> cache, int nThreads) throws InterruptedException {
+		List<Thread> threads = new ArrayList<Thread>();
+		final int opsPerThread = OPS / nThreads;
+		for (int t = 0; t < nThreads; t++) {
+			final Random r = new Random(t);
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < opsPerThread; i++) {
+						// skewed: squaring a uniform favours the low keys
+						double u = r.nextDouble();
+						Integer k = (int) (u * u * KEYS);
+						if (cache.get(k) == null) {
+							cache.put(k, i);
+						}
+					}
+				}
+			});
+		}
+		StopWatch sw = new StopWatch();
+		for (Thread thread : threads) thread.start();
+		for (Thread thread : threads) thread.join();
+		return sw.getTime();
+	}
+}
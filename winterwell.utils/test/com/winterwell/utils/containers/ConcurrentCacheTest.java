@@ -0,0 +1,123 @@
+package com.winterwell.utils.containers;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.threads.SafeExecutor;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+import junit.framework.Assert;
+
+public class ConcurrentCacheTest {
+
+	@Test
+	public void testGetPut() {
+		ConcurrentCache<String, String> c = new ConcurrentCache<String, String>(10);
+		Assert.assertNull(c.get("a"));
+		c.put("a", "apple");
+		Assert.assertEquals("apple", c.get("a"));
+		Assert.assertEquals("apple", c.remove("a"));
+		Assert.assertNull(c.get("a"));
+		Assert.assertEquals(1, c.getHits());
+		Assert.assertEquals(2, c.getMisses());
+	}
+
+	@Test
+	public void testEviction() {
+		int cacheSize = 50;
+		ConcurrentCache<String, String> c = new ConcurrentCache<String, String>(cacheSize);
+		for (int j = 0; j < 100; j++) {
+			for (int i = 0; i < 200; i++) {
+				c.put("key " + i, "val " + i);
+			}
+		}
+		Assert.assertEquals(cacheSize, c.size());
+		Assert.assertTrue(c.getEvictions() > 0);
+	}
+
+	/**
+	 * A scan of one-off keys should not flush out the popular ones
+	 */
+	@Test
+	public void testScanResistance() {
+		int cacheSize = 100;
+		ConcurrentCache<String, String> c = new ConcurrentCache<String, String>(cacheSize);
+		for (int j = 0; j < 10; j++) {
+			for (int i = 0; i < 50; i++) {
+				if (c.get("hot " + i) == null) c.put("hot " + i, "v");
+			}
+		}
+		for (int i = 0; i < 10000; i++) {
+			if (c.get("scan " + i) == null) c.put("scan " + i, "v");
+			// the hot set is still in use
+			String h = "hot " + (i % 50);
+			if (c.get(h) == null) c.put(h, "v");
+		}
+		int hot = 0;
+		for (int i = 0; i < 50; i++) {
+			if (c.containsKey("hot " + i)) hot++;
+		}
+		Assert.assertTrue("hot: " + hot, hot > 40);
+	}
+
+	@Test
+	public void testExpireAfterWrite() {
+		ConcurrentCache<String, String> c = new ConcurrentCache<String, String>(10)
+				.setExpireAfterWrite(new Dt(100, TUnit.MILLISECOND));
+		c.put("a", "apple");
+		Assert.assertEquals("apple", c.get("a"));
+		Utils.sleep(150);
+		Assert.assertNull(c.get("a"));
+		Assert.assertEquals(0, c.size());
+		Assert.assertEquals(1, c.getEvictions());
+	}
+
+	@Test
+	public void testOnRemove() {
+		final int[] removed = new int[1];
+		ConcurrentCache<String, String> c = new ConcurrentCache<String, String>(5) {
+			@Override
+			protected void onRemove(String key, String value) {
+				removed[0]++;
+			}
+		};
+		for (int i = 0; i < 20; i++) {
+			c.put("key " + i, "val " + i);
+		}
+		Assert.assertEquals(5, c.size());
+		Assert.assertEquals(15, removed[0]);
+	}
+
+	@Test
+	public void testEvictionMultiThreaded() throws InterruptedException {
+		int cacheSize = 50;
+		final ConcurrentCache<String, String> c = new ConcurrentCache<String, String>(cacheSize);
+		SafeExecutor ex = new SafeExecutor(Executors.newFixedThreadPool(100));
+		for (int j = 0; j < 1000; j++) {
+			ex.submit(new Runnable() {
+				@Override
+				public void run() {
+					Random r = new Random();
+					for (int i = 0; i < 1000; i++) {
+						int ki = r.nextInt(1000);
+						c.get("key " + ki);
+						c.put("key " + ki, "val " + i);
+					}
+				}
+			});
+		}
+		ex.shutdown();
+		ex.awaitTermination(TUnit.HOUR.getMillisecs(), TimeUnit.MILLISECONDS);
+		System.out.println(c);
+		// capacity is approximate under concurrent puts, but should settle
+		c.put("one more", "val");
+		Assert.assertTrue(c.toString(), c.size() <= cacheSize + 1);
+		Assert.assertTrue(c.toString(), c.getHitRate() < 0.5);
+	}
+
+}
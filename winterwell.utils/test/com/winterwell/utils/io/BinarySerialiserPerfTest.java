@@ -0,0 +1,93 @@
+package com.winterwell.utils.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.StopWatch;
+import com.winterwell.utils.time.Time;
+import com.winterwell.utils.web.XStreamUtils;
+
+/**
+ * Size & speed: XStream, XStream+gzip, binary, binary+LZ4 -- on a big vector-ish artifact
+ * and a big object-graph artifact.
+ */
+public class BinarySerialiserPerfTest {
+
+	@Test
+	public void testCompare() throws Exception {
+		Random r = new Random(42);
+		// dense numbers (e.g. a model)
+		Map<String, double[]> vectors = new HashMap();
+		for (int i = 0; i < 2000; i++) {
+			double[] v = new double[100];
+			for (int j = 0; j < v.length; j++) v[j] = r.nextGaussian();
+			vectors.put("w" + i, v);
+		}
+		// lots of small objects (e.g. a document store)
+		List<Doc> docs = new ArrayList();
+		for (int i = 0; i < 20000; i++) {
+			Doc d = new Doc();
+			d.id = "doc" + i;
+			d.score = r.nextDouble();
+			d.time = new Time(2020, 1, 1 + (i % 28));
+			d.tags = new ArrayMap("lang", i % 2 == 0 ? "en" : "fr", "n", i);
+			docs.add(d);
+		}
+		for (Object artifact : new Object[] { vectors, docs }) {
+			System.out.println(artifact.getClass().getSimpleName());
+			compare(artifact);
+		}
+	}
+
+	private void compare(Object artifact) throws Exception {
+		for (int rep = 0; rep < 2; rep++) { // 1st round is a warm-up
+			for (String mode : new String[] { "xstream", "xstream+gzip", "binary", "binary+lz4" }) {
+				StopWatch sw = new StopWatch();
+				byte[] bytes;
+				if (mode.startsWith("binary")) {
+					bytes = BinarySerialiser.toBytes(artifact, mode.endsWith("lz4"));
+				} else {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					Writer w = new OutputStreamWriter(mode.endsWith("gzip") ? new GZIPOutputStream(out) : out, "UTF-8");
+					XStreamUtils.serialiseToXml(w, artifact);
+					w.close();
+					bytes = out.toByteArray();
+				}
+				long writeTime = sw.getTime();
+				sw = new StopWatch();
+				Object back;
+				if (mode.startsWith("binary")) {
+					back = BinarySerialiser.fromBytes(bytes);
+				} else {
+					ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+					back = XStreamUtils.serialiseFromXml(mode.endsWith("gzip") ? new GZIPInputStream(in) : in);
+				}
+				long readTime = sw.getTime();
+				assert back != null;
+				if (rep == 1) {
+					System.out.println("	" + mode + "	" + bytes.length / 1024 + "k	write " + writeTime
+							+ "ms	read " + readTime + "ms");
+				}
+			}
+		}
+	}
+
+	static class Doc {
+		String id;
+		double score;
+		Time time;
+		Map tags;
+	}
+}
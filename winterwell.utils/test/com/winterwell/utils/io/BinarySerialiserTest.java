@@ -0,0 +1,221 @@
+package com.winterwell.utils.io;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Key;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.containers.ArraySet;
+import com.winterwell.utils.io.XStreamBinaryConverter.BinaryXML;
+import com.winterwell.utils.time.Time;
+
+/**
+ * @tested {@link BinarySerialiser}
+ */
+public class BinarySerialiserTest {
+
+	/**
+	 * The types XStreamUtils has converters or aliases for
+	 */
+	@Test
+	public void testXStreamTypes() {
+		Map map = new HashMap();
+		map.put("int", 1);
+		map.put("long", -5L);
+		map.put("double", 1.5);
+		map.put("float", 2.5f);
+		map.put("short", (short) 3);
+		map.put("byte", (byte) -4);
+		map.put("char", 'x');
+		map.put("bool", true);
+		map.put("str", "Hello £ World");
+		map.put("chm", new ConcurrentHashMap(new ArrayMap("a", 1, "b", 2)));
+		map.put("ts", new Timestamp(1234567890123L));
+		map.put("uri", URI.create("http://winterwell.com/foo?bar=1"));
+		map.put("key", new Key("foo"));
+		map.put("amap", new ArrayMap("x", "y", "n", 7));
+		map.put("list", new ArrayList(Arrays.asList("a", null, 2)));
+		map.put("set", new HashSet(Arrays.asList("a", "b")));
+		map.put("aset", new ArraySet(Arrays.asList("c", "d")));
+		map.put("sorted", new TreeMap(new ArrayMap("z", 1, "a", 2)));
+		map.put("time", new Time(2020, 1, 1));
+		map.put("single", Collections.singletonList("solo"));
+
+		for (boolean compress : new boolean[] { false, true }) {
+			byte[] bytes = BinarySerialiser.toBytes(map, compress);
+			Map map2 = BinarySerialiser.fromBytes(bytes);
+			assert map2.equals(map) : map2;
+			assert map2.get("chm") instanceof ConcurrentHashMap;
+			assert map2.get("aset") instanceof ArraySet;
+			assert map2.get("amap") instanceof ArrayMap;
+			assert map2.get("single").equals(Arrays.asList("solo"));
+		}
+	}
+
+	@Test
+	public void testBinaryXMLAndArrays() {
+		Dummy d = new Dummy();
+		d.a = "Hello World";
+		d.b = new double[] { 0, 1, 2, 3, 4, 5 };
+		Object[] stuff = new Object[] { d, new int[] { 1, -2, 300000 }, new long[] { Long.MIN_VALUE },
+				new String[] { "a", null }, new byte[] { 1, 2, 3 } };
+		Object[] stuff2 = BinarySerialiser.fromBytes(BinarySerialiser.toBytes(stuff, true));
+		Dummy d2 = (Dummy) stuff2[0];
+		assert d2.a.equals(d.a);
+		assert Arrays.equals(d2.b, d.b);
+		assert Arrays.equals((int[]) stuff2[1], (int[]) stuff[1]);
+		assert Arrays.equals((long[]) stuff2[2], (long[]) stuff[2]);
+		assert Arrays.equals((String[]) stuff2[3], (String[]) stuff[3]);
+		assert Arrays.equals((byte[]) stuff2[4], (byte[]) stuff[4]);
+	}
+
+	@Test
+	public void testCyclesAndSharing() {
+		Node a = new Node();
+		Node b = new Node();
+		a.name = "a";
+		b.name = "b";
+		a.next = b;
+		b.next = a;
+		a.weight = 2.5;
+		List list = new ArrayList();
+		list.add(a);
+		list.add(b);
+		list.add(a);
+		List list2 = BinarySerialiser.fromBytes(BinarySerialiser.toBytes(list, false));
+		Node a2 = (Node) list2.get(0);
+		Node b2 = (Node) list2.get(1);
+		assert list2.get(2) == a2;
+		assert a2.next == b2;
+		assert b2.next == a2;
+		assert a2.weight == 2.5;
+		assert b2.name.equals("b");
+	}
+
+	/**
+	 * Added & removed fields, and a field which changed type.
+	 * Simulated by swapping the class name in the bytes.
+	 */
+	@Test
+	public void testSchemaChange() {
+		SchemaV1 v1 = new SchemaV1();
+		v1.name = "alice";
+		v1.count = 42;
+		v1.dropped = "gone";
+		byte[] bytes = BinarySerialiser.toBytes(v1, false);
+		String s = new String(bytes, StandardCharsets.ISO_8859_1);
+		assert s.contains("SchemaV1");
+		bytes = s.replace("SchemaV1", "SchemaV2").getBytes(StandardCharsets.ISO_8859_1);
+
+		SchemaV2 v2 = BinarySerialiser.fromBytes(bytes);
+		assert v2.name.equals("alice");
+		assert v2.count == 42L;
+		assert v2.added.equals("default") : v2.added;
+	}
+
+	@Test
+	public void testLZ4() throws Exception {
+		Random r = new Random(42);
+		for (int len : new int[] { 0, 5, 13, 100, 5000, 70000 }) {
+			byte[] src = new byte[len];
+			// part compressible, part random
+			for (int i = 0; i < len; i++) {
+				src[i] = (byte) (i % 3 == 0 ? r.nextInt() : i % 17);
+			}
+			byte[] dst = new byte[LZ4.maxCompressedLength(len)];
+			int clen = LZ4.compress(src, 0, len, dst, 0);
+			byte[] out = new byte[len];
+			int n = LZ4.decompress(dst, 0, clen, out, 0, len);
+			assert n == len;
+			assert Arrays.equals(src, out);
+		}
+		// compresses
+		byte[] zeros = new byte[10000];
+		byte[] dst = new byte[LZ4.maxCompressedLength(zeros.length)];
+		assert LZ4.compress(zeros, 0, zeros.length, dst, 0) < 100;
+	}
+
+	@Test
+	public void testBigCompressed() {
+		List<String> words = new ArrayList();
+		for (int i = 0; i < 100000; i++) {
+			words.add("word" + (i % 1000));
+		}
+		byte[] raw = BinarySerialiser.toBytes(words, false);
+		byte[] lz4 = BinarySerialiser.toBytes(words, true);
+		assert lz4.length < raw.length / 2 : lz4.length + " vs " + raw.length;
+		List words2 = BinarySerialiser.fromBytes(lz4);
+		assert words2.equals(words);
+	}
+
+	@Test
+	public void testNoArgConstructor() {
+		// Serializable: falls back to Java serialisation
+		NoArgs x = new NoArgs("foo");
+		NoArgs x2 = BinarySerialiser.fromBytes(BinarySerialiser.toBytes(x, false));
+		assert x2.name.equals("foo");
+		// otherwise: refused
+		try {
+			BinarySerialiser.toBytes(new Object[] { new Pointer(x) }, false);
+			assert false;
+		} catch (Exception ex) {
+			assert ex.getMessage().contains("no-arg constructor") : ex;
+		}
+	}
+
+	static class NoArgs implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final String name;
+
+		NoArgs(String name) {
+			this.name = name;
+		}
+	}
+
+	static class Pointer {
+		final Object to;
+
+		Pointer(Object to) {
+			this.to = to;
+		}
+	}
+
+	@BinaryXML
+	static class Dummy implements Serializable {
+		private static final long serialVersionUID = 1L;
+		String a;
+		double[] b;
+	}
+
+	static class Node {
+		String name;
+		Node next;
+		double weight;
+	}
+
+	static class SchemaV1 {
+		String name;
+		int count;
+		String dropped;
+	}
+
+	static class SchemaV2 {
+		String name;
+		long count;
+		String added = "default";
+	}
+}
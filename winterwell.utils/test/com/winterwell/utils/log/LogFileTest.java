@@ -8,6 +8,7 @@ import com.winterwell.utils.Utils;
 import com.winterwell.utils.io.ConfigBuilder;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
 
 import junit.framework.TestCase;
 
@@ -28,6 +29,74 @@ public class LogFileTest extends TestCase {
 	}
 
 	
+	public void testAsync() {
+		File f = new File("test-output/test-async.txt");
+		FileUtils.delete(f);
+		LogFile lf = new LogFile(f).setAsync(100, KBufferFull.BLOCK);
+		// NB: call listen2 directly, as Log would throttle this many reports
+		for (int i=0; i<1000; i++) {
+			lf.listen2("Hello "+i+" \n", new Time());
+		}
+		lf.flush();
+		String log = FileUtils.read(f);
+		lf.close();
+		assert log.contains("Hello 0") : log;
+		assert log.contains("Hello 999") : log;
+		assert log.indexOf("Hello 10 ") < log.indexOf("Hello 11 ") : log;
+	}
+	
+	public void testAsyncDrop() {
+		File f = new File("test-output/test-async-drop.txt");
+		FileUtils.delete(f);
+		LogFile lf = new LogFile(f).setAsync(4, KBufferFull.DROP);
+		for (int i=0; i<1000; i++) {
+			lf.listen2("Hello "+i+" \n", new Time());
+		}
+		lf.close();
+		String log = FileUtils.read(f);
+		assert log.contains("Hello 0") : log;
+		assert log.contains("dropped") : log;
+	}
+	
+	public void testAsyncCloseWhileWriting() throws Exception {
+		File f = new File("test-output/test-async-close.txt");
+		FileUtils.delete(f);
+		LogFile lf = new LogFile(f).setAsync(16, KBufferFull.BLOCK);
+		Throwable[] err = new Throwable[1];
+		Thread t = new Thread(() -> {
+			try {
+				for (int i=0; i<5000; i++) {
+					lf.listen2("Hello "+i+" \n", new Time());
+				}
+			} catch (Throwable ex) {
+				err[0] = ex;
+			}
+		});
+		t.start();
+		Utils.sleep(5);
+		lf.close();
+		t.join();
+		assert err[0] == null : err[0];
+		// nothing lost: lines after close() are written directly
+		assert FileUtils.read(f).contains("Hello 4999");
+	}
+	
+	public void testAsyncRotation() {
+		File f = new File("test-output/rotate-async-test.txt");
+		FileUtils.delete(f);
+		LogFile lf = new LogFile(f).setAsync(1000, null);
+		lf.setLogRotation(TUnit.SECOND.getDt(), 10);
+		for (int i = 0; i < 5; i++) {
+			Log.report("Hello " + i);
+			Utils.sleep(750);
+		}
+		lf.flush();
+		String log = FileUtils.read(f);
+		lf.close();
+		assert log.contains("Hello 4") : log;
+		assert !log.contains("Hello 1") : log;
+	}
+	
 	public void testLogFileSizeViaConfig() {
 		ConfigBuilder cb = new ConfigBuilder(new LogConfig());
 		cb.setFromMain("-fileMaxSize 1k".split(" "));
@@ -25,6 +25,7 @@ SOFTWARE.
 */
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Field;
 import java.util.Collection;
@@ -929,57 +930,86 @@ public class JSONObject {
         if (string == null || string.length() == 0) {
             return "\"\"";
         }
+        StringWriter sw = new StringWriter(string.length() + 4);
+        try {
+            quote(string, sw);
+        } catch (IOException e) {
+            // cannot happen with a StringWriter
+            throw new JSONException(e);
+        }
+        return sw.toString();
+    }
 
-        char         b;
-        char         c = 0;
-        int          i;
-        int          len = string.length();
-        StringBuffer sb = new StringBuffer(len + 4);
-        String       t;
-
-        sb.append('"');
-        for (i = 0; i < len; i += 1) {
+    /**
+     * As {@link #quote(String)}, but straight onto a writer (no intermediate String).
+     * Runs of plain characters are written in one go.
+     * @param string A String. null is treated as ""
+     * @param w
+     * @return w
+     * @throws IOException
+     */
+    public static Writer quote(String string, Writer w) throws IOException {
+        w.write('"');
+        if (string == null) {
+            w.write('"');
+            return w;
+        }
+        char b;
+        char c = 0;
+        int len = string.length();
+        int run = 0; // start of the current run of plain chars
+        for (int i = 0; i < len; i += 1) {
             b = c;
             c = string.charAt(i);
+            String esc;
             switch (c) {
             case '\\':
+                esc = "\\\\";
+                break;
             case '"':
-                sb.append('\\');
-                sb.append(c);
+                esc = "\\\"";
                 break;
             case '/':
-                if (b == '<') {
-                    sb.append('\\');
+                if (b != '<') {
+                    continue;
                 }
-                sb.append(c);
+                esc = "\\/";
                 break;
             case '\b':
-                sb.append("\\b");
+                esc = "\\b";
                 break;
             case '\t':
-                sb.append("\\t");
+                esc = "\\t";
                 break;
             case '\n':
-                sb.append("\\n");
+                esc = "\\n";
                 break;
             case '\f':
-                sb.append("\\f");
+                esc = "\\f";
                 break;
             case '\r':
-                sb.append("\\r");
+                esc = "\\r";
                 break;
             default:
                 if (c < ' ' || (c >= '\u0080' && c < '\u00a0') ||
                 		       (c >= '\u2000' && c < '\u2100')) {
-                    t = "000" + Integer.toHexString(c);
-                    sb.append("\\u" + t.substring(t.length() - 4));
-                } else {
-                    sb.append(c);
+                    String t = "000" + Integer.toHexString(c);
+                    esc = "\\u" + t.substring(t.length() - 4);
+                    break;
                 }
+                continue;
             }
+            if (i > run) {
+                w.write(string, run, i - run);
+            }
+            w.write(esc);
+            run = i + 1;
         }
-        sb.append('"');
-        return sb.toString();
+        if (len > run) {
+            w.write(string, run, len - run);
+        }
+        w.write('"');
+        return w;
     }
 
     /**
@@ -1251,7 +1281,7 @@ public class JSONObject {
                     writer.write(',');
                 }
                 Object k = keys.next();
-                writer.write(quote(k.toString()));
+                quote(k.toString(), writer);
                 writer.write(':');
                 Object v = this.myHashMap.get(k);
                 if (v instanceof JSONObject) {
@@ -0,0 +1,632 @@
+package com.winterwell.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * A streaming ("pull") JSON parser: step through the tokens with {@link #next()},
+ * and only build what you need. Unlike {@link JSONTokener}, nothing is boxed and
+ * no JSONObject/JSONArray tree is made -- so it is much cheaper for big inputs,
+ * or when you only want a few fields (use {@link #skipValue()} for the rest).
+ * <p>
+ * E.g. to sum the "n" fields of an array of objects:
+ * <pre>
+ * JSONPullParser p = new JSONPullParser(reader);
+ * p.next(); // START_ARRAY
+ * while (p.next() == KToken.START_OBJECT) {
+ *     while (p.next() == KToken.KEY) {
+ *         if (p.getString().equals("n")) {
+ *             p.next();
+ *             total += p.getDouble();
+ *         } else {
+ *             p.skipValue();
+ *         }
+ *     }
+ * }</pre>
+ * <p>
+ * This parses strict JSON (no comments, no single quotes), and checks the
+ * structure as it goes. Errors are JSONExceptions. Not thread-safe.
+ *
+ * @testedby {@link JSONPullParserTest}
+ */
+public class JSONPullParser implements Closeable {
+
+    public static enum KToken {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY,
+        /**
+         * A property name. The value comes next.
+         */
+        KEY,
+        STRING, NUMBER, TRUE, FALSE, NULL,
+        /**
+         * The end of the input.
+         */
+        END
+    }
+
+    // What each nesting level expects next
+    private static final byte ROOT_START = 0;
+    private static final byte ROOT_DONE = 1;
+    private static final byte OBJ_START = 2;
+    /** after a key: expect : then a value */
+    private static final byte OBJ_KEY = 3;
+    private static final byte OBJ_AFTER_VALUE = 4;
+    private static final byte ARR_START = 5;
+    private static final byte ARR_AFTER_VALUE = 6;
+
+    /**
+     * The powers of 10 which are exact as doubles
+     */
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private final Reader reader;
+    private final CharSequence src;
+    /** the read position in src */
+    private int srcPos;
+
+    private final char[] buf;
+    private int pos;
+    private int limit;
+    /** the source index of buf[0], for error messages */
+    private long offset;
+
+    private byte[] states = new byte[32];
+    private int depth;
+
+    private KToken token;
+
+    /** the current key or string, unescaped */
+    private final StringBuilder sb = new StringBuilder();
+    /** cached sb.toString() */
+    private String string;
+
+    private char[] numBuf = new char[32];
+    private int numLen;
+    private boolean numIsInteger;
+
+    /** If true, strings are scanned but not stored */
+    private boolean skipping;
+
+    public JSONPullParser(Reader reader) {
+        this.reader = reader;
+        this.src = null;
+        this.buf = new char[8192];
+    }
+
+    public JSONPullParser(CharSequence json) {
+        this.reader = null;
+        this.src = json;
+        this.buf = new char[Math.min(8192, Math.max(16, json.length()))];
+    }
+
+    /**
+     * Advance to the next token.
+     * @return the token, never null. {@link KToken#END} at the end of the input (and thereafter).
+     * @throws JSONException on a syntax error
+     */
+    public KToken next() throws JSONException {
+        token = next2();
+        return token;
+    }
+
+    private KToken next2() {
+        int c = nextClean();
+        switch (states[depth]) {
+        case ROOT_START:
+            if (c == -1) {
+                throw syntaxError("Empty input");
+            }
+            states[depth] = ROOT_DONE;
+            return readValue(c);
+        case ROOT_DONE:
+            if (c != -1) {
+                throw syntaxError("Text after the end");
+            }
+            return KToken.END;
+        case OBJ_START:
+            if (c == '}') {
+                depth--;
+                return KToken.END_OBJECT;
+            }
+            return readKey(c);
+        case OBJ_KEY:
+            if (c != ':') {
+                throw syntaxError("Expected ':' after key");
+            }
+            states[depth] = OBJ_AFTER_VALUE;
+            return readValue(nextClean());
+        case OBJ_AFTER_VALUE:
+            if (c == '}') {
+                depth--;
+                return KToken.END_OBJECT;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            return readKey(nextClean());
+        case ARR_START:
+            if (c == ']') {
+                depth--;
+                return KToken.END_ARRAY;
+            }
+            states[depth] = ARR_AFTER_VALUE;
+            return readValue(c);
+        case ARR_AFTER_VALUE:
+            if (c == ']') {
+                depth--;
+                return KToken.END_ARRAY;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+            return readValue(nextClean());
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    private KToken readKey(int c) {
+        if (c != '"') {
+            throw syntaxError("Expected a key");
+        }
+        readString();
+        states[depth] = OBJ_KEY;
+        return KToken.KEY;
+    }
+
+    private KToken readValue(int c) {
+        switch (c) {
+        case '{':
+            push(OBJ_START);
+            return KToken.START_OBJECT;
+        case '[':
+            push(ARR_START);
+            return KToken.START_ARRAY;
+        case '"':
+            readString();
+            return KToken.STRING;
+        case 't':
+            readWord("rue");
+            return KToken.TRUE;
+        case 'f':
+            readWord("alse");
+            return KToken.FALSE;
+        case 'n':
+            readWord("ull");
+            return KToken.NULL;
+        case -1:
+            throw syntaxError("Unexpected end of input");
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                readNumber(c);
+                return KToken.NUMBER;
+            }
+            throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private void push(byte state) {
+        depth++;
+        if (depth == states.length) {
+            states = Arrays.copyOf(states, depth * 2);
+        }
+        states[depth] = state;
+    }
+
+    /**
+     * Skip the next value -- all of it, if it is an object or array.
+     * If the next token is a KEY, the key and its value are skipped.
+     * Strings are not unescaped, so this is faster than calling next() in a loop.
+     *
+     * @throws JSONException if there is no value to skip (i.e. we are at the end of an object or array)
+     */
+    public void skipValue() throws JSONException {
+        int d = 0;
+        skipping = true;
+        try {
+            for (;;) {
+                KToken t = next();
+                switch (t) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    d++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    d--;
+                    if (d < 0) {
+                        throw syntaxError("No value to skip");
+                    }
+                    break;
+                case KEY:
+                    continue; // skip its value too
+                case END:
+                    throw syntaxError("No value to skip");
+                default:
+                    break;
+                }
+                if (d == 0) {
+                    return;
+                }
+            }
+        } finally {
+            skipping = false;
+        }
+    }
+
+    /**
+     * @return the current token (as last returned by {@link #next()}), or null at the start
+     */
+    public KToken getToken() {
+        return token;
+    }
+
+    /**
+     * @return how many objects/arrays we are inside. 0 at the top level.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the text of the current KEY or STRING (unescaped), or NUMBER.
+     * @throws JSONException for other tokens
+     */
+    public String getString() throws JSONException {
+        if (token == KToken.KEY || token == KToken.STRING) {
+            if (string == null) {
+                string = sb.toString();
+            }
+            return string;
+        }
+        if (token == KToken.NUMBER) {
+            return new String(numBuf, 0, numLen);
+        }
+        throw new JSONException("Not a string: " + token);
+    }
+
+    /**
+     * @return the value of the current TRUE or FALSE token
+     * @throws JSONException for other tokens
+     */
+    public boolean getBoolean() throws JSONException {
+        if (token == KToken.TRUE) return true;
+        if (token == KToken.FALSE) return false;
+        throw new JSONException("Not a boolean: " + token);
+    }
+
+    /**
+     * @return the value of the current NUMBER token. Fractional values are truncated.
+     * @throws JSONException for other tokens, or if out of range
+     */
+    public long getLong() throws JSONException {
+        checkNumber();
+        if ( ! numIsInteger) {
+            double d = getDouble();
+            if (d < Long.MIN_VALUE || d > Long.MAX_VALUE) {
+                throw new JSONException("Out of range for a long: " + getString());
+            }
+            return (long) d;
+        }
+        boolean neg = numBuf[0] == '-';
+        int i = neg ? 1 : 0;
+        if (numLen - i > 18) {
+            // might overflow -- let Long sort it out
+            try {
+                return Long.parseLong(getString());
+            } catch (NumberFormatException ex) {
+                throw new JSONException("Out of range for a long: " + getString());
+            }
+        }
+        long v = 0;
+        for (; i < numLen; i++) {
+            v = v * 10 + (numBuf[i] - '0');
+        }
+        return neg ? -v : v;
+    }
+
+    /**
+     * @return the value of the current NUMBER token. Fractional values are truncated.
+     * @throws JSONException for other tokens, or if out of range
+     */
+    public int getInt() throws JSONException {
+        long v = getLong();
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+            throw new JSONException("Out of range for an int: " + getString());
+        }
+        return (int) v;
+    }
+
+    /**
+     * @return the value of the current NUMBER token
+     * @throws JSONException for other tokens
+     */
+    public double getDouble() throws JSONException {
+        checkNumber();
+        // Fast path: up to 15 significant digits and a small power of ten.
+        // Both are exact as doubles, so one multiply/divide is correctly rounded.
+        boolean neg = numBuf[0] == '-';
+        long m = 0;
+        int digits = 0;
+        int exp = 0;
+        boolean fraction = false;
+        int i = neg ? 1 : 0;
+        for (; i < numLen; i++) {
+            char c = numBuf[i];
+            if (c == '.') {
+                fraction = true;
+                continue;
+            }
+            if (c == 'e' || c == 'E') break;
+            if (fraction) exp--;
+            if (m == 0 && c == '0') continue; // leading zeros are not significant
+            if (++digits > 15) {
+                return parseDouble();
+            }
+            m = m * 10 + (c - '0');
+        }
+        if (i < numLen) {
+            // exponent
+            i++;
+            boolean eneg = numBuf[i] == '-';
+            if (numBuf[i] == '-' || numBuf[i] == '+') i++;
+            if (numLen - i > 3) {
+                return parseDouble();
+            }
+            int e = 0;
+            for (; i < numLen; i++) {
+                e = e * 10 + (numBuf[i] - '0');
+            }
+            exp += eneg ? -e : e;
+        }
+        if (exp > 22 || exp < -22) {
+            return parseDouble();
+        }
+        double v = exp < 0 ? m / POW10[-exp] : m * POW10[exp];
+        return neg ? -v : v;
+    }
+
+    private double parseDouble() {
+        return Double.parseDouble(getString());
+    }
+
+    private void checkNumber() {
+        if (token != KToken.NUMBER) {
+            throw new JSONException("Not a number: " + token);
+        }
+    }
+
+    private void readString() {
+        sb.setLength(0);
+        string = null;
+        for (;;) {
+            // scan a run of plain chars
+            int start = pos;
+            while (pos < limit) {
+                char c = buf[pos];
+                if (c == '"' || c == '\\' || c < ' ') break;
+                pos++;
+            }
+            if ( ! skipping && pos > start) {
+                sb.append(buf, start, pos - start);
+            }
+            if (pos == limit) {
+                if ( ! fill()) {
+                    throw syntaxError("Unterminated string");
+                }
+                continue;
+            }
+            char c = buf[pos++];
+            if (c == '"') {
+                return;
+            }
+            if (c < ' ') {
+                throw syntaxError("Control character in string");
+            }
+            // an escape
+            int e = nextChar();
+            char ch;
+            switch (e) {
+            case '"':
+            case '\\':
+            case '/':
+                ch = (char) e;
+                break;
+            case 'b':
+                ch = '\b';
+                break;
+            case 'f':
+                ch = '\f';
+                break;
+            case 'n':
+                ch = '\n';
+                break;
+            case 'r':
+                ch = '\r';
+                break;
+            case 't':
+                ch = '\t';
+                break;
+            case 'u':
+                int h = 0;
+                for (int k = 0; k < 4; k++) {
+                    int x = nextChar();
+                    int v = x == -1 ? -1 : JSONTokener.dehexchar((char) x);
+                    if (v == -1) {
+                        throw syntaxError("Bad \\u escape");
+                    }
+                    h = (h << 4) | v;
+                }
+                ch = (char) h;
+                break;
+            default:
+                throw syntaxError("Bad escape");
+            }
+            if ( ! skipping) {
+                sb.append(ch);
+            }
+        }
+    }
+
+    private void readNumber(int c) {
+        numLen = 0;
+        numIsInteger = true;
+        if (c == '-') {
+            addNumChar(c);
+            c = nextChar();
+        }
+        if (c < '0' || c > '9') {
+            throw syntaxError("Bad number");
+        }
+        addNumChar(c);
+        if (c != '0') {
+            readDigits();
+        }
+        c = peekChar();
+        if (c == '.') {
+            pos++;
+            numIsInteger = false;
+            addNumChar(c);
+            if (readDigits() == 0) {
+                throw syntaxError("Bad number");
+            }
+            c = peekChar();
+        }
+        if (c == 'e' || c == 'E') {
+            pos++;
+            numIsInteger = false;
+            addNumChar(c);
+            c = peekChar();
+            if (c == '-' || c == '+') {
+                pos++;
+                addNumChar(c);
+            }
+            if (readDigits() == 0) {
+                throw syntaxError("Bad number");
+            }
+        }
+    }
+
+    private int readDigits() {
+        int n = 0;
+        for (;;) {
+            int c = peekChar();
+            if (c < '0' || c > '9') {
+                return n;
+            }
+            pos++;
+            addNumChar(c);
+            n++;
+        }
+    }
+
+    private void addNumChar(int c) {
+        if (numLen == numBuf.length) {
+            numBuf = Arrays.copyOf(numBuf, numLen * 2);
+        }
+        numBuf[numLen++] = (char) c;
+    }
+
+    private void readWord(String rest) {
+        for (int i = 0; i < rest.length(); i++) {
+            if (nextChar() != rest.charAt(i)) {
+                throw syntaxError("Unexpected word");
+            }
+        }
+    }
+
+    private int nextChar() {
+        if (pos == limit && ! fill()) {
+            return -1;
+        }
+        return buf[pos++];
+    }
+
+    private int peekChar() {
+        if (pos == limit && ! fill()) {
+            return -1;
+        }
+        return buf[pos];
+    }
+
+    /**
+     * @return the next char that is not whitespace, or -1 at the end
+     */
+    private int nextClean() {
+        for (;;) {
+            if (pos == limit && ! fill()) {
+                return -1;
+            }
+            char c = buf[pos++];
+            if (c > ' ') {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Refill buf (which must be used up).
+     * @return false at the end of the input
+     */
+    private boolean fill() {
+        offset += limit;
+        pos = 0;
+        limit = 0;
+        int n;
+        if (src != null) {
+            n = Math.min(buf.length, src.length() - srcPos);
+            if (n <= 0) {
+                return false;
+            }
+            if (src instanceof String) {
+                ((String) src).getChars(srcPos, srcPos + n, buf, 0);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    buf[i] = src.charAt(srcPos + i);
+                }
+            }
+            srcPos += n;
+        } else {
+            try {
+                n = reader.read(buf, 0, buf.length);
+            } catch (IOException e) {
+                throw new JSONException(e);
+            }
+            if (n <= 0) {
+                return false;
+            }
+        }
+        limit = n;
+        return true;
+    }
+
+    /**
+     * Make a JSONException to signal a syntax error.
+     */
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + (offset + pos));
+    }
+
+    /**
+     * Closes the Reader (if there is one).
+     */
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JSONPullParser[" + token + " at character " + (offset + pos) + " depth " + depth + "]";
+    }
+}
@@ -1,7 +1,11 @@
 package com.winterwell.json;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
 
 /*
 Copyright (c) 2006 JSON.org
@@ -48,16 +52,22 @@ SOFTWARE.
  *     .endObject();</pre> which writes <pre>
  * {"JSON":"Hello, World!"}</pre>
  * <p>
- * The first method called must be <code>array</code> or <code>object</code>.
+ * The first method called is usually <code>array</code> or <code>object</code>
+ * (a lone top-level value is also allowed).
  * There are no methods for adding commas or colons. JSONWriter adds them for
- * you. Objects and arrays can be nested up to 20 levels deep.
+ * you. Objects and arrays can be nested up to 200 levels deep.
  * <p>
  * This can sometimes be easier than using a JSONObject to build a string.
+ * <p>
+ * For big outputs (e.g. a servlet response), use {@link #JSONWriter(OutputStream)}
+ * and pass Maps and Collections to {@link #value(Object)}: they are streamed out
+ * as they are walked, so the JSON text never exists as one String.
  * @author JSON.org
  * @version 2
+ * @testedby {@link JSONWriterTest}
  */
 public class JSONWriter {
-    private static final int maxdepth = 20;
+    private static final int maxdepth = 200;
 
     /**
      * The comma flag determines if a comma should be output before the next
@@ -101,6 +111,14 @@ public class JSONWriter {
         this.writer = w;
     }
 
+    /**
+     * Write straight to a stream, encoded as UTF-8 (via a {@link UTF8Writer}).
+     * Call {@link #flush()} when done.
+     */
+    public JSONWriter(OutputStream out) {
+        this(new UTF8Writer(out));
+    }
+
     /**
      * Append a value.
      * @param s A string value.
@@ -111,22 +129,41 @@ public class JSONWriter {
         if (s == null) {
             throw new JSONException("Null pointer");
         }
-        if (this.mode == 'o' || this.mode == 'a') {
+        this.beforeValue();
+        try {
+            this.writer.write(s);
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+        return this.afterValue();
+    }
+
+    /**
+     * Check the sequence and write a comma if needed.
+     * @throws JSONException If a value is out of sequence.
+     */
+    private void beforeValue() throws JSONException {
+        if (this.mode != 'o' && this.mode != 'a' && this.mode != 'i') {
+            throw new JSONException("Value out of sequence.");
+        }
+        if (this.comma && this.mode == 'a') {
             try {
-                if (this.comma && this.mode == 'a') {
-                    this.writer.write(',');
-                }
-                this.writer.write(s);
+                this.writer.write(',');
             } catch (IOException e) {
                 throw new JSONException(e);
             }
-            if (this.mode == 'o') {
-                this.mode = 'k';
-            }
-            this.comma = true;
-            return this;
         }
-        throw new JSONException("Value out of sequence.");
+    }
+
+    private JSONWriter afterValue() {
+        if (this.mode == 'o') {
+            this.mode = 'k';
+        } else if (this.mode == 'i') {
+            // a lone top-level value
+            this.mode = 'd';
+        }
+        this.comma = true;
+        return this;
     }
 
     /**
@@ -207,7 +244,7 @@ public class JSONWriter {
                 if (this.comma) {
                     this.writer.write(',');
                 }
-                this.writer.write(JSONObject.quote(s));
+                JSONObject.quote(s, this.writer);
                 this.writer.write(':');
                 this.comma = false;
                 this.mode = 'o';
@@ -284,10 +321,10 @@ public class JSONWriter {
     }
 
     /**
-     * Append a double value.
+     * Append a double value. NaN and Infinity (which JSON does not have) are written as null.
      * @param d A double.
      * @return this
-     * @throws JSONException If the number is not finite.
+     * @throws JSONException
      */
     public JSONWriter value(double d) throws JSONException {
         return this.value(new Double(d));
@@ -308,11 +345,83 @@ public class JSONWriter {
      * Append an object value.
      * @param o The object to append. It can be null, or a Boolean, Number,
      *   String, JSONObject, or JSONArray, or an object with a toJSONString()
-     *   method.
+     *   method, or a Map, Collection or array of these (which are written as
+     *   JSON objects/arrays). Anything else is written as its quoted toString().
+     *   Non-finite numbers are written as null -- rather than throwing part way through a stream.
      * @return this
      * @throws JSONException If the value is out of sequence.
      */
     public JSONWriter value(Object o) throws JSONException {
+        if (o instanceof JSONString) {
+            return this.append(JSONObject.valueToString(o));
+        }
+        if (o instanceof Map) {
+            this.object();
+            for (Object e : ((Map) o).entrySet()) {
+                Map.Entry me = (Map.Entry) e;
+                this.key(String.valueOf(me.getKey()));
+                this.value(me.getValue());
+            }
+            return this.endObject();
+        }
+        if (o instanceof Collection) {
+            this.array();
+            for (Object v : (Collection) o) {
+                this.value(v);
+            }
+            return this.endArray();
+        }
+        if (o != null && o.getClass().isArray()) {
+            this.array();
+            for (int i = 0, n = Array.getLength(o); i < n; i++) {
+                this.value(Array.get(o, i));
+            }
+            return this.endArray();
+        }
+        if (o instanceof JSONObject || o instanceof JSONArray || o instanceof CharSequence) {
+            this.beforeValue();
+            if (o instanceof JSONObject) {
+                ((JSONObject) o).write(this.writer);
+            } else if (o instanceof JSONArray) {
+                ((JSONArray) o).write(this.writer);
+            } else {
+                try {
+                    JSONObject.quote(o.toString(), this.writer);
+                } catch (IOException e) {
+                    throw new JSONException(e);
+                }
+            }
+            return this.afterValue();
+        }
+        if (o instanceof Double || o instanceof Float) {
+            double d = ((Number) o).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return this.append("null");
+            }
+        }
         return this.append(JSONObject.valueToString(o));
     }
+
+    /**
+     * Append a value which is already JSON text -- e.g. a cached document.
+     * It is NOT checked.
+     * @param json
+     * @return this
+     * @throws JSONException If the value is out of sequence.
+     */
+    public JSONWriter valueJSON(String json) throws JSONException {
+        return this.append(json);
+    }
+
+    /**
+     * Flush the underlying writer (e.g. at the end, if using {@link #JSONWriter(OutputStream)}).
+     * @throws JSONException
+     */
+    public void flush() throws JSONException {
+        try {
+            this.writer.flush();
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
 }
@@ -4,6 +4,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -32,6 +33,7 @@ import javax.servlet.http.HttpSession;
 import org.apache.commons.lang3.StringEscapeUtils;
 
 import com.winterwell.json.JSONArray;
+import com.winterwell.json.UTF8Writer;
 import com.winterwell.utils.Environment;
 import com.winterwell.utils.FailureException;
 import com.winterwell.utils.IProperties;
@@ -1024,9 +1026,7 @@ public class WebUtils2 extends WebUtils {
 	 * @testedby {@link CGIUtilsTest#testSendJson}
 	 */
 	public static void sendJson(JsonResponse output, WebRequest req) throws IOException {		
-		// convert to JSON
-		String json = output.toJSON();
-		BufferedWriter out = null;
+		Writer out = null;
 		try {
 			HttpServletResponse response = req.getResponse();
 			// set mime and character encoding
@@ -1040,13 +1040,14 @@ public class WebUtils2 extends WebUtils {
 			// TODO use response.getWriter() instead? Does this affect encoding
 			// issues at all?
 			// PrintWriter pw = response.getWriter();
-			out = FileUtils.getWriter(response.getOutputStream());
+			// stream the json (rather than making a big String)
+			out = new UTF8Writer(response.getOutputStream());
 			if (output.callback != null) {
 				out.append(output.callback + "(");
-				out.append(json);
+				output.writeJSON(out);
 				out.append(");");
 			} else {
-				out.append(json);
+				output.writeJSON(out);
 			}
 		} finally {
 			FileUtils.close(out);
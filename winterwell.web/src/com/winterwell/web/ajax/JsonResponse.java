@@ -1,5 +1,7 @@
 package com.winterwell.web.ajax;
 
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -7,8 +9,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.eclipse.jetty.util.ajax.JSON;
-
+import com.winterwell.json.JSONWriter;
 import com.winterwell.utils.IProperties;
 import com.winterwell.utils.Key;
 import com.winterwell.utils.Utils;
@@ -175,6 +176,35 @@ public class JsonResponse implements IProperties {
 	}
 	
 	public String toJSON() {
+		StringWriter sw = new StringWriter();
+		writeJSON(sw);
+		return sw.toString();
+	}
+	
+	/**
+	 * Stream the json out, without making it as a String first -- the cargo can be big.
+	 * {@link WebUtils2#sendJson(JsonResponse, WebRequest)} uses this.
+	 * @param out Not flushed or closed here
+	 */
+	public void writeJSON(Writer out) {
+		JSONWriter jw = new JSONWriter(out).object();
+		if (cargoJson!=null) {
+			// direct json cargo
+			jw.key(JSON_CARGO.getName()).valueJSON(cargoJson);
+		} else if (INCLUDE_JSEND) {
+			jw.key("data").value(getCargo());
+		}
+		writeJSONProperties(jw);
+		jw.endObject();
+	}
+
+	/**
+	 * Write the properties into an object which the caller has opened (and will close).
+	 * This lets a caller stream out a big cargo itself, then add the rest of the usual response.
+	 * NB: Does not write a {@link #setCargoJson(String)} cargo, or the jsend "data" copy of the cargo.
+	 * @param jw
+	 */
+	public void writeJSONProperties(JSONWriter jw) {
 		// convert properties
 		Map<String, Object> map = Containers.getMap(this);
 		
@@ -185,18 +215,11 @@ public class JsonResponse implements IProperties {
 			if ( ! Utils.isEmpty(msgs)) {
 				map.put("message", msgs.get(0).toString());
 			}
-			if (cargoJson==null) {
-				map.put("data", getCargo());
-			}
 		}
 		
-		String json = JSON.toString(map);
-		if (cargoJson==null) {
-			return json;
+		for (Map.Entry<String, Object> e : map.entrySet()) {
+			jw.key(e.getKey()).value(e.getValue());
 		}
-		// HACK direct json cargo + the json for the response wrapper
-		String json2 = "{\"cargo\":"+cargoJson+","+json.substring(1);
-		return json2;
 	}
 
 	public void setSuccess(boolean b) {
@@ -46,6 +46,20 @@ public class FileServlet extends HttpServlet implements IServlet {
 	 */
 	public static void serveFile(File file, WebRequest state)
 			throws IOException {
+		serveFile(file, state, null);
+	}
+
+	/**
+	 * Serve a file up over HTTP, closing the connection afterwards.
+	 * 
+	 * @param file
+	 * @param state
+	 * @param staticFiles Can be null. If set, use this for caching headers, conditional GETs, byte-ranges
+	 * and pre-compressed versions. E.g. {@link StaticFiles#getDefault()}
+	 * @throws IOException
+	 */
+	public static void serveFile(File file, WebRequest state, StaticFiles staticFiles)
+			throws IOException {
 		FileInputStream in = null;
 		HttpServletResponse resp = state.getResponse();
 		try {
@@ -60,9 +74,13 @@ public class FileServlet extends HttpServlet implements IServlet {
 			}
 			// CORS? Assuming you've done security elsewhere
 			WebUtils2.CORS(state, true);
+			String mime = WebUtils2.getMimeType(file);
+			if (staticFiles != null) {
+				staticFiles.serve(file, mime, state.getRequest(), resp);
+				return;
+			}
 			in = new FileInputStream(file);
 			// Respond
-			String mime = WebUtils2.getMimeType(file);
 			resp.setContentType(mime);
 			// Set file name
 //			resp.setHeader("Content-Disposition", "attachment; filename=FILENAME"); // ??
@@ -97,6 +115,22 @@ public class FileServlet extends HttpServlet implements IServlet {
 	}
 
 	boolean listDir = true;
+
+	/**
+	 * null for plain copy-the-file serving
+	 */
+	StaticFiles staticFiles;
+
+	/**
+	 * Switch on static-resource mode: caching headers, conditional GETs, byte-ranges, 
+	 * pre-compressed .br/.gz versions, and in-memory caching of small files.
+	 * @param staticFiles e.g. new StaticFiles(). null (the default) for plain copy-the-file serving.
+	 * @return this
+	 */
+	public FileServlet setStaticFiles(StaticFiles staticFiles) {
+		this.staticFiles = staticFiles;
+		return this;
+	}
 	
 	/**
 	 * If true (default), provide a dynamic index
@@ -109,7 +143,7 @@ public class FileServlet extends HttpServlet implements IServlet {
 	}
 	
 	/**
-	 * By default, uses {@link #serveFile(File, HttpServletResponse)} to send
+	 * By default, uses {@link #serveFile(File, WebRequest, StaticFiles)} to send
 	 * the file out. Subclasses can override.
 	 * 
 	 * @param file
@@ -119,7 +153,7 @@ public class FileServlet extends HttpServlet implements IServlet {
 	protected void doFile(File file, WebRequest resp)
 			throws IOException {
 		Log.v("file", file);
-		serveFile(file, resp);
+		serveFile(file, resp, staticFiles);
 	}
 
 	@Override
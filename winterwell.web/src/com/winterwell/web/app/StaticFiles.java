@@ -0,0 +1,322 @@
+package com.winterwell.web.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+import com.winterwell.utils.containers.ConcurrentCache;
+
+/**
+ * Serve static files -- js bundles, images, the tracking pixel -- the way browsers like:
+ * <ul>
+ * <li>Content-Length, Last-Modified, ETag and Cache-Control headers
+ * <li>Conditional GETs (If-None-Match, If-Modified-Since) get a 304
+ * <li>A single byte-range (Range, If-Range) gets a 206, so big downloads can resume.
+ * Multiple ranges get the whole file (which the spec allows).
+ * <li>A pre-compressed foo.js.br or foo.js.gz is sent instead of foo.js, if the client accepts it
+ * and it is not older than foo.js.
+ * <li>Small files are held in memory, and re-read if they change on disk.
+ * Large files go out via Jetty's direct-buffer path (a memory-mapped region), or else FileChannel.transferTo.
+ * </ul>
+ * Thread-safe. Does not do security checks -- see {@link FileServlet#getFile(HttpServletRequest)}.
+ *
+ * @testedby {@link StaticFilesTest}
+ */
+public class StaticFiles {
+
+	private static final String[][] ENCODINGS = {{"br", ".br"}, {"gzip", ".gz"}};
+
+	private static volatile StaticFiles dflt;
+
+	/**
+	 * @return a shared instance with the default settings
+	 */
+	public static StaticFiles getDefault() {
+		if (dflt == null) {
+			dflt = new StaticFiles();
+		}
+		return dflt;
+	}
+
+	private static final class Cached {
+		final byte[] data;
+		final long modified;
+
+		Cached(byte[] data, long modified) {
+			this.data = data;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * Soft values, so the garbage collector can reclaim them if memory is short
+	 */
+	private final ConcurrentCache<File, Cached> cache = new ConcurrentCache<File, Cached>(512);
+
+	private int maxCachedFileSize = 64 * 1024;
+
+	private String cacheControl = "no-cache";
+
+	private boolean precompressed = true;
+
+	/**
+	 * @param maxCachedFileSize Files up to this many bytes are held in memory. 0 to switch off caching. Default 64k.
+	 * @return this
+	 */
+	public StaticFiles setMaxCachedFileSize(int maxCachedFileSize) {
+		this.maxCachedFileSize = maxCachedFileSize;
+		return this;
+	}
+
+	/**
+	 * @param cacheControl e.g. "public, max-age=31536000" for versioned bundles. null for no header.
+	 * The default is "no-cache" -- i.e. the browser may keep a copy, but must check with us (cheap: we send a 304)
+	 * before using it. This keeps e.g. the tracking pixel tracking.
+	 * @return this
+	 */
+	public StaticFiles setCacheControl(String cacheControl) {
+		this.cacheControl = cacheControl;
+		return this;
+	}
+
+	/**
+	 * @param precompressed If true (the default), look for .br and .gz siblings
+	 * @return this
+	 */
+	public StaticFiles setPrecompressed(boolean precompressed) {
+		this.precompressed = precompressed;
+		return this;
+	}
+
+	/**
+	 * Send file (or a pre-compressed sibling, or a 304, or a byte-range).
+	 * @param file Must exist
+	 * @param mime The content-type of file
+	 * @param req
+	 * @param resp
+	 * @throws IOException
+	 */
+	public void serve(File file, String mime, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		// pick the representation
+		File src = file;
+		String encoding = null;
+		if (precompressed) {
+			String ae = req.getHeader("Accept-Encoding");
+			boolean vary = false;
+			for (String[] enc : ENCODINGS) {
+				File f = new File(file.getPath() + enc[1]);
+				if ( ! f.isFile() || f.lastModified() < file.lastModified()) continue;
+				vary = true;
+				if (encoding == null && accepts(ae, enc[0])) {
+					src = f;
+					encoding = enc[0];
+				}
+			}
+			if (vary) resp.setHeader("Vary", "Accept-Encoding");
+		}
+		long modified = src.lastModified();
+		long len = src.length();
+		// small? use (or fill) the in-memory copy
+		byte[] data = null;
+		if (len <= maxCachedFileSize) {
+			data = getBytes(src, modified);
+			len = data.length;
+		}
+		// headers
+		String etag = "\"" + Long.toHexString(modified) + "-" + Long.toHexString(len)
+					+ (encoding == null ? "" : "-" + encoding) + "\"";
+		resp.setHeader("ETag", etag);
+		resp.setDateHeader("Last-Modified", modified);
+		resp.setHeader("Accept-Ranges", "bytes");
+		if (cacheControl != null) resp.setHeader("Cache-Control", cacheControl);
+		resp.setContentType(mime);
+		if (encoding != null) resp.setHeader("Content-Encoding", encoding);
+		// conditional GET
+		if (isNotModified(req, etag, modified)) {
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		// byte-range?
+		long start = 0, end = len - 1;
+		String range = req.getHeader("Range");
+		if (range != null && isRangeOK(req, etag, modified)) {
+			long[] se = parseRange(range, len);
+			if (se != null && se.length == 0) {
+				resp.setHeader("Content-Range", "bytes */" + len);
+				resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+			if (se != null) {
+				start = se[0];
+				end = se[1];
+				resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + len);
+			}
+		}
+		long n = end - start + 1;
+		resp.setContentLengthLong(n);
+		if ("HEAD".equals(req.getMethod()) || n == 0) {
+			return;
+		}
+		ServletOutputStream out = resp.getOutputStream();
+		if (data != null) {
+			out.write(data, (int) start, (int) n);
+			return;
+		}
+		sendRegion(src, start, n, out);
+	}
+
+	private byte[] getBytes(File src, long modified) throws IOException {
+		Cached c = cache.get(src);
+		if (c != null && c.modified == modified) {
+			return c.data;
+		}
+		byte[] data = Files.readAllBytes(src.toPath());
+		if (maxCachedFileSize > 0) {
+			cache.put(src, new Cached(data, modified));
+		}
+		return data;
+	}
+
+	private void sendRegion(File src, long start, long n, ServletOutputStream out) throws IOException {
+		try (FileChannel ch = FileChannel.open(src.toPath(), StandardOpenOption.READ)) {
+			if (start + n > ch.size()) {
+				throw new IOException("File changed whilst serving: " + src);
+			}
+			if (out instanceof HttpOutput && n <= Integer.MAX_VALUE) {
+				// Jetty can write the mapped buffer straight to the socket
+				MappedByteBuffer buf = ch.map(MapMode.READ_ONLY, start, n);
+				((HttpOutput) out).sendContent(buf);
+				return;
+			}
+			WritableByteChannel wc = Channels.newChannel(out);
+			long pos = start, end = start + n;
+			while (pos < end) {
+				long sent = ch.transferTo(pos, end - pos, wc);
+				if (sent <= 0) throw new IOException("File changed whilst serving: " + src);
+				pos += sent;
+			}
+		}
+	}
+
+	/**
+	 * @param acceptEncoding e.g. "gzip, deflate, br". Can be null
+	 * @param encoding
+	 * @return true if encoding is listed and not refused with q=0
+	 */
+	static boolean accepts(String acceptEncoding, String encoding) {
+		if (acceptEncoding == null) return false;
+		for (String item : acceptEncoding.split(",")) {
+			String[] bits = item.split(";");
+			if ( ! bits[0].trim().equalsIgnoreCase(encoding)) continue;
+			for (int i = 1; i < bits.length; i++) {
+				String p = bits[i].trim();
+				if (p.startsWith("q=") && p.substring(2).matches("0(\\.0*)?")) return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * If-None-Match takes precedence over If-Modified-Since (as per RFC 7232)
+	 */
+	static boolean isNotModified(HttpServletRequest req, String etag, long modified) {
+		String inm = req.getHeader("If-None-Match");
+		if (inm != null) {
+			return matchesETag(inm, etag);
+		}
+		long ims = parseDate(req.getHeader("If-Modified-Since"));
+		// NB: http dates are to the second
+		return ims != -1 && modified / 1000 <= ims / 1000;
+	}
+
+	/**
+	 * @return true unless an If-Range says the client's copy is stale (in which case, send the whole file)
+	 */
+	static boolean isRangeOK(HttpServletRequest req, String etag, long modified) {
+		String ifRange = req.getHeader("If-Range");
+		if (ifRange == null) return true;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"")) return ifRange.equals(etag);
+		long d = parseDate(ifRange);
+		return d != -1 && modified / 1000 == d / 1000;
+	}
+
+	private static boolean matchesETag(String header, String etag) {
+		for (String t : header.split(",")) {
+			t = t.trim();
+			if (t.equals("*")) return true;
+			// weak comparison
+			if (t.startsWith("W/")) t = t.substring(2);
+			if (t.equals(etag)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param date An http date, e.g. "Wed, 21 Oct 2015 07:28:00 GMT". Can be null
+	 * @return epoch millisecs, or -1 if null or unparseable
+	 */
+	static long parseDate(String date) {
+		if (date == null) return -1;
+		try {
+			return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param range e.g. "bytes=0-499", "bytes=500-" or "bytes=-500" (the last 500 bytes)
+	 * @param len file length
+	 * @return {start, end} (inclusive), or an empty array if unsatisfiable,
+	 * or null if the header is malformed or asks for several ranges (so ignore it and send everything).
+	 */
+	static long[] parseRange(String range, long len) {
+		range = range.trim();
+		if ( ! range.startsWith("bytes=") || range.indexOf(',') != -1) return null;
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if (dash == -1) return null;
+		try {
+			String a = spec.substring(0, dash).trim();
+			String b = spec.substring(dash + 1).trim();
+			long start, end;
+			if (a.isEmpty()) {
+				// suffix: the last n bytes
+				if (b.isEmpty()) return null;
+				long suffix = Long.parseLong(b);
+				if (suffix == 0 || len == 0) return new long[0];
+				start = Math.max(0, len - suffix);
+				end = len - 1;
+			} else {
+				start = Long.parseLong(a);
+				long last = b.isEmpty() ? Long.MAX_VALUE : Long.parseLong(b);
+				if (last < start) return null;
+				if (start >= len) return new long[0];
+				end = Math.min(last, len - 1);
+			}
+			if (start < 0) return null;
+			return new long[] {start, end};
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+}
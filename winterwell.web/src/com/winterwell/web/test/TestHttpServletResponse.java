@@ -6,8 +6,14 @@ package com.winterwell.web.test;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
@@ -26,6 +32,11 @@ public class TestHttpServletResponse implements HttpServletResponse {
 
 	String contentType;
 	StringBuilder sb;
+	/**
+	 * Recorded so tests can check them
+	 */
+	final Map<String, String> headers = new HashMap();
+	int status = HttpServletResponse.SC_OK;
 	private StringWriter writer;
 
 	/**
@@ -89,8 +100,7 @@ public class TestHttpServletResponse implements HttpServletResponse {
 	 */
 	@Override
 	public boolean containsHeader(String name) {
-		Log.report("TestHttpServletResponse method not implemented");
-		return false;
+		return headers.containsKey(name);
 	}
 
 	/*
@@ -345,8 +355,7 @@ public class TestHttpServletResponse implements HttpServletResponse {
 	 */
 	@Override
 	public void setContentLength(int len) {
-		Log.report("TestHttpServletResponse method not implemented");
-
+		setContentLengthLong(len);
 	}
 
 	@Override
@@ -363,8 +372,8 @@ public class TestHttpServletResponse implements HttpServletResponse {
 	 */
 	@Override
 	public void setDateHeader(String name, long date) {
-		Log.report("TestHttpServletResponse method not implemented");
-
+		setHeader(name, DateTimeFormatter.RFC_1123_DATE_TIME.format(
+				ZonedDateTime.ofInstant(Instant.ofEpochMilli(date), ZoneOffset.UTC)));
 	}
 
 	/*
@@ -375,8 +384,7 @@ public class TestHttpServletResponse implements HttpServletResponse {
 	 */
 	@Override
 	public void setHeader(String name, String value) {
-		Log.report("TestHttpServletResponse method not implemented");
-
+		headers.put(name, value);
 	}
 
 	/*
@@ -388,8 +396,7 @@ public class TestHttpServletResponse implements HttpServletResponse {
 	 */
 	@Override
 	public void setIntHeader(String name, int value) {
-		Log.report("TestHttpServletResponse method not implemented");
-
+		setHeader(name, Integer.toString(value));
 	}
 
 	@Override
@@ -404,8 +411,7 @@ public class TestHttpServletResponse implements HttpServletResponse {
 	 */
 	@Override
 	public void setStatus(int sc) {
-		Log.report("TestHttpServletResponse method not implemented");
-
+		status = sc;
 	}
 
 	/*
@@ -416,20 +422,17 @@ public class TestHttpServletResponse implements HttpServletResponse {
 	 */
 	@Override
 	public void setStatus(int sc, String sm) {
-		Log.report("TestHttpServletResponse method not implemented");
-
+		status = sc;
 	}
 
 	@Override
 	public String getHeader(String arg0) {
-		// TODO Auto-generated method stub
-		return null;
+		return headers.get(arg0);
 	}
 
 	@Override
 	public Collection<String> getHeaderNames() {
-		// TODO Auto-generated method stub
-		return null;
+		return headers.keySet();
 	}
 
 	@Override
@@ -440,14 +443,12 @@ public class TestHttpServletResponse implements HttpServletResponse {
 
 	@Override
 	public int getStatus() {
-		// TODO Auto-generated method stub
-		return 0;
+		return status;
 	}
 
 	@Override
 	public void setContentLengthLong(long arg0) {
-		// TODO Auto-generated method stub
-		
+		setHeader("Content-Length", Long.toString(arg0));
 	}
 
 }
@@ -0,0 +1,131 @@
+package com.winterwell.json;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.winterwell.json.JSONPullParser.KToken;
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.time.StopWatch;
+
+/**
+ * Throughput on a ~2mb array of objects: {@link JSONTokener} (which builds a JSONArray tree) v {@link JSONPullParser}.
+ * And writing it back out: JSONArray.toString() + getBytes() v {@link JSONWriter} straight to a stream.
+ */
+public class JSONPullParserPerfTest {
+
+    static final int ITEMS = 20000;
+
+    static final int REPS = 5;
+
+    @Test
+    public void testThroughput() {
+        String json = makeJson(new Random(42));
+        double mb = json.length() / 1000000.0;
+        System.out.println("Input: " + StrUtils.toNSigFigs(mb, 3) + "mb");
+
+        for (int round = 0; round < 2; round++) { // 1st round is a warm-up
+            // sum the scores: tree v pull
+            StopWatch sw = new StopWatch();
+            double total1 = 0;
+            for (int r = 0; r < REPS; r++) {
+                JSONArray arr = new JSONArray(new JSONTokener(json));
+                for (int i = 0, n = arr.length(); i < n; i++) {
+                    total1 += arr.getJSONObject(i).getDouble("score");
+                }
+            }
+            long ms1 = Math.max(1, sw.getTime());
+
+            sw = new StopWatch();
+            double total2 = 0;
+            for (int r = 0; r < REPS; r++) {
+                total2 += sumScores(new JSONPullParser(json));
+            }
+            long ms2 = Math.max(1, sw.getTime());
+            assert Math.abs(total1 - total2) < 0.001 * Math.abs(total1) : total1 + " v " + total2;
+
+            // every token (no skipping)
+            sw = new StopWatch();
+            int tokens = 0;
+            for (int r = 0; r < REPS; r++) {
+                JSONPullParser p = new JSONPullParser(json);
+                for (KToken t = p.next(); t != KToken.END; t = p.next()) {
+                    if (t == KToken.KEY || t == KToken.STRING) p.getString();
+                    else if (t == KToken.NUMBER) p.getDouble();
+                    tokens++;
+                }
+            }
+            long ms3 = Math.max(1, sw.getTime());
+
+            System.out.println("JSONTokener: " + mbps(mb, ms1)
+                    + "	JSONPullParser (skipValue): " + mbps(mb, ms2) + " " + StrUtils.toNSigFigs(1.0 * ms1 / ms2, 2) + "x"
+                    + "	JSONPullParser (every token): " + mbps(mb, ms3) + " " + StrUtils.toNSigFigs(1.0 * ms1 / ms3, 2) + "x"
+                    + "	(" + tokens / REPS + " tokens)");
+
+            // write
+            JSONArray arr = new JSONArray(json);
+            sw = new StopWatch();
+            long bytes1 = 0;
+            for (int r = 0; r < REPS; r++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] bs = arr.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(bs, 0, bs.length);
+                bytes1 += out.size();
+            }
+            long ms4 = Math.max(1, sw.getTime());
+
+            sw = new StopWatch();
+            long bytes2 = 0;
+            for (int r = 0; r < REPS; r++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                JSONWriter jw = new JSONWriter(out);
+                jw.value(arr);
+                jw.flush();
+                bytes2 += out.size();
+            }
+            long ms5 = Math.max(1, sw.getTime());
+            assert bytes1 == bytes2 : bytes1 + " v " + bytes2;
+            System.out.println("toString()+getBytes(): " + mbps(mb, ms4)
+                    + "	JSONWriter(OutputStream): " + mbps(mb, ms5) + " " + StrUtils.toNSigFigs(1.0 * ms4 / ms5, 2) + "x");
+        }
+    }
+
+    static double sumScores(JSONPullParser p) {
+        double total = 0;
+        p.next(); // [
+        while (p.next() == KToken.START_OBJECT) {
+            while (p.next() == KToken.KEY) {
+                if (p.getString().equals("score")) {
+                    p.next();
+                    total += p.getDouble();
+                } else {
+                    p.skipValue();
+                }
+            }
+        }
+        return total;
+    }
+
+    static String mbps(double mb, long ms) {
+        return StrUtils.toNSigFigs(REPS * mb * 1000 / ms, 3) + "mb/s";
+    }
+
+    static String makeJson(Random r) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < ITEMS; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":").append(i)
+                .append(",\"name\":\"item ").append(Long.toString(r.nextLong(), 36)).append(" \\\"quoted\\\" caf\\u00e9\"")
+                .append(",\"score\":").append(r.nextInt(100000) / 100.0)
+                .append(",\"tags\":[\"alpha\",\"beta\",\"gamma\"]")
+                .append(",\"active\":").append(r.nextBoolean())
+                .append(",\"geo\":{\"lat\":").append(r.nextDouble() * 180 - 90)
+                .append(",\"lng\":").append(r.nextDouble() * 360 - 180).append(",\"note\":null}")
+                .append('}');
+        }
+        return sb.append(']').toString();
+    }
+
+}
@@ -0,0 +1,194 @@
+package com.winterwell.json;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.winterwell.json.JSONPullParser.KToken;
+
+/**
+ * @tested {@link JSONPullParser}
+ */
+public class JSONPullParserTest {
+
+    static List<KToken> tokens(JSONPullParser p) {
+        List<KToken> ts = new ArrayList();
+        while (true) {
+            KToken t = p.next();
+            ts.add(t);
+            if (t == KToken.END) return ts;
+        }
+    }
+
+    @Test
+    public void testTokens() {
+        JSONPullParser p = new JSONPullParser("{\"a\": [1, -2.5e3, \"x\"], \"b\":{}, \"c\":[], \"d\":true, \"e\":false, \"f\":null}");
+        assert tokens(p).equals(Arrays.asList(
+                KToken.START_OBJECT,
+                KToken.KEY, KToken.START_ARRAY, KToken.NUMBER, KToken.NUMBER, KToken.STRING, KToken.END_ARRAY,
+                KToken.KEY, KToken.START_OBJECT, KToken.END_OBJECT,
+                KToken.KEY, KToken.START_ARRAY, KToken.END_ARRAY,
+                KToken.KEY, KToken.TRUE,
+                KToken.KEY, KToken.FALSE,
+                KToken.KEY, KToken.NULL,
+                KToken.END_OBJECT, KToken.END));
+        // and it stays ended
+        assert p.next() == KToken.END;
+        // a bare value is OK
+        assert tokens(new JSONPullParser(" 42 ")).equals(Arrays.asList(KToken.NUMBER, KToken.END));
+    }
+
+    @Test
+    public void testValues() {
+        JSONPullParser p = new JSONPullParser("{\"name\":\"Alice \\\"A\\\" \\u00e9\\n\", \"n\":17, \"x\":-0.125, \"ok\":true}");
+        assert p.next() == KToken.START_OBJECT;
+        assert p.getDepth() == 1;
+        assert p.next() == KToken.KEY;
+        assert p.getString().equals("name");
+        assert p.next() == KToken.STRING;
+        assert p.getString().equals("Alice \"A\" \u00e9\n") : p.getString();
+        p.next();
+        assert p.getString().equals("n");
+        p.next();
+        assert p.getLong() == 17;
+        assert p.getInt() == 17;
+        assert p.getDouble() == 17.0;
+        p.next();
+        p.next();
+        assert p.getDouble() == -0.125;
+        assert p.getString().equals("-0.125");
+        p.next();
+        p.next();
+        assert p.getBoolean();
+        assert p.next() == KToken.END_OBJECT;
+        assert p.getDepth() == 0;
+    }
+
+    @Test
+    public void testNumbers() {
+        String[] nums = {"0", "-0", "1", "-1", "0.1", "3.14159", "1e10", "1E-5", "2.5e+3", "-123.456e-7",
+                "12345678901234567", "9007199254740993", "0.1234567890123456789", "1e300", "4.9e-324",
+                "123456789012345.6", "0.000001", "1.7976931348623157e308"};
+        for (String n : nums) {
+            JSONPullParser p = new JSONPullParser(n);
+            assert p.next() == KToken.NUMBER : n;
+            assert p.getDouble() == Double.parseDouble(n) : n + " " + p.getDouble();
+            assert Double.doubleToLongBits(p.getDouble()) == Double.doubleToLongBits(Double.parseDouble(n)) : n;
+        }
+        assert new JSONPullParser("9223372036854775807").next() == KToken.NUMBER;
+        JSONPullParser p = new JSONPullParser("[9223372036854775807, -9223372036854775808, 2.9, 12345678901]");
+        p.next();
+        p.next();
+        assert p.getLong() == Long.MAX_VALUE;
+        p.next();
+        assert p.getLong() == Long.MIN_VALUE;
+        p.next();
+        assert p.getLong() == 2;
+        p.next();
+        try {
+            p.getInt();
+            assert false;
+        } catch (JSONException ex) {
+            // good
+        }
+    }
+
+    @Test
+    public void testSkipValue() {
+        JSONPullParser p = new JSONPullParser(
+                "{\"big\":{\"a\":[1,2,{\"b\":\"}]\\\"\"}],\"c\":null}, \"n\":5, \"s\":\"x\", \"last\":[[]]}");
+        p.next();
+        assert p.next() == KToken.KEY;
+        p.skipValue();
+        assert p.next() == KToken.KEY;
+        assert p.getString().equals("n");
+        p.next();
+        assert p.getInt() == 5;
+        // skipping a key skips its value too
+        p.skipValue();
+        assert p.next() == KToken.KEY;
+        assert p.getString().equals("last");
+        p.skipValue();
+        assert p.next() == KToken.END_OBJECT;
+        assert p.next() == KToken.END;
+        // nothing to skip
+        p = new JSONPullParser("[]");
+        p.next();
+        try {
+            p.skipValue();
+            assert false;
+        } catch (JSONException ex) {
+            // good
+        }
+    }
+
+    @Test
+    public void testReader() {
+        // longer than the buffer, so tokens straddle refills
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 5000; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":").append(i).append(",\"name\":\"item \\u0041").append(i).append("\"}");
+        }
+        sb.append(']');
+        for (JSONPullParser p : new JSONPullParser[] {
+                new JSONPullParser(new StringReader(sb.toString())), new JSONPullParser(sb), new JSONPullParser(sb.toString())}) {
+            p.next();
+            long total = 0;
+            int n = 0;
+            while (p.next() == KToken.START_OBJECT) {
+                while (p.next() == KToken.KEY) {
+                    if (p.getString().equals("id")) {
+                        p.next();
+                        total += p.getLong();
+                    } else {
+                        p.next();
+                        assert p.getString().equals("item A" + n) : p.getString();
+                    }
+                }
+                n++;
+            }
+            assert n == 5000;
+            assert total == 4999L * 5000 / 2;
+            assert p.next() == KToken.END;
+        }
+    }
+
+    @Test
+    public void testSyntaxErrors() {
+        String[] bad = {"", "{", "[1,]", "{\"a\":1,}", "{\"a\" 1}", "{a:1}", "[1 2]", "[01]", "[1.]", "[-]", "[.5]",
+                "[tru]", "[\"abc]", "[\"a\nb\"]", "[\"\\q\"]", "[\"\\u12\"]", "{\"a\":1}}", "[1] [2]", "'a'", "[1e]"};
+        for (String b : bad) {
+            JSONPullParser p = new JSONPullParser(b);
+            try {
+                tokens(p);
+                assert false : b;
+            } catch (JSONException ex) {
+                assert ex.getMessage().contains("at character") : ex;
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsTokener() {
+        String json = "{\"a\":[1,2.5,\"three\",{\"four\":[true,false,null]}],\"b\":\"\\u00e9\\t\\\"\"}";
+        JSONObject jo = new JSONObject(json);
+        JSONPullParser p = new JSONPullParser(json);
+        p.next();
+        p.next();
+        p.next();
+        p.next();
+        assert p.getLong() == jo.getJSONArray("a").getInt(0);
+        p.skipValue();
+        p.skipValue();
+        p.skipValue();
+        p.next();
+        p.next();
+        p.next();
+        assert p.getString().equals(jo.getString("b"));
+    }
+
+}
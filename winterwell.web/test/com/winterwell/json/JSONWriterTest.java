@@ -0,0 +1,117 @@
+package com.winterwell.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @tested {@link JSONWriter}, {@link UTF8Writer}
+ */
+public class JSONWriterTest {
+
+    @Test
+    public void testStreamMapsAndLists() {
+        Map map = new LinkedHashMap();
+        map.put("a", Arrays.asList(1, 2.5, "x"));
+        map.put("b", new int[] {3, 4});
+        map.put("c", null);
+        Map inner = new LinkedHashMap();
+        inner.put("d", true);
+        map.put("e", inner);
+        StringWriter sw = new StringWriter();
+        new JSONWriter(sw).value(map);
+        assert sw.toString().equals("{\"a\":[1,2.5,\"x\"],\"b\":[3,4],\"c\":null,\"e\":{\"d\":true}}") : sw;
+        // parses back
+        JSONObject jo = new JSONObject(sw.toString());
+        assert jo.getJSONArray("a").getInt(0) == 1;
+    }
+
+    @Test
+    public void testValueJSON() {
+        StringWriter sw = new StringWriter();
+        new JSONWriter(sw).object().key("cargo").valueJSON("[1,2]").key("ok").value(true).endObject();
+        assert sw.toString().equals("{\"cargo\":[1,2],\"ok\":true}") : sw;
+    }
+
+    @Test
+    public void testNonFinite() {
+        Map map = new LinkedHashMap();
+        map.put("nan", Double.NaN);
+        map.put("inf", Float.NEGATIVE_INFINITY);
+        map.put("ok", 1.5);
+        StringWriter sw = new StringWriter();
+        new JSONWriter(sw).object().key("x").value(Double.POSITIVE_INFINITY).key("m").value(map).endObject();
+        assert sw.toString().equals("{\"x\":null,\"m\":{\"nan\":null,\"inf\":null,\"ok\":1.5}}") : sw;
+    }
+
+    @Test
+    public void testQuoteToWriter() throws Exception {
+        String[][] cases = {
+                {"", "\"\""},
+                {"plain", "\"plain\""},
+                {"a\"b\\c", "\"a\\\"b\\\\c\""},
+                {"</script>", "\"<\\/script>\""},
+                {"tab\there\nnew", "\"tab\\there\\nnew\""},
+                {"\u0001\u0085 ", "\"\\u0001\\u0085 \""},
+                {"caf\u00e9 \ud83d\ude00", "\"caf\u00e9 \ud83d\ude00\""}};
+        for (String[] c : cases) {
+            StringWriter sw = new StringWriter();
+            JSONObject.quote(c[0], sw);
+            assert sw.toString().equals(c[1]) : sw;
+            assert JSONObject.quote(c[0]).equals(c[1]) : c[0];
+        }
+    }
+
+    @Test
+    public void testUTF8() throws Exception {
+        String s = "ascii caf\u00e9 \u0394 \ud83d\ude00 end";
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JSONWriter jw = new JSONWriter(bos);
+        jw.array().value(s).endArray();
+        jw.flush();
+        String out = new String(bos.toByteArray(), StandardCharsets.UTF_8);
+        assert out.equals("[\"" + s + "\"]") : out;
+
+        // tiny buffer, and a surrogate pair split across writes (s[13] is the high surrogate)
+        bos = new ByteArrayOutputStream();
+        UTF8Writer w = new UTF8Writer(bos, 4);
+        for (int i = 0; i < 100; i++) {
+            w.write(s, 0, 14);
+            w.write(s.substring(14));
+        }
+        w.close();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            expected.append(s);
+        }
+        assert Arrays.equals(bos.toByteArray(), expected.toString().getBytes(StandardCharsets.UTF_8));
+        // a lone surrogate
+        bos = new ByteArrayOutputStream();
+        w = new UTF8Writer(bos);
+        w.write("a\ud83db");
+        w.close();
+        assert new String(bos.toByteArray(), StandardCharsets.UTF_8).equals("a?b");
+    }
+
+    @Test
+    public void testSequenceErrors() {
+        try {
+            new JSONWriter(new StringWriter()).value("x").value("y");
+            assert false;
+        } catch (JSONException ex) {
+            // good
+        }
+        try {
+            new JSONWriter(new StringWriter()).object().value(1);
+            assert false;
+        } catch (JSONException ex) {
+            // good
+        }
+    }
+
+}
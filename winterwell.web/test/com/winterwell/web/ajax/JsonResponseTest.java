@@ -0,0 +1,25 @@
+package com.winterwell.web.ajax;
+
+import org.junit.Test;
+
+import com.winterwell.json.JSONObject;
+
+/**
+ * @tested {@link JsonResponse}
+ */
+public class JsonResponseTest {
+
+	@Test
+	public void testNaNProperty() {
+		JsonResponse jr = new JsonResponse();
+		jr.setSuccess(true);
+		jr.put("score", Double.NaN);
+		jr.setCargoJson("[1.0,2]");
+		String json = jr.toJSON();
+		JSONObject jo = new JSONObject(json);
+		assert jo.isNull("score") : json;
+		assert jo.getBoolean("success") : json;
+		assert jo.getJSONArray("cargo").length() == 2 : json;
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.winterwell.web.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.web.test.TestHttpServletRequest;
+import com.winterwell.web.test.TestHttpServletResponse;
+
+/**
+ * @tested {@link StaticFiles}
+ */
+public class StaticFilesTest {
+
+	static File newFile(String name, String contents) throws IOException {
+		File dir = FileUtils.createTempDir();
+		File f = new File(dir, name);
+		FileUtils.write(f, contents);
+		return f;
+	}
+
+	static TestHttpServletResponse serve(StaticFiles sf, File f, String... headers) throws IOException {
+		TestHttpServletRequest req = new TestHttpServletRequest();
+		for (int i = 0; i < headers.length; i += 2) {
+			req.setHeader(headers[i], headers[i + 1]);
+		}
+		TestHttpServletResponse resp = new TestHttpServletResponse();
+		sf.serve(f, "text/plain", req, resp);
+		return resp;
+	}
+
+	@Test
+	public void testHeaders() throws IOException {
+		File f = newFile("hello.txt", "hello world");
+		TestHttpServletResponse resp = serve(new StaticFiles(), f);
+		assert resp.getStatus() == 200;
+		assert resp.getOutputBufferContents().equals("hello world");
+		assert resp.getHeader("Content-Length").equals("11");
+		assert resp.getHeader("ETag").startsWith("\"");
+		assert resp.getHeader("Last-Modified") != null;
+		assert resp.getHeader("Accept-Ranges").equals("bytes");
+		assert resp.getHeader("Cache-Control").equals("no-cache");
+		assert resp.getHeader("Vary") == null;
+		// settings
+		resp = serve(new StaticFiles().setCacheControl("public, max-age=3600"), f);
+		assert resp.getHeader("Cache-Control").equals("public, max-age=3600");
+	}
+
+	@Test
+	public void testConditionalGet() throws IOException {
+		File f = newFile("hello.txt", "hello world");
+		StaticFiles sf = new StaticFiles();
+		TestHttpServletResponse resp = serve(sf, f);
+		String etag = resp.getHeader("ETag");
+		String lastMod = resp.getHeader("Last-Modified");
+
+		assert serve(sf, f, "If-None-Match", etag).getStatus() == 304;
+		assert serve(sf, f, "If-None-Match", "W/" + etag).getStatus() == 304;
+		assert serve(sf, f, "If-None-Match", "\"nope\", " + etag).getStatus() == 304;
+		assert serve(sf, f, "If-None-Match", "\"nope\"").getStatus() == 200;
+		assert serve(sf, f, "If-Modified-Since", lastMod).getStatus() == 304;
+		assert serve(sf, f, "If-Modified-Since", "Wed, 21 Oct 2015 07:28:00 GMT").getStatus() == 200;
+		assert serve(sf, f, "If-Modified-Since", "garbage").getStatus() == 200;
+		// a changed file has a new etag
+		f.setLastModified(f.lastModified() + 10000);
+		assert serve(sf, f, "If-None-Match", etag).getStatus() == 200;
+	}
+
+	@Test
+	public void testRange() throws IOException {
+		File f = newFile("hello.txt", "hello world");
+		for (StaticFiles sf : Arrays.asList(new StaticFiles(), new StaticFiles().setMaxCachedFileSize(0))) {
+			TestHttpServletResponse resp = serve(sf, f, "Range", "bytes=0-4");
+			assert resp.getStatus() == 206;
+			assert resp.getOutputBufferContents().equals("hello");
+			assert resp.getHeader("Content-Range").equals("bytes 0-4/11");
+			assert resp.getHeader("Content-Length").equals("5");
+
+			assert serve(sf, f, "Range", "bytes=6-").getOutputBufferContents().equals("world");
+			assert serve(sf, f, "Range", "bytes=-5").getOutputBufferContents().equals("world");
+			assert serve(sf, f, "Range", "bytes=6-100").getOutputBufferContents().equals("world");
+
+			resp = serve(sf, f, "Range", "bytes=20-");
+			assert resp.getStatus() == 416;
+			assert resp.getHeader("Content-Range").equals("bytes */11");
+			// multiple ranges or junk: send it all
+			assert serve(sf, f, "Range", "bytes=0-1,3-4").getOutputBufferContents().equals("hello world");
+			assert serve(sf, f, "Range", "bytes=4-2").getOutputBufferContents().equals("hello world");
+			// If-Range
+			String etag = resp.getHeader("ETag");
+			assert serve(sf, f, "Range", "bytes=0-4", "If-Range", etag).getStatus() == 206;
+			resp = serve(sf, f, "Range", "bytes=0-4", "If-Range", "\"old\"");
+			assert resp.getStatus() == 200;
+			assert resp.getOutputBufferContents().equals("hello world");
+		}
+	}
+
+	@Test
+	public void testPrecompressed() throws IOException {
+		File f = newFile("app.js", "var x = 1;");
+		File gz = new File(f.getPath() + ".gz");
+		FileUtils.write(gz, "GZ");
+		File br = new File(f.getPath() + ".br");
+		FileUtils.write(br, "BR");
+		StaticFiles sf = new StaticFiles();
+
+		TestHttpServletResponse resp = serve(sf, f, "Accept-Encoding", "gzip, deflate");
+		assert resp.getOutputBufferContents().equals("GZ");
+		assert resp.getHeader("Content-Encoding").equals("gzip");
+		assert resp.getHeader("Vary").equals("Accept-Encoding");
+
+		resp = serve(sf, f, "Accept-Encoding", "gzip, deflate, br");
+		assert resp.getOutputBufferContents().equals("BR");
+		assert resp.getHeader("Content-Encoding").equals("br");
+
+		resp = serve(sf, f, "Accept-Encoding", "gzip;q=0, br;q=0");
+		assert resp.getOutputBufferContents().equals("var x = 1;");
+		assert resp.getHeader("Content-Encoding") == null;
+		assert resp.getHeader("Vary").equals("Accept-Encoding");
+
+		// stale siblings are ignored
+		gz.setLastModified(f.lastModified() - 10000);
+		br.setLastModified(f.lastModified() - 10000);
+		resp = serve(sf, f, "Accept-Encoding", "gzip, br");
+		assert resp.getOutputBufferContents().equals("var x = 1;");
+		assert resp.getHeader("Vary") == null;
+	}
+
+	@Test
+	public void testCacheInvalidation() throws IOException {
+		File f = newFile("hello.txt", "hello world");
+		StaticFiles sf = new StaticFiles();
+		assert serve(sf, f).getOutputBufferContents().equals("hello world");
+		long mod = f.lastModified();
+		FileUtils.write(f, "goodbye");
+		f.setLastModified(mod + 10000);
+		assert serve(sf, f).getOutputBufferContents().equals("goodbye");
+	}
+
+	@Test
+	public void testLargeFile() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < 200000; i++) {
+			sb.append(i).append(' ');
+		}
+		File f = newFile("big.txt", sb.toString());
+		StaticFiles sf = new StaticFiles();
+		TestHttpServletResponse resp = serve(sf, f);
+		assert resp.getOutputBufferContents().equals(sb.toString());
+		resp = serve(sf, f, "Range", "bytes=100000-100009");
+		assert resp.getOutputBufferContents().equals(sb.substring(100000, 100010));
+	}
+
+	@Test
+	public void testParseRange() {
+		assert Arrays.equals(StaticFiles.parseRange("bytes=0-499", 1000), new long[] {0, 499});
+		assert Arrays.equals(StaticFiles.parseRange("bytes=500-", 1000), new long[] {500, 999});
+		assert Arrays.equals(StaticFiles.parseRange("bytes=-200", 1000), new long[] {800, 999});
+		assert Arrays.equals(StaticFiles.parseRange("bytes=-2000", 1000), new long[] {0, 999});
+		assert StaticFiles.parseRange("bytes=1000-", 1000).length == 0;
+		assert StaticFiles.parseRange("bytes=-0", 1000).length == 0;
+		assert StaticFiles.parseRange("bytes=0-0", 0).length == 0;
+		assert StaticFiles.parseRange("bytes=a-b", 1000) == null;
+		assert StaticFiles.parseRange("items=0-1", 1000) == null;
+		assert StaticFiles.parseRange("bytes=5", 1000) == null;
+	}
+
+}
@@ -0,0 +1,153 @@
+package com.winterwell.nlp.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Match a text against many stored {@link SearchQuery}s at once -- a "reverse search".
+ * <p>
+ * Each query is indexed by its required terms (e.g. "apple AND (pie OR crumble)" needs "pie" or "crumble"),
+ * so a text is only checked against queries which could match it.
+ * Queries with no required term, e.g. "-spam", are checked against every text.
+ * <p>
+ * Not thread-safe: do not add/remove whilst matching.
+ *
+ * @testedby {@link PercolatorTest}
+ */
+public class Percolator {
+
+	private static final class Entry {
+		final SearchQuery query;
+		final QueryMatcher matcher;
+		/**
+		 * insertion order, so results come back in a stable order
+		 */
+		final int seq;
+
+		Entry(SearchQuery query, int seq) {
+			this.query = query;
+			this.matcher = query.getMatcher();
+			this.seq = seq;
+		}
+	}
+
+	/**
+	 * key (the first few chars of a token) to queries
+	 */
+	private final Map<String, List<Entry>> index = new HashMap();
+
+	/**
+	 * Check-every-time queries
+	 */
+	private final List<Entry> unindexed = new ArrayList();
+
+	private final Map<SearchQuery, Entry> entries = new HashMap();
+
+	private int seq;
+
+	/**
+	 * @param query Must not have key:value terms
+	 * @return false if query was already here
+	 * @throws SearchQuery.SearchFormatException if query cannot be matched against text
+	 */
+	public boolean add(SearchQuery query) {
+		if (entries.containsKey(query)) return false;
+		Entry e = new Entry(query, seq++);
+		entries.put(query, e);
+		Set<String> anchors = e.matcher.anchors();
+		if (anchors == null) {
+			unindexed.add(e);
+			return true;
+		}
+		for (String key : anchors) {
+			List<Entry> es = index.get(key);
+			if (es == null) {
+				es = new ArrayList(2);
+				index.put(key, es);
+			}
+			es.add(e);
+		}
+		return true;
+	}
+
+	/**
+	 * @param query
+	 * @return true if removed
+	 */
+	public boolean remove(SearchQuery query) {
+		Entry e = entries.remove(query);
+		if (e == null) return false;
+		Set<String> anchors = e.matcher.anchors();
+		if (anchors == null) {
+			unindexed.remove(e);
+			return true;
+		}
+		for (String key : anchors) {
+			List<Entry> es = index.get(key);
+			es.remove(e);
+			if (es.isEmpty()) index.remove(key);
+		}
+		return true;
+	}
+
+	/**
+	 * @param text
+	 * @return the queries which match text (as per {@link SearchQuery#matches(String)}),
+	 * in the order they were added. Never null.
+	 */
+	public List<SearchQuery> match(String text) {
+		List<Entry> candidates = new ArrayList(unindexed);
+		if ( ! index.isEmpty()) {
+			Set<Entry> seen = new HashSet();
+			// look up the 1 to KEY_LENGTH char prefixes of each token (and short tokens as exact keys)
+			int n = text.length();
+			for (int i = 0; i < n; i++) {
+				if ( ! QueryMatcher.isKeyChar(text.charAt(i))) continue;
+				int end = i + 1;
+				while (end < n && QueryMatcher.isKeyChar(text.charAt(end))) end++;
+				for (int k = 1, max = Math.min(end - i, QueryMatcher.KEY_LENGTH); k <= max; k++) {
+					match2_lookup(text.substring(i, i + k), seen, candidates);
+				}
+				if (end - i < QueryMatcher.KEY_LENGTH) {
+					match2_lookup(QueryMatcher.EXACT + text.substring(i, end), seen, candidates);
+				}
+				i = end;
+			}
+		}
+		if (candidates.isEmpty()) return Collections.emptyList();
+		candidates.sort((a, b) -> Integer.compare(a.seq, b.seq));
+		List<SearchQuery> matched = new ArrayList();
+		for (Entry e : candidates) {
+			if (e.matcher.matches(text)) matched.add(e.query);
+		}
+		return matched;
+	}
+
+	private void match2_lookup(String key, Set<Entry> seen, List<Entry> candidates) {
+		List<Entry> es = index.get(key);
+		if (es == null) return;
+		for (Entry e : es) {
+			if (seen.add(e)) candidates.add(e);
+		}
+	}
+
+	/**
+	 * @return number of queries
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return number of queries which are checked against every text, as they have no required terms.
+	 */
+	public int getUnindexedCount() {
+		return unindexed.size();
+	}
+
+}
@@ -0,0 +1,374 @@
+package com.winterwell.nlp.query;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.winterwell.nlp.query.SearchQuery.SearchFormatException;
+import com.winterwell.utils.StrUtils;
+
+/**
+ * A {@link SearchQuery} parse tree, compiled once into an immutable matcher:
+ * plain keywords become literal scanners, and the awkward cases (stop-words, abbreviations, quoted phrases)
+ * get a precompiled Pattern. Match behaviour is the same as the old tree-walking SearchQuery.matches().
+ * <p>
+ * Each node can also report its "anchors" -- used by {@link Percolator} to skip queries which cannot match.
+ *
+ * @testedby {@link SearchQueryTest}
+ */
+abstract class QueryMatcher {
+
+	/**
+	 * Max length of an anchor key. Short, so a text token can be looked up by its first few chars.
+	 */
+	static final int KEY_LENGTH = 3;
+
+	/**
+	 * Marks a key which must be a whole token, rather than a prefix. E.g. "=u" matches "u.k." but not "usa"
+	 */
+	static final char EXACT = '=';
+
+	/**
+	 * isolated punctuation, If someone searches for "a b ?" we don't want only isolated instances of "?"
+	 */
+	private static final List<String> isolatedPunctuation = SearchQuery.isolatedPunctuation;
+
+	abstract boolean matches(String text);
+
+	/**
+	 * @return keys such that any text this matches must contain at least one of them
+	 * as the start of a token (see {@link #isKeyChar(char)}). null if there is no such set,
+	 * e.g. for NOT.
+	 */
+	abstract Set<String> anchors();
+
+	/**
+	 *
+	 * @param node From {@link SearchQuery#getParseTree()}
+	 * @param stopwords
+	 * @param raw for error messages
+	 */
+	static QueryMatcher compile(Object node, Collection<String> stopwords, String raw) {
+		// base case: a keyword
+		if (node instanceof String) {
+			return compileTerm((String) node, stopwords);
+		}
+		if (node instanceof Map) {
+			throw new SearchFormatException("Cannot match key:value "+node+" against text", raw);
+		}
+		List list = (List) node;
+		if (list.isEmpty()) return new And(new QueryMatcher[0]);
+		Object op = list.get(0);
+		if (SearchQuery.KEYWORD_QUOTED == op) {
+			assert list.size() == 2 : list;
+			return new Quoted((String) list.get(1));
+		}
+		QueryMatcher[] kids = new QueryMatcher[list.size() - 1];
+		for (int i = 1; i < list.size(); i++) {
+			kids[i-1] = compile(list.get(i), stopwords, raw);
+		}
+		if (SearchQuery.KEYWORD_NOT == op) {
+			assert kids.length == 1 : list;
+			return new Not(kids[0]);
+		}
+		if (SearchQuery.KEYWORD_OR == op) {
+			return new Or(kids);
+		}
+		assert SearchQuery.KEYWORD_AND == op : list;
+		return kids.length == 1? kids[0] : new And(kids);
+	}
+
+	private static QueryMatcher compileTerm(String term, Collection<String> stopwords) {
+		// Match from beginning of words only?
+		// e.g. "at" should match "#at" but not match "cat"
+		// BUT: "bar" should match "http://foobar.com" or "foo-bar"
+		// NB: \\W is vulnerable to non-ascii. We partly defend against that using StrUtils.normalise() higher up.
+		if (isolatedPunctuation.contains(term)) {
+			return new Punctuation(term);
+		}
+		if (stopwords.contains(term)) {
+			// stop words must be exact
+			Pattern p = Pattern.compile("(^|\\W)" + Pattern.quote(term) + "\\b");
+			return new Regex(p, key(term, false));
+		}
+		if (term.length() < 4 && StrUtils.isWord(term)) {
+			// support abbreviations, e.g. U.K.
+			// NB: isWord() means term is safe to use unquoted
+			StringBuilder ps = new StringBuilder("(^|\\W)(");
+			ps.append(term); ps.append("|");
+			for(int i=0,n=term.length(); i<n; i++) {
+				ps.append(term.charAt(i));
+				ps.append("\\.?");
+			}
+			ps.append(")");
+			return new Regex(Pattern.compile(ps.toString()), abbreviationKey(term));
+		}
+		return new Term(term);
+	}
+
+	/**
+	 * @return true for [a-zA-Z0-9]. Anything else splits tokens for anchoring purposes.
+	 * This is stricter than \w (it excludes _), which is safe: more splits just give more candidates.
+	 */
+	static boolean isKeyChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	}
+
+	/**
+	 * \w in Java's default (ascii) regex mode
+	 */
+	static boolean isWordChar(char c) {
+		return c == '_' || isKeyChar(c);
+	}
+
+	/**
+	 * @param s
+	 * @param firstCharOnly
+	 * @return up to {@link #KEY_LENGTH} chars from the first token in s, or null if s has no key chars
+	 */
+	static Set<String> key(String s, boolean firstCharOnly) {
+		int n = s.length();
+		int start = 0;
+		while (start < n && ! isKeyChar(s.charAt(start))) start++;
+		if (start == n) return null;
+		int max = firstCharOnly? 1 : KEY_LENGTH;
+		int end = start + 1;
+		while (end < n && end - start < max && isKeyChar(s.charAt(end))) end++;
+		return Collections.singleton(s.substring(start, end));
+	}
+
+	/**
+	 * "uk" matches "uk..." or "u.k." -- so the text has a token which starts "uk", or which is just "u".
+	 */
+	static Set<String> abbreviationKey(String term) {
+		if (term.length() < 2 || ! isKeyChar(term.charAt(0)) || ! isKeyChar(term.charAt(1))) {
+			return key(term, true);
+		}
+		return new HashSet(Arrays.asList(EXACT + term.substring(0, 1), term.substring(0, 2)));
+	}
+
+	/**
+	 * A plain keyword: (^|\W)term by a literal scan
+	 */
+	static final class Term extends QueryMatcher {
+		private final String term;
+		private final Set<String> anchors;
+
+		Term(String term) {
+			this.term = term;
+			this.anchors = key(term, false);
+		}
+
+		@Override
+		boolean matches(String text) {
+			for (int i = text.indexOf(term); i != -1; i = text.indexOf(term, i + 1)) {
+				if (i == 0 || ! isWordChar(text.charAt(i - 1))) return true;
+			}
+			return false;
+		}
+
+		@Override
+		Set<String> anchors() {
+			return anchors;
+		}
+
+		@Override
+		public String toString() {
+			return term;
+		}
+	}
+
+	static final class Punctuation extends QueryMatcher {
+		private final String term;
+
+		Punctuation(String term) {
+			this.term = term;
+		}
+
+		@Override
+		boolean matches(String text) {
+			return text.contains(term);
+		}
+
+		@Override
+		Set<String> anchors() {
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return term;
+		}
+	}
+
+	static final class Regex extends QueryMatcher {
+		private final Pattern pattern;
+		private final Set<String> anchors;
+
+		Regex(Pattern pattern, Set<String> anchors) {
+			this.pattern = pattern;
+			this.anchors = anchors;
+		}
+
+		@Override
+		boolean matches(String text) {
+			return pattern.matcher(text).find();
+		}
+
+		@Override
+		Set<String> anchors() {
+			return anchors;
+		}
+
+		@Override
+		public String toString() {
+			return pattern.pattern();
+		}
+	}
+
+	static final class Quoted extends QueryMatcher {
+		private final Pattern pattern;
+		private final Set<String> anchors;
+
+		Quoted(String term) {
+			// Allow inter-word punctuation IF the search term does not specify punctuation.
+			// e.g. "inter word" should match "inter-word", TODO should "UK" match "U.K."??
+			String[] words = term.split(" ");
+			StringBuilder pString = new StringBuilder("(^|\\W|_)");
+			for (String word : words) {
+				pString.append(Pattern.quote(word));
+				pString.append("\\W+");
+			}
+			StrUtils.pop(pString, 3);
+			// Complete word match: Block e.g. "bar" matching "barry" -- but allow plurals -s, -es, -ies as a special case
+			pString.append("(ies|es|s)?($|\\W|[_0-9])");
+			this.pattern = Pattern.compile(pString.toString());
+			this.anchors = key(term, false);
+		}
+
+		@Override
+		boolean matches(String text) {
+			return pattern.matcher(text).find();
+		}
+
+		@Override
+		Set<String> anchors() {
+			return anchors;
+		}
+
+		@Override
+		public String toString() {
+			return pattern.pattern();
+		}
+	}
+
+	static final class Not extends QueryMatcher {
+		private final QueryMatcher sub;
+
+		Not(QueryMatcher sub) {
+			this.sub = sub;
+		}
+
+		@Override
+		boolean matches(String text) {
+			return ! sub.matches(text);
+		}
+
+		@Override
+		Set<String> anchors() {
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return "-" + sub;
+		}
+	}
+
+	static final class Or extends QueryMatcher {
+		private final QueryMatcher[] kids;
+
+		Or(QueryMatcher[] kids) {
+			this.kids = kids;
+		}
+
+		@Override
+		boolean matches(String text) {
+			for (QueryMatcher kid : kids) {
+				if (kid.matches(text)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Any branch could match, so we need all their anchors.
+		 */
+		@Override
+		Set<String> anchors() {
+			Set<String> all = new HashSet();
+			for (QueryMatcher kid : kids) {
+				Set<String> a = kid.anchors();
+				if (a == null) return null;
+				all.addAll(a);
+			}
+			return all.isEmpty()? null : all;
+		}
+
+		@Override
+		public String toString() {
+			return "(or " + StrUtils.join(kids, " ") + ")";
+		}
+	}
+
+	static final class And extends QueryMatcher {
+		private final QueryMatcher[] kids;
+
+		And(QueryMatcher[] kids) {
+			this.kids = kids;
+		}
+
+		@Override
+		boolean matches(String text) {
+			for (QueryMatcher kid : kids) {
+				if ( ! kid.matches(text)) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Every branch must match, so any one branch's anchors will do: pick the most selective
+		 * (fewest keys, then longest keys).
+		 */
+		@Override
+		Set<String> anchors() {
+			Set<String> best = null;
+			for (QueryMatcher kid : kids) {
+				Set<String> a = kid.anchors();
+				if (a == null) continue;
+				if (best == null || a.size() < best.size()
+					|| (a.size() == best.size() && keyLength(a) > keyLength(best)))
+				{
+					best = a;
+				}
+			}
+			return best;
+		}
+
+		private static int keyLength(Set<String> keys) {
+			int len = 0;
+			for (String k : keys) len += k.length();
+			return len;
+		}
+
+		@Override
+		public String toString() {
+			return "(and " + StrUtils.join(kids, " ") + ")";
+		}
+	}
+
+}
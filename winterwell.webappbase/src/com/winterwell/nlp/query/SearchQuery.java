@@ -90,7 +90,7 @@ public class SearchQuery implements Serializable, IHasJson {
 	/**
 	 * isolated punctuation, If someone searches for "a b ?" we don't want only isolated instances of "?"
 	 */
-	private static final List<String> isolatedPunctuation = Arrays.asList("?", "!", "!?", "?!");
+	static final List<String> isolatedPunctuation = Arrays.asList("?", "!", "!?", "?!");
 
 	
 	/**
@@ -98,6 +98,11 @@ public class SearchQuery implements Serializable, IHasJson {
 	 */
 	private transient List parseTree;
 
+	/**
+	 * Compiled from the parse tree on first use
+	 */
+	private transient volatile QueryMatcher matcher;
+
 	String raw;
 
 	/**
@@ -323,113 +328,24 @@ public class SearchQuery implements Serializable, IHasJson {
 	 * @return true if this search term (ignoring service, language and
 	 *         location) matches this text. 
 	 *         
-	 * @testedby {@link SearchSpecTest#testMatches()}
+	 * @testedby {@link SearchQueryTest#testMatches()}
 	 */
 	public boolean matches(String text) {
-		getParseTree();
 		// TODO should we remove punctuation here? But what about smilies?
-		boolean itMatches = matches2(text, parseTree);
-		return itMatches;
+		return getMatcher().matches(text);
 	}
 
-	private boolean matches2(String text, Object condition) {
-		// NB: \\W used below is vulnerable to non-ascii. We partly defend against that using StrUtils.normalise() higher up.
-		
-		// base case: a keyword
-		if (condition instanceof String) {
-			String term = (String) condition;
-			// Match from beginning of words only?
-			// e.g. "at" should match "#at" but not match "cat"
-			// BUT: "bar" should match "http://foobar.com" or "foo-bar"
-			// if term is a stop word, pick it up as word only, if it's not, all
-			// words count
-			String pString = "";
-			boolean literal = false;
-			//Used for awkward, regexy strings
-			if (isolatedPunctuation.contains(term)){
-				pString = term;
-				literal = true;
-			}
-			else if (getStopWords().contains(term)) { 
-				// stop words must be exact
-				// BUT the current English stopword list includes some stemmed words
-				//  -- which don't match properly. E.g. if term="onlin", this IS counted
-				// as a stopword.
-				pString = "(^|\\W)" + Pattern.quote(term) + "\\b";
-			} else if (term.length() < 4 && StrUtils.isWord(term)) {
-				// support abbreviations, e.g. U.K.
-				StringBuilder ps = new StringBuilder("(^|\\W)(");
-				ps.append(term); ps.append("|");
-				for(int i=0,n=term.length(); i<n; i++) {
-					ps.append(term.charAt(i));
-					ps.append("\\.?");
-				}
-				ps.append(")");
-				pString = ps.toString();
-			} else { // normal				
-				pString = "(^|\\W)"+ Pattern.quote(term);
-			}
-			Pattern pattern;
-			if (literal) pattern = Pattern.compile(pString, Pattern.LITERAL);
-			else pattern = Pattern.compile(pString);
-			Matcher matcher = pattern.matcher(text);
-			boolean mf = matcher.find();
-			return mf;
-		}
-		List condition2 = (List) condition;
-		if (condition2.isEmpty()) return true;
-		
-		// a quoted condition?
-		if (KEYWORD_QUOTED == condition2.get(0)) {
-			assert condition2.size() == 2 : condition2;
-			String term = (String) condition2.get(1);
-			// Allow inter-word punctuation IF the search term does not specify punctuation. 
-			// e.g. "inter word" should match "inter-word", TODO should "UK" match "U.K."??
-			String[] words = term.split(" ");
-			StringBuilder pString = new StringBuilder("(^|\\W|_)");
-			for (String word : words) {
-				pString.append(Pattern.quote(word));
-				pString.append("\\W+");
-			}
-			StrUtils.pop(pString, 3);
-			// Complete word match: Block e.g. "bar" matching "barry" -- but allow plurals -s, -es, -ies as a special case
-			// Why do we have -ies? If it is for eg baby -> babies then we have to allow drop-the-y
-			pString.append("(ies|es|s)?($|\\W|[_0-9])");
-			Pattern pattern = Pattern.compile(pString.toString());
-			Matcher matcher = pattern.matcher(text);
-			boolean mf = matcher.find();
-			if (mf) { // for debug
-				String matched = matcher.group();
-				String m2 = StrUtils.substring(text, matcher.start()-2, matcher.end()+2);
-				System.out.println(matched);
-			}
-			return mf;
-		}
-		
-		// a NOT condition?
-		if (KEYWORD_NOT == condition2.get(0)) {
-			assert condition2.size() == 2 : condition2;
-			boolean subOk = matches2(text, condition2.get(1));
-			return !subOk;
-		}
-		
-		// an OR condition?
-		if (KEYWORD_OR == condition2.get(0)) {
-			for (int i = 1; i < condition2.size(); i++) {
-				boolean ok = matches2(text, condition2.get(i));
-				if (ok) return true;
-			}
-			return false;
-		}
-		
-		// an and condition
-		assert KEYWORD_AND == condition2.get(0) : condition2;
-		for (int i = 1; i < condition2.size(); i++) {
-			Object ci = condition2.get(i);
-			boolean ok = matches2(text, ci);
-			if (!ok) return false;
+	/**
+	 * @return the parse tree compiled into a matcher, which is cached. Thread-safe.
+	 * @throws SearchFormatException if the query has key:value terms, which cannot be matched against text
+	 */
+	QueryMatcher getMatcher() {
+		QueryMatcher m = matcher;
+		if (m == null) {
+			m = QueryMatcher.compile(getParseTree(), getStopWords(), raw);
+			matcher = m;
 		}
-		return true;
+		return m;
 	}
 
 	Collection<String> _stopwords = new HashSet<>();
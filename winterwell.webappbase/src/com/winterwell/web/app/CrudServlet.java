@@ -1,14 +1,15 @@
 package com.winterwell.web.app;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.servlet.http.HttpServletResponse;
+
 import org.eclipse.jetty.util.ajax.JSON;
 import org.elasticsearch.index.query.QueryStringQueryBuilder;
 import org.elasticsearch.search.sort.SortOrder;
@@ -18,15 +19,18 @@ import com.winterwell.data.KStatus;
 import com.winterwell.depot.IInit;
 import com.winterwell.es.ESPath;
 import com.winterwell.es.IESRouter;
+import com.winterwell.es.client.ClearScrollRequestBuilder;
 import com.winterwell.es.client.DeleteRequestBuilder;
 import com.winterwell.es.client.ESHttpClient;
 import com.winterwell.es.client.IESResponse;
 import com.winterwell.es.client.KRefresh;
 import com.winterwell.es.client.SearchRequestBuilder;
 import com.winterwell.es.client.SearchResponse;
+import com.winterwell.es.client.SearchScrollRequestBuilder;
 import com.winterwell.es.client.query.ESQueryBuilder;
 import com.winterwell.es.client.query.ESQueryBuilders;
 import com.winterwell.gson.Gson;
+import com.winterwell.json.JSONWriter;
 import com.winterwell.utils.Dep;
 import com.winterwell.utils.ReflectionUtils;
 import com.winterwell.utils.StrUtils;
@@ -35,15 +39,21 @@ import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.containers.Containers;
 import com.winterwell.utils.io.CSVSpec;
 import com.winterwell.utils.io.CSVWriter;
+import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.web.ExpiringMap;
 import com.winterwell.utils.web.SimpleJson;
 import com.winterwell.utils.web.WebUtils;
 import com.winterwell.utils.web.WebUtils2;
 import com.winterwell.web.WebEx;
+import com.winterwell.web.ajax.AjaxMsg;
 import com.winterwell.web.ajax.JThing;
 import com.winterwell.web.ajax.JsonResponse;
 import com.winterwell.web.app.WebRequest.KResponseType;
 import com.winterwell.web.data.XId;
+import com.winterwell.web.fields.IntField;
 import com.winterwell.web.fields.SField;
 import com.winterwell.youagain.client.AuthToken;
 import com.winterwell.youagain.client.NoAuthException;
@@ -371,11 +381,161 @@ public abstract class CrudServlet<T> implements IServlet {
 
 
 	protected void doList(WebRequest state) throws IOException {
+		/// which index? draft (which should include copies of published) by default
+		KStatus status = state.get(AppUtils.STATUS, KStatus.DRAFT);
+		// paging: size => one page (plus a cursor for the next, if asked for with cursor=start). No size => stream the lot.
+		Integer size = state.get(SIZE);
+		String cursor = state.get(CURSOR);
+		// NB: a cursor is an ES scroll, which lives until it is read to the end (or times out) -- so only open one on request
+		boolean wantCursor = size==null || cursor != null;
+		if (CURSOR_START.equals(cursor)) cursor = null;
+		// If user requests ALL_BAR_TRASH, they want to see draft versions of items which have been edited
+		// So when de-duping, give priority to entries from .draft indices where the object is status: DRAFT
+		ListDeduper deduper = null;
+		if (status == KStatus.ALL_BAR_TRASH) {
+			deduper = cursor==null? null : cursor2deduper.remove(cursor);
+			if (deduper==null) deduper = new ListDeduper();
+		}
+		// the cursor is "sent:scrollId", so we know when a page is the last
+		long sent = 0;
+		String scrollId = null;
+		if (cursor != null) {
+			int i = cursor.indexOf(':');
+			try {
+				sent = Long.parseLong(cursor.substring(0, i));
+			} catch(Exception ex) {
+				throw new WebEx.BadParameterException(CURSOR.getName(), cursor, ex);
+			}
+			scrollId = cursor.substring(i+1);
+		}
+		
+		// Stream the hits out page by page, rather than building the whole list
+		ListOutput out = new ListOutput(state);
+		long total = 0;
+		String nextCursor = null;
+		try {
+			SearchResponse sr;
+			if (scrollId != null) {
+				sr = doList2_nextPage(scrollId);
+			} else {
+				SearchRequestBuilder s = doList2_search(state, status);
+				s.setSize(size==null? LIST_BATCH : Math.max(1, Math.min(size, MAX_LIST_SIZE)));
+				if (wantCursor) s.setScroll(CURSOR_KEEP_ALIVE);
+				s.setDebug(true);
+				sr = s.get();
+			}
+			total = sr.getTotal();
+			while(true) {
+				scrollId = sr.getScrollId();
+				List<Map> hits = sr.getHits();
+				sent += hits.size();
+				doList2_write(out, hits, deduper, state);
+				// NB: a page with hits may be the last (it is if we've seen them all)
+				if (hits.isEmpty() || sent >= total || scrollId==null) {
+					doList2_clearScroll(scrollId);
+					break;
+				}
+				if (size != null) {
+					// one page per request -- hand back a cursor
+					nextCursor = sent+":"+scrollId;
+					if (deduper != null) cursor2deduper.put(nextCursor, deduper, CURSOR_KEEP_ALIVE);
+					break;
+				}
+				sr = doList2_nextPage(scrollId);
+			}
+		} catch(Throwable ex) {
+			doList2_clearScroll(scrollId);
+			out.fail(total, ex);
+			return;
+		}
+		out.close(total, nextCursor);
+	}
+
+	private void doList2_write(ListOutput out, List<Map> hits, ListDeduper deduper, WebRequest state) throws IOException {
+		List hits2;
+		if (deduper != null) {
+			hits2 = deduper.dedupe(hits);
+		} else {
+			// One index = no deduping necessary.
+			hits2 = Containers.apply(hits, h -> h.get("_source"));
+		}
+		// sanitise for privacy
+		hits2 = cleanse(hits2, state);
+		for (Object hit : hits2) {
+			out.write((Map) hit);
+		}
+	}
+
+	/**
+	 * Max page size for _list
+	 */
+	static final int MAX_LIST_SIZE = 10000;
+	
+	/**
+	 * Page size when streaming a whole _list (i.e. no size parameter)
+	 */
+	static final int LIST_BATCH = 1000;
+	
+	/**
+	 * How long an idle _list cursor (an ES scroll) stays valid.
+	 */
+	static final Dt CURSOR_KEEP_ALIVE = new Dt(2, TUnit.MINUTE);
+	
+	public static final IntField SIZE = new IntField("size");
+	
+	/**
+	 * From a previous _list response -- to get the next page.
+	 * With size, pass {@link #CURSOR_START} on the first request to get a cursor back
+	 * (otherwise you just get the one page).
+	 */
+	public static final SField CURSOR = new SField("cursor");
+
+	/**
+	 * cursor=start: the first page of a paged _list, with a cursor for the next
+	 */
+	static final String CURSOR_START = "start";
+	
+	/**
+	 * De-dupe state for ALL_BAR_TRASH lists which are being paged through.
+	 * NB: This is per-server: on a cluster, a page served elsewhere just isn't de-duped against earlier pages.
+	 */
+	private static final ExpiringMap<String, ListDeduper> cursor2deduper = new ExpiringMap<>();
+
+	/**
+	 * @param cursor From {@link SearchResponse#getScrollId()}
+	 * @return the next page
+	 */
+	protected SearchResponse doList2_nextPage(String cursor) {
+		SearchScrollRequestBuilder ss = es.prepareSearchScroll(CURSOR_KEEP_ALIVE, cursor);
+		return ss.get();
+	}
+
+	/**
+	 * Release the ES scroll context, rather than leave it open until {@link #CURSOR_KEEP_ALIVE} runs out.
+	 * Best effort: a failure is just logged.
+	 * @param scrollId Can be null (does nothing)
+	 */
+	protected void doList2_clearScroll(String scrollId) {
+		if (scrollId==null) return;
+		try {
+			ClearScrollRequestBuilder cs = es.prepareClearScroll();
+			cs.addScrollId(scrollId);
+			cs.get();
+		} catch(Throwable ex) {
+			Log.w(LOGTAG(), "clear scroll failed: "+scrollId+" "+ex);
+		}
+	}
+
+	/**
+	 * Build the _list search (without size or paging). 
+	 * @param state
+	 * @param status
+	 * @return
+	 */
+	protected SearchRequestBuilder doList2_search(WebRequest state, KStatus status) {
 		// copied from SoGive SearchServlet
 		// TODO refactor to use makeESFilterFromSearchQuery
 		SearchRequestBuilder s = new SearchRequestBuilder(es);
-		/// which index? draft (which should include copies of published) by default
-		KStatus status = state.get(AppUtils.STATUS, KStatus.DRAFT);
 		if (status!=null && status != KStatus.ALL_BAR_TRASH) {
 			s.setIndex(
 					esRouter.getPath(dataspace, type, null, status).index()
@@ -385,6 +545,9 @@ public abstract class CrudServlet<T> implements IServlet {
 					esRouter.getPath(dataspace, type, null, KStatus.PUBLISHED).index(),
 					esRouter.getPath(dataspace, type, null, KStatus.DRAFT).index()
 				);
+			// .draft copies first (name.draft sorts after name), so when the list is paged or streamed,
+			// ListDeduper sees an item's edited copy before its published one
+			s.addSort("_index", SortOrder.DESC);
 		}
 		
 		// query
@@ -441,75 +604,13 @@ public abstract class CrudServlet<T> implements IServlet {
 			}
 			s.addSort(sort, order);
 		}
-		
-		// TODO paging!
-		s.setSize(10000);
-		s.setDebug(true);
-		SearchResponse sr = s.get();
-		Map<String, Object> jobj = sr.getParsedJson();
-		List<Map> hits = sr.getHits();
-
-		// If user requests ALL_BAR_TRASH, they want to see draft versions of items which have been edited
-		// So when de-duping, give priority to entries from .draft indices where the object is status: DRAFT
-		List hits2 = new ArrayList<Map>();
-		
-		if (status == KStatus.ALL_BAR_TRASH) {
-			List<Object> idOrder = new ArrayList<Object>(); // original ordering
-			Map<Object, Object> things = new HashMap<Object, Object>(); // to hold "expected" version of each hit
-			
-			for (Map h : hits) {
-				// pull out the actual object from the hit (NB: may be Map or AThing)
-				Object hit = h.get("_source");
-				if (hit == null) continue;
-				Object id = getIdFromHit(hit);
-				
-				// First time we've seen this object? Save it.
-				if (!things.containsKey(id)) {
-					idOrder.add(id);
-					things.put(id, hit);
-					continue;
-				}
-				// Is this an object from .draft with non-published status? Overwrite the previous entry.
-				Object index = h.get("_index");
-				if (index != null && index.toString().contains(".draft")) {
-					KStatus hitStatus = KStatus.valueOf(getStatus(hit));
-					if (KStatus.DRAFT.equals(hitStatus) || KStatus.MODIFIED.equals(hitStatus)) {
-						things.put(id, hit);
-					}
-				}
-			}
-			// Put the deduped hits in the list in their original order.
-			for (Object id : idOrder) {
-				if (things.containsKey(id)) hits2.add(things.get(id));
-			}
-		} else {
-			// One index = no deduping necessary.
-			hits2 = Containers.apply(hits, h -> h.get("_source"));
-		}
-		
-		// sanitise for privacy
-		hits2 = cleanse(hits2, state);
-		
-		// HACK: send back csv?
-		if (state.getResponseType() == KResponseType.csv) {
-			doSendCsv(state, hits2);
-			return;
-		}
-			
-		long total = sr.getTotal();
-		String json = Dep.get(Gson.class).toJson(
-				new ArrayMap(
-					"hits", hits2, 
-					"total", total
-				));
-		JsonResponse output = new JsonResponse(state).setCargoJson(json);
-		WebUtils2.sendJson(output, state);		
+		return s;
 	}
 
 
 	/**
 	 * TODO remove sensitive details for privacy
-	 * @param hits2
+	 * @param hits2 One page of hits
 	 * @param state
 	 * @return
 	 */
@@ -518,54 +619,99 @@ public abstract class CrudServlet<T> implements IServlet {
 	}
 
 
-
-	private String getStatus(Object h) {
-		Object s;
-		if (h instanceof Map) s = ((Map)h).get("status");
-		else s = ((AThing)h).getStatus();
-		return String.valueOf(s);
-	}
-
-
-
 	/**
-	 * 
-	 * @param hit Map from ES, or AThing
-	 * @return
+	 * Writes _list hits straight to the response, as json -- <code>{"cargo":{"hits":[...], "total":n, "cursor":"..."}, ...}</code> --
+	 * or csv (which has no room for total or cursor).
 	 */
-	private Object getIdFromHit(Object hit) {
-		Object id;
-		if (hit instanceof Map) id = ((Map)hit).get("id");
-		else id = ((AThing)hit).getId();
-		return id;
-	}
-
-
-
-	protected void doSendCsv(WebRequest state, List<Map> hits2) {
-		// ?? maybe refactor and move into a default method in IServlet?
-		StringWriter sout = new StringWriter();
-		CSVWriter w = new CSVWriter(sout, new CSVSpec());
-	
-		// what headers??
-		ArrayMap<String, String> hs = doSendCsv2_getHeaders(state, hits2);
+	private final class ListOutput {
+		final WebRequest state;
+		final BufferedWriter out;
+		final CSVWriter csv;
+		/**
+		 * csv headers, set from the first page
+		 */
+		ArrayMap<String, String> headers;
+		final String callback;
+		final JSONWriter jw;
+		final Gson gson = Dep.get(Gson.class);
+		
+		ListOutput(WebRequest state) throws IOException {
+			this.state = state;
+			HttpServletResponse response = state.getResponse();
+			if (state.getResponseType() == KResponseType.csv) {
+				response.setContentType(WebUtils.MIME_TYPE_CSV); // + utf8??
+				out = FileUtils.getWriter(response.getOutputStream());
+				csv = new CSVWriter(out, new CSVSpec());
+				callback = null;
+				jw = null;
+				return;
+			}
+			csv = null;
+			response.setContentType(WebUtils.MIME_TYPE_JSON + "; charset=UTF-8");
+			out = FileUtils.getWriter(response.getOutputStream());
+			callback = state.get(JsonResponse.CALLBACK);
+			if (callback != null) out.append(callback).append('(');
+			jw = new JSONWriter(out);
+			jw.object().key(JsonResponse.JSON_CARGO.getName()).object().key("hits").array();
+		}
 		
-		// write
-		w.write(hs.values());
-		for (Map hit : hits2) {
-			List<Object> line = Containers.apply(hs, h -> {
-				String[] p = h.split("\\.");
-				return SimpleJson.get(hit, p);
-			});
-			w.write(line);
-		}
-		w.close();
-		// send
-		String csv = sout.toString();
-		state.getResponse().setContentType(WebUtils.MIME_TYPE_CSV); // + utf8??
-		WebUtils2.sendText(csv, state.getResponse());
+		void write(Map hit) throws IOException {
+			if (csv != null) {
+				if (headers==null) {
+					// what headers??
+					headers = doSendCsv2_getHeaders(state, Collections.singletonList(hit));
+					csv.write(headers.values());
+				}
+				List<Object> line = Containers.apply(headers, h -> {
+					String[] p = h.split("\\.");
+					return SimpleJson.get(hit, p);
+				});
+				csv.write(line);
+				return;
+			}
+			jw.valueJSON(gson.toJson(hit));
+		}
+		
+		void close(long total, String cursor) throws IOException {
+			try {
+				if (csv != null) {
+					csv.close();
+					return;
+				}
+				jw.endArray().key("total").value(total).key(CURSOR.getName()).value(cursor).endObject();
+				// the rest of the usual JsonResponse, e.g. messages
+				new JsonResponse(state).writeJSONProperties(jw);
+				jw.endObject();
+				if (callback != null) out.append(");");
+			} finally {
+				FileUtils.close(out);
+			}
+		}
+		
+		/**
+		 * The list failed part way. If nothing has gone out yet, rethrow for a proper error response.
+		 * Otherwise it's too late to change the status -- so finish the json with success:false and the error,
+		 * rather than leave the client with a truncated 200.
+		 * (csv has no way to say so -- it just stops).
+		 */
+		void fail(long total, Throwable ex) throws IOException {
+			HttpServletResponse response = state.getResponse();
+			if ( ! response.isCommitted()) {
+				// drop the partial output (NB: don't close out, which would flush it)
+				response.resetBuffer();
+				if (ex instanceof IOException) throw (IOException) ex;
+				throw Utils.runtime(ex);
+			}
+			Log.e(LOGTAG(), "_list failed mid-stream: "+state+" -> "+ex);
+			if (csv != null) {
+				FileUtils.close(out);
+				return;
+			}
+			state.addMessage(new AjaxMsg(ex));
+			close(total, null);
+		}
 	}
-	
+
 
 	/**
 	 * 
@@ -0,0 +1,87 @@
+package com.winterwell.web.app;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.winterwell.data.AThing;
+import com.winterwell.data.KStatus;
+
+/**
+ * An ALL_BAR_TRASH list searches both the published and the draft indices, so an item can turn up twice.
+ * This keeps one copy per id, page by page, for {@link CrudServlet#doList(WebRequest)}.
+ * <p>
+ * Within a page, a copy from a .draft index with status DRAFT or MODIFIED wins
+ * (the user wants to see their edits). Across pages, only the ids are remembered -- so a later
+ * duplicate is dropped. That is safe because {@link CrudServlet#doList2_search(WebRequest, KStatus)}
+ * sorts ALL_BAR_TRASH lists .draft index first: an edited copy always arrives before
+ * (or in the same page as) its published rival.
+ */
+final class ListDeduper {
+
+	/**
+	 * ids sent in earlier pages
+	 */
+	private final Set<Object> seen = new HashSet<>();
+
+	/**
+	 * @param hits One page of ES hits
+	 * @return the _source objects (Map or AThing), in the original order, minus duplicates
+	 */
+	List<Object> dedupe(List<Map> hits) {
+		List<Object> idOrder = new ArrayList<Object>(hits.size()); // original ordering
+		Map<Object, Object> things = new HashMap<Object, Object>(); // to hold "expected" version of each hit
+		for (Map h : hits) {
+			// pull out the actual object from the hit (NB: may be Map or AThing)
+			Object hit = h.get("_source");
+			if (hit == null) continue;
+			Object id = getIdFromHit(hit);
+			// Sent in an earlier page?
+			if (seen.contains(id)) continue;
+			// First time we've seen this object? Save it.
+			if ( ! things.containsKey(id)) {
+				idOrder.add(id);
+				things.put(id, hit);
+				continue;
+			}
+			// Is this an object from .draft with non-published status? Overwrite the previous entry.
+			Object index = h.get("_index");
+			if (index != null && index.toString().contains(".draft")) {
+				KStatus hitStatus = KStatus.valueOf(getStatus(hit));
+				if (KStatus.DRAFT.equals(hitStatus) || KStatus.MODIFIED.equals(hitStatus)) {
+					things.put(id, hit);
+				}
+			}
+		}
+		// Put the deduped hits in the list in their original order.
+		List<Object> hits2 = new ArrayList<Object>(idOrder.size());
+		for (Object id : idOrder) {
+			hits2.add(things.get(id));
+		}
+		seen.addAll(idOrder);
+		return hits2;
+	}
+
+	private static String getStatus(Object h) {
+		Object s;
+		if (h instanceof Map) s = ((Map)h).get("status");
+		else s = ((AThing)h).getStatus();
+		return String.valueOf(s);
+	}
+
+	/**
+	 *
+	 * @param hit Map from ES, or AThing
+	 * @return
+	 */
+	private static Object getIdFromHit(Object hit) {
+		Object id;
+		if (hit instanceof Map) id = ((Map)hit).get("id");
+		else id = ((AThing)hit).getId();
+		return id;
+	}
+
+}
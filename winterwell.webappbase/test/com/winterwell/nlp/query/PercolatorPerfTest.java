@@ -0,0 +1,106 @@
+package com.winterwell.nlp.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.time.StopWatch;
+
+/**
+ * 10k stored queries against a synthetic tweet corpus: check-every-query v {@link Percolator}.
+ */
+public class PercolatorPerfTest {
+
+	static final int QUERIES = 10000;
+	static final int TWEETS = 2000;
+
+	@Test
+	public void testThroughput() {
+		Random r = new Random(42);
+		// a Zipf-ish vocabulary, so some words are common and most are rare
+		String[] vocab = new String[5000];
+		for (int i = 0; i < vocab.length; i++) {
+			vocab[i] = randomWord(r);
+		}
+		List<SearchQuery> queries = new ArrayList();
+		for (int i = 0; i < QUERIES; i++) {
+			queries.add(new SearchQuery(randomQuery(r, vocab)));
+		}
+		List<String> tweets = new ArrayList();
+		for (int i = 0; i < TWEETS; i++) {
+			tweets.add(randomTweet(r, vocab));
+		}
+		StopWatch sw = new StopWatch();
+		Percolator p = new Percolator();
+		for (SearchQuery sq : queries) {
+			p.add(sq);
+		}
+		System.out.println("Indexed " + p.size() + " queries (" + p.getUnindexedCount() + " unindexed) in " + sw.getTime() + "ms");
+
+		for (int rep = 0; rep < 2; rep++) { // 1st round is a warm-up
+			sw = new StopWatch();
+			int hits = 0;
+			for (String tweet : tweets) {
+				for (SearchQuery sq : queries) {
+					if (sq.matches(tweet)) hits++;
+				}
+			}
+			long ms1 = Math.max(1, sw.getTime());
+
+			sw = new StopWatch();
+			int hits2 = 0;
+			for (String tweet : tweets) {
+				hits2 += p.match(tweet).size();
+			}
+			long ms2 = Math.max(1, sw.getTime());
+			assert hits == hits2 : hits + " v " + hits2;
+			System.out.println("Every query: " + StrUtils.toNSigFigs(1000.0 * TWEETS / ms1, 3)
+				+ " tweets/s	Percolator: " + StrUtils.toNSigFigs(1000.0 * TWEETS / ms2, 3)
+				+ " tweets/s	" + StrUtils.toNSigFigs(1.0 * ms1 / ms2, 2) + "x	(" + hits + " matches)");
+		}
+	}
+
+	static String randomWord(Random r) {
+		int len = 3 + r.nextInt(6);
+		StringBuilder sb = new StringBuilder(len);
+		for (int i = 0; i < len; i++) {
+			sb.append((char) ('a' + r.nextInt(26)));
+		}
+		return sb.toString();
+	}
+
+	static String zipf(Random r, String[] vocab) {
+		return vocab[(int) (vocab.length * Math.pow(r.nextDouble(), 2))];
+	}
+
+	static String randomQuery(Random r, String[] vocab) {
+		switch (r.nextInt(5)) {
+		case 0:
+			return zipf(r, vocab);
+		case 1:
+			return zipf(r, vocab) + " " + zipf(r, vocab);
+		case 2:
+			return zipf(r, vocab) + " OR " + zipf(r, vocab) + " OR " + zipf(r, vocab);
+		case 3:
+			return "\"" + zipf(r, vocab) + " " + zipf(r, vocab) + "\"";
+		default:
+			return "(" + zipf(r, vocab) + " OR " + zipf(r, vocab) + ") -" + zipf(r, vocab);
+		}
+	}
+
+	static String randomTweet(Random r, String[] vocab) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 5 + r.nextInt(15); i > 0; i--) {
+			int x = r.nextInt(20);
+			if (x == 0) sb.append('#');
+			else if (x == 1) sb.append('@');
+			sb.append(zipf(r, vocab));
+			sb.append(x == 2? ", " : " ");
+		}
+		return sb.toString().trim();
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.winterwell.nlp.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @tested {@link Percolator}
+ */
+public class PercolatorTest {
+
+	@Test
+	public void testMatch() {
+		Percolator p = new Percolator();
+		SearchQuery apple = new SearchQuery("apple");
+		SearchQuery pie = new SearchQuery("apple (pie OR crumble)");
+		SearchQuery notSpam = new SearchQuery("-spam");
+		SearchQuery uk = new SearchQuery("uk");
+		p.add(apple);
+		p.add(pie);
+		p.add(notSpam);
+		p.add(uk);
+		assert ! p.add(apple);
+		assert p.size() == 4;
+		assert p.getUnindexedCount() == 1;
+		assert p.match("apple crumble in the u.k.").equals(Arrays.asList(apple, pie, notSpam, uk));
+		assert p.match("spam").isEmpty();
+		assert p.match("I like #apples").equals(Arrays.asList(apple, notSpam));
+		assert p.match("").equals(Arrays.asList(notSpam));
+		// remove
+		assert p.remove(apple);
+		assert ! p.remove(apple);
+		assert p.match("apple pie").equals(Arrays.asList(pie, notSpam));
+	}
+
+	@Test
+	public void testSameAsOneByOne() {
+		String[] vocab = "uk u.k. the cat cats catty bar foo-bar #bar http://foobar.com ? ! baby babies inter-word a_b e-mail café 123 x1 @bob Bob".split(" ");
+		String[] qs = {"uk", "cat", "\"cat\"", "bar", "\"inter word\"", "\"baby\"", "?", "a_b", "e-mail",
+				"-cat", "cat OR bar", "cat -bar", "(cat OR uk) bar", "\"foo bar\"", "Bob", "x1", "a -(cat OR bar)", "123 OR ?"};
+		Percolator p = new Percolator();
+		List<SearchQuery> queries = new ArrayList();
+		for (String q : qs) {
+			SearchQuery sq = new SearchQuery(q);
+			queries.add(sq);
+			p.add(sq);
+		}
+		Random r = new Random(42);
+		for (int t = 0; t < 2000; t++) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = r.nextInt(6); i > 0; i--) {
+				sb.append(vocab[r.nextInt(vocab.length)]);
+				sb.append(" ,-_.".charAt(r.nextInt(5)));
+			}
+			String text = sb.toString();
+			List<SearchQuery> expected = new ArrayList();
+			for (SearchQuery sq : queries) {
+				if (sq.matches(text)) expected.add(sq);
+			}
+			assert p.match(text).equals(expected) : text;
+		}
+	}
+
+	@Test
+	public void testKeyValueRejected() {
+		try {
+			new Percolator().add(new SearchQuery("apple host:localpub.com"));
+			assert false;
+		} catch (SearchQuery.SearchFormatException ex) {
+			// ok
+		}
+	}
+
+}
@@ -1,5 +1,7 @@
 package com.winterwell.nlp.query;
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 import org.junit.Test;
@@ -44,6 +46,44 @@ public class SearchQueryTest {
 	}
 
 	
+	@Test
+	public void testMatches() {
+		// start of word only
+		assert new SearchQuery("at").matches("at home");
+		assert new SearchQuery("at").matches("look #at this");
+		assert ! new SearchQuery("at").matches("cat");
+		assert new SearchQuery("bar").matches("http://foo.com/bar");
+		assert new SearchQuery("bar").matches("foo-bar");
+		assert ! new SearchQuery("bar").matches("foobar");
+		// abbreviations
+		assert new SearchQuery("uk").matches("in the U.K. today".toLowerCase());
+		// quoted: whole words, but plurals and inter-word punctuation are OK
+		assert new SearchQuery("\"cat\"").matches("cats");
+		assert ! new SearchQuery("\"bar\"").matches("barry");
+		assert new SearchQuery("\"inter word\"").matches("an inter-word match");
+		// punctuation
+		assert new SearchQuery("?").matches("eh?");
+		// boolean
+		SearchQuery sq = new SearchQuery("(cat OR dog) -bird");
+		assert sq.matches("my cat");
+		assert sq.matches("my dog");
+		assert ! sq.matches("my cat ate a bird");
+		assert ! sq.matches("my fish");
+	}
+
+	@Test
+	public void testCompiledAnchors() {
+		assert new SearchQuery("apple").getMatcher().anchors().toString().equals("[app]");
+		// AND: the most selective branch
+		assert new SearchQuery("apple (pie OR crumble)").getMatcher().anchors().toString().equals("[app]");
+		// OR: any branch
+		assert new SearchQuery("apple OR crumble").getMatcher().anchors().size() == 2;
+		// abbreviations: "uk..." or "u.k."
+		assert new SearchQuery("uk").getMatcher().anchors().equals(new HashSet(Arrays.asList("uk", "=u")));
+		assert new SearchQuery("-spam").getMatcher().anchors() == null;
+		assert new SearchQuery("apple OR -spam").getMatcher().anchors() == null;
+	}
+	
 	@Test
 	public void testQuotedKeyVal() {
 		SearchQuery sq = new SearchQuery("campaign:\"Villa Plus\"");
@@ -116,6 +116,18 @@ public class AuthToken implements IHasXId, IProperties {
 		return xid;
 	}
 
+	/**
+	 * @return a shallow copy, e.g. so a cached token can be handed out without sharing it
+	 */
+	AuthToken copy() {
+		AuthToken at = new AuthToken(token);
+		at.app = app;
+		at.xid = xid;
+		at.name = name;
+		at.img = img;
+		return at;
+	}
+
 	public AuthToken setApp(String app) {
 		this.app = app;
 		return this;
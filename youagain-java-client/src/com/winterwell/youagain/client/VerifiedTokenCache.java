@@ -0,0 +1,203 @@
+package com.winterwell.youagain.client;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.containers.ConcurrentCache;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.web.data.XId;
+
+/**
+ * Remembers which JWTs and name/password logins have been verified, across requests,
+ * so that repeat visits cost a hash lookup instead of an RSA check (or a call to the YouAgain server).
+ * <p>
+ * Keys are salted hashes -- we never hold passwords, and a heap dump does not reveal usable tokens.
+ * A JWT entry expires at the token's exp claim (or after {@link #MAX_JWT_TTL}, whichever is sooner).
+ * Only successes are cached.
+ *
+ * @testedby {@link VerifiedTokenCacheTest}
+ */
+public final class VerifiedTokenCache {
+
+	/**
+	 * Upper limit on how long a verified JWT is trusted without re-checking.
+	 */
+	static final Dt MAX_JWT_TTL = TUnit.HOUR.dt;
+
+	/**
+	 * Short, so a changed password takes effect soon.
+	 */
+	static final Dt LOGIN_TTL = new Dt(5, TUnit.MINUTE);
+
+	private static final class Verified {
+		final XId xid;
+		/**
+		 * epoch millisecs
+		 */
+		final long expires;
+
+		Verified(XId xid, long expires) {
+			this.xid = xid;
+			this.expires = expires;
+		}
+	}
+
+	private final ConcurrentCache<String, Verified> jwts;
+
+	/**
+	 * Copies -- AuthToken is mutable, so the cached one is never handed out.
+	 */
+	private final ConcurrentCache<String, AuthToken> logins;
+
+	/**
+	 * Bumped by {@link #clearJWTs()}, so a verification which started before the clear is not cached after it.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * Per-process, so the hashes are no use outside this JVM
+	 */
+	private final String salt;
+
+	private final LongAdder verifyCount = new LongAdder();
+	private final LongAdder verifyNanos = new LongAdder();
+
+	/**
+	 * @param capacity max number of JWTs (and separately, logins) to remember
+	 */
+	public VerifiedTokenCache(int capacity) {
+		jwts = new ConcurrentCache<String, Verified>(capacity)
+				.setSoftValues(false)
+				.setExpireAfterWrite(MAX_JWT_TTL);
+		logins = new ConcurrentCache<String, AuthToken>(capacity)
+				.setSoftValues(false)
+				.setExpireAfterWrite(LOGIN_TTL);
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		salt = Base64.getEncoder().encodeToString(bytes);
+	}
+
+	private String hash(String secret) {
+		return StrUtils.hash("SHA-256", salt + secret);
+	}
+
+	/**
+	 * @param jwt
+	 * @return the verified subject, or null if this token is not known (or has expired)
+	 */
+	public XId getJWT(String jwt) {
+		String k = hash(jwt);
+		Verified v = jwts.get(k);
+		if (v == null) return null;
+		if (v.expires < System.currentTimeMillis()) {
+			jwts.remove(k);
+			return null;
+		}
+		return v.xid;
+	}
+
+	/**
+	 * @return the current generation, to pass to {@link #putJWT(String, DecodedJWT, long, long)}.
+	 * Get this <i>before</i> getting the key to verify with.
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Record a successful verification.
+	 * @param jwt
+	 * @param decoded
+	 * @param verifyNanos how long the check took, for {@link #getMeanVerifyMillis()}
+	 * @param gen from {@link #getGeneration()} before the check. If {@link #clearJWTs()} has been called since, 
+	 * the token is not cached.
+	 * @return the subject
+	 */
+	public XId putJWT(String jwt, DecodedJWT decoded, long verifyNanos, long gen) {
+		recordVerify(verifyNanos);
+		XId xid = new XId(decoded.getSubject(), false);
+		if (gen != generation.get()) {
+			return xid;
+		}
+		long max = System.currentTimeMillis() + MAX_JWT_TTL.getMillisecs();
+		Date exp = decoded.getExpiresAt();
+		long expires = exp == null ? max : Math.min(exp.getTime(), max);
+		String k = hash(jwt);
+		jwts.put(k, new Verified(xid, expires));
+		// a clear could have slipped in between the check and the put
+		if (gen != generation.get()) {
+			jwts.remove(k);
+		}
+		return xid;
+	}
+
+	/**
+	 * @return a copy of a previously verified login, or null
+	 */
+	public AuthToken getLogin(String name, String password) {
+		AuthToken token = logins.get(hash(name + "\0" + password));
+		return token == null ? null : token.copy();
+	}
+
+	public void putLogin(String name, String password, AuthToken token, long verifyNanos) {
+		recordVerify(verifyNanos);
+		logins.put(hash(name + "\0" + password), token.copy());
+	}
+
+	private void recordVerify(long nanos) {
+		verifyCount.increment();
+		verifyNanos.add(nanos);
+	}
+
+	/**
+	 * Forget all JWTs, e.g. because the signing key has changed.
+	 */
+	public void clearJWTs() {
+		// bump first, so a put racing with the clear sees the change
+		generation.incrementAndGet();
+		jwts.clear();
+	}
+
+	/**
+	 * @return hits / (hits + misses) for JWT lookups, or 0 if there have been none
+	 */
+	public double getJWTHitRate() {
+		return jwts.getHitRate();
+	}
+
+	/**
+	 * @return hits / (hits + misses) for name/password lookups, or 0 if there have been none
+	 */
+	public double getLoginHitRate() {
+		return logins.getHitRate();
+	}
+
+	/**
+	 * @return number of full (cache-miss) verifications, JWT and login
+	 */
+	public long getVerifyCount() {
+		return verifyCount.sum();
+	}
+
+	/**
+	 * @return mean time for a full (cache-miss) verification, or 0 if there have been none
+	 */
+	public double getMeanVerifyMillis() {
+		long n = verifyCount.sum();
+		return n == 0 ? 0 : verifyNanos.sum() / (1000000.0 * n);
+	}
+
+	@Override
+	public String toString() {
+		return "VerifiedTokenCache[jwts=" + jwts.size() + " hit-rate=" + StrUtils.toNSigFigs(getJWTHitRate(), 2)
+				+ " logins=" + logins.size() + " hit-rate=" + StrUtils.toNSigFigs(getLoginHitRate(), 2)
+				+ " verifies=" + getVerifyCount() + " mean=" + StrUtils.toNSigFigs(getMeanVerifyMillis(), 2) + "ms]";
+	}
+
+}
@@ -7,6 +7,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -25,6 +28,8 @@ import com.winterwell.utils.containers.Containers;
 import com.winterwell.utils.containers.Pair;
 import com.winterwell.utils.io.ConfigFactory;
 import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
 import com.winterwell.utils.web.SimpleJson;
 import com.winterwell.utils.web.WebUtils2;
 import com.winterwell.utils.web.XStreamUtils;
@@ -161,8 +166,13 @@ public final class YouAgainClient {
 		AuthToken basicToken = null;
 		Pair<String> np = WebUtils2.getBasicAuthentication(state.getRequest());
 		if (np !=null) {
-			// verify it
-			basicToken = verifyNamePassword(np.first, np.second);
+			// verify it (or recall a recent check)
+			basicToken = cache.getLogin(np.first, np.second);
+			if (basicToken==null) {
+				long t = System.nanoTime();
+				basicToken = verifyNamePassword(np.first, np.second);
+				cache.putLogin(np.first, np.second, basicToken, System.nanoTime() - t);
+			}
 		}
 		if (jwt.isEmpty() && basicToken==null) {
 			return new ArrayList();
@@ -241,10 +251,18 @@ public final class YouAgainClient {
 					continue;
 				}
 				// TODO a better appraoch would be for the browser to make a proper JWT for @temp
-				// decode the token
-				JWTDecoder dec = getDecoder(); //"local".equals(state.get("login")));
-				DecodedJWT decd = dec.decryptJWT(jt);
-				token.xid = new XId(decd.getSubject(), false);
+				// seen before?
+				XId xid = cache.getJWT(jt);
+				if (xid==null) {
+					// decode the token
+					// NB: get the generation first, so a check against a key which is then replaced isn't cached
+					long gen = cache.getGeneration();
+					JWTDecoder _dec = getDecoder(); //"local".equals(state.get("login")));
+					long t = System.nanoTime();
+					DecodedJWT decd = _dec.decryptJWT(jt);
+					xid = cache.putJWT(jt, decd, System.nanoTime() - t, gen);
+				}
+				token.xid = xid;
 				list.add(token);
 			} catch (Throwable e) {
 				Log.i(LOGTAG, e);
@@ -263,25 +281,93 @@ public final class YouAgainClient {
 	}
 
 
-	JWTDecoder dec;
+	/**
+	 * Replaced (not modified) when the key changes, so requests can use it without locking
+	 */
+	private volatile JWTDecoder dec;
 	
 	/**
 	 * NB: the signing key is the youagain key, shared by all apps
 	 */
-	static PublicKey yaPubKey;
+	static volatile PublicKey yaPubKey;
+
+	/**
+	 * How often to re-fetch the public key
+	 */
+	static final Dt KEY_REFRESH = TUnit.HOUR.dt;
+
+	private static ScheduledExecutorService keyRefresher;
+
+	/**
+	 * Verified JWTs and logins, so repeat visitors are cheap
+	 */
+	private final VerifiedTokenCache cache = new VerifiedTokenCache(10000);
 	
 	public JWTDecoder getDecoder() throws Exception {
-		if (dec!=null) return dec;		
-		dec = new JWTDecoder(app);
+		JWTDecoder _dec = dec;
+		if (_dec!=null) return _dec;
+		return getDecoder2_init();
+	}
+
+	private synchronized JWTDecoder getDecoder2_init() throws Exception {
+		if (dec!=null) return dec;
+		JWTDecoder _dec = new JWTDecoder(app);
 		if (yaPubKey==null) {
-			String publickeyendpoint = yac.endpoint.replace("youagain.json", "publickey");
-			// load from the server, so we could change keys
-			String skey = new FakeBrowser().getPage(publickeyendpoint);
-			yaPubKey = JWTDecoder.keyFromString(skey);
-			Log.d(LOGTAG, "GOT key "+yaPubKey+" from "+publickeyendpoint);	
+			yaPubKey = fetchPublicKey();
+		}
+		_dec.setPublicKey(yaPubKey);
+		dec = _dec;
+		// keep the key fresh in the background, so a key change doesn't need a restart
+		keyRefresher().scheduleWithFixedDelay(this::refreshPublicKey, 
+				KEY_REFRESH.getMillisecs(), KEY_REFRESH.getMillisecs(), TimeUnit.MILLISECONDS);
+		return _dec;
+	}
+
+	private PublicKey fetchPublicKey() throws Exception {
+		String publickeyendpoint = yac.endpoint.replace("youagain.json", "publickey");
+		// load from the server, so we could change keys
+		String skey = new FakeBrowser().getPage(publickeyendpoint);
+		PublicKey key = JWTDecoder.keyFromString(skey);
+		Log.d(LOGTAG, "GOT key "+key+" from "+publickeyendpoint);
+		return key;
+	}
+
+	/**
+	 * Re-fetch the public key. If it has changed, swap in a new decoder and forget the verified JWTs.
+	 * Errors are logged, and we keep the old key.
+	 */
+	void refreshPublicKey() {
+		try {
+			PublicKey key = fetchPublicKey();
+			yaPubKey = key;
+			if (key.equals(dec.getPublicKey())) return;
+			Log.w(LOGTAG, "Public key changed - clearing verified tokens "+cache);
+			JWTDecoder _dec = new JWTDecoder(app);
+			_dec.setPublicKey(key);
+			dec = _dec;
+			// after the swap, so any check which used the old key is not cached
+			cache.clearJWTs();
+		} catch(Throwable ex) {
+			Log.w(LOGTAG, "refresh public key failed: "+ex);
 		}
-		dec.setPublicKey(yaPubKey);
-		return dec;
+	}
+
+	private static synchronized ScheduledExecutorService keyRefresher() {
+		if (keyRefresher == null) {
+			keyRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "YouAgainClient.refreshPublicKey");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return keyRefresher;
+	}
+
+	/**
+	 * @return the cross-request cache of verified tokens -- e.g. for hit-rate and verify-latency stats
+	 */
+	public VerifiedTokenCache getVerifiedTokenCache() {
+		return cache;
 	}
 
 	/**
@@ -0,0 +1,91 @@
+package com.winterwell.youagain.client;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.winterwell.web.data.XId;
+
+/**
+ * @tested {@link VerifiedTokenCache}
+ */
+public class VerifiedTokenCacheTest {
+
+	static Algorithm alg;
+
+	static String newJWT(String subject, Date expires) throws Exception {
+		if (alg == null) {
+			KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+			kpg.initialize(2048);
+			KeyPair kp = kpg.generateKeyPair();
+			alg = Algorithm.RSA256((RSAPublicKey) kp.getPublic(), (RSAPrivateKey) kp.getPrivate());
+		}
+		return JWT.create().withSubject(subject).withExpiresAt(expires).sign(alg);
+	}
+
+	@Test
+	public void testJWT() throws Exception {
+		VerifiedTokenCache cache = new VerifiedTokenCache(100);
+		String jwt = newJWT("alice@email", new Date(System.currentTimeMillis() + 60000));
+		assert cache.getJWT(jwt) == null;
+		DecodedJWT decd = JWT.decode(jwt);
+		XId xid = cache.putJWT(jwt, decd, 2000000, cache.getGeneration());
+		assert xid.equals(new XId("alice@email", false)) : xid;
+		assert xid.equals(cache.getJWT(jwt));
+		// a different token
+		String jwt2 = newJWT("bob@email", new Date(System.currentTimeMillis() + 60000));
+		assert cache.getJWT(jwt2) == null;
+		// stats
+		assert cache.getJWTHitRate() == 1.0 / 3 : cache;
+		assert cache.getVerifyCount() == 1;
+		assert cache.getMeanVerifyMillis() == 2 : cache;
+	}
+
+	@Test
+	public void testJWTExpiry() throws Exception {
+		VerifiedTokenCache cache = new VerifiedTokenCache(100);
+		String jwt = newJWT("alice@email", new Date(System.currentTimeMillis() - 1000));
+		cache.putJWT(jwt, JWT.decode(jwt), 1000000, cache.getGeneration());
+		assert cache.getJWT(jwt) == null;
+	}
+
+	@Test
+	public void testClearJWTs() throws Exception {
+		VerifiedTokenCache cache = new VerifiedTokenCache(100);
+		String jwt = newJWT("alice@email", new Date(System.currentTimeMillis() + 60000));
+		cache.putJWT(jwt, JWT.decode(jwt), 1000000, cache.getGeneration());
+		assert cache.getJWT(jwt) != null;
+		cache.clearJWTs();
+		assert cache.getJWT(jwt) == null;
+		// a check which began before the clear (i.e. maybe with the old key) is not cached
+		long gen = cache.getGeneration();
+		cache.clearJWTs();
+		cache.putJWT(jwt, JWT.decode(jwt), 1000000, gen);
+		assert cache.getJWT(jwt) == null;
+	}
+
+	@Test
+	public void testLogin() {
+		VerifiedTokenCache cache = new VerifiedTokenCache(100);
+		AuthToken token = new AuthToken("jwt").setXId(new XId("alice@email", false));
+		assert cache.getLogin("alice@email", "pwd") == null;
+		cache.putLogin("alice@email", "pwd", token, 50000000);
+		AuthToken got = cache.getLogin("alice@email", "pwd");
+		assert got != token && got.equals(token) : got;
+		// editing what you got doesn't change the cache
+		got.setXId(new XId("bob@email", false));
+		assert cache.getLogin("alice@email", "pwd").getXId().equals(token.getXId());
+		assert cache.getLogin("alice@email", "wrong") == null;
+		assert cache.getLogin("alice@email", "pw") == null;
+		assert cache.getLoginHitRate() == 2.0 / 5 : cache;
+		assert cache.getMeanVerifyMillis() == 50 : cache;
+	}
+
+}